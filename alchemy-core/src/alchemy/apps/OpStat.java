@@ -0,0 +1,317 @@
+/*
+ * This file is a part of Alchemy OS project.
+ *  Copyright (C) 2011-2014, Sergey Basalaev <sbasalaev@gmail.com>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package alchemy.apps;
+
+import alchemy.evm.EtherLoader;
+import alchemy.evm.Opcodes;
+import alchemy.fs.Filesystem;
+import alchemy.io.IO;
+import alchemy.system.NativeApp;
+import alchemy.system.Process;
+import alchemy.util.HashMap;
+import alchemy.util.Strings;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Opcode statistics.
+ * Counts how often sequences of instructions occur in
+ * Ether libraries and object files. Used to choose
+ * superinstructions of the loader.
+ *
+ * @author Sergey Basalaev
+ */
+public class OpStat extends NativeApp {
+
+	static private final String USAGE = "Usage: opstat [-n <length>] [-t <top>] [-f] <file>...";
+
+	static private final String[] NAMES = Strings.split(
+		"nop aconst_null iconst_m1 iconst_0 iconst_1 iconst_2 iconst_3 iconst_4 " +
+		"iconst_5 lconst_0 lconst_1 fconst_0 fconst_1 fconst_2 dconst_0 dconst_1 " +
+		"iadd isub imul idiv imod ineg icmp ishl " +
+		"ishr iushr iand ior ixor i2b ret_null return " +
+		"ladd lsub lmul ldiv lmod lneg lcmp lshl " +
+		"lshr lushr land lor lxor dup dup2 swap " +
+		"fadd fsub fmul fdiv fmod fneg fcmp i2l " +
+		"i2f i2d l2f l2d l2i load store ldc " +
+		"dadd dsub dmul ddiv dmod dneg dcmp f2d " +
+		"f2i f2l d2i d2l d2f call calv acmp " +
+		"load_0 load_1 load_2 load_3 load_4 load_5 load_6 load_7 " +
+		"store_0 store_1 store_2 store_3 store_4 store_5 store_6 store_7 " +
+		"pop ifeq ifne iflt ifge ifgt ifle goto " +
+		"ifnull ifnnull if_icmplt if_icmpge if_icmpgt if_icmple bipush sipush " +
+		"call_0 call_1 call_2 call_3 call_4 call_5 call_6 call_7 " +
+		"calv_0 calv_1 calv_2 calv_3 calv_4 calv_5 calv_6 calv_7 " +
+		"iadd_r isub_r imul_r idiv_r imod_r ishl_r ishr_r iushr_r " +
+		"iand_r ior_r ixor_r ladd_r lsub_r lmul_r ldiv_r lmod_r " +
+		"fadd_r fsub_r fmul_r fdiv_r dadd_r dsub_r dmul_r ddiv_r " +
+		"move_r iaddi_r if_icmplt_r if_icmpge_r if_icmpgt_r if_icmple_r - - " +
+		"- - - - - - - - " +
+		"- - - - - - - - " +
+		"callc_0 callc_1 callc_2 callc_3 callc_4 callc_5 callc_6 callc_7 " +
+		"calvc_0 calvc_1 calvc_2 calvc_3 calvc_4 calvc_5 calvc_6 calvc_7 " +
+		"callc calvc - - - - - - " +
+		"- - - - - concat newmultiarray setglobal " +
+		"getglobal getglobaldef throw iinc jsr ret if_acmpeq if_acmpne " +
+		"newza zaload zastore zalen newsa saload sastore salen " +
+		"newia iaload iastore ialen newla laload lastore lalen " +
+		"newfa faload fastore falen newda daload dastore dalen " +
+		"newaa aaload aastore aalen newba baload bastore balen " +
+		"newca caload castore calen tableswitch lookupswitch i2c i2s",
+		' ', false);
+
+	public OpStat() { }
+
+	public int main(Process p, String[] args) throws Exception {
+		int maxlen = 3;
+		int top = 20;
+		boolean fold = false;
+		int filecount = 0;
+		String[] files = new String[args.length];
+		try {
+			for (int i=0; i<args.length; i++) {
+				if (args[i].equals("-n")) {
+					i++;
+					maxlen = Integer.parseInt(args[i]);
+				} else if (args[i].equals("-t")) {
+					i++;
+					top = Integer.parseInt(args[i]);
+				} else if (args[i].equals("-f")) {
+					fold = true;
+				} else if (args[i].equals("-h")) {
+					IO.println(p.stdout, USAGE);
+					return 0;
+				} else {
+					files[filecount] = args[i];
+					filecount++;
+				}
+			}
+		} catch (RuntimeException e) {
+			IO.println(p.stderr, USAGE);
+			return 1;
+		}
+		if (filecount == 0 || maxlen < 1) {
+			IO.println(p.stderr, USAGE);
+			return 1;
+		}
+		HashMap[] stats = new HashMap[maxlen];
+		for (int i=0; i<maxlen; i++) {
+			stats[i] = new HashMap();
+		}
+		for (int i=0; i<filecount; i++) {
+			InputStream in = Filesystem.read(p.toFile(files[i]));
+			try {
+				readLibrary(new DataInputStream(in), stats, fold);
+			} catch (IOException ioe) {
+				IO.println(p.stderr, "opstat: " + files[i] + ": " + ioe.getMessage());
+				return 1;
+			} finally {
+				in.close();
+			}
+		}
+		for (int n=0; n<maxlen; n++) {
+			IO.println(p.stdout, "== " + (n+1) + "-grams");
+			printTop(p, stats[n], top);
+		}
+		return 0;
+	}
+
+	/** Reads Ether library or object file and counts instruction sequences in its functions. */
+	private static void readLibrary(DataInputStream data, HashMap[] stats, boolean fold) throws IOException {
+		if (data.readUnsignedShort() != 0xC0DE) throw new IOException("Not an Ether library");
+		boolean compact = data.readUnsignedShort() >= EtherLoader.COMPACT_VERSION;
+		int lflags = data.readUnsignedByte();
+		if (compact) {
+			for (int i=EtherLoader.readVarint(data); i > 0; i--) data.readUTF();
+		}
+		if ((lflags & Opcodes.LFLAG_SONAME) != 0) {
+			skipString(data, compact);
+		}
+		if ((lflags & Opcodes.LFLAG_DEPS) != 0) {
+			for (int i=readCount(data, compact); i > 0; i--) skipString(data, compact);
+		}
+		for (int i=readCount(data, compact); i > 0; i--) {
+			int ctype = data.readUnsignedByte();
+			switch (ctype) {
+				case '0':
+					break;
+				case 'i':
+					if (compact) EtherLoader.readVarint(data);
+					else data.skipBytes(4);
+					break;
+				case 'f':
+					data.skipBytes(4);
+					break;
+				case 'l':
+				case 'd':
+					data.skipBytes(8);
+					break;
+				case 'S':
+				case 'U':
+					skipString(data, compact);
+					break;
+				case 'E':
+					readCount(data, compact);
+					skipString(data, compact);
+					break;
+				case 'P': {
+					skipString(data, compact);
+					int fflags = data.readUnsignedByte();
+					data.skipBytes(2);
+					byte[] code = new byte[readCount(data, compact)];
+					data.readFully(code);
+					if (compact) {
+						if ((fflags & Opcodes.FFLAG_LNUM) != 0) EtherLoader.readLineTable(data);
+						if ((fflags & Opcodes.FFLAG_ERRTBL) != 0) EtherLoader.readErrorTable(data);
+					} else {
+						if ((fflags & Opcodes.FFLAG_RELOCS) != 0) data.skipBytes(data.readUnsignedShort()*2);
+						if ((fflags & Opcodes.FFLAG_LNUM) != 0) data.skipBytes(data.readUnsignedShort()*2);
+						if ((fflags & Opcodes.FFLAG_ERRTBL) != 0) data.skipBytes(data.readUnsignedShort()*2);
+					}
+					countCode(code, stats, fold);
+					break;
+				}
+				default:
+					throw new IOException("Unknown data type: " + ctype);
+			}
+		}
+	}
+
+	private static void skipString(DataInputStream data, boolean compact) throws IOException {
+		if (compact) EtherLoader.readVarint(data);
+		else data.readUTF();
+	}
+
+	private static int readCount(DataInputStream data, boolean compact) throws IOException {
+		return compact ? EtherLoader.readVarint(data) : data.readUnsignedShort();
+	}
+
+	private static void countCode(byte[] code, HashMap[] stats, boolean fold) {
+		String[] window = new String[stats.length];
+		int ct = 0;
+		while (ct < code.length) {
+			int instr = code[ct] & 0xff;
+			String name = NAMES[instr];
+			if (fold && name.length() > 2 && name.charAt(name.length()-2) == '_' && Character.isDigit(name.charAt(name.length()-1))) {
+				name = name.substring(0, name.length()-1) + 'n';
+			}
+			System.arraycopy(window, 0, window, 1, window.length-1);
+			window[0] = name;
+			String key = null;
+			for (int n=0; n<window.length && window[n] != null; n++) {
+				key = (key == null) ? window[n] : window[n] + ' ' + key;
+				int[] counter = (int[])stats[n].get(key);
+				if (counter == null) {
+					counter = new int[1];
+					stats[n].set(key, counter);
+				}
+				counter[0]++;
+			}
+			ct += insnSize(code, ct);
+		}
+	}
+
+	/** Returns size of the instruction at given offset in bytes. */
+	private static int insnSize(byte[] code, int ct) {
+		int instr = code[ct];
+		switch (instr) {
+			case Opcodes.LOAD:
+			case Opcodes.STORE:
+			case Opcodes.BIPUSH:
+			case Opcodes.CALL:
+			case Opcodes.CALV:
+			case Opcodes.CONCAT:
+				return 2;
+			case Opcodes.SIPUSH:
+			case Opcodes.LDC:
+			case Opcodes.IFEQ:
+			case Opcodes.IFNE:
+			case Opcodes.IFLT:
+			case Opcodes.IFGE:
+			case Opcodes.IFGT:
+			case Opcodes.IFLE:
+			case Opcodes.GOTO:
+			case Opcodes.IFNULL:
+			case Opcodes.IFNNULL:
+			case Opcodes.IF_ICMPLT:
+			case Opcodes.IF_ICMPGE:
+			case Opcodes.IF_ICMPGT:
+			case Opcodes.IF_ICMPLE:
+			case Opcodes.IF_ACMPEQ:
+			case Opcodes.IF_ACMPNE:
+			case Opcodes.JSR:
+			case Opcodes.IINC:
+			case Opcodes.NEWMULTIARRAY:
+			case Opcodes.MOVE_R:
+				return 3;
+			case Opcodes.CALLC:
+			case Opcodes.CALVC:
+			case Opcodes.IADDI_R:
+				return 4;
+			case Opcodes.IF_ICMPLT_R:
+			case Opcodes.IF_ICMPGE_R:
+			case Opcodes.IF_ICMPGT_R:
+			case Opcodes.IF_ICMPLE_R:
+				return 5;
+			case Opcodes.TABLESWITCH: {
+				int min = readInt(code, ct+3);
+				int max = readInt(code, ct+7);
+				return 11 + (max-min+1)*2;
+			}
+			case Opcodes.LOOKUPSWITCH: {
+				int count = ((code[ct+3] & 0xff) << 8) | (code[ct+4] & 0xff);
+				return 5 + count*6;
+			}
+		}
+		instr &= 0xff;
+		if (instr >= (Opcodes.CALLC_0 & 0xff) && instr <= (Opcodes.CALVC_7 & 0xff)) return 3;
+		if (instr >= (Opcodes.IADD_R & 0xff) && instr <= (Opcodes.DDIV_R & 0xff)) return 4;
+		return 1;
+	}
+
+	private static int readInt(byte[] code, int ct) {
+		return (code[ct] << 24)
+		     | ((code[ct+1] & 0xff) << 16)
+		     | ((code[ct+2] & 0xff) << 8)
+		     | (code[ct+3] & 0xff);
+	}
+
+	/** Prints sequences with the highest counts. */
+	private static void printTop(Process p, HashMap stat, int top) {
+		Object[] keys = stat.keys();
+		int[] counts = new int[keys.length];
+		for (int i=0; i<keys.length; i++) {
+			counts[i] = ((int[])stat.get(keys[i]))[0];
+		}
+		for (int i=0; i<top && i<keys.length; i++) {
+			int max = i;
+			for (int j=i+1; j<keys.length; j++) {
+				if (counts[j] > counts[max]) max = j;
+			}
+			int ctmp = counts[i];
+			counts[i] = counts[max];
+			counts[max] = ctmp;
+			Object ktmp = keys[i];
+			keys[i] = keys[max];
+			keys[max] = ktmp;
+			IO.println(p.stdout, counts[i] + "\t" + keys[i]);
+		}
+	}
+}
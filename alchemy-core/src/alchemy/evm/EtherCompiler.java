@@ -0,0 +1,89 @@
+/*
+ * This file is a part of Alchemy OS project.
+ *  Copyright (C) 2011-2014, Sergey Basalaev <sbasalaev@gmail.com>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package alchemy.evm;
+
+import alchemy.system.Function;
+
+/**
+ * Compiler of Ether functions to the native code of the platform.
+ * No compiler is installed by default. When platform installs
+ * one, functions that are called or loop often enough are passed
+ * to it and if compilation succeeds all subsequent calls of the
+ * function are delegated to the compiled code.
+ *
+ * @author Sergey Basalaev
+ */
+public abstract class EtherCompiler {
+
+	private static EtherCompiler compiler;
+	/** Number of calls and backward jumps after which function is compiled. */
+	static int threshold = Integer.MAX_VALUE;
+
+	protected EtherCompiler() { }
+
+	/**
+	 * Installs compiler of Ether functions.
+	 * @param jit        compiler, null disables compilation
+	 * @param threshold  number of calls and backward jumps after which
+	 *                   function is passed to the compiler
+	 */
+	public static synchronized void install(EtherCompiler jit, int threshold) {
+		if (threshold < 1) throw new IllegalArgumentException();
+		EtherCompiler.compiler = jit;
+		EtherCompiler.threshold = (jit != null) ? threshold : Integer.MAX_VALUE;
+	}
+
+	/** Returns installed compiler or null. */
+	static EtherCompiler getCompiler() {
+		return compiler;
+	}
+
+	/**
+	 * Returns offset in the library code for the index in decoded
+	 * code of given source function. Compiled code should show this
+	 * offset in stack traces if function has no debug info.
+	 */
+	public static int codeOffset(Function source, int at) {
+		if (source instanceof EtherFunction) {
+			return ((EtherFunction)source).codeOffset(at);
+		}
+		return at;
+	}
+
+	/**
+	 * Compiles Ether function.
+	 * The code is in the form produced by the loader, that is
+	 * every operand occupies one integer, branch targets are
+	 * indices in the code array, superinstructions are fused and
+	 * instructions may be replaced by type-specialized versions.
+	 * Line numbers and error table refer to the same indices.
+	 *
+	 * @param source     function being compiled
+	 * @param cpool      constant pool of the function
+	 * @param code       decoded code of the function
+	 * @param stacksize  maximal depth of the operand stack
+	 * @param localsize  number of local variables
+	 * @param dbgtable   line number table, may be null
+	 * @param errtable   error table, may be null
+	 * @return compiled function or null if the function
+	 *         cannot be compiled
+	 */
+	protected abstract Function compile(Function source, Object[] cpool, int[] code,
+			int stacksize, int localsize, char[] dbgtable, char[] errtable);
+}
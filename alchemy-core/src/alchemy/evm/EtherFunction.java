@@ -20,52 +20,305 @@ package alchemy.evm;
 
 import alchemy.system.AlchemyException;
 import alchemy.system.Function;
+import alchemy.system.GlobalVar;
 import alchemy.system.Library;
+import alchemy.system.NativeFunction;
 import alchemy.system.Process;
 import alchemy.system.ProcessKilledException;
 import alchemy.types.Float32;
 import alchemy.types.Float64;
 import alchemy.types.Int32;
 import alchemy.types.Int64;
+import alchemy.util.ArrayList;
 import alchemy.util.Arrays;
+import alchemy.util.HashMap;
 import alchemy.util.Strings;
+import java.io.DataInputStream;
+import java.io.IOException;
 
 /**
  * Ether Virtual Machine.
- * TODO: switch to the register based machine already.
+ * Instructions operate on the operand stack, register
+ * instructions of format 3.0 operate directly on locals.
  *
  * @author Sergey Basalaev
  */
 final class EtherFunction extends Function {
 
+	/*
+	 * Primitive values are not boxed while they stay in the frame.
+	 * The value is kept in the parallel array of longs and the slot
+	 * of object stack holds one of these tags. Floats are stored as
+	 * int bits, doubles as long bits. Values are boxed only when they
+	 * escape the frame, i.e. are passed to functions, returned, stored
+	 * in object arrays or globals.
+	 */
+	private static final Object INT = new Object();
+	private static final Object LONG = new Object();
+	private static final Object FLOAT = new Object();
+	private static final Object DOUBLE = new Object();
+
 	private final int stacksize;
 	private final int localsize;
-	private final byte[] bcode;
-	private final char[] dbgtable;
-	private final char[] errtable;
+	/** Code in the interpreted form, null until the function is prepared. */
+	private volatile int[] bcode;
+	/** Code as read from the library, dropped when the function is prepared. */
+	private byte[] rawcode;
+	private char[] dbgtable;
+	private char[] errtable;
 	private final Object[] cpool;
+	/** Pool of the image decoding constants on demand, null if library is not from image. */
+	private final ImagePool pool;
+	/** Offset of code and tables in the image, -1 if they are read. */
+	private int body = -1;
+
+	/** Number of calls and backward jumps, used to trigger compilation. */
+	private int hotness;
+	/** Compiled version of this function, if any. */
+	private Function compiled;
+	/** Global variables cached by call sites, indexed by site. */
+	private GlobalVar[] globals;
+	/** Functions cached by call sites, indexed by site. */
+	private Function[] callees;
+
+	/* Tables for exception handling, sorted by code offset when prepared. */
+	/** Source file name, null if there is no debug info. */
+	private String srcname;
+	/** Offsets at which source lines start. */
+	private int[] lineStarts;
+	/** Source lines starting at lineStarts. */
+	private int[] lines;
+	/** Offsets in the library code for decoded code, used if there is no debug info. */
+	private char[] offsets;
+	/** Offsets at which code regions covered by the same handler start. */
+	private int[] regionStarts;
+	/** Error table entry for each region, -1 if region has no handler. */
+	private int[] regionEntries;
 
 	EtherFunction(Library owner, String funcname, Object[] cpool, int stacksize, int localsize, byte[] code, char[] dbgtable, char[] errtable) {
 		super(owner, funcname);
 		this.stacksize = stacksize;
 		this.localsize = localsize;
-		this.bcode = code;
+		this.rawcode = code;
 		this.cpool = cpool;
+		this.pool = null;
 		this.dbgtable = dbgtable;
 		this.errtable = errtable;
 	}
 
+	/**
+	 * Creates function of the library loaded from image.
+	 * Code and tables are read from the image when the
+	 * function is prepared.
+	 */
+	EtherFunction(Library owner, String funcname, Object[] cpool, ImagePool pool, int body, int stacksize, int localsize) {
+		super(owner, funcname);
+		this.stacksize = stacksize;
+		this.localsize = localsize;
+		this.cpool = cpool;
+		this.pool = pool;
+		this.body = body;
+	}
+
+	/**
+	 * Decodes and verifies code of this function and sorts
+	 * its tables. Lazily loaded functions are prepared on
+	 * the first call, others right after loading.
+	 */
+	synchronized void prepare() throws InstantiationException {
+		if (bcode != null) return;
+		if (body >= 0) readBody();
+		// tables are remapped in place, so failed function is not retried
+		byte[] raw = rawcode;
+		if (raw == null) throw new InstantiationException("Invalid code of " + name);
+		rawcode = null;
+		int[] map = new int[raw.length+1];
+		int[] code = EtherLoader.decode(raw, dbgtable, errtable, map);
+		EtherVerifier.verify(code, stacksize, localsize, cpool, pool, errtable);
+		// line table
+		if (dbgtable == null) {
+			offsets = EtherLoader.codeOffsets(map, code.length);
+		} else {
+			if (pool != null) pool.resolve(dbgtable[0]);
+			srcname = String.valueOf(cpool[dbgtable[0]]);
+			int count = (dbgtable.length - 1) / 2;
+			lineStarts = new int[count];
+			lines = new int[count];
+			for (int i=0; i<count; i++) {
+				int start = dbgtable[i*2+2];
+				int line = dbgtable[i*2+1];
+				// insertion sort, later entries win on equal offsets
+				int j = i;
+				while (j > 0 && lineStarts[j-1] > start) {
+					lineStarts[j] = lineStarts[j-1];
+					lines[j] = lines[j-1];
+					j--;
+				}
+				lineStarts[j] = start;
+				lines[j] = line;
+			}
+		}
+		// handler table, first matching entry covers each region
+		if (errtable != null) {
+			int count = errtable.length / 4;
+			int[] bounds = new int[count*2];
+			int nbounds = 0;
+			for (int i=0; i<count*2; i++) {
+				int bound = (i % 2 == 0) ? errtable[i*2] : errtable[i*2-1] + 1;
+				int j = nbounds;
+				while (j > 0 && bounds[j-1] > bound) j--;
+				if (j > 0 && bounds[j-1] == bound) continue;
+				System.arraycopy(bounds, j, bounds, j+1, nbounds-j);
+				bounds[j] = bound;
+				nbounds++;
+			}
+			regionStarts = new int[nbounds];
+			regionEntries = new int[nbounds];
+			for (int r=0; r<nbounds; r++) {
+				int start = bounds[r];
+				int entry = -1;
+				for (int i=0; i < errtable.length && entry < 0; i += 4) {
+					if (start >= errtable[i] && start <= errtable[i+1]) entry = i;
+				}
+				regionStarts[r] = start;
+				regionEntries[r] = entry;
+			}
+		}
+		bcode = code;
+	}
+
+	/** Reads code and tables of the function from the image. */
+	private void readBody() throws InstantiationException {
+		int offset = body;
+		body = -1;
+		try {
+			DataInputStream data = pool.body(offset);
+			byte[] code = new byte[data.readInt()];
+			data.readFully(code);
+			dbgtable = ImagePool.readTable(data);
+			errtable = ImagePool.readTable(data);
+			rawcode = code;
+		} catch (IOException ioe) {
+			throw new InstantiationException("Broken image: " + ioe);
+		}
+	}
+
 	public Object invoke(Process p, Object[] args) throws AlchemyException, ProcessKilledException {
+		if (compiled != null) return compiled.invoke(p, args);
+		EtherStack es = EtherStack.current();
+		int base = es.top;
+		es.ensureCapacity(base + args.length);
+		System.arraycopy(args, 0, es.stack, base, args.length);
+		return run(p, es, base, args.length);
+	}
+
+	public Object invoke0(Process p) throws AlchemyException, ProcessKilledException {
+		if (compiled != null) return compiled.invoke0(p);
+		EtherStack es = EtherStack.current();
+		return run(p, es, es.top, 0);
+	}
+
+	public Object invoke1(Process p, Object a0) throws AlchemyException, ProcessKilledException {
+		if (compiled != null) return compiled.invoke1(p, a0);
+		EtherStack es = EtherStack.current();
+		int base = es.top;
+		es.ensureCapacity(base + 1);
+		es.stack[base] = a0;
+		return run(p, es, base, 1);
+	}
+
+	public Object invoke2(Process p, Object a0, Object a1) throws AlchemyException, ProcessKilledException {
+		if (compiled != null) return compiled.invoke2(p, a0, a1);
+		EtherStack es = EtherStack.current();
+		int base = es.top;
+		es.ensureCapacity(base + 2);
+		Object[] stack = es.stack;
+		stack[base] = a0;
+		stack[base+1] = a1;
+		return run(p, es, base, 2);
+	}
+
+	public Object invoke3(Process p, Object a0, Object a1, Object a2) throws AlchemyException, ProcessKilledException {
+		if (compiled != null) return compiled.invoke3(p, a0, a1, a2);
+		EtherStack es = EtherStack.current();
+		int base = es.top;
+		es.ensureCapacity(base + 3);
+		Object[] stack = es.stack;
+		stack[base] = a0;
+		stack[base+1] = a1;
+		stack[base+2] = a2;
+		return run(p, es, base, 3);
+	}
+
+	/** Executes function with arguments already on the stack and boxes the result. */
+	private Object run(Process p, EtherStack es, int base, int nargs) throws AlchemyException, ProcessKilledException {
+		// arguments are above the top, raise it so they
+		// are kept if the stack is reallocated
+		int oldtop = es.top;
+		es.top = base + nargs;
+		try {
+			exec(p, es, base, nargs);
+			Object ret = box(es.stack, es.prims, base);
+			es.stack[base] = null;
+			return ret;
+		} finally {
+			es.top = oldtop;
+		}
+	}
+
+	/**
+	 * Executes function in the window of value stack.
+	 * Arguments are in slots starting from <i>base</i>,
+	 * result is left in slot <i>base</i>.
+	 * <p/>
+	 * Interpreted Ether functions called from this one
+	 * run in the same loop, so the depth of Ether calls
+	 * is limited only by the heap. Java stack grows only
+	 * through native and compiled functions.
+	 */
+	private void exec(Process p, EtherStack es, int base, int nargs) throws AlchemyException, ProcessKilledException {
+		if (useCompiled()) {
+			execCompiled(p, es, base, nargs);
+			return;
+		}
+		// calls between Ether functions do not recurse, frames
+		// of callers are suspended in the stack and the loop
+		// continues in the callee
+		final int first = base;
+		final int depth = es.depth;
+		final int top0 = es.top;
+		EtherFunction fn = this;
+		int end = base;
+		try {
+		frame: for (;;) {
+		if (p.killed) throw new ProcessKilledException();
 		//initializing
-		final Object[] stack = new Object[localsize+stacksize];
-		System.arraycopy(args, 0, stack, 0, args.length);
-		int head = localsize-1;
-		final byte[] code = this.bcode;
+		end = base + fn.localsize + fn.stacksize;
+		if (end <= base + nargs) end = base + nargs + 1;
+		es.ensureCapacity(end);
+		int oldtop = es.top;
+		es.top = end;
+		Object[] stack = es.stack;
+		long[] prims = es.prims;
+		for (int i = base+nargs; i < base+fn.localsize; i++) {
+			stack[i] = null;
+		}
+		int head = base+fn.localsize-1;
+		int[] code = fn.bcode;
 		int ct = 0;
-		while (!p.killed) {
+		for (;;) {
+		// exceptions are handled outside of the dispatch loop
 		try {
+		// the process is polled for kill only on calls,
+		// returns and backward branches
+		for (;;) {
 			int instr = code[ct];
 			ct++;
+			EtherFunction callee;
+			int from;
+			int ret;
+			leave: {
+			invoke: {
 			switch (instr) {
 			// CONSTANTS
 				case Opcodes.ACONST_NULL: {
@@ -73,344 +326,189 @@ final class EtherFunction extends Function {
 					stack[head] = null;
 					break;
 				}
-				case Opcodes.ICONST_M1: {
-					head++;
-					stack[head] = Int32.M_ONE;
-					break;
-				}
-				case Opcodes.ICONST_0: {
-					head++;
-					stack[head] = Int32.ZERO;
-					break;
-				}
-				case Opcodes.ICONST_1: {
-					head++;
-					stack[head] = Int32.ONE;
-					break;
-				}
-				case Opcodes.ICONST_2: {
-					head++;
-					stack[head] = Int32.toInt32(2);
-					break;
-				}
-				case Opcodes.ICONST_3: {
-					head++;
-					stack[head] = Int32.toInt32(3);
-					break;
-				}
-				case Opcodes.ICONST_4: {
-					head++;
-					stack[head] = Int32.toInt32(4);
-					break;
-				}
+				case Opcodes.ICONST_M1:
+				case Opcodes.ICONST_0:
+				case Opcodes.ICONST_1:
+				case Opcodes.ICONST_2:
+				case Opcodes.ICONST_3:
+				case Opcodes.ICONST_4:
 				case Opcodes.ICONST_5: {
 					head++;
-					stack[head] = Int32.toInt32(5);
+					prims[head] = instr - Opcodes.ICONST_0;
+					stack[head] = INT;
 					break;
 				}
 				case Opcodes.LCONST_0: {
 					head++;
-					stack[head] = new Int64(0L);
+					prims[head] = 0L;
+					stack[head] = LONG;
 					break;
 				}
 				case Opcodes.LCONST_1: {
 					head++;
-					stack[head] = new Int64(1L);
+					prims[head] = 1L;
+					stack[head] = LONG;
 					break;
 				}
 				case Opcodes.FCONST_0: {
 					head++;
-					stack[head] = new Float32(0f);
+					prims[head] = Float.floatToIntBits(0f);
+					stack[head] = FLOAT;
 					break;
 				}
 				case Opcodes.FCONST_1: {
 					head++;
-					stack[head] = new Float32(1f);
+					prims[head] = Float.floatToIntBits(1f);
+					stack[head] = FLOAT;
 					break;
 				}
 				case Opcodes.FCONST_2: {
 					head++;
-					stack[head] = new Float32(2f);
+					prims[head] = Float.floatToIntBits(2f);
+					stack[head] = FLOAT;
 					break;
 				}
 				case Opcodes.DCONST_0: {
 					head++;
-					stack[head] = new Float64(0d);
+					prims[head] = Double.doubleToLongBits(0d);
+					stack[head] = DOUBLE;
 					break;
 				}
 				case Opcodes.DCONST_1: {
 					head++;
-					stack[head] = new Float64(1d);
+					prims[head] = Double.doubleToLongBits(1d);
+					stack[head] = DOUBLE;
 					break;
 				}
 				
 			//CONVERSIONS
-				case Opcodes.I2L: {
-					stack[head] = new Int64(((Int32)(stack[head])).value);
-					break;
-				}
-				case Opcodes.I2F: {
-					stack[head] = new Float32(((Int32)stack[head]).value);
-					break;
-				}
-				case Opcodes.I2D: {
-					stack[head] = new Float64(((Int32)stack[head]).value);
-					break;
-				}
-				case Opcodes.L2F: {
-					stack[head] = new Float32(((Int64)stack[head]).value);
-					break;
-				}
-				case Opcodes.L2D: {
-					stack[head] = new Float64(((Int64)stack[head]).value);
-					break;
-				}
-				case Opcodes.L2I: {
-					stack[head] = Int32.toInt32((int)((Int64)stack[head]).value);
-					break;
-				}
-				case Opcodes.F2D: {
-					stack[head] = new Float64(((Float32)stack[head]).value);
-					break;
-				}
-				case Opcodes.F2I: {
-					stack[head] = Int32.toInt32((int)((Float32)stack[head]).value);
-					break;
-				}
-				case Opcodes.F2L: {
-					stack[head] = new Int64((long)((Float32)stack[head]).value);
-					break;
-				}
-				case Opcodes.D2I: {
-					stack[head] = Int32.toInt32((int)((Float64)stack[head]).value);
-					break;
-				}
-				case Opcodes.D2L: {
-					stack[head] = new Int64((long)((Float64)stack[head]).value);
-					break;
-				}
-				case Opcodes.D2F: {
-					stack[head] = new Float32((float)((Float64)stack[head]).value);
-					break;
-				}
-				case Opcodes.I2C: {
-					stack[head] = Int32.toInt32((char)((Int32)stack[head]).value);
-					break;
-				}
-				case Opcodes.I2B: {
-					stack[head] = Int32.toInt32((byte)((Int32)stack[head]).value);
-					break;
-				}
+				case Opcodes.I2L:
+				case Opcodes.I2F:
+				case Opcodes.I2D:
+				case Opcodes.L2F:
+				case Opcodes.L2D:
+				case Opcodes.L2I:
+				case Opcodes.F2D:
+				case Opcodes.F2I:
+				case Opcodes.F2L:
+				case Opcodes.D2I:
+				case Opcodes.D2L:
+				case Opcodes.D2F:
+				case Opcodes.I2C:
+				case Opcodes.I2B:
 				case Opcodes.I2S: {
-					stack[head] = Int32.toInt32((short)((Int32)stack[head]).value);
+					convert(instr, stack, prims, head);
 					break;
 				}
 
 			//INTEGER ARITHMETICS
 				case Opcodes.IADD: {
 					head--;
-					stack[head] = Int32.toInt32(((Int32)stack[head]).value + ((Int32)stack[head+1]).value);
+					prims[head] = ival(stack, prims, head) + ival(stack, prims, head+1);
+					stack[head] = INT;
 					break;
 				}
 				case Opcodes.ISUB: {
 					head--;
-					stack[head] = Int32.toInt32(((Int32)stack[head]).value - ((Int32)stack[head+1]).value);
+					prims[head] = ival(stack, prims, head) - ival(stack, prims, head+1);
+					stack[head] = INT;
 					break;
 				}
 				case Opcodes.IMUL: {
 					head--;
-					stack[head] = Int32.toInt32(((Int32)stack[head]).value * ((Int32)stack[head+1]).value);
+					prims[head] = ival(stack, prims, head) * ival(stack, prims, head+1);
+					stack[head] = INT;
 					break;
 				}
 				case Opcodes.IDIV: {
 					head--;
-					stack[head] = Int32.toInt32(((Int32)stack[head]).value / ((Int32)stack[head+1]).value);
+					prims[head] = ival(stack, prims, head) / ival(stack, prims, head+1);
+					stack[head] = INT;
 					break;
 				}
 				case Opcodes.IMOD: {
 					head--;
-					stack[head] = Int32.toInt32(((Int32)stack[head]).value % ((Int32)stack[head+1]).value);
+					prims[head] = ival(stack, prims, head) % ival(stack, prims, head+1);
+					stack[head] = INT;
 					break;
 				}
 				case Opcodes.INEG: {
-					stack[head] = Int32.toInt32(-((Int32)stack[head]).value);
+					prims[head] = -ival(stack, prims, head);
+					stack[head] = INT;
 					break;
 				}
 				case Opcodes.ICMP: {
 					head--;
-					int itmp = ((Int32)stack[head]).value - ((Int32)stack[head+1]).value;
+					int itmp = ival(stack, prims, head) - ival(stack, prims, head+1);
 					stack[head] = (itmp > 0) ? Int32.ONE : (itmp == 0 ? Int32.ZERO : Int32.M_ONE);
 					break;
 				}
 				case Opcodes.ISHL: {
 					head--;
-					stack[head] = Int32.toInt32(((Int32)stack[head]).value << ((Int32)stack[head+1]).value);
+					prims[head] = ival(stack, prims, head) << ival(stack, prims, head+1);
+					stack[head] = INT;
 					break;
 				}
 				case Opcodes.ISHR: {
 					head--;
-					stack[head] = Int32.toInt32(((Int32)stack[head]).value >> ((Int32)stack[head+1]).value);
+					prims[head] = ival(stack, prims, head) >> ival(stack, prims, head+1);
+					stack[head] = INT;
 					break;
 				}
 				case Opcodes.IUSHR: {
 					head--;
-					stack[head] = Int32.toInt32(((Int32)stack[head]).value >>> ((Int32)stack[head+1]).value);
+					prims[head] = ival(stack, prims, head) >>> ival(stack, prims, head+1);
+					stack[head] = INT;
 					break;
 				}
 				case Opcodes.IAND: {
 					head--;
-					stack[head] = Int32.toInt32(((Int32)stack[head]).value & ((Int32)stack[head+1]).value);
+					prims[head] = ival(stack, prims, head) & ival(stack, prims, head+1);
+					stack[head] = INT;
 					break;
 				}
 				case Opcodes.IOR: {
 					head--;
-					stack[head] = Int32.toInt32(((Int32)stack[head]).value | ((Int32)stack[head+1]).value);
+					prims[head] = ival(stack, prims, head) | ival(stack, prims, head+1);
+					stack[head] = INT;
 					break;
 				}
 				case Opcodes.IXOR: {
 					head--;
-					stack[head] = Int32.toInt32(((Int32)stack[head]).value ^ ((Int32)stack[head+1]).value);
-					break;
-				}
-
-			//LONG ARITHMETICS
-				case Opcodes.LADD: {
-					head--;
-					stack[head] = new Int64(((Int64)stack[head]).value + ((Int64)stack[head+1]).value);
-					break;
-				}
-				case Opcodes.LSUB: {
-					head--;
-					stack[head] = new Int64(((Int64)stack[head]).value - ((Int64)stack[head+1]).value);
-					break;
-				}
-				case Opcodes.LMUL: {
-					head--;
-					stack[head] = new Int64(((Int64)stack[head]).value * ((Int64)stack[head+1]).value);
-					break;
-				}
-				case Opcodes.LDIV: {
-					head--;
-					stack[head] = new Int64(((Int64)stack[head]).value / ((Int64)stack[head+1]).value);
-					break;
-				}
-				case Opcodes.LMOD:  {
-					head--;
-					stack[head] = new Int64(((Int64)stack[head]).value % ((Int64)stack[head+1]).value);
-					break;
-				}
-				case Opcodes.LNEG: {
-					stack[head] = new Int64(-((Int64)stack[head]).value);
-					break;
-				}
-				case Opcodes.LCMP: {
-					head--;
-					long ltmp = ((Int64)stack[head]).value - ((Int64)stack[head+1]).value;
-					stack[head] = (ltmp > 0L) ? Int32.ONE : (ltmp == 0L ? Int32.ZERO : Int32.M_ONE);
-					break;
-				}
-				case Opcodes.LSHL: {
-					head--;
-					stack[head] = new Int64(((Int64)stack[head]).value << ((Int32)stack[head+1]).value);
-					break;
-				}
-				case Opcodes.LSHR: {
-					head--;
-					stack[head] = new Int64(((Int64)stack[head]).value >> ((Int32)stack[head+1]).value);
-					break;
-				}
-				case Opcodes.LUSHR: {
-					head--;
-					stack[head] = new Int64(((Int64)stack[head]).value >>> ((Int32)stack[head+1]).value);
-					break;
-				}
-				case Opcodes.LAND: {
-					head--;
-					stack[head] = new Int64(((Int64)stack[head]).value & ((Int64)stack[head+1]).value);
-					break;
-				}
-				case Opcodes.LOR: {
-					head--;
-					stack[head] = new Int64(((Int64)stack[head]).value | ((Int64)stack[head+1]).value);
-					break;
-				}
-				case Opcodes.LXOR: {
-					head--;
-					stack[head] = new Int64(((Int64)stack[head]).value ^ ((Int64)stack[head+1]).value);
-					break;
-				}
-
-			//FLOAT ARITHMETICS
-				case Opcodes.FADD: {
-					head--;
-					stack[head] = new Float32(((Float32)stack[head]).value + ((Float32)stack[head+1]).value);
-					break;
-				}
-				case Opcodes.FSUB: {
-					head--;
-					stack[head] = new Float32(((Float32)stack[head]).value - ((Float32)stack[head+1]).value);
-					break;
-				}
-				case Opcodes.FMUL: {
-					head--;
-					stack[head] = new Float32(((Float32)stack[head]).value * ((Float32)stack[head+1]).value);
-					break;
-				}
-				case Opcodes.FDIV: {
-					head--;
-					stack[head] = new Float32(((Float32)stack[head]).value / ((Float32)stack[head+1]).value);
-					break;
-				}
-				case Opcodes.FMOD: {
-					head--;
-					stack[head] = new Float32(((Float32)stack[head]).value % ((Float32)stack[head+1]).value);
-					break;
-				}
-				case Opcodes.FNEG: {
-					stack[head] = new Float32(-((Float32)stack[head]).value);
-					break;
-				}
-				case Opcodes.FCMP: {
-					head--;
-					float ftmp = ((Float32)stack[head]).value - ((Float32)stack[head+1]).value;
-					stack[head] = (ftmp > 0) ? Int32.ONE : (ftmp == 0 ? Int32.ZERO : Int32.M_ONE);
+					prims[head] = ival(stack, prims, head) ^ ival(stack, prims, head+1);
+					stack[head] = INT;
 					break;
 				}
 
-			//DOUBLE ARITHMETICS
-				case Opcodes.DADD: {
-					head--;
-					stack[head] = new Float64(((Float64)stack[head]).value + ((Float64)stack[head+1]).value);
-					break;
-				}
-				case Opcodes.DSUB: {
-					head--;
-					stack[head] = new Float64(((Float64)stack[head]).value - ((Float64)stack[head+1]).value);
-					break;
-				}
-				case Opcodes.DMUL: {
-					head--;
-					stack[head] = new Float64(((Float64)stack[head]).value * ((Float64)stack[head+1]).value);
-					break;
-				}
-				case Opcodes.DDIV: {
-					head--;
-					stack[head] = new Float64(((Float64)stack[head]).value / ((Float64)stack[head+1]).value);
-					break;
-				}
-				case Opcodes.DMOD: {
-					head--;
-					stack[head] = new Float64(((Float64)stack[head]).value % ((Float64)stack[head+1]).value);
-					break;
-				}
-				case Opcodes.DNEG: {
-					stack[head] = new Float64(-((Float64)stack[head]).value);
-					break;
-				}
+			//LONG, FLOAT AND DOUBLE ARITHMETICS
+				case Opcodes.LADD:
+				case Opcodes.LSUB:
+				case Opcodes.LMUL:
+				case Opcodes.LDIV:
+				case Opcodes.LMOD:
+				case Opcodes.LNEG:
+				case Opcodes.LCMP:
+				case Opcodes.LSHL:
+				case Opcodes.LSHR:
+				case Opcodes.LUSHR:
+				case Opcodes.LAND:
+				case Opcodes.LOR:
+				case Opcodes.LXOR:
+				case Opcodes.FADD:
+				case Opcodes.FSUB:
+				case Opcodes.FMUL:
+				case Opcodes.FDIV:
+				case Opcodes.FMOD:
+				case Opcodes.FNEG:
+				case Opcodes.FCMP:
+				case Opcodes.DADD:
+				case Opcodes.DSUB:
+				case Opcodes.DMUL:
+				case Opcodes.DDIV:
+				case Opcodes.DMOD:
+				case Opcodes.DNEG:
 				case Opcodes.DCMP: {
-					head--;
-					double dtmp = ((Float64)stack[head]).value - ((Float64)(stack[head+1])).value;
-					stack[head] = (dtmp > 0) ? Int32.ONE : (dtmp == 0 ? Int32.ZERO : Int32.M_ONE);
+					head = arith(instr, stack, prims, head);
 					break;
 				}
 
@@ -423,14 +521,18 @@ final class EtherFunction extends Function {
 				case Opcodes.LOAD_5:
 				case Opcodes.LOAD_6:
 				case Opcodes.LOAD_7: {
+					int idx = base + (instr & 7);
 					head++;
-					stack[head] = stack[instr & 7];
+					stack[head] = stack[idx];
+					prims[head] = prims[idx];
 					break;
 				}
 				case Opcodes.LOAD: { //load <ubyte>
-					head++;
-					stack[head] = stack[code[ct] & 0xff];
+					int idx = base + code[ct];
 					ct++;
+					head++;
+					stack[head] = stack[idx];
+					prims[head] = prims[idx];
 					break;
 				}
 				//variable savers
@@ -442,148 +544,239 @@ final class EtherFunction extends Function {
 				case Opcodes.STORE_5:
 				case Opcodes.STORE_6:
 				case Opcodes.STORE_7: {
-					stack[instr & 7] = stack[head];
+					int idx = base + (instr & 7);
+					stack[idx] = stack[head];
+					prims[idx] = prims[head];
 					head--;
 					break;
 				}
 				case Opcodes.STORE: { //store <ubyte>
-					stack[code[ct] & 0xff] = stack[head];
+					int idx = base + code[ct];
 					ct++;
+					stack[idx] = stack[head];
+					prims[idx] = prims[head];
 					head--;
 					break;
 				}
-			
+
+			//REGISTER INSTRUCTIONS
+				case Opcodes.IADD_R: { //iadd_r <ubyte> <ubyte> <ubyte>
+					int dst = base + code[ct];
+					int src1 = base + code[ct+1];
+					int src2 = base + code[ct+2];
+					ct += 3;
+					prims[dst] = ival(stack, prims, src1) + ival(stack, prims, src2);
+					stack[dst] = INT;
+					break;
+				}
+				case Opcodes.ISUB_R: { //isub_r <ubyte> <ubyte> <ubyte>
+					int dst = base + code[ct];
+					int src1 = base + code[ct+1];
+					int src2 = base + code[ct+2];
+					ct += 3;
+					prims[dst] = ival(stack, prims, src1) - ival(stack, prims, src2);
+					stack[dst] = INT;
+					break;
+				}
+				case Opcodes.IMUL_R: { //imul_r <ubyte> <ubyte> <ubyte>
+					int dst = base + code[ct];
+					int src1 = base + code[ct+1];
+					int src2 = base + code[ct+2];
+					ct += 3;
+					prims[dst] = ival(stack, prims, src1) * ival(stack, prims, src2);
+					stack[dst] = INT;
+					break;
+				}
+				case Opcodes.IDIV_R:
+				case Opcodes.IMOD_R:
+				case Opcodes.ISHL_R:
+				case Opcodes.ISHR_R:
+				case Opcodes.IUSHR_R:
+				case Opcodes.IAND_R:
+				case Opcodes.IOR_R:
+				case Opcodes.IXOR_R:
+				case Opcodes.LADD_R:
+				case Opcodes.LSUB_R:
+				case Opcodes.LMUL_R:
+				case Opcodes.LDIV_R:
+				case Opcodes.LMOD_R:
+				case Opcodes.FADD_R:
+				case Opcodes.FSUB_R:
+				case Opcodes.FMUL_R:
+				case Opcodes.FDIV_R:
+				case Opcodes.DADD_R:
+				case Opcodes.DSUB_R:
+				case Opcodes.DMUL_R:
+				case Opcodes.DDIV_R: { //?op_r <ubyte> <ubyte> <ubyte>
+					int dst = base + code[ct];
+					int src1 = base + code[ct+1];
+					int src2 = base + code[ct+2];
+					ct += 3;
+					arithR(instr, stack, prims, dst, src1, src2);
+					break;
+				}
+				case Opcodes.MOVE_R: { //move_r <ubyte> <ubyte>
+					int dst = base + code[ct];
+					int src = base + code[ct+1];
+					ct += 2;
+					stack[dst] = stack[src];
+					prims[dst] = prims[src];
+					break;
+				}
+				case Opcodes.IADDI_R: { //iaddi_r <ubyte> <ubyte> <byte>
+					int dst = base + code[ct];
+					int src = base + code[ct+1];
+					prims[dst] = ival(stack, prims, src) + code[ct+2];
+					stack[dst] = INT;
+					ct += 3;
+					break;
+				}
+				case Opcodes.IF_ICMPLT_R:
+				case Opcodes.IF_ICMPGE_R:
+				case Opcodes.IF_ICMPGT_R:
+				case Opcodes.IF_ICMPLE_R: { //if_icmp?_r <ubyte> <ubyte> <ushort>
+					if (icmp(instr - Opcodes.IF_ICMPLT_R, ival(stack, prims, base + code[ct]), ival(stack, prims, base + code[ct+1]))) {
+						ct = branch(p, ct, code[ct+2]);
+					} else {
+						ct += 3;
+					}
+					break;
+				}
+
 			//GLOBALS LOADERS AND SAVERS
-				case Opcodes.GETGLOBAL: {
-					stack[head] = p.getGlobal(library, (String)stack[head], null);
+				case Opcodes.GETGLOBAL: { //getglobal <site>
+					stack[head] = fn.global(p, code[ct], (String)stack[head]).value;
+					ct++;
 					break;
 				}
-				case Opcodes.GETGLOBALDEF: {
+				case Opcodes.GETGLOBALDEF: { //getglobaldef <site>
 					head--;
-					stack[head] = p.getGlobal(library, (String)stack[head], stack[head+1]);
+					Object value = fn.global(p, code[ct], (String)stack[head]).value;
+					stack[head] = (value != null) ? value : box(stack, prims, head+1);
+					ct++;
 					break;
 				}
-				case Opcodes.SETGLOBAL: {
-					p.setGlobal(library, (String)stack[head-1], stack[head]);
+				case Opcodes.SETGLOBAL: { //setglobal <site>
+					fn.global(p, code[ct], (String)stack[head-1]).value = box(stack, prims, head);
 					head -= 2;
+					ct++;
 					break;
 				}
 
 			//BRANCHING
 				case Opcodes.IFEQ: { //ifeq <ushort>
-					int itmp = (code[ct] & 0xff) << 8 | (code[ct+1] & 0xff);
-					ct += 2;
-					if (((Int32)stack[head]).value == 0) ct = itmp;
+					int itmp = code[ct];
+					ct++;
+					if (ival(stack, prims, head) == 0) ct = branch(p, ct, itmp);
 					head--;
 					break;
 				}
 				case Opcodes.IFNE: { //ifne <ushort>
-					int itmp = (code[ct] & 0xff) << 8 | (code[ct+1] & 0xff);
-					ct += 2;
-					if (((Int32)stack[head]).value != 0) ct = itmp;
+					int itmp = code[ct];
+					ct++;
+					if (ival(stack, prims, head) != 0) ct = branch(p, ct, itmp);
 					head--;
 					break;
 				}
 				case Opcodes.IFLT: { //iflt <ushort>
-					int itmp = (code[ct] & 0xff) << 8 | (code[ct+1] & 0xff);
-					ct += 2;
-					if (((Int32)stack[head]).value < 0) ct = itmp;
+					int itmp = code[ct];
+					ct++;
+					if (ival(stack, prims, head) < 0) ct = branch(p, ct, itmp);
 					head--;
 					break;
 				}
 				case Opcodes.IFGE: { //ifge <ushort>
-					int itmp = (code[ct] & 0xff) << 8 | (code[ct+1] & 0xff);
-					ct += 2;
-					if (((Int32)stack[head]).value >= 0) ct = itmp;
+					int itmp = code[ct];
+					ct++;
+					if (ival(stack, prims, head) >= 0) ct = branch(p, ct, itmp);
 					head--;
 					break;
 				}
 				case Opcodes.IFGT: { //ifgt <ushort>
-					int itmp = (code[ct] & 0xff) << 8 | (code[ct+1] & 0xff);
-					ct += 2;
-					if (((Int32)stack[head]).value > 0) ct = itmp;
+					int itmp = code[ct];
+					ct++;
+					if (ival(stack, prims, head) > 0) ct = branch(p, ct, itmp);
 					head--;
 					break;
 				}
 				case Opcodes.IFLE: { //ifle <ushort>
-					int itmp = (code[ct] & 0xff) << 8 | (code[ct+1] & 0xff);
-					ct += 2;
-					if (((Int32)stack[head]).value <= 0) ct = itmp;
+					int itmp = code[ct];
+					ct++;
+					if (ival(stack, prims, head) <= 0) ct = branch(p, ct, itmp);
 					head--;
 					break;
 				}
 				case Opcodes.GOTO: { //goto <ushort>
-					ct = (code[ct] & 0xff) << 8 | (code[ct+1] & 0xff);
+					int itmp = code[ct];
+					if (itmp < ct) fn.hotness++;
+					ct = branch(p, ct, itmp);
 					break;
 				}
 				case Opcodes.IFNULL: { //ifnull <ushort>
-					int itmp = (code[ct] & 0xff) << 8 | (code[ct+1] & 0xff);
-					ct += 2;
-					if (stack[head] == null) ct = itmp;
+					int itmp = code[ct];
+					ct++;
+					if (stack[head] == null) ct = branch(p, ct, itmp);
 					head--;
 					break;
 				}
 				case Opcodes.IFNNULL: { //ifnnull <ushort>
-					int itmp = (code[ct] & 0xff) << 8 | (code[ct+1] & 0xff);
-					ct += 2;
-					if (stack[head] != null) ct = itmp;
+					int itmp = code[ct];
+					ct++;
+					if (stack[head] != null) ct = branch(p, ct, itmp);
 					head--;
 					break;
 				}
 				case Opcodes.IF_ICMPLT: { //if_icmplt <ushort>
-					int itmp = (code[ct] & 0xff) << 8 | (code[ct+1] & 0xff);
-					ct += 2;
-					if (((Int32)stack[head-1]).value < ((Int32)stack[head]).value) ct = itmp;
+					int itmp = code[ct];
+					ct++;
+					if (ival(stack, prims, head-1) < ival(stack, prims, head)) ct = branch(p, ct, itmp);
 					head -= 2;
 					break;
 				}
 				case Opcodes.IF_ICMPGE: { //if_icmpge <ushort>
-					int itmp = (code[ct] & 0xff) << 8 | (code[ct+1] & 0xff);
-					ct += 2;
-					if (((Int32)stack[head-1]).value >= ((Int32)stack[head]).value) ct = itmp;
+					int itmp = code[ct];
+					ct++;
+					if (ival(stack, prims, head-1) >= ival(stack, prims, head)) ct = branch(p, ct, itmp);
 					head -= 2;
 					break;
 				}
 				case Opcodes.IF_ICMPGT: { //if_icmpgt <ushort>
-					int itmp = (code[ct] & 0xff) << 8 | (code[ct+1] & 0xff);
-					ct += 2;
-					if (((Int32)stack[head-1]).value > ((Int32)stack[head]).value) ct = itmp;
+					int itmp = code[ct];
+					ct++;
+					if (ival(stack, prims, head-1) > ival(stack, prims, head)) ct = branch(p, ct, itmp);
 					head -= 2;
 					break;
 				}
 				case Opcodes.IF_ICMPLE: { //if_icmple <ushort>
-					int itmp = (code[ct] & 0xff) << 8 | (code[ct+1] & 0xff);
-					ct += 2;
-					if (((Int32)stack[head-1]).value <= ((Int32)stack[head]).value) ct = itmp;
+					int itmp = code[ct];
+					ct++;
+					if (ival(stack, prims, head-1) <= ival(stack, prims, head)) ct = branch(p, ct, itmp);
 					head -= 2;
 					break;
 				}
 				case Opcodes.IF_ACMPEQ: { //if_acmpeq <ushort>
-					int itmp = (code[ct] & 0xff) << 8 | (code[ct+1] & 0xff);
-					ct += 2;
-					if (stack[head-1] != null
-							? stack[head-1].equals(stack[head])
-							: stack[head] == null) ct = itmp;
+					int itmp = code[ct];
+					ct++;
+					if (slotsEqual(stack, prims, head-1, head)) ct = branch(p, ct, itmp);
 					head -= 2;
 					break;
 				}
 				case Opcodes.IF_ACMPNE: { //if_acmpne <ushort>
-					int itmp = (code[ct] & 0xff) << 8 | (code[ct+1] & 0xff);
-					ct += 2;
-					if (stack[head-1] != null
-							? !stack[head-1].equals(stack[head])
-							: stack[head] != null) ct = itmp;
+					int itmp = code[ct];
+					ct++;
+					if (!slotsEqual(stack, prims, head-1, head)) ct = branch(p, ct, itmp);
 					head -= 2;
 					break;
 				}
 				case Opcodes.JSR: { //jsr <ushort>
 					head++;
-					stack[head] = Int32.toInt32(ct+2);
-					ct = (code[ct] & 0xff) << 8 | (code[ct+1] & 0xff);
-					break;					
+					prims[head] = ct+1;
+					stack[head] = INT;
+					ct = branch(p, ct, code[ct]);
+					break;
 				}
 				case Opcodes.RET: { //ret
-					ct = ((Int32)stack[head]).value;
+					ct = branch(p, ct, ival(stack, prims, head));
 					head--;
 					break;
 				}
@@ -604,12 +797,94 @@ final class EtherFunction extends Function {
 				case Opcodes.CALV_4:
 				case Opcodes.CALV_5:
 				case Opcodes.CALV_6:
-				case Opcodes.CALV_7: {
+				case Opcodes.CALV_7: { // cal?_? <site>
+					int paramlen = instr & 7;
+					head -= paramlen;
+					Function f = (Function)stack[head];
+					fn.quicken(code, ct, f);
+					ct++;
+					ret = head;
+					if ((instr & 8) != 0) head--;
+					if (f instanceof EtherFunction) {
+						callee = (EtherFunction)f;
+						nargs = paramlen;
+						from = ret+1;
+						break invoke;
+					}
+					call(p, es, f, ret+1, paramlen, ret);
+					stack = es.stack;
+					prims = es.prims;
+					break;
+				}
+				case Opcodes.CALL_QE+0:
+				case Opcodes.CALL_QE+1:
+				case Opcodes.CALL_QE+2:
+				case Opcodes.CALL_QE+3:
+				case Opcodes.CALL_QE+4:
+				case Opcodes.CALL_QE+5:
+				case Opcodes.CALL_QE+6:
+				case Opcodes.CALL_QE+7:
+				case Opcodes.CALL_QE+8:
+				case Opcodes.CALL_QE+9:
+				case Opcodes.CALL_QE+10:
+				case Opcodes.CALL_QE+11:
+				case Opcodes.CALL_QE+12:
+				case Opcodes.CALL_QE+13:
+				case Opcodes.CALL_QE+14:
+				case Opcodes.CALL_QE+15: {
+					int paramlen = instr & 7;
+					head -= paramlen;
+					Object f = stack[head];
+					ret = head;
+					// another thread may see the instruction before the
+					// cache entry, so the cast is checked as well
+					if (f == fn.callee(code[ct]) && f instanceof EtherFunction) {
+						ct++;
+						if ((instr & 8) != 0) head--;
+						callee = (EtherFunction)f;
+						nargs = paramlen;
+						from = ret+1;
+						break invoke;
+					}
+					code[ct-1] = Opcodes.CALL_0 | (instr & 15);
+					call(p, es, (Function)f, head+1, paramlen, head);
+					stack = es.stack;
+					prims = es.prims;
+					ct++;
+					if ((instr & 8) != 0) head--;
+					break;
+				}
+				case Opcodes.CALL_QN+0:
+				case Opcodes.CALL_QN+1:
+				case Opcodes.CALL_QN+2:
+				case Opcodes.CALL_QN+3:
+				case Opcodes.CALL_QN+4:
+				case Opcodes.CALL_QN+5:
+				case Opcodes.CALL_QN+6:
+				case Opcodes.CALL_QN+7:
+				case Opcodes.CALL_QN+8:
+				case Opcodes.CALL_QN+9:
+				case Opcodes.CALL_QN+10:
+				case Opcodes.CALL_QN+11:
+				case Opcodes.CALL_QN+12:
+				case Opcodes.CALL_QN+13:
+				case Opcodes.CALL_QN+14:
+				case Opcodes.CALL_QN+15: {
 					int paramlen = instr & 7;
-					Object[] params = new Object[paramlen];
 					head -= paramlen;
-					System.arraycopy(stack, head+1, params, 0, paramlen);
-					stack[head] = ((Function)stack[head]).invoke(p, params);
+					Object f = stack[head];
+					if (f == fn.callee(code[ct]) && f instanceof NativeFunction) {
+						Object value = ((NativeFunction)f).invoke(p, boxAll(stack, prims, head+1, paramlen));
+						stack = es.stack;
+						prims = es.prims;
+						stack[head] = value;
+					} else {
+						code[ct-1] = Opcodes.CALL_0 | (instr & 15);
+						call(p, es, (Function)f, head+1, paramlen, head);
+						stack = es.stack;
+						prims = es.prims;
+					}
+					ct++;
 					if ((instr & 8) != 0) head--;
 					break;
 				}
@@ -630,342 +905,236 @@ final class EtherFunction extends Function {
 				case Opcodes.CALVC_6:
 				case Opcodes.CALVC_7: { // cal?c_? <ushort>
 					int paramlen = instr & 7;
-					Object[] params = new Object[paramlen];
-					head -= paramlen-1;
-					System.arraycopy(stack, head, params, 0, paramlen);
-					Function f = (Function) cpool[((code[ct] & 0xff) << 8) | (code[ct+1] & 0xff)];
-					ct += 2;
-					stack[head] = f.invoke(p, params);
-					if ((instr & 8) != 0) head--;
+					head -= paramlen;
+					Function f = (Function) fn.cpool[code[ct]];
+					ct++;
+					ret = head+1;
+					if ((instr & 8) == 0) head++;
+					if (f instanceof EtherFunction) {
+						callee = (EtherFunction)f;
+						nargs = paramlen;
+						from = ret;
+						break invoke;
+					}
+					call(p, es, f, ret, paramlen, ret);
+					stack = es.stack;
+					prims = es.prims;
 					break;
 				}
-				case Opcodes.CALL: {//call <ubyte>
-					int paramlen = code[ct] & 0xff;
+				case Opcodes.CALL:
+				case Opcodes.CALV: {//cal? <ubyte>
+					int paramlen = code[ct];
 					ct++;
-					Object[] params = new Object[paramlen];
 					head -= paramlen;
-					System.arraycopy(stack, head+1, params, 0, paramlen);
-					stack[head] = ((Function)stack[head]).invoke(p, params);
+					Function f = (Function)stack[head];
+					ret = head;
+					if (instr == Opcodes.CALV) head--;
+					if (f instanceof EtherFunction) {
+						callee = (EtherFunction)f;
+						nargs = paramlen;
+						from = ret+1;
+						break invoke;
+					}
+					call(p, es, f, ret+1, paramlen, ret);
+					stack = es.stack;
+					prims = es.prims;
 					break;
 				}
-				case Opcodes.CALV: {//calv <ubyte>
-					int paramlen = code[ct] & 0xff;
+				case Opcodes.CALLC:
+				case Opcodes.CALVC: {// cal?c <ubyte> <ushort>
+					int paramlen = code[ct];
 					ct++;
-					Object[] params = new Object[paramlen];
 					head -= paramlen;
-					System.arraycopy(stack, head+1, params, 0, paramlen);
-					((Function)stack[head]).invoke(p, params);
-					head--;
-					break;
-				}
-				case Opcodes.CALLC: {// callc <ubyte> <ushort>
-					int paramlen = code[ct] & 0xff;
+					Function f = (Function) fn.cpool[code[ct]];
 					ct++;
-					Object[] params = new Object[paramlen];
-					head -= paramlen-1;
-					System.arraycopy(stack, head, params, 0, paramlen);
-					Function f = (Function) cpool[((code[ct] & 0xff) << 8) | (code[ct+1] & 0xff)];
-					ct += 2;
-					stack[head] = f.invoke(p, params);
-					break;
-				}
-				case Opcodes.CALVC: {// calvc <ubyte> <ushort>
-					int paramlen = code[ct] & 0xff;
+					ret = head+1;
+					if (instr == Opcodes.CALLC) head++;
+					if (f instanceof EtherFunction) {
+						callee = (EtherFunction)f;
+						nargs = paramlen;
+						from = ret;
+						break invoke;
+					}
+					call(p, es, f, ret, paramlen, ret);
+					stack = es.stack;
+					prims = es.prims;
+					break;
+				}
+				case Opcodes.ACOPY_I:
+				case Opcodes.STRLEN_I:
+				case Opcodes.STRGET_I:
+				case Opcodes.HASH_I:
+				case Opcodes.LISTLEN_I:
+				case Opcodes.LISTGET_I:
+				case Opcodes.DICTGET_I: { // ?_i <ushort>
+					Function f = (Function) fn.cpool[code[ct]];
 					ct++;
-					Object[] params = new Object[paramlen];
-					head -= paramlen-1;
-					System.arraycopy(stack, head, params, 0, paramlen);
-					Function f = (Function) cpool[((code[ct] & 0xff) << 8) | (code[ct+1] & 0xff)];
-					ct += 2;
-					stack[head] = f.invoke(p, params);
-					head--;
+					head = intrinsic(p, es, instr, f, head);
+					stack = es.stack;
+					prims = es.prims;
 					break;
 				}
 
 			//ARRAY INSTRUCTIONS
-				case Opcodes.NEWAA: {
-					stack[head] = new Object[((Int32)stack[head]).value];
-					break;
-				}
-				case Opcodes.NEWBA: {
-					stack[head] = new byte[((Int32)stack[head]).value];
-					break;
-				}
-				case Opcodes.NEWCA: {
-					stack[head] = new char[((Int32)stack[head]).value];
-					break;
-				}
-				case Opcodes.NEWZA: {
-					stack[head] = new boolean[((Int32)stack[head]).value];
-					break;
-				}
-				case Opcodes.NEWSA: {
-					stack[head] = new short[((Int32)stack[head]).value];
-					break;
-				}
-				case Opcodes.NEWIA: {
-					stack[head] = new int[((Int32)stack[head]).value];
-					break;
-				}
-				case Opcodes.NEWLA: {
-					stack[head] = new long[((Int32)stack[head]).value];
-					break;
-				}
-				case Opcodes.NEWFA: {
-					stack[head] = new float[((Int32)stack[head]).value];
-					break;
-				}
+				case Opcodes.NEWAA:
+				case Opcodes.NEWBA:
+				case Opcodes.NEWCA:
+				case Opcodes.NEWZA:
+				case Opcodes.NEWSA:
+				case Opcodes.NEWIA:
+				case Opcodes.NEWLA:
+				case Opcodes.NEWFA:
 				case Opcodes.NEWDA: {
-					stack[head] = new double[((Int32)stack[head]).value];
+					stack[head] = newArray(instr, ival(stack, prims, head));
 					break;
 				}
 				case Opcodes.AALOAD: {
-					int at = ((Int32)stack[head]).value;
+					int at = ival(stack, prims, head);
 					head--;
 					stack[head] = ((Object[])stack[head])[at];
 					break;
 				}
 				case Opcodes.BALOAD: {
-					int at = ((Int32)stack[head]).value;
+					int at = ival(stack, prims, head);
 					head--;
-					stack[head] = Int32.toInt32( ((byte[])stack[head])[at] );
+					prims[head] = ((byte[])stack[head])[at];
+					stack[head] = INT;
 					break;
 				}
 				case Opcodes.CALOAD: {
-					int at = ((Int32)stack[head]).value;
+					int at = ival(stack, prims, head);
 					head--;
-					stack[head] = Int32.toInt32( ((char[])stack[head])[at] );
+					prims[head] = ((char[])stack[head])[at];
+					stack[head] = INT;
+					break;
+				}
+				case Opcodes.ZALOAD:
+				case Opcodes.SALOAD:
+				case Opcodes.LALOAD:
+				case Opcodes.FALOAD:
+				case Opcodes.DALOAD:
+				case Opcodes.ZASTORE:
+				case Opcodes.SASTORE:
+				case Opcodes.LASTORE:
+				case Opcodes.FASTORE:
+				case Opcodes.DASTORE:
+				case Opcodes.ZALEN:
+				case Opcodes.SALEN:
+				case Opcodes.LALEN:
+				case Opcodes.FALEN:
+				case Opcodes.DALEN: {
+					head = arrayOp(instr, stack, prims, head);
 					break;
 				}
-				case Opcodes.ZALOAD: {
-					int at = ((Int32)stack[head]).value;
+				case Opcodes.IALOAD: {
+					int at = ival(stack, prims, head);
 					head--;
-					stack[head] = ((boolean[])stack[head])[at] ? Int32.ONE : Int32.ZERO;
-					break;
-				}
-				case Opcodes.SALOAD: {
-					int at = ((Int32)stack[head]).value;
-					head--;
-					stack[head] = Int32.toInt32( ((short[])stack[head])[at] );
-					break;
-				}
-				case Opcodes.IALOAD: {
-					int at = ((Int32)stack[head]).value;
-					head--;
-					stack[head] = Int32.toInt32( ((int[])stack[head])[at] );
-					break;
-				}
-				case Opcodes.LALOAD: {
-					int at = ((Int32)stack[head]).value;
-					head--;
-					stack[head] = new Int64( ((long[])stack[head])[at] );
-					break;
-				}
-				case Opcodes.FALOAD: {
-					int at = ((Int32)stack[head]).value;
-					head--;
-					stack[head] = new Float32( ((float[])stack[head])[at] );
-					break;
-				}
-				case Opcodes.DALOAD: {
-					int at = ((Int32)stack[head]).value;
-					head--;
-					stack[head] = new Float64( ((double[])stack[head])[at] );
+					prims[head] = ((int[])stack[head])[at];
+					stack[head] = INT;
 					break;
 				}
 				case Opcodes.AASTORE: {
-					Object val = stack[head];
-					int at = ((Int32)stack[head-1]).value;
+					Object val = box(stack, prims, head);
+					int at = ival(stack, prims, head-1);
 					Object[] array = (Object[])stack[head-2];
 					array[at] = val;
 					head -= 3;
 					break;
 				}
 				case Opcodes.BASTORE: {
-					int val = ((Int32)stack[head]).value;
-					int at = ((Int32)stack[head-1]).value;
+					int val = ival(stack, prims, head);
+					int at = ival(stack, prims, head-1);
 					byte[] array = (byte[])stack[head-2];
 					array[at] = (byte)val;
 					head -= 3;
 					break;
 				}
 				case Opcodes.CASTORE: {
-					char val = (char) ((Int32)stack[head]).value;
-					int at = ((Int32)stack[head-1]).value;
+					char val = (char) ival(stack, prims, head);
+					int at = ival(stack, prims, head-1);
 					char[] array = (char[])stack[head-2];
 					array[at] = val;
 					head -= 3;
 					break;
 				}
-				case Opcodes.ZASTORE: {
-					boolean val = stack[head] != Int32.ZERO;
-					int at = ((Int32)stack[head-1]).value;
-					boolean[] array = (boolean[])stack[head-2];
-					array[at] = val;
-					head -= 3;
-					break;
-				}
-				case Opcodes.SASTORE: {
-					short val = (short)((Int32)stack[head]).value;
-					int at = ((Int32)stack[head-1]).value;
-					short[] array = (short[])stack[head-2];
-					array[at] = val;
-					head -= 3;
-					break;
-				}
 				case Opcodes.IASTORE: {
-					int val = ((Int32)stack[head]).value;
-					int at = ((Int32)stack[head-1]).value;
+					int val = ival(stack, prims, head);
+					int at = ival(stack, prims, head-1);
 					int[] array = (int[])stack[head-2];
 					array[at] = val;
 					head -= 3;
 					break;
 				}
-				case Opcodes.FASTORE: {
-					float val = ((Float32)stack[head]).value;
-					int at = ((Int32)stack[head-1]).value;
-					float[] array = (float[])stack[head-2];
-					array[at] = val;
-					head -= 3;
-					break;
-				}
-				case Opcodes.DASTORE: {
-					double val = ((Float64)stack[head]).value;
-					int at = ((Int32)stack[head-1]).value;
-					double[] array = (double[])stack[head-2];
-					array[at] = val;
-					head -= 3;
-					break;
-				}
 				case Opcodes.AALEN: {
-					stack[head] = Int32.toInt32(((Object[])stack[head]).length);
+					prims[head] = ((Object[])stack[head]).length;
+					stack[head] = INT;
 					break;
 				}
 				case Opcodes.BALEN: {
-					stack[head] = Int32.toInt32(((byte[])stack[head]).length);
+					prims[head] = ((byte[])stack[head]).length;
+					stack[head] = INT;
 					break;
 				}
 				case Opcodes.CALEN: {
-					stack[head] = Int32.toInt32(((char[])stack[head]).length);
-					break;
-				}
-				case Opcodes.ZALEN: {
-					stack[head] = Int32.toInt32(((boolean[])stack[head]).length);
-					break;
-				}
-				case Opcodes.SALEN: {
-					stack[head] = Int32.toInt32(((short[])stack[head]).length);
+					prims[head] = ((char[])stack[head]).length;
+					stack[head] = INT;
 					break;
 				}
 				case Opcodes.IALEN: {
-					stack[head] = Int32.toInt32(((int[])stack[head]).length);
+					prims[head] = ((int[])stack[head]).length;
+					stack[head] = INT;
 					break;
 				}
-				case Opcodes.LALEN: {
-					stack[head] = Int32.toInt32(((long[])stack[head]).length);
-					break;
-				}
-				case Opcodes.FALEN: {
-					stack[head] = Int32.toInt32(((float[])stack[head]).length);
-					break;
-				}
-				case Opcodes.DALEN: {
-					stack[head] = Int32.toInt32(((double[])stack[head]).length);
-					break;
-				}
-				case Opcodes.NEWMULTIARRAY: {
-					int dimension = code[ct] & 0xff;
-					ct++;
-					if (dimension < 2) throw new IllegalArgumentException();
-					int[] sizes = new int[dimension];
-					head -= dimension-1;
-					for (int i=0; i<dimension; i++) {
-						sizes[i] = ((Int32)stack[head+i]).value;
-					}
-					int type = code[ct];
-					ct++;
-					stack[head] = Arrays.newMultiArray(sizes, type);
+				case Opcodes.NEWMULTIARRAY: { //newmultiarray <ubyte> <byte>
+					head = newMultiArray(stack, prims, head, code[ct], code[ct+1]);
+					ct += 2;
 					break;
 				}
 
 			//SWITCH BRANCHING
-				case Opcodes.TABLESWITCH: {
-					int dflt = ((code[ct] & 0xff) << 8) | (code[ct+1] & 0xff);
-					ct += 2;
-					int min = (code[ct] << 24)
-					        | ((code[ct+1] & 0xff) << 16)
-					        | ((code[ct+2] & 0xff) << 8)
-					        | (code[ct+3] & 0xff);
-					ct += 4;
-					int max = (code[ct] << 24)
-					        | ((code[ct+1] & 0xff) << 16)
-					        | ((code[ct+2] & 0xff) << 8)
-					        | (code[ct+3] & 0xff);
-					ct += 4;
-					int val = ((Int32)stack[head]).value;
+				case Opcodes.TABLESWITCH: { //tableswitch <dflt> <min> <max> <targets...>
+					int val = ival(stack, prims, head);
 					head--;
-					if (val >= min && val <= max) {
-						ct += (val-min)*2;
-						ct = ((code[ct] & 0xff) << 8) | (code[ct+1] & 0xff);
-					} else {
-						ct = dflt;
-					}
+					ct = branch(p, ct, tableswitch(code, ct, val));
 					break;
 				}
-				case Opcodes.LOOKUPSWITCH: {
-					int dflt = ((code[ct] & 0xff) << 8) | (code[ct+1] & 0xff);
-					ct += 2;
-					int count = ((code[ct] & 0xff) << 8) | (code[ct+1] & 0xff);
-					ct += 2;
-					int val = ((Int32)stack[head]).value;
+				case Opcodes.LOOKUPSWITCH: { //lookupswitch <dflt> <count> <key target...>
+					int val = ival(stack, prims, head);
 					head--;
-					boolean matched = false;
-					for (int i=0; i<count && !matched; i++) {
-						int cand = (code[ct] << 24)
-					             | ((code[ct+1] & 0xff) << 16)
-					             | ((code[ct+2] & 0xff) << 8)
-					             | (code[ct+3] & 0xff);
-						ct += 4;
-						if (val == cand) {
-							ct = ((code[ct] & 0xff) << 8) | (code[ct+1] & 0xff);
-							matched = true;
-						} else {
-							ct += 2;
-						}
-					}
-					if (!matched) ct = dflt;
+					ct = branch(p, ct, lookupswitch(code, ct, val));
 					break;
 				}
 			//OTHERS
 				case Opcodes.CONCAT: { // concat <ubyte>
-					int n = code[ct] & 0xff;
+					int n = code[ct];
 					ct++;
 					head -= n-1;
-					StringBuffer sb = new StringBuffer();
-					for (int i = 0; i < n; i++) {
-						sb.append(Strings.toString(stack[head+i]));
-					}
-					stack[head] = sb.toString();
+					stack[head] = concat(stack, prims, head, n);
 					break;
 				}
 				case Opcodes.ACMP: {
 					head--;
-					boolean eq = (stack[head] == null) ? stack[head+1] == null : stack[head].equals(stack[head+1]);
-					stack[head] = eq ? Int32.ZERO : Int32.ONE;
+					stack[head] = slotsEqual(stack, prims, head, head+1) ? Int32.ZERO : Int32.ONE;
 					break;
 				}
 				case Opcodes.RET_NULL:
-					return null;
+					stack[base] = null;
+					break leave;
 				case Opcodes.RETURN:
-					return stack[head];
+					stack[base] = stack[head];
+					prims[base] = prims[head];
+					break leave;
 				case Opcodes.DUP: {
 					stack[head+1] = stack[head];
+					prims[head+1] = prims[head];
 					head++;
 					break;
 				}
 				case Opcodes.DUP2: {
 					stack[head+2] = stack[head];
 					stack[head+1] = stack[head-1];
+					prims[head+2] = prims[head];
+					prims[head+1] = prims[head-1];
 					head += 2;
 					break;
 				}
@@ -973,75 +1142,1147 @@ final class EtherFunction extends Function {
 					Object atmp = stack[head-1];
 					stack[head-1] = stack[head];
 					stack[head] = atmp;
+					long ptmp = prims[head-1];
+					prims[head-1] = prims[head];
+					prims[head] = ptmp;
 					break;
 				}
 				case Opcodes.LDC: { //ldc <ushort>
 					head++;
-					stack[head] = cpool[((code[ct] & 0xff) << 8) | (code[ct+1] & 0xff)];
-					ct += 2;
+					stack[head] = fn.cpool[code[ct]];
+					ct++;
 					break;
 				}
 				case Opcodes.POP: {
 					head--;
 					break;
 				}
-				case Opcodes.BIPUSH: { //bipush <byte>
-					head++;
-					stack[head] = Int32.toInt32(code[ct]);
-					ct++;
-					break;
-				}
+				case Opcodes.BIPUSH: //bipush <byte>
 				case Opcodes.SIPUSH: { //sipush <short>
 					head++;
-					stack[head] = Int32.toInt32((code[ct] << 8) | (code[ct+1]& 0xff));
-					ct += 2;
+					prims[head] = code[ct];
+					stack[head] = INT;
+					ct++;
 					break;
 				}
 				case Opcodes.IINC: { //iinc <ubyte> <byte>
-					int idx = code[ct] & 0xff;
+					int idx = base + code[ct];
 					ct++;
 					int inc = code[ct];
 					ct++;
-					stack[idx] = Int32.toInt32(((Int32)stack[idx]).value + inc);
+					prims[idx] = ival(stack, prims, idx) + inc;
+					stack[idx] = INT;
 					break;
 				}
 				case Opcodes.THROW: { //throw
-					throw new AlchemyException(((Int32)stack[head-1]).value, (String)stack[head]);
+					throw new AlchemyException(ival(stack, prims, head-1), (String)stack[head]);
+				}
+
+			//SUPERINSTRUCTIONS
+				case Opcodes.IF_ICMPLT_LI: { //if_icmplt_li <local> <int> <target>
+					if (ival(stack, prims, base + code[ct]) < code[ct+1]) {
+						ct = branch(p, ct, code[ct+2]);
+					} else {
+						ct += 3;
+					}
+					break;
+				}
+				case Opcodes.IF_ICMPGE_LI: { //if_icmpge_li <local> <int> <target>
+					if (ival(stack, prims, base + code[ct]) >= code[ct+1]) {
+						ct = branch(p, ct, code[ct+2]);
+					} else {
+						ct += 3;
+					}
+					break;
+				}
+				case Opcodes.IF_ICMPGT_LI: { //if_icmpgt_li <local> <int> <target>
+					if (ival(stack, prims, base + code[ct]) > code[ct+1]) {
+						ct = branch(p, ct, code[ct+2]);
+					} else {
+						ct += 3;
+					}
+					break;
+				}
+				case Opcodes.IF_ICMPLE_LI: { //if_icmple_li <local> <int> <target>
+					if (ival(stack, prims, base + code[ct]) <= code[ct+1]) {
+						ct = branch(p, ct, code[ct+2]);
+					} else {
+						ct += 3;
+					}
+					break;
+				}
+				case Opcodes.AALOAD_LL: { //aaload_ll <local> <local>
+					int at = ival(stack, prims, base + code[ct+1]);
+					head++;
+					stack[head] = ((Object[])stack[base + code[ct]])[at];
+					ct += 2;
+					break;
+				}
+				case Opcodes.BALOAD_LL: { //baload_ll <local> <local>
+					int at = ival(stack, prims, base + code[ct+1]);
+					head++;
+					prims[head] = ((byte[])stack[base + code[ct]])[at];
+					stack[head] = INT;
+					ct += 2;
+					break;
+				}
+				case Opcodes.CALOAD_LL: { //caload_ll <local> <local>
+					int at = ival(stack, prims, base + code[ct+1]);
+					head++;
+					prims[head] = ((char[])stack[base + code[ct]])[at];
+					stack[head] = INT;
+					ct += 2;
+					break;
+				}
+				case Opcodes.IALOAD_LL: { //iaload_ll <local> <local>
+					int at = ival(stack, prims, base + code[ct+1]);
+					head++;
+					prims[head] = ((int[])stack[base + code[ct]])[at];
+					stack[head] = INT;
+					ct += 2;
+					break;
+				}
+				case Opcodes.GOTO_IINC: { //goto_iinc <target>
+					fn.hotness++;
+					ct = branch(p, ct, code[ct]);
+					int idx = base + code[ct+1];
+					prims[idx] = ival(stack, prims, idx) + code[ct+2];
+					stack[idx] = INT;
+					ct += 3;
+					break;
+				}
+
+			//TYPE-SPECIALIZED INSTRUCTIONS
+			// int operands are proven to be unboxed by the verifier
+				case Opcodes.IADD_T: {
+					head--;
+					prims[head] = (int)prims[head] + (int)prims[head+1];
+					break;
+				}
+				case Opcodes.ISUB_T: {
+					head--;
+					prims[head] = (int)prims[head] - (int)prims[head+1];
+					break;
+				}
+				case Opcodes.IINC_T: { //iinc_t <ubyte> <byte>
+					int idx = base + code[ct];
+					prims[idx] = (int)prims[idx] + code[ct+1];
+					ct += 2;
+					break;
+				}
+				case Opcodes.GOTO_IINC_T: { //goto_iinc_t <target>
+					fn.hotness++;
+					ct = branch(p, ct, code[ct]);
+					int idx = base + code[ct+1];
+					prims[idx] = (int)prims[idx] + code[ct+2];
+					ct += 3;
+					break;
+				}
+				case Opcodes.IADD_R_T: { //iadd_r_t <ubyte> <ubyte> <ubyte>
+					int dst = base + code[ct];
+					prims[dst] = (int)prims[base + code[ct+1]] + (int)prims[base + code[ct+2]];
+					stack[dst] = INT;
+					ct += 3;
+					break;
+				}
+				case Opcodes.ISUB_R_T: { //isub_r_t <ubyte> <ubyte> <ubyte>
+					int dst = base + code[ct];
+					prims[dst] = (int)prims[base + code[ct+1]] - (int)prims[base + code[ct+2]];
+					stack[dst] = INT;
+					ct += 3;
+					break;
+				}
+				case Opcodes.IADDI_R_T: { //iaddi_r_t <ubyte> <ubyte> <byte>
+					int dst = base + code[ct];
+					prims[dst] = (int)prims[base + code[ct+1]] + code[ct+2];
+					stack[dst] = INT;
+					ct += 3;
+					break;
+				}
+				case Opcodes.IF_ICMPLT_T:
+				case Opcodes.IF_ICMPGE_T:
+				case Opcodes.IF_ICMPGT_T:
+				case Opcodes.IF_ICMPLE_T: { //if_icmp?_t <ushort>
+					int itmp = code[ct];
+					ct++;
+					head -= 2;
+					if (icmp(instr - Opcodes.IF_ICMPLT_T, (int)prims[head+1], (int)prims[head+2])) ct = branch(p, ct, itmp);
+					break;
+				}
+				case Opcodes.IF_ICMPLT_R_T:
+				case Opcodes.IF_ICMPGE_R_T:
+				case Opcodes.IF_ICMPGT_R_T:
+				case Opcodes.IF_ICMPLE_R_T: { //if_icmp?_r_t <ubyte> <ubyte> <ushort>
+					if (icmp(instr - Opcodes.IF_ICMPLT_R_T, (int)prims[base + code[ct]], (int)prims[base + code[ct+1]])) {
+						ct = branch(p, ct, code[ct+2]);
+					} else {
+						ct += 3;
+					}
+					break;
+				}
+				case Opcodes.IF_ICMPLT_LI_T:
+				case Opcodes.IF_ICMPGE_LI_T:
+				case Opcodes.IF_ICMPGT_LI_T:
+				case Opcodes.IF_ICMPLE_LI_T: { //if_icmp?_li_t <local> <int> <target>
+					if (icmp(instr - Opcodes.IF_ICMPLT_LI_T, (int)prims[base + code[ct]], code[ct+1])) {
+						ct = branch(p, ct, code[ct+2]);
+					} else {
+						ct += 3;
+					}
+					break;
 				}
 			} /* the big switch */
+			continue;
+			} /* invoke */
+			// the caller is suspended and the callee takes the loop,
+			// compiled functions are called directly
+			if (callee.useCompiled()) {
+				callee.execCompiled(p, es, from, nargs);
+				stack = es.stack;
+				prims = es.prims;
+				stack[ret] = stack[from];
+				prims[ret] = prims[from];
+				continue;
+			}
+			es.pushFrame(fn, ct, base, head, ret, oldtop);
+			fn = callee;
+			base = from;
+			continue frame;
+			} /* leave */
+			// the result is in slot base, resuming the caller
+			if (p.killed) throw new ProcessKilledException();
+			if (es.depth == depth) return;
+			int result = base;
+			for (int i = base+1; i < end; i++) {
+				stack[i] = null;
+			}
+			end = oldtop;
+			es.top = end;
+			int[] frame = es.frames;
+			int at = --es.depth * EtherStack.FRAME;
+			fn = es.funcs[es.depth];
+			ct = frame[at];
+			base = frame[at+1];
+			head = frame[at+2];
+			ret = frame[at+3];
+			oldtop = frame[at+4];
+			code = fn.bcode;
+			stack[ret] = stack[result];
+			prims[ret] = prims[result];
+		} /* the great loop */
 		} catch (ProcessKilledException pke) {
 			throw pke;
 		} catch (Throwable e) {
 			// the instruction on which error occured
 			ct--;
-			// filling exception with debug info
 			AlchemyException ae = (e instanceof AlchemyException) ? (AlchemyException)e : new AlchemyException(e);
-			if (dbgtable != null) {
-				int srcline = 0;
-				for (int i=1; i<dbgtable.length; i += 2) {
-					if (dbgtable[i+1] <= ct) srcline = dbgtable[i];
-				}
-				ae.addTraceElement(this, cpool[dbgtable[0]]+":"+srcline);
+			fn.addTraceElement(ae, ct);
+			// catching or unwinding suspended frames
+			int entry = fn.findHandler(ct);
+			stack = es.stack;
+			while (entry < 0) {
+				if (es.depth == depth) throw ae;
+				for (int i = base+1; i < end; i++) {
+					stack[i] = null;
+				}
+				end = oldtop;
+				es.top = end;
+				int[] frame = es.frames;
+				int at = --es.depth * EtherStack.FRAME;
+				fn = es.funcs[es.depth];
+				// the call instruction ends with its operand
+				ct = frame[at] - 1;
+				base = frame[at+1];
+				oldtop = frame[at+4];
+				code = fn.bcode;
+				fn.addTraceElement(ae, ct);
+				entry = fn.findHandler(ct);
+			}
+			prims = es.prims;
+			head = base + fn.localsize + fn.errtable[entry+3];
+			stack[head] = ae;
+			ct = fn.errtable[entry+2];
+		}
+		}
+		}
+		} finally {
+			// dropping references held by the windows
+			Object[] stack = es.stack;
+			for (int i = first+1; i < end; i++) {
+				stack[i] = null;
+			}
+			es.top = top0;
+			es.dropFrames(depth);
+		}
+	}
+
+	/**
+	 * Prepares this function if it was not called yet and
+	 * tells whether calls go to its compiled version.
+	 */
+	private boolean useCompiled() throws AlchemyException {
+		if (bcode == null) {
+			try {
+				prepare();
+			} catch (InstantiationException ie) {
+				throw new AlchemyException(AlchemyException.ERR_SYSTEM, ie.getMessage());
+			}
+		}
+		return compiled != null || (++hotness >= EtherCompiler.threshold && compile());
+	}
+
+	/** Executes compiled version of this function on the value stack. */
+	private void execCompiled(Process p, EtherStack es, int base, int nargs) throws AlchemyException, ProcessKilledException {
+		Object[] args = boxAll(es.stack, es.prims, base, nargs);
+		for (int i = base+1; i < base+nargs; i++) {
+			es.stack[i] = null;
+		}
+		es.stack[base] = compiled.invoke(p, args);
+	}
+
+	/**
+	 * Returns target of the taken branch.
+	 * Backward branches check whether the process was killed.
+	 */
+	private static int branch(Process p, int ct, int target) throws ProcessKilledException {
+		if (target < ct && p.killed) throw new ProcessKilledException();
+		return target;
+	}
+
+	/** Fills exception with debug info of the instruction at given offset. */
+	private void addTraceElement(AlchemyException ae, int ct) {
+		if (srcname != null) {
+			int i = floor(lineStarts, ct);
+			ae.addTraceElement(this, srcname, (i >= 0) ? lines[i] : 0);
+		} else {
+			ae.addTraceElement(this, null, codeOffset(ct));
+		}
+	}
+
+	/**
+	 * Returns offset in the library code for the position in decoded
+	 * code. Stack traces show this offset if there is no debug info.
+	 */
+	int codeOffset(int at) {
+		char[] table = offsets;
+		return (table != null && at >= 0 && at < table.length) ? table[at] : at;
+	}
+
+	/**
+	 * Returns index of the error table entry covering
+	 * instruction at given offset or -1 if there is none.
+	 */
+	private int findHandler(int ct) {
+		if (regionStarts == null) return -1;
+		int i = floor(regionStarts, ct);
+		return (i >= 0) ? regionEntries[i] : -1;
+	}
+
+	/**
+	 * Returns index of the last element in sorted array
+	 * which is not greater than given value, -1 if all are.
+	 */
+	private static int floor(int[] starts, int value) {
+		int low = 0;
+		int high = starts.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (starts[mid] <= value) {
+				low = mid + 1;
 			} else {
-				ae.addTraceElement(this, "+"+ct);
+				high = mid - 1;
+			}
+		}
+		return high;
+	}
+
+	/**
+	 * Returns global variable accessed at given call site.
+	 * The variable is looked up by name only on the first access
+	 * in the process, then the cached object is used.
+	 */
+	private GlobalVar global(Process p, int site, String name) {
+		GlobalVar[] cache = globals;
+		if (cache != null && site < cache.length) {
+			GlobalVar var = cache[site];
+			if (var != null && var.owner == p && var.name == name) return var;
+		}
+		GlobalVar var = p.getGlobalVar(library, name);
+		if (cache == null || site >= cache.length) {
+			GlobalVar[] newcache = new GlobalVar[site+1];
+			if (cache != null) System.arraycopy(cache, 0, newcache, 0, cache.length);
+			cache = newcache;
+			globals = cache;
+		}
+		cache[site] = var;
+		return var;
+	}
+
+	/**
+	 * Remembers the function called at given site and rewrites
+	 * the call to the quickened instruction checking the cached
+	 * function. Sites that once missed the cached function are
+	 * left generic.
+	 * <p/>
+	 * The function may run in several threads, so the cache entry
+	 * and the instruction are changed under the lock. The site is
+	 * quickened only by the thread that stored its entry.
+	 */
+	private synchronized void quicken(int[] code, int at, Function f) {
+		if (f == null) return;
+		int site = code[at];
+		Function[] cache = callees;
+		if (cache == null || site >= cache.length) {
+			Function[] newcache = new Function[site+1];
+			if (cache != null) System.arraycopy(cache, 0, newcache, 0, cache.length);
+			newcache[site] = f;
+			callees = newcache;
+		} else if (cache[site] != null) {
+			return;
+		} else {
+			cache[site] = f;
+		}
+		if (f instanceof EtherFunction) {
+			code[at-1] = Opcodes.CALL_QE | (code[at-1] & 15);
+		} else if (f instanceof NativeFunction) {
+			code[at-1] = Opcodes.CALL_QN | (code[at-1] & 15);
+		}
+	}
+
+	/** Returns function cached by given call site. */
+	private Function callee(int site) {
+		Function[] cache = callees;
+		return (cache != null && site < cache.length) ? cache[site] : null;
+	}
+
+	/**
+	 * Passes this function to the installed compiler.
+	 * Returns true if compiled version is now available.
+	 */
+	private synchronized boolean compile() {
+		if (compiled != null) return true;
+		EtherCompiler jit = EtherCompiler.getCompiler();
+		if (jit != null) {
+			compiled = jit.compile(this, cpool, bcode, stacksize, localsize, dbgtable, errtable);
+		}
+		// do not retry if compilation failed
+		if (compiled == null) hotness = Integer.MIN_VALUE;
+		return compiled != null;
+	}
+
+	/**
+	 * Compares two ints as the conditional jump of given kind does.
+	 * Kinds are lt, ge, gt, le, in the order of if_icmp? opcodes.
+	 */
+	private static boolean icmp(int kind, int a, int b) {
+		switch (kind) {
+			case 0: return a < b;
+			case 1: return a >= b;
+			case 2: return a > b;
+			default: return a <= b;
+		}
+	}
+
+	/**
+	 * Executes intrinsic of libcore.4.so function <i>f</i> whose
+	 * arguments end at slot <i>head</i> and returns the new head.
+	 * Arguments the intrinsic does not handle are passed to the
+	 * function itself, so errors are reported by the function.
+	 */
+	private static int intrinsic(Process p, EtherStack es, int instr, Function f, int head) throws AlchemyException, ProcessKilledException {
+		Object[] stack = es.stack;
+		long[] prims = es.prims;
+		int from = head;
+		switch (instr) {
+			case Opcodes.ACOPY_I: { // acopy(src: Array, sofs: Int, dest: Array, dofs: Int, len: Int)
+				from = head-4;
+				Object src = stack[from];
+				Object dest = stack[from+2];
+				if (src != null && dest != null && src.getClass() == dest.getClass()) {
+					// arrays of the same class are checked before copying
+					try {
+						System.arraycopy(src, ival(stack, prims, from+1), dest, ival(stack, prims, from+3), ival(stack, prims, from+4));
+						return from-1;
+					} catch (RuntimeException e) { }
+				}
+				call(p, es, f, from, 5, from);
+				return from-1;
 			}
-			// catching or rethrowing
-			int jumpto = -1;
-			if (errtable != null) {
-				for (int i=0; i < errtable.length && jumpto < 0; i += 4)
-				if (ct >= errtable[i] && ct <= errtable[i+1]) {
-					jumpto = errtable[i+2];
-					head = localsize + errtable[i+3];
+			case Opcodes.STRLEN_I: { // String.len(): Int
+				Object str = stack[head];
+				if (str instanceof String) {
+					stack[head] = INT;
+					prims[head] = ((String)str).length();
+					return head;
+				}
+				break;
+			}
+			case Opcodes.STRGET_I: { // String.get(at: Int): Char
+				from = head-1;
+				Object str = stack[from];
+				if (str instanceof String) {
+					int len = ((String)str).length();
+					int at = ival(stack, prims, head);
+					if (at < 0) at += len;
+					if (at >= 0 && at < len) {
+						stack[from] = INT;
+						prims[from] = ((String)str).charAt(at);
+						return from;
+					}
 				}
+				break;
 			}
-			if (jumpto >= 0) {
-				stack[head] = ae;
-				ct = jumpto;
-			} else {
-				throw ae;
+			case Opcodes.HASH_I: { // Any.hash(): Int
+				Object obj = box(stack, prims, head);
+				stack[head] = INT;
+				prims[head] = (obj == null) ? 0 : obj.hashCode();
+				return head;
+			}
+			case Opcodes.LISTLEN_I: { // List.len(): Int
+				Object list = stack[head];
+				if (list instanceof ArrayList) {
+					stack[head] = INT;
+					prims[head] = ((ArrayList)list).size();
+					return head;
+				}
+				break;
+			}
+			case Opcodes.LISTGET_I: { // List.get(at: Int): Any
+				from = head-1;
+				Object list = stack[from];
+				if (list instanceof ArrayList) {
+					int at = ival(stack, prims, head);
+					if (at >= 0 && at < ((ArrayList)list).size()) {
+						stack[from] = ((ArrayList)list).get(at);
+						return from;
+					}
+				}
+				break;
+			}
+			case Opcodes.DICTGET_I: { // Dict.get(key: Any): Any
+				from = head-1;
+				Object dict = stack[from];
+				Object key = box(stack, prims, head);
+				if (dict instanceof HashMap && key != null) {
+					stack[from] = ((HashMap)dict).get(key);
+					return from;
+				}
+				break;
+			}
+		}
+		call(p, es, f, from, head-from+1, from);
+		return from;
+	}
+
+	/**
+	 * Calls function with <i>paramlen</i> arguments starting
+	 * from slot <i>from</i> and puts result in slot <i>to</i>.
+	 * Ether functions get their arguments in place.
+	 */
+	private static void call(Process p, EtherStack es, Function f, int from, int paramlen, int to) throws AlchemyException, ProcessKilledException {
+		if (f instanceof EtherFunction) {
+			((EtherFunction)f).exec(p, es, from, paramlen);
+			es.stack[to] = es.stack[from];
+			es.prims[to] = es.prims[from];
+		} else {
+			Object[] stack = es.stack;
+			long[] prims = es.prims;
+			Object ret;
+			switch (paramlen) {
+				case 0:
+					ret = f.invoke0(p);
+					break;
+				case 1:
+					ret = f.invoke1(p, box(stack, prims, from));
+					break;
+				case 2:
+					ret = f.invoke2(p, box(stack, prims, from), box(stack, prims, from+1));
+					break;
+				case 3:
+					ret = f.invoke3(p, box(stack, prims, from), box(stack, prims, from+1), box(stack, prims, from+2));
+					break;
+				default:
+					ret = f.invoke(p, boxAll(stack, prims, from, paramlen));
+			}
+			es.stack[to] = ret;
+		}
+	}
+
+	/* Less frequent instructions are executed out of line to keep exec() small. */
+
+	/** Executes conversion instruction on the top slot. */
+	private static void convert(int instr, Object[] stack, long[] prims, int head) {
+		switch (instr) {
+			case Opcodes.I2L: {
+				prims[head] = ival(stack, prims, head);
+				stack[head] = LONG;
+				break;
+			}
+			case Opcodes.I2F: {
+				prims[head] = Float.floatToIntBits(ival(stack, prims, head));
+				stack[head] = FLOAT;
+				break;
+			}
+			case Opcodes.I2D: {
+				prims[head] = Double.doubleToLongBits(ival(stack, prims, head));
+				stack[head] = DOUBLE;
+				break;
+			}
+			case Opcodes.L2F: {
+				prims[head] = Float.floatToIntBits(lval(stack, prims, head));
+				stack[head] = FLOAT;
+				break;
+			}
+			case Opcodes.L2D: {
+				prims[head] = Double.doubleToLongBits(lval(stack, prims, head));
+				stack[head] = DOUBLE;
+				break;
+			}
+			case Opcodes.L2I: {
+				prims[head] = (int)lval(stack, prims, head);
+				stack[head] = INT;
+				break;
+			}
+			case Opcodes.F2D: {
+				prims[head] = Double.doubleToLongBits(fval(stack, prims, head));
+				stack[head] = DOUBLE;
+				break;
+			}
+			case Opcodes.F2I: {
+				prims[head] = (int)fval(stack, prims, head);
+				stack[head] = INT;
+				break;
+			}
+			case Opcodes.F2L: {
+				prims[head] = (long)fval(stack, prims, head);
+				stack[head] = LONG;
+				break;
+			}
+			case Opcodes.D2I: {
+				prims[head] = (int)dval(stack, prims, head);
+				stack[head] = INT;
+				break;
+			}
+			case Opcodes.D2L: {
+				prims[head] = (long)dval(stack, prims, head);
+				stack[head] = LONG;
+				break;
+			}
+			case Opcodes.D2F: {
+				prims[head] = Float.floatToIntBits((float)dval(stack, prims, head));
+				stack[head] = FLOAT;
+				break;
+			}
+			case Opcodes.I2C: {
+				prims[head] = (char)ival(stack, prims, head);
+				stack[head] = INT;
+				break;
+			}
+			case Opcodes.I2B: {
+				prims[head] = (byte)ival(stack, prims, head);
+				stack[head] = INT;
+				break;
+			}
+			case Opcodes.I2S: {
+				prims[head] = (short)ival(stack, prims, head);
+				stack[head] = INT;
+				break;
+			}
+		}
+	}
+
+	/** Executes long, float or double arithmetic instruction, returns new head. */
+	private static int arith(int instr, Object[] stack, long[] prims, int head) {
+		switch (instr) {
+			case Opcodes.LADD: {
+				head--;
+				prims[head] = lval(stack, prims, head) + lval(stack, prims, head+1);
+				stack[head] = LONG;
+				break;
+			}
+			case Opcodes.LSUB: {
+				head--;
+				prims[head] = lval(stack, prims, head) - lval(stack, prims, head+1);
+				stack[head] = LONG;
+				break;
+			}
+			case Opcodes.LMUL: {
+				head--;
+				prims[head] = lval(stack, prims, head) * lval(stack, prims, head+1);
+				stack[head] = LONG;
+				break;
+			}
+			case Opcodes.LDIV: {
+				head--;
+				prims[head] = lval(stack, prims, head) / lval(stack, prims, head+1);
+				stack[head] = LONG;
+				break;
+			}
+			case Opcodes.LMOD:  {
+				head--;
+				prims[head] = lval(stack, prims, head) % lval(stack, prims, head+1);
+				stack[head] = LONG;
+				break;
+			}
+			case Opcodes.LNEG: {
+				prims[head] = -lval(stack, prims, head);
+				stack[head] = LONG;
+				break;
+			}
+			case Opcodes.LCMP: {
+				head--;
+				long ltmp = lval(stack, prims, head) - lval(stack, prims, head+1);
+				stack[head] = (ltmp > 0L) ? Int32.ONE : (ltmp == 0L ? Int32.ZERO : Int32.M_ONE);
+				break;
+			}
+			case Opcodes.LSHL: {
+				head--;
+				prims[head] = lval(stack, prims, head) << ival(stack, prims, head+1);
+				stack[head] = LONG;
+				break;
+			}
+			case Opcodes.LSHR: {
+				head--;
+				prims[head] = lval(stack, prims, head) >> ival(stack, prims, head+1);
+				stack[head] = LONG;
+				break;
+			}
+			case Opcodes.LUSHR: {
+				head--;
+				prims[head] = lval(stack, prims, head) >>> ival(stack, prims, head+1);
+				stack[head] = LONG;
+				break;
+			}
+			case Opcodes.LAND: {
+				head--;
+				prims[head] = lval(stack, prims, head) & lval(stack, prims, head+1);
+				stack[head] = LONG;
+				break;
+			}
+			case Opcodes.LOR: {
+				head--;
+				prims[head] = lval(stack, prims, head) | lval(stack, prims, head+1);
+				stack[head] = LONG;
+				break;
+			}
+			case Opcodes.LXOR: {
+				head--;
+				prims[head] = lval(stack, prims, head) ^ lval(stack, prims, head+1);
+				stack[head] = LONG;
+				break;
+			}
+
+			case Opcodes.FADD: {
+				head--;
+				prims[head] = Float.floatToIntBits(fval(stack, prims, head) + fval(stack, prims, head+1));
+				stack[head] = FLOAT;
+				break;
+			}
+			case Opcodes.FSUB: {
+				head--;
+				prims[head] = Float.floatToIntBits(fval(stack, prims, head) - fval(stack, prims, head+1));
+				stack[head] = FLOAT;
+				break;
+			}
+			case Opcodes.FMUL: {
+				head--;
+				prims[head] = Float.floatToIntBits(fval(stack, prims, head) * fval(stack, prims, head+1));
+				stack[head] = FLOAT;
+				break;
+			}
+			case Opcodes.FDIV: {
+				head--;
+				prims[head] = Float.floatToIntBits(fval(stack, prims, head) / fval(stack, prims, head+1));
+				stack[head] = FLOAT;
+				break;
+			}
+			case Opcodes.FMOD: {
+				head--;
+				prims[head] = Float.floatToIntBits(fval(stack, prims, head) % fval(stack, prims, head+1));
+				stack[head] = FLOAT;
+				break;
+			}
+			case Opcodes.FNEG: {
+				prims[head] = Float.floatToIntBits(-fval(stack, prims, head));
+				stack[head] = FLOAT;
+				break;
+			}
+			case Opcodes.FCMP: {
+				head--;
+				float ftmp = fval(stack, prims, head) - fval(stack, prims, head+1);
+				stack[head] = (ftmp > 0) ? Int32.ONE : (ftmp == 0 ? Int32.ZERO : Int32.M_ONE);
+				break;
+			}
+
+			case Opcodes.DADD: {
+				head--;
+				prims[head] = Double.doubleToLongBits(dval(stack, prims, head) + dval(stack, prims, head+1));
+				stack[head] = DOUBLE;
+				break;
+			}
+			case Opcodes.DSUB: {
+				head--;
+				prims[head] = Double.doubleToLongBits(dval(stack, prims, head) - dval(stack, prims, head+1));
+				stack[head] = DOUBLE;
+				break;
+			}
+			case Opcodes.DMUL: {
+				head--;
+				prims[head] = Double.doubleToLongBits(dval(stack, prims, head) * dval(stack, prims, head+1));
+				stack[head] = DOUBLE;
+				break;
 			}
+			case Opcodes.DDIV: {
+				head--;
+				prims[head] = Double.doubleToLongBits(dval(stack, prims, head) / dval(stack, prims, head+1));
+				stack[head] = DOUBLE;
+				break;
+			}
+			case Opcodes.DMOD: {
+				head--;
+				prims[head] = Double.doubleToLongBits(dval(stack, prims, head) % dval(stack, prims, head+1));
+				stack[head] = DOUBLE;
+				break;
+			}
+			case Opcodes.DNEG: {
+				prims[head] = Double.doubleToLongBits(-dval(stack, prims, head));
+				stack[head] = DOUBLE;
+				break;
+			}
+			case Opcodes.DCMP: {
+				head--;
+				double dtmp = dval(stack, prims, head) - dval(stack, prims, head+1);
+				stack[head] = (dtmp > 0) ? Int32.ONE : (dtmp == 0 ? Int32.ZERO : Int32.M_ONE);
+				break;
+			}
+		}
+		return head;
+	}
+
+	/** Executes register arithmetic instruction other than iadd_r, isub_r and imul_r. */
+	private static void arithR(int instr, Object[] stack, long[] prims, int dst, int src1, int src2) {
+		switch (instr) {
+			case Opcodes.IDIV_R: {
+				prims[dst] = ival(stack, prims, src1) / ival(stack, prims, src2);
+				stack[dst] = INT;
+				break;
+			}
+			case Opcodes.IMOD_R: {
+				prims[dst] = ival(stack, prims, src1) % ival(stack, prims, src2);
+				stack[dst] = INT;
+				break;
+			}
+			case Opcodes.ISHL_R: {
+				prims[dst] = ival(stack, prims, src1) << ival(stack, prims, src2);
+				stack[dst] = INT;
+				break;
+			}
+			case Opcodes.ISHR_R: {
+				prims[dst] = ival(stack, prims, src1) >> ival(stack, prims, src2);
+				stack[dst] = INT;
+				break;
+			}
+			case Opcodes.IUSHR_R: {
+				prims[dst] = ival(stack, prims, src1) >>> ival(stack, prims, src2);
+				stack[dst] = INT;
+				break;
+			}
+			case Opcodes.IAND_R: {
+				prims[dst] = ival(stack, prims, src1) & ival(stack, prims, src2);
+				stack[dst] = INT;
+				break;
+			}
+			case Opcodes.IOR_R: {
+				prims[dst] = ival(stack, prims, src1) | ival(stack, prims, src2);
+				stack[dst] = INT;
+				break;
+			}
+			case Opcodes.IXOR_R: {
+				prims[dst] = ival(stack, prims, src1) ^ ival(stack, prims, src2);
+				stack[dst] = INT;
+				break;
+			}
+			case Opcodes.LADD_R: {
+				prims[dst] = lval(stack, prims, src1) + lval(stack, prims, src2);
+				stack[dst] = LONG;
+				break;
+			}
+			case Opcodes.LSUB_R: {
+				prims[dst] = lval(stack, prims, src1) - lval(stack, prims, src2);
+				stack[dst] = LONG;
+				break;
+			}
+			case Opcodes.LMUL_R: {
+				prims[dst] = lval(stack, prims, src1) * lval(stack, prims, src2);
+				stack[dst] = LONG;
+				break;
+			}
+			case Opcodes.LDIV_R: {
+				prims[dst] = lval(stack, prims, src1) / lval(stack, prims, src2);
+				stack[dst] = LONG;
+				break;
+			}
+			case Opcodes.LMOD_R: {
+				prims[dst] = lval(stack, prims, src1) % lval(stack, prims, src2);
+				stack[dst] = LONG;
+				break;
+			}
+			case Opcodes.FADD_R: {
+				prims[dst] = Float.floatToIntBits(fval(stack, prims, src1) + fval(stack, prims, src2));
+				stack[dst] = FLOAT;
+				break;
+			}
+			case Opcodes.FSUB_R: {
+				prims[dst] = Float.floatToIntBits(fval(stack, prims, src1) - fval(stack, prims, src2));
+				stack[dst] = FLOAT;
+				break;
+			}
+			case Opcodes.FMUL_R: {
+				prims[dst] = Float.floatToIntBits(fval(stack, prims, src1) * fval(stack, prims, src2));
+				stack[dst] = FLOAT;
+				break;
+			}
+			case Opcodes.FDIV_R: {
+				prims[dst] = Float.floatToIntBits(fval(stack, prims, src1) / fval(stack, prims, src2));
+				stack[dst] = FLOAT;
+				break;
+			}
+			case Opcodes.DADD_R: {
+				prims[dst] = Double.doubleToLongBits(dval(stack, prims, src1) + dval(stack, prims, src2));
+				stack[dst] = DOUBLE;
+				break;
+			}
+			case Opcodes.DSUB_R: {
+				prims[dst] = Double.doubleToLongBits(dval(stack, prims, src1) - dval(stack, prims, src2));
+				stack[dst] = DOUBLE;
+				break;
+			}
+			case Opcodes.DMUL_R: {
+				prims[dst] = Double.doubleToLongBits(dval(stack, prims, src1) * dval(stack, prims, src2));
+				stack[dst] = DOUBLE;
+				break;
+			}
+			case Opcodes.DDIV_R: {
+				prims[dst] = Double.doubleToLongBits(dval(stack, prims, src1) / dval(stack, prims, src2));
+				stack[dst] = DOUBLE;
+				break;
+			}
+		}
+	}
+
+	/** Creates array for the new?a instruction. */
+	private static Object newArray(int instr, int len) {
+		switch (instr) {
+			case Opcodes.NEWAA: return new Object[len];
+			case Opcodes.NEWBA: return new byte[len];
+			case Opcodes.NEWCA: return new char[len];
+			case Opcodes.NEWZA: return new boolean[len];
+			case Opcodes.NEWSA: return new short[len];
+			case Opcodes.NEWIA: return new int[len];
+			case Opcodes.NEWLA: return new long[len];
+			case Opcodes.NEWFA: return new float[len];
+			case Opcodes.NEWDA: return new double[len];
+			default: throw new IllegalArgumentException();
+		}
+	}
+
+	/** Executes the newmultiarray instruction, returns new head. */
+	private static int newMultiArray(Object[] stack, long[] prims, int head, int dimension, int type) {
+		if (dimension < 2) throw new IllegalArgumentException();
+		int from = head - dimension + 1;
+		int[] sizes = new int[dimension];
+		for (int i=0; i<dimension; i++) {
+			sizes[i] = ival(stack, prims, from+i);
+		}
+		stack[from] = Arrays.newMultiArray(sizes, type);
+		return from;
+	}
+
+	/** Executes instruction on boolean, short, long, float or double array, returns new head. */
+	private static int arrayOp(int instr, Object[] stack, long[] prims, int head) {
+		switch (instr) {
+			case Opcodes.ZALOAD: {
+				int at = ival(stack, prims, head);
+				head--;
+				stack[head] = ((boolean[])stack[head])[at] ? Int32.ONE : Int32.ZERO;
+				break;
+			}
+			case Opcodes.SALOAD: {
+				int at = ival(stack, prims, head);
+				head--;
+				prims[head] = ((short[])stack[head])[at];
+				stack[head] = INT;
+				break;
+			}
+			case Opcodes.LALOAD: {
+				int at = ival(stack, prims, head);
+				head--;
+				prims[head] = ((long[])stack[head])[at];
+				stack[head] = LONG;
+				break;
+			}
+			case Opcodes.FALOAD: {
+				int at = ival(stack, prims, head);
+				head--;
+				prims[head] = Float.floatToIntBits( ((float[])stack[head])[at] );
+				stack[head] = FLOAT;
+				break;
+			}
+			case Opcodes.DALOAD: {
+				int at = ival(stack, prims, head);
+				head--;
+				prims[head] = Double.doubleToLongBits( ((double[])stack[head])[at] );
+				stack[head] = DOUBLE;
+				break;
+			}
+			case Opcodes.ZASTORE: {
+				boolean val = ival(stack, prims, head) != 0;
+				int at = ival(stack, prims, head-1);
+				boolean[] array = (boolean[])stack[head-2];
+				array[at] = val;
+				head -= 3;
+				break;
+			}
+			case Opcodes.SASTORE: {
+				short val = (short)ival(stack, prims, head);
+				int at = ival(stack, prims, head-1);
+				short[] array = (short[])stack[head-2];
+				array[at] = val;
+				head -= 3;
+				break;
+			}
+			case Opcodes.LASTORE: {
+				long val = lval(stack, prims, head);
+				int at = ival(stack, prims, head-1);
+				long[] array = (long[])stack[head-2];
+				array[at] = val;
+				head -= 3;
+				break;
+			}
+			case Opcodes.FASTORE: {
+				float val = fval(stack, prims, head);
+				int at = ival(stack, prims, head-1);
+				float[] array = (float[])stack[head-2];
+				array[at] = val;
+				head -= 3;
+				break;
+			}
+			case Opcodes.DASTORE: {
+				double val = dval(stack, prims, head);
+				int at = ival(stack, prims, head-1);
+				double[] array = (double[])stack[head-2];
+				array[at] = val;
+				head -= 3;
+				break;
+			}
+			case Opcodes.ZALEN: {
+				prims[head] = ((boolean[])stack[head]).length;
+				stack[head] = INT;
+				break;
+			}
+			case Opcodes.SALEN: {
+				prims[head] = ((short[])stack[head]).length;
+				stack[head] = INT;
+				break;
+			}
+			case Opcodes.LALEN: {
+				prims[head] = ((long[])stack[head]).length;
+				stack[head] = INT;
+				break;
+			}
+			case Opcodes.FALEN: {
+				prims[head] = ((float[])stack[head]).length;
+				stack[head] = INT;
+				break;
+			}
+			case Opcodes.DALEN: {
+				prims[head] = ((double[])stack[head]).length;
+				stack[head] = INT;
+				break;
+			}
+		}
+		return head;
+	}
+
+	/** Returns jump target of the tableswitch instruction. */
+	private static int tableswitch(int[] code, int ct, int val) {
+		int min = code[ct+1];
+		int max = code[ct+2];
+		if (val >= min && val <= max) {
+			return code[ct+3+val-min];
+		} else {
+			return code[ct];
+		}
+	}
+
+	/** Returns jump target of the lookupswitch instruction. */
+	private static int lookupswitch(int[] code, int ct, int val) {
+		int count = code[ct+1];
+		for (int i=0; i<count; i++) {
+			if (val == code[ct+2+i*2]) return code[ct+3+i*2];
+		}
+		return code[ct];
+	}
+
+	/** Concatenates string representations of <i>n</i> slots. */
+	private static String concat(Object[] stack, long[] prims, int from, int n) {
+		StringBuffer sb = new StringBuffer();
+		for (int i = 0; i < n; i++) {
+			sb.append(Strings.toString(box(stack, prims, from+i)));
+		}
+		return sb.toString();
+	}
+
+	private static int ival(Object[] stack, long[] prims, int i) {
+		Object v = stack[i];
+		if (v == INT) return (int)prims[i];
+		return ((Int32)v).value;
+	}
+
+	private static long lval(Object[] stack, long[] prims, int i) {
+		Object v = stack[i];
+		if (v == LONG) return prims[i];
+		return ((Int64)v).value;
+	}
+
+	private static float fval(Object[] stack, long[] prims, int i) {
+		Object v = stack[i];
+		if (v == FLOAT) return Float.intBitsToFloat((int)prims[i]);
+		return ((Float32)v).value;
+	}
+
+	private static double dval(Object[] stack, long[] prims, int i) {
+		Object v = stack[i];
+		if (v == DOUBLE) return Double.longBitsToDouble(prims[i]);
+		return ((Float64)v).value;
+	}
+
+	/** Returns value of the slot as an object. */
+	private static Object box(Object[] stack, long[] prims, int i) {
+		Object v = stack[i];
+		if (v == INT) return Int32.toInt32((int)prims[i]);
+		if (v == LONG) return new Int64(prims[i]);
+		if (v == FLOAT) return new Float32(Float.intBitsToFloat((int)prims[i]));
+		if (v == DOUBLE) return new Float64(Double.longBitsToDouble(prims[i]));
+		return v;
+	}
+
+	/** Boxes values of given slots into new array. */
+	private static Object[] boxAll(Object[] stack, long[] prims, int from, int len) {
+		Object[] params = new Object[len];
+		for (int i=0; i<len; i++) {
+			params[i] = box(stack, prims, from+i);
+		}
+		return params;
+	}
+
+	/** Tests values of two slots for equality. */
+	private static boolean slotsEqual(Object[] stack, long[] prims, int i, int j) {
+		if (stack[i] == stack[j] && (stack[i] == INT || stack[i] == LONG)) {
+			return prims[i] == prims[j];
 		}
-		} /* the great while */
-		throw new ProcessKilledException();
+		Object a = box(stack, prims, i);
+		Object b = box(stack, prims, j);
+		return (a == null) ? b == null : a.equals(b);
 	}
 }
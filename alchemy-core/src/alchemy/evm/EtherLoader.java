@@ -37,6 +37,21 @@ public final class EtherLoader {
 
 	private EtherLoader() { }
 
+	/** Whether functions are prepared on the first call. */
+	private static boolean lazy = true;
+
+	/**
+	 * Sets whether functions of loaded libraries are decoded
+	 * and verified on the first call or right after loading.
+	 * Lazy loading is faster and takes less memory when only
+	 * a few functions of library are used, but invalid code
+	 * is reported only when the function is called.
+	 * Lazy loading is on by default.
+	 */
+	public static void setLazy(boolean lazy) {
+		EtherLoader.lazy = lazy;
+	}
+
 	/**
 	 * Highest supported library format.
 	 * <ul>
@@ -51,7 +66,23 @@ public final class EtherLoader {
 	 * version must be equal to or less than this value.
 	 * </ul>
 	 */
-	static public final int VERSION = 0x0202;
+	static public final int VERSION = 0x0301;
+
+	/** First format with compact encoding. */
+	static public final int COMPACT_VERSION = 0x0301;
+
+	/**
+	 * Last format with relocation tables. Object files are
+	 * written in this format unless compact one is requested.
+	 */
+	static public final int RELOC_VERSION = 0x0300;
+
+	/**
+	 * Highest supported format of the previous major version.
+	 * Libraries in this format are still loaded, they just
+	 * do not use instructions introduced in later formats.
+	 */
+	static public final int COMPAT_VERSION = 0x0202;
 
 	/*
 	 * New in format 1.1
@@ -77,43 +108,90 @@ public final class EtherLoader {
 	 *  Call instructions: callc callc_n calvc calvc_n
 	 *  Global var access: getglobal getglobaldef setglobal
 	 *  Other instructions: throw newmultiarray concat
+	 *
+	 * New in format 3.0
+	 *  Register instructions operating directly on local variables:
+	 *    iadd_r isub_r imul_r idiv_r imod_r ishl_r ishr_r iushr_r
+	 *    iand_r ior_r ixor_r ladd_r lsub_r lmul_r ldiv_r lmod_r
+	 *    fadd_r fsub_r fmul_r fdiv_r dadd_r dsub_r dmul_r ddiv_r
+	 *    move_r iaddi_r
+	 *  Register jump instructions: if_icmplt_r if_icmpge_r
+	 *    if_icmpgt_r if_icmple_r
+	 *
+	 * New in format 3.1
+	 *  Compact encoding, instructions are the same as in 3.0
+	 *  All strings are in one table after the library flags,
+	 *    other places refer to them by index
+	 *  Counts, sizes, indices and tables are varints,
+	 *    int constants and line table deltas are signed varints
+	 *  Line number table is delta-encoded
+	 *  No relocation tables, code is scanned to relocate it
 	 */
 
 	/** Loads Ether library from given input stream. */
 	public static Library load(Process p, InputStream in) throws IOException, InstantiationException {
+		return load(p, in, null);
+	}
+
+	/**
+	 * Loads Ether library recording it for the image.
+	 * If <code>image</code> is not null, dependencies are resolved
+	 * in <code>LIBPATH</code> and recorded together with entries of
+	 * the constant pool.
+	 */
+	static Library load(Process p, InputStream in, ImageWriter image) throws IOException, InstantiationException {
 		DataInputStream data = new DataInputStream(in);
 		Library lib;
 		//reading format version
 		int ver = data.readUnsignedShort();
-		if ((ver | 0xff) != (VERSION | 0xff)  ||  (ver & 0xff) > (VERSION & 0xff))
+		if (!isCompatible(ver, VERSION) && !isCompatible(ver, COMPAT_VERSION))
 			throw new InstantiationException("Incompatible executable format: "+ver);
+		boolean compact = ver >= COMPACT_VERSION;
 		//reading object type
 		int lflags = data.readUnsignedByte();
+		//reading string table
+		String[] strings = null;
+		if (compact) {
+			strings = new String[readVarint(data)];
+			for (int i=0; i<strings.length; i++) {
+				strings[i] = data.readUTF();
+			}
+		}
 		//reading soname
 		if ((lflags & Opcodes.LFLAG_SONAME) != 0) {
-			lib = new Library(data.readUTF());
+			String soname = readString(data, strings);
+			if (image != null) image.soname = soname;
+			lib = new Library(soname);
 		} else {
 			lib = new Library();
 		}
 		//loading dependency libs
 		Library[] libdeps = null;
 		if ((lflags & Opcodes.LFLAG_DEPS) != 0) {
-			int depcount = data.readUnsignedShort();
-			libdeps = new Library[depcount];
+			int depcount = compact ? readVarint(data) : data.readUnsignedShort();
+			String[] depnames = new String[depcount];
 			for (int i=0; i<depcount; i++) {
-				libdeps[i] = p.loadLibrary(data.readUTF());
+				depnames[i] = readString(data, strings);
+				if (image != null) {
+					String path = p.resolveFile(depnames[i], p.getEnv("LIBPATH"));
+					if (path == null) throw new IOException("File not found: " + depnames[i]);
+					image.dependency(depnames[i], path);
+					depnames[i] = path;
+				}
 			}
+			libdeps = p.loadLibraries(depnames);
 		}
 		//constructing constant pool
-		int ccount = data.readUnsignedShort();
+		int ccount = compact ? readVarint(data) : data.readUnsignedShort();
 		Object[] cpool = new Object[ccount];
+		if (image != null) image.pool(ccount);
 		for (int cindex=0; cindex<ccount; cindex++) {
 			int ctype = data.readUnsignedByte();
 			switch (ctype) {
 				case '0': //null, aligning object
 					break;
 				case 'i': //integer
-					cpool[cindex] = Int32.toInt32(data.readInt());
+					cpool[cindex] = Int32.toInt32(compact ? readSignedVarint(data) : data.readInt());
 					break;
 				case 'l': //long
 					cpool[cindex] = new Int64(data.readLong());
@@ -125,49 +203,543 @@ public final class EtherLoader {
 					cpool[cindex] = new Float64(data.readDouble());
 					break;
 				case 'S': //string
-					cpool[cindex] = data.readUTF();
+					cpool[cindex] = readString(data, strings);
 					break;
 				case 'E': { //external function
-					int libref = data.readUnsignedShort();
-					String name = data.readUTF();
+					int libref = compact ? readVarint(data) : data.readUnsignedShort();
+					String name = readString(data, strings);
 					cpool[cindex] = libdeps[libref].getFunction(name);
+					if (image != null) image.external(cindex, libref, name);
 				} break;
 				case 'P': { // function
 					//reading data
-					String fname = data.readUTF();
+					String fname = readString(data, strings);
 					int fflags = data.readUnsignedByte();
 					int stacksize = data.readUnsignedByte();
 					int localsize = data.readUnsignedByte();
-					int codesize = data.readUnsignedShort();
+					int codesize = compact ? readVarint(data) : data.readUnsignedShort();
 					byte[] code = new byte[codesize];
 					char[] lnumtable = null;
 					char[] errtable = null;
 					data.readFully(code);
 					if ((fflags & Opcodes.FFLAG_RELOCS) != 0) {
+						if (compact) throw new InstantiationException("Relocations in compact format");
 						data.skipBytes(data.readUnsignedShort()*2);
 					}
 					if ((fflags & Opcodes.FFLAG_LNUM) != 0) {
-						lnumtable = new char[data.readUnsignedShort()];
-						for (int j=0; j < lnumtable.length; j++) {
-							lnumtable[j] = data.readChar();
-						}
+						lnumtable = compact ? readLineTable(data) : readTable(data);
 					}
 					if ((fflags & Opcodes.FFLAG_ERRTBL) != 0) {
-						errtable = new char[data.readUnsignedShort()];
-						for (int j=0; j < errtable.length; j++) {
-							errtable[j] = data.readChar();
-						}
+						errtable = compact ? readErrorTable(data) : readTable(data);
 					}
-					//constructing function
+					//constructing function, code is decoded when it is prepared
+					boolean shared = (fflags & Opcodes.FFLAG_SHARED) != 0;
+					if (image != null) image.function(cindex, fname, shared, stacksize, localsize, code, lnumtable, errtable);
 					Function func = new EtherFunction(lib, fname, cpool, stacksize, localsize, code, lnumtable, errtable);
 					cpool[cindex] = func;
-					if ((fflags & Opcodes.FFLAG_SHARED) != 0) lib.putFunction(func);
+					if (shared) lib.putFunction(func);
 				} break;
 				default:
 					throw new InstantiationException("Unknown data type: "+ctype);
 			}
+			if (image != null && ctype != 'E' && ctype != 'P') image.constant(cindex, cpool[cindex]);
 		}
+		//preparing functions when all constants are known
+		if (!lazy) prepare(lib, cpool);
 		return lib;
 	}
 
+	/** Whether functions are prepared on the first call. */
+	static boolean isLazy() {
+		return lazy;
+	}
+
+	/** Prepares all functions of the library in its constant pool. */
+	static void prepare(Library lib, Object[] cpool) throws InstantiationException {
+		for (int cindex=0; cindex<cpool.length; cindex++) {
+			Object obj = cpool[cindex];
+			if (obj instanceof EtherFunction && ((EtherFunction)obj).library == lib) {
+				((EtherFunction)obj).prepare();
+			}
+		}
+	}
+
+	/** Reads table of the format 3.0 or earlier. */
+	private static char[] readTable(DataInputStream data) throws IOException {
+		char[] table = new char[data.readUnsignedShort()];
+		for (int i=0; i < table.length; i++) {
+			table[i] = data.readChar();
+		}
+		return table;
+	}
+
+	/**
+	 * Reads delta-encoded line number table of the compact format.
+	 * Table is expanded to the layout of format 3.0, that is
+	 * the index of the source name followed by line-offset pairs.
+	 */
+	public static char[] readLineTable(DataInputStream data) throws IOException {
+		int count = readVarint(data);
+		char[] table = new char[count*2 + 1];
+		table[0] = (char) readVarint(data);
+		int line = 0;
+		int offset = 0;
+		for (int i=1; i < table.length; i += 2) {
+			line += readSignedVarint(data);
+			offset += readSignedVarint(data);
+			table[i] = (char) line;
+			table[i+1] = (char) offset;
+		}
+		return table;
+	}
+
+	/**
+	 * Reads error table of the compact format.
+	 * Entries are expanded to the layout of format 3.0,
+	 * that is start, end, handler and stack depth.
+	 */
+	public static char[] readErrorTable(DataInputStream data) throws IOException {
+		int count = readVarint(data);
+		char[] table = new char[count*4];
+		for (int i=0; i < table.length; i += 4) {
+			int start = readVarint(data);
+			table[i] = (char) start;
+			table[i+1] = (char) (start + readVarint(data));
+			table[i+2] = (char) readVarint(data);
+			table[i+3] = (char) readVarint(data);
+		}
+		return table;
+	}
+
+	/** Reads string which is in the string table if the format is compact. */
+	private static String readString(DataInputStream data, String[] strings) throws IOException {
+		if (strings == null) return data.readUTF();
+		int index = readVarint(data);
+		if (index >= strings.length) throw new IOException("Invalid string index " + index);
+		return strings[index];
+	}
+
+	/**
+	 * Reads unsigned varint of the compact format.
+	 * Each byte holds seven bits of the value, lowest first,
+	 * the highest bit is set in all bytes but the last one.
+	 */
+	public static int readVarint(DataInputStream data) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = data.readUnsignedByte();
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) return value;
+		}
+		throw new IOException("Invalid varint");
+	}
+
+	/** Reads signed varint of the compact format, sign is in the lowest bit. */
+	public static int readSignedVarint(DataInputStream data) throws IOException {
+		int value = readVarint(data);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Translates function code into the form executed by interpreter.
+	 * Every instruction becomes an opcode followed by its operands,
+	 * one int per operand. Branch targets are replaced by positions
+	 * in the new code, switch tables are unpacked. Calls of functions
+	 * from the stack and instructions accessing global variables get
+	 * the number of their call site. Offsets in line number and error
+	 * tables are remapped in place.
+	 * Also used by translators of Ether code.
+	 */
+	public static int[] decode(byte[] code, char[] lnumtable, char[] errtable) throws InstantiationException {
+		return decode(code, lnumtable, errtable, new int[code.length+1]);
+	}
+
+	/**
+	 * Translates function code into the form executed by interpreter.
+	 * Array <i>map</i> must have length <code>code.length+1</code>,
+	 * it receives positions in decoded code for each offset in the
+	 * original code. Offsets inside instruction are mapped to its
+	 * last operand.
+	 *
+	 * @see #decode(byte[], char[], char[])
+	 * @see #codeOffsets(int[], int)
+	 */
+	public static int[] decode(byte[] code, char[] lnumtable, char[] errtable, int[] map) throws InstantiationException {
+		int len = code.length;
+		int[] out = new int[len];
+		// position of instruction in decoded code, -1 inside instructions
+		// positions of branch targets that are to be remapped
+		int[] jumps = new int[len];
+		int jcount = 0;
+		for (int i=0; i<len; i++) map[i] = -1;
+		int ct = 0;
+		int at = 0;
+		// call sites of functions and global variables
+		int sites = 0;
+		try {
+			while (ct < len) {
+				map[ct] = at;
+				byte instr = code[ct];
+				ct++;
+				out[at] = instr;
+				at++;
+				switch (instr) {
+					case Opcodes.LOAD:
+					case Opcodes.STORE:
+					case Opcodes.CALL:
+					case Opcodes.CALV:
+					case Opcodes.CONCAT:
+						out[at] = code[ct] & 0xff;
+						at++;
+						ct++;
+						break;
+					case Opcodes.BIPUSH:
+						out[at] = code[ct];
+						at++;
+						ct++;
+						break;
+					case Opcodes.SIPUSH:
+						out[at] = (code[ct] << 8) | (code[ct+1] & 0xff);
+						at++;
+						ct += 2;
+						break;
+					case Opcodes.LDC:
+					case Opcodes.CALLC_0: case Opcodes.CALLC_1:
+					case Opcodes.CALLC_2: case Opcodes.CALLC_3:
+					case Opcodes.CALLC_4: case Opcodes.CALLC_5:
+					case Opcodes.CALLC_6: case Opcodes.CALLC_7:
+					case Opcodes.CALVC_0: case Opcodes.CALVC_1:
+					case Opcodes.CALVC_2: case Opcodes.CALVC_3:
+					case Opcodes.CALVC_4: case Opcodes.CALVC_5:
+					case Opcodes.CALVC_6: case Opcodes.CALVC_7:
+						out[at] = ((code[ct] & 0xff) << 8) | (code[ct+1] & 0xff);
+						at++;
+						ct += 2;
+						break;
+					case Opcodes.IFEQ:
+					case Opcodes.IFNE:
+					case Opcodes.IFLT:
+					case Opcodes.IFGE:
+					case Opcodes.IFGT:
+					case Opcodes.IFLE:
+					case Opcodes.GOTO:
+					case Opcodes.IFNULL:
+					case Opcodes.IFNNULL:
+					case Opcodes.IF_ICMPLT:
+					case Opcodes.IF_ICMPGE:
+					case Opcodes.IF_ICMPGT:
+					case Opcodes.IF_ICMPLE:
+					case Opcodes.IF_ACMPEQ:
+					case Opcodes.IF_ACMPNE:
+					case Opcodes.JSR:
+						out[at] = ((code[ct] & 0xff) << 8) | (code[ct+1] & 0xff);
+						jumps[jcount] = at;
+						jcount++;
+						at++;
+						ct += 2;
+						break;
+					case Opcodes.CALL_0: case Opcodes.CALL_1:
+					case Opcodes.CALL_2: case Opcodes.CALL_3:
+					case Opcodes.CALL_4: case Opcodes.CALL_5:
+					case Opcodes.CALL_6: case Opcodes.CALL_7:
+					case Opcodes.CALV_0: case Opcodes.CALV_1:
+					case Opcodes.CALV_2: case Opcodes.CALV_3:
+					case Opcodes.CALV_4: case Opcodes.CALV_5:
+					case Opcodes.CALV_6: case Opcodes.CALV_7:
+					case Opcodes.GETGLOBAL:
+					case Opcodes.GETGLOBALDEF:
+					case Opcodes.SETGLOBAL:
+						// index of the site caching the callee or the variable,
+						// these are the only operands not present in the file
+						if (len + sites >= out.length) {
+							int[] newout = new int[len + sites + 8];
+							System.arraycopy(out, 0, newout, 0, at);
+							out = newout;
+						}
+						out[at] = sites;
+						sites++;
+						at++;
+						break;
+					case Opcodes.IINC:
+					case Opcodes.NEWMULTIARRAY:
+						out[at] = code[ct] & 0xff;
+						out[at+1] = code[ct+1];
+						at += 2;
+						ct += 2;
+						break;
+					case Opcodes.CALLC:
+					case Opcodes.CALVC:
+						out[at] = code[ct] & 0xff;
+						out[at+1] = ((code[ct+1] & 0xff) << 8) | (code[ct+2] & 0xff);
+						at += 2;
+						ct += 3;
+						break;
+					case Opcodes.MOVE_R:
+						out[at] = code[ct] & 0xff;
+						out[at+1] = code[ct+1] & 0xff;
+						at += 2;
+						ct += 2;
+						break;
+					case Opcodes.IADDI_R:
+						out[at] = code[ct] & 0xff;
+						out[at+1] = code[ct+1] & 0xff;
+						out[at+2] = code[ct+2];
+						at += 3;
+						ct += 3;
+						break;
+					case Opcodes.IF_ICMPLT_R:
+					case Opcodes.IF_ICMPGE_R:
+					case Opcodes.IF_ICMPGT_R:
+					case Opcodes.IF_ICMPLE_R:
+						out[at] = code[ct] & 0xff;
+						out[at+1] = code[ct+1] & 0xff;
+						out[at+2] = ((code[ct+2] & 0xff) << 8) | (code[ct+3] & 0xff);
+						jumps[jcount] = at+2;
+						jcount++;
+						at += 3;
+						ct += 4;
+						break;
+					case Opcodes.TABLESWITCH: {
+						// tableswitch <dflt> <min> <max> <targets...>
+						out[at] = ((code[ct] & 0xff) << 8) | (code[ct+1] & 0xff);
+						jumps[jcount] = at;
+						jcount++;
+						ct += 2;
+						int min = readInt(code, ct);
+						int max = readInt(code, ct+4);
+						ct += 8;
+						out[at+1] = min;
+						out[at+2] = max;
+						at += 3;
+						for (int i=max-min; i >= 0; i--) {
+							out[at] = ((code[ct] & 0xff) << 8) | (code[ct+1] & 0xff);
+							jumps[jcount] = at;
+							jcount++;
+							at++;
+							ct += 2;
+						}
+						break;
+					}
+					case Opcodes.LOOKUPSWITCH: {
+						// lookupswitch <dflt> <count> <key target...>
+						out[at] = ((code[ct] & 0xff) << 8) | (code[ct+1] & 0xff);
+						jumps[jcount] = at;
+						jcount++;
+						int count = ((code[ct+2] & 0xff) << 8) | (code[ct+3] & 0xff);
+						out[at+1] = count;
+						at += 2;
+						ct += 4;
+						for (int i=0; i<count; i++) {
+							out[at] = readInt(code, ct);
+							out[at+1] = ((code[ct+4] & 0xff) << 8) | (code[ct+5] & 0xff);
+							jumps[jcount] = at+1;
+							jcount++;
+							at += 2;
+							ct += 6;
+						}
+						break;
+					}
+					default:
+						if ((instr & 0xff) >= (Opcodes.IADD_R & 0xff) && (instr & 0xff) <= (Opcodes.DDIV_R & 0xff)) {
+							// <op>_r <dst> <src1> <src2>
+							out[at] = code[ct] & 0xff;
+							out[at+1] = code[ct+1] & 0xff;
+							out[at+2] = code[ct+2] & 0xff;
+							at += 3;
+							ct += 3;
+						}
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException aioobe) {
+			throw new InstantiationException("Truncated instruction at "+(ct-1));
+		}
+		if (ct != len) throw new InstantiationException("Truncated instruction at "+len);
+		map[len] = at;
+		at = fuse(code, out, at, map, jumps, jcount, lnumtable, errtable);
+		map[len] = at;
+		// resolving branch targets
+		for (int i=0; i<jcount; i++) {
+			int target = out[jumps[i]];
+			if (target >= len || map[target] < 0)
+				throw new InstantiationException("Invalid jump target: "+target);
+			out[jumps[i]] = map[target];
+		}
+		// offsets inside instruction refer to its last operand
+		int next = at;
+		for (int i=len-1; i >= 0; i--) {
+			if (map[i] >= 0) next = map[i];
+			else map[i] = next-1;
+		}
+		if (lnumtable != null) {
+			for (int i=2; i < lnumtable.length; i += 2) {
+				lnumtable[i] = (char)map[Math.min(lnumtable[i], len)];
+			}
+		}
+		if (errtable != null) {
+			for (int i=0; i < errtable.length; i += 4) {
+				errtable[i] = (char)map[Math.min(errtable[i], len)];
+				errtable[i+1] = (char)map[Math.min(errtable[i+1], len)];
+				errtable[i+2] = (char)map[Math.min(errtable[i+2], len)];
+			}
+		}
+		if (at == out.length) return out;
+		int[] icode = new int[at];
+		System.arraycopy(out, 0, icode, 0, at);
+		return icode;
+	}
+
+	/**
+	 * Returns offset in the original code for each position
+	 * in decoded code, that is the last offset mapped to this
+	 * or preceding position. Stack traces show these offsets
+	 * when there is no debug info.
+	 *
+	 * @param map   positions of offsets filled by decode
+	 * @param size  length of decoded code
+	 */
+	public static char[] codeOffsets(int[] map, int size) {
+		int len = map.length - 1;
+		char[] offsets = new char[size];
+		int i = 0;
+		for (int at=0; at<size; at++) {
+			while (i+1 < len && map[i+1] <= at) i++;
+			offsets[at] = (char)i;
+		}
+		return offsets;
+	}
+
+	/**
+	 * Replaces common instruction sequences in decoded code
+	 * with superinstructions. Sequences are only fused if none
+	 * of instructions but the first is a jump target, start of
+	 * a source line or a boundary of an error handler.
+	 * Positions in <i>map</i> and <i>jumps</i> are updated.
+	 * Branch targets are expected to be not yet resolved.
+	 *
+	 * @return new length of decoded code
+	 */
+	private static int fuse(byte[] code, int[] out, int size, int[] map, int[] jumps, int jcount, char[] lnumtable, char[] errtable) {
+		int len = code.length;
+		// collecting instruction starts
+		int[] starts = new int[size];
+		int count = 0;
+		for (int i=0; i<len; i++) {
+			if (map[i] >= 0) {
+				starts[count] = i;
+				count++;
+			}
+		}
+		// marking instructions that may be entered not from the previous one
+		boolean[] entries = new boolean[size+1];
+		for (int i=0; i<jcount; i++) {
+			markEntry(entries, map, out[jumps[i]], len);
+		}
+		if (lnumtable != null) {
+			for (int i=2; i < lnumtable.length; i += 2) {
+				markEntry(entries, map, lnumtable[i], len);
+			}
+		}
+		if (errtable != null) {
+			for (int i=0; i < errtable.length; i += 4) {
+				markEntry(entries, map, errtable[i], len);
+				markEntry(entries, map, errtable[i+1]+1, len);
+				markEntry(entries, map, errtable[i+2], len);
+			}
+		}
+		// rewriting code
+		int at = 0;
+		int jp = 0;
+		int k = 0;
+		while (k < count) {
+			int from = map[starts[k]];
+			int instr = out[from];
+			int p1 = (k+1 < count) ? map[starts[k+1]] : size;
+			int p2 = (k+2 < count) ? map[starts[k+2]] : size;
+			int fused = 0;
+			if (k+2 < count && !entries[p1] && !entries[p2] && (instr == Opcodes.LOAD || (instr & 0xf8) == Opcodes.LOAD_0)) {
+				int local = (instr == Opcodes.LOAD) ? out[from+1] : instr & 7;
+				int instr1 = out[p1];
+				int instr2 = out[p2];
+				int imm = 0;
+				boolean isconst = true;
+				if (instr1 == Opcodes.BIPUSH || instr1 == Opcodes.SIPUSH) {
+					imm = out[p1+1];
+				} else if (instr1 >= Opcodes.ICONST_M1 && instr1 <= Opcodes.ICONST_5) {
+					imm = instr1 - Opcodes.ICONST_0;
+				} else {
+					isconst = false;
+				}
+				if (isconst && instr2 >= Opcodes.IF_ICMPLT && instr2 <= Opcodes.IF_ICMPLE) {
+					// IF_ICMPxx_LI <local> <imm> <target>
+					int target = out[p2+1];
+					out[at] = Opcodes.IF_ICMPLT_LI + (instr2 - Opcodes.IF_ICMPLT);
+					out[at+1] = local;
+					out[at+2] = imm;
+					out[at+3] = target;
+					jumps[jp] = at+3;
+					jp++;
+					fused = 4;
+				} else if (instr1 == Opcodes.LOAD || (instr1 & 0xf8) == Opcodes.LOAD_0) {
+					int index = (instr1 == Opcodes.LOAD) ? out[p1+1] : instr1 & 7;
+					switch (instr2) {
+						case Opcodes.AALOAD: fused = Opcodes.AALOAD_LL; break;
+						case Opcodes.BALOAD: fused = Opcodes.BALOAD_LL; break;
+						case Opcodes.CALOAD: fused = Opcodes.CALOAD_LL; break;
+						case Opcodes.IALOAD: fused = Opcodes.IALOAD_LL; break;
+					}
+					if (fused != 0) {
+						// xALOAD_LL <array> <index>
+						out[at] = fused;
+						out[at+1] = local;
+						out[at+2] = index;
+						fused = 3;
+					}
+				}
+			}
+			if (fused != 0) {
+				map[starts[k]] = at;
+				map[starts[k+1]] = -1;
+				map[starts[k+2]] = -1;
+				at += fused;
+				k += 3;
+				continue;
+			}
+			// copying instruction as is
+			int shift = at - from;
+			map[starts[k]] = at;
+			for (int i=from; i<p1; i++) out[i+shift] = out[i];
+			while (jp < jcount && jumps[jp] < p1) {
+				jumps[jp] += shift;
+				jp++;
+			}
+			if (instr == Opcodes.GOTO) {
+				int target = out[at+1];
+				if (target < len && map[target] >= 0 && code[target] == Opcodes.IINC) {
+					out[at] = Opcodes.GOTO_IINC;
+				}
+			}
+			at += p1 - from;
+			k++;
+		}
+		return at;
+	}
+
+	/** Marks instruction at given offset or the next one if offset is inside instruction. */
+	private static void markEntry(boolean[] entries, int[] map, int offset, int len) {
+		if (offset > len || offset < 0) return;
+		while (map[offset] < 0) offset++;
+		entries[map[offset]] = true;
+	}
+
+	private static int readInt(byte[] code, int ct) {
+		return (code[ct] << 24)
+		     | ((code[ct+1] & 0xff) << 16)
+		     | ((code[ct+2] & 0xff) << 8)
+		     | (code[ct+3] & 0xff);
+	}
+
+	/** Tests whether file format <i>ver</i> can be read as format <i>supported</i>. */
+	private static boolean isCompatible(int ver, int supported) {
+		return (ver | 0xff) == (supported | 0xff)  &&  (ver & 0xff) <= (supported & 0xff);
+	}
 }
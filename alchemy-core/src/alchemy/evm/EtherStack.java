@@ -0,0 +1,123 @@
+/*
+ * This file is a part of Alchemy OS project.
+ *  Copyright (C) 2011-2014, Sergey Basalaev <sbasalaev@gmail.com>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package alchemy.evm;
+
+import alchemy.system.ProcessThread;
+
+/**
+ * Value stack of Ether functions.
+ * Every invocation of Ether function works on a window
+ * of this stack. When one Ether function calls another
+ * arguments are passed in place, the window of callee
+ * starts where arguments were pushed by the caller.
+ * <p/>
+ * Each process thread has its own stack. Arrays of
+ * the stack may be reallocated when stack grows, so
+ * functions must reread them after each call.
+ * <p/>
+ * When Ether function calls another Ether function
+ * the interpreter does not recurse, the frame of
+ * the caller is suspended in this stack and resumed
+ * when the callee returns.
+ *
+ * @author Sergey Basalaev
+ */
+public final class EtherStack {
+
+	/** Object slots or type tags of unboxed values. */
+	Object[] stack;
+	/** Unboxed values. */
+	long[] prims;
+	/** First slot that is not used by any window. */
+	int top;
+
+	/** Number of ints describing suspended frame. */
+	static final int FRAME = 5;
+	/** Functions of suspended frames. */
+	EtherFunction[] funcs;
+	/**
+	 * Suspended frames, for each frame the resume point,
+	 * the window base, the stack head, the result slot
+	 * and the top of the stack before the window.
+	 */
+	int[] frames;
+	/** Number of suspended frames. */
+	int depth;
+
+	public EtherStack() {
+		stack = new Object[64];
+		prims = new long[64];
+		funcs = new EtherFunction[16];
+		frames = new int[16*FRAME];
+	}
+
+	/** Grows the stack so it has at least <i>size</i> slots. */
+	void ensureCapacity(int size) {
+		if (size <= stack.length) return;
+		int newsize = stack.length * 2;
+		if (newsize < size) newsize = size;
+		Object[] newstack = new Object[newsize];
+		System.arraycopy(stack, 0, newstack, 0, top);
+		long[] newprims = new long[newsize];
+		System.arraycopy(prims, 0, newprims, 0, top);
+		stack = newstack;
+		prims = newprims;
+	}
+
+	/** Suspends frame of the calling function. */
+	void pushFrame(EtherFunction f, int ct, int base, int head, int ret, int oldtop) {
+		if (depth == funcs.length) {
+			EtherFunction[] newfuncs = new EtherFunction[depth * 2];
+			System.arraycopy(funcs, 0, newfuncs, 0, depth);
+			int[] newframes = new int[depth * 2 * FRAME];
+			System.arraycopy(frames, 0, newframes, 0, depth * FRAME);
+			funcs = newfuncs;
+			frames = newframes;
+		}
+		funcs[depth] = f;
+		int at = depth * FRAME;
+		frames[at] = ct;
+		frames[at+1] = base;
+		frames[at+2] = head;
+		frames[at+3] = ret;
+		frames[at+4] = oldtop;
+		depth++;
+	}
+
+	/** Drops suspended frames above given depth. */
+	void dropFrames(int newdepth) {
+		while (depth > newdepth) {
+			depth--;
+			funcs[depth] = null;
+		}
+	}
+
+	/**
+	 * Returns stack of the current thread.
+	 * Threads that do not belong to any process
+	 * get new stack on every call.
+	 */
+	static EtherStack current() {
+		Thread thread = Thread.currentThread();
+		if (thread instanceof ProcessThread) {
+			return ((ProcessThread)thread).getEtherStack();
+		}
+		return new EtherStack();
+	}
+}
@@ -0,0 +1,787 @@
+/*
+ * This file is a part of Alchemy OS project.
+ *  Copyright (C) 2011-2014, Sergey Basalaev <sbasalaev@gmail.com>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package alchemy.evm;
+
+import alchemy.system.Function;
+import alchemy.system.NativeFunction;
+import alchemy.types.Int32;
+
+/**
+ * Load-time verifier of the decoded Ether code.
+ * <p>
+ * Data-flow analysis finds depth of the operand stack and
+ * types of all slots before every reachable instruction.
+ * The code is rejected if stack underflows or overflows,
+ * if depths differ where paths join, if operands refer to
+ * nonexistent locals, constants or instructions, if value
+ * known to be primitive of one type is used as another type
+ * or as an object, or if execution may fall off the code.
+ * <p>
+ * Types are those of the interpreter frame, a slot is known
+ * to be <i>int</i>, <i>long</i>, <i>float</i> or <i>double</i>
+ * only if it holds the tag of unboxed value. Values that may be
+ * boxed, like arguments and results of calls, are of unknown type.
+ * Instructions whose <i>int</i> operands are all proven to be
+ * unboxed are rewritten to type-specialized opcodes which read
+ * values without checking the tag. Loads of <i>int</i> constants
+ * are rewritten to <code>sipush</code> with the value as operand,
+ * so constants are unboxed too. Calls of some functions
+ * of <code>libcore.4.so</code> are rewritten to intrinsics.
+ *
+ * @author Sergey Basalaev
+ */
+final class EtherVerifier {
+
+	/* Types of slots. */
+	private static final byte ANY = 0;
+	private static final byte INT = 1;
+	private static final byte LONG = 2;
+	private static final byte FLOAT = 3;
+	private static final byte DOUBLE = 4;
+
+	/** Functions of libcore.4.so with intrinsics, in the order of opcodes. */
+	private static final String[] INTRINSICS = {
+		"acopy", "String.len", "String.get", "Any.hash", "List.len", "List.get", "Dict.get"
+	};
+	/** Calls replaced by intrinsics. */
+	private static final int[] INTRINSIC_CALLS = {
+		Opcodes.CALVC_5, Opcodes.CALLC_1, Opcodes.CALLC_2, Opcodes.CALLC_1, Opcodes.CALLC_1, Opcodes.CALLC_2, Opcodes.CALLC_2
+	};
+
+	private final int[] code;
+	private final int stacksize;
+	private final int localsize;
+	private final Object[] cpool;
+	private final ImagePool pool;
+	private final char[] errtable;
+
+	/** Which offsets are starts of instructions. */
+	private final boolean[] starts;
+	/** Types of locals and stack slots before each instruction, null if not reached. */
+	private final byte[][] frames;
+	/** Stack depth before each instruction. */
+	private final int[] depths;
+	/** Offsets of instructions following jsr. */
+	private int[] returns = new int[4];
+	private int rcount;
+
+	private int[] worklist = new int[16];
+	private int workcount;
+
+	/* Current state. */
+	private int pc;
+	private byte[] types;
+	private int sp;
+	private boolean falls;
+
+	private EtherVerifier(int[] code, int stacksize, int localsize, Object[] cpool, ImagePool pool, char[] errtable) {
+		this.code = code;
+		this.stacksize = stacksize;
+		this.localsize = localsize;
+		this.cpool = cpool;
+		this.pool = pool;
+		this.errtable = errtable;
+		this.starts = new boolean[code.length];
+		this.frames = new byte[code.length][];
+		this.depths = new int[code.length];
+		this.types = new byte[localsize + stacksize];
+	}
+
+	/**
+	 * Verifies decoded code of the function and rewrites
+	 * instructions with proven operand types to their
+	 * type-specialized versions and calls to intrinsics.
+	 * If <i>pool</i> is not null, constants used by the code
+	 * are decoded from it.
+	 *
+	 * @throws InstantiationException if code is not valid
+	 */
+	static void verify(int[] code, int stacksize, int localsize, Object[] cpool, ImagePool pool, char[] errtable) throws InstantiationException {
+		EtherVerifier v = new EtherVerifier(code, stacksize, localsize, cpool, pool, errtable);
+		v.analyze();
+		v.specialize();
+		// rewritten instructions must keep their lengths
+		int at = 0;
+		while (at < code.length) at += length(code, at);
+		if (at != code.length) throw new InstantiationException("Specialized code is broken");
+	}
+
+	/** Computes frames of all reachable instructions. */
+	private void analyze() throws InstantiationException {
+		for (int at=0; at < code.length; at += length(code, at)) {
+			starts[at] = true;
+			if (code[at] == Opcodes.JSR) {
+				if (rcount == returns.length) {
+					int[] newreturns = new int[rcount*2];
+					System.arraycopy(returns, 0, newreturns, 0, rcount);
+					returns = newreturns;
+				}
+				returns[rcount] = at+2;
+				rcount++;
+			}
+		}
+		if (code.length == 0) throw new InstantiationException("Empty function body");
+		sp = 0;
+		merge(0);
+		boolean[] handled = (errtable != null) ? new boolean[errtable.length / 4] : null;
+		do {
+			while (workcount > 0) {
+				workcount--;
+				pc = worklist[workcount];
+				byte[] frame = frames[pc];
+				sp = depths[pc];
+				System.arraycopy(frame, 0, types, 0, localsize+sp);
+				step();
+				if (falls) {
+					int next = pc + length(code, pc);
+					if (next >= code.length) throw new InstantiationException("Falling off the code at "+pc);
+					merge(next);
+				}
+			}
+			// handler is entered with the stack of the start of
+			// its block and the exception, locals may be anything
+			for (int i=0; handled != null && i < handled.length; i++) {
+				int from = errtable[i*4];
+				if (from >= code.length) continue;
+				while (from > 0 && !starts[from]) from--;
+				if (handled[i] || frames[from] == null) continue;
+				handled[i] = true;
+				// the depth in the table is not trusted, it is
+				// off for some code generated by old compilers
+				errtable[i*4+3] = (char)depths[from];
+				sp = depths[from] + 1;
+				if (sp > stacksize) throw new InstantiationException("Stack overflow in handler at "+(int)errtable[i*4+2]);
+				for (int j=0; j < localsize+sp; j++) types[j] = ANY;
+				pc = from;
+				merge(errtable[i*4+2]);
+			}
+		} while (workcount > 0);
+	}
+
+	/** Merges current state into the frame of instruction at given offset. */
+	private void merge(int target) throws InstantiationException {
+		if (target < 0 || target >= code.length || !starts[target])
+			throw new InstantiationException("Invalid jump target: "+target);
+		byte[] frame = frames[target];
+		boolean changed = false;
+		if (frame == null) {
+			frame = new byte[localsize + stacksize];
+			System.arraycopy(types, 0, frame, 0, localsize+sp);
+			frames[target] = frame;
+			depths[target] = sp;
+			changed = true;
+		} else {
+			if (depths[target] != sp)
+				throw new InstantiationException("Inconsistent stack depth at "+target);
+			for (int i = localsize+sp-1; i >= 0; i--) {
+				if (frame[i] != types[i] && frame[i] != ANY) {
+					frame[i] = ANY;
+					changed = true;
+				}
+			}
+		}
+		if (changed) {
+			if (workcount == worklist.length) {
+				int[] newlist = new int[workcount*2];
+				System.arraycopy(worklist, 0, newlist, 0, workcount);
+				worklist = newlist;
+			}
+			worklist[workcount] = target;
+			workcount++;
+		}
+	}
+
+	/** Simulates instruction at <i>pc</i> on the current state. */
+	private void step() throws InstantiationException {
+		int instr = code[pc];
+		falls = true;
+		switch (instr) {
+			case Opcodes.NOP:
+				break;
+			case Opcodes.ACONST_NULL:
+				push(ANY);
+				break;
+			case Opcodes.ICONST_M1: case Opcodes.ICONST_0: case Opcodes.ICONST_1:
+			case Opcodes.ICONST_2: case Opcodes.ICONST_3: case Opcodes.ICONST_4:
+			case Opcodes.ICONST_5: case Opcodes.BIPUSH: case Opcodes.SIPUSH:
+				push(INT);
+				break;
+			case Opcodes.LCONST_0: case Opcodes.LCONST_1:
+				push(LONG);
+				break;
+			case Opcodes.FCONST_0: case Opcodes.FCONST_1: case Opcodes.FCONST_2:
+				push(FLOAT);
+				break;
+			case Opcodes.DCONST_0: case Opcodes.DCONST_1:
+				push(DOUBLE);
+				break;
+			case Opcodes.LDC:
+				constant(code[pc+1]);
+				push((cpool[code[pc+1]] instanceof Int32) ? INT : ANY);
+				break;
+
+			// conversions
+			case Opcodes.I2L: pop(INT); push(LONG); break;
+			case Opcodes.I2F: pop(INT); push(FLOAT); break;
+			case Opcodes.I2D: pop(INT); push(DOUBLE); break;
+			case Opcodes.L2F: pop(LONG); push(FLOAT); break;
+			case Opcodes.L2D: pop(LONG); push(DOUBLE); break;
+			case Opcodes.L2I: pop(LONG); push(INT); break;
+			case Opcodes.F2D: pop(FLOAT); push(DOUBLE); break;
+			case Opcodes.F2I: pop(FLOAT); push(INT); break;
+			case Opcodes.F2L: pop(FLOAT); push(LONG); break;
+			case Opcodes.D2I: pop(DOUBLE); push(INT); break;
+			case Opcodes.D2L: pop(DOUBLE); push(LONG); break;
+			case Opcodes.D2F: pop(DOUBLE); push(FLOAT); break;
+			case Opcodes.I2C: case Opcodes.I2B: case Opcodes.I2S:
+			case Opcodes.INEG:
+				pop(INT);
+				push(INT);
+				break;
+
+			// arithmetics
+			case Opcodes.IADD: case Opcodes.ISUB: case Opcodes.IMUL:
+			case Opcodes.IDIV: case Opcodes.IMOD: case Opcodes.ISHL:
+			case Opcodes.ISHR: case Opcodes.IUSHR: case Opcodes.IAND:
+			case Opcodes.IOR: case Opcodes.IXOR:
+				pop(INT);
+				pop(INT);
+				push(INT);
+				break;
+			case Opcodes.ICMP:
+				pop(INT);
+				pop(INT);
+				push(ANY);
+				break;
+			case Opcodes.LADD: case Opcodes.LSUB: case Opcodes.LMUL:
+			case Opcodes.LDIV: case Opcodes.LMOD: case Opcodes.LAND:
+			case Opcodes.LOR: case Opcodes.LXOR:
+				pop(LONG);
+				pop(LONG);
+				push(LONG);
+				break;
+			case Opcodes.LSHL: case Opcodes.LSHR: case Opcodes.LUSHR:
+				pop(INT);
+				pop(LONG);
+				push(LONG);
+				break;
+			case Opcodes.LNEG:
+				pop(LONG);
+				push(LONG);
+				break;
+			case Opcodes.LCMP:
+				pop(LONG);
+				pop(LONG);
+				push(ANY);
+				break;
+			case Opcodes.FADD: case Opcodes.FSUB: case Opcodes.FMUL:
+			case Opcodes.FDIV: case Opcodes.FMOD:
+				pop(FLOAT);
+				pop(FLOAT);
+				push(FLOAT);
+				break;
+			case Opcodes.FNEG:
+				pop(FLOAT);
+				push(FLOAT);
+				break;
+			case Opcodes.FCMP:
+				pop(FLOAT);
+				pop(FLOAT);
+				push(ANY);
+				break;
+			case Opcodes.DADD: case Opcodes.DSUB: case Opcodes.DMUL:
+			case Opcodes.DDIV: case Opcodes.DMOD:
+				pop(DOUBLE);
+				pop(DOUBLE);
+				push(DOUBLE);
+				break;
+			case Opcodes.DNEG:
+				pop(DOUBLE);
+				push(DOUBLE);
+				break;
+			case Opcodes.DCMP:
+				pop(DOUBLE);
+				pop(DOUBLE);
+				push(ANY);
+				break;
+			case Opcodes.ACMP:
+				pop(ANY);
+				pop(ANY);
+				push(ANY);
+				break;
+
+			// locals
+			case Opcodes.LOAD_0: case Opcodes.LOAD_1: case Opcodes.LOAD_2: case Opcodes.LOAD_3:
+			case Opcodes.LOAD_4: case Opcodes.LOAD_5: case Opcodes.LOAD_6: case Opcodes.LOAD_7:
+				push(types[local(instr & 7)]);
+				break;
+			case Opcodes.LOAD:
+				push(types[local(code[pc+1])]);
+				break;
+			case Opcodes.STORE_0: case Opcodes.STORE_1: case Opcodes.STORE_2: case Opcodes.STORE_3:
+			case Opcodes.STORE_4: case Opcodes.STORE_5: case Opcodes.STORE_6: case Opcodes.STORE_7:
+				types[local(instr & 7)] = pop(ANY);
+				break;
+			case Opcodes.STORE:
+				types[local(code[pc+1])] = pop(ANY);
+				break;
+			case Opcodes.IINC:
+				check(types[local(code[pc+1])], INT);
+				types[code[pc+1]] = INT;
+				break;
+
+			// register instructions
+			case Opcodes.IADD_R: case Opcodes.ISUB_R: case Opcodes.IMUL_R:
+			case Opcodes.IDIV_R: case Opcodes.IMOD_R: case Opcodes.ISHL_R:
+			case Opcodes.ISHR_R: case Opcodes.IUSHR_R: case Opcodes.IAND_R:
+			case Opcodes.IOR_R: case Opcodes.IXOR_R:
+				register(INT, INT);
+				break;
+			case Opcodes.LADD_R: case Opcodes.LSUB_R: case Opcodes.LMUL_R:
+			case Opcodes.LDIV_R: case Opcodes.LMOD_R:
+				register(LONG, LONG);
+				break;
+			case Opcodes.FADD_R: case Opcodes.FSUB_R: case Opcodes.FMUL_R:
+			case Opcodes.FDIV_R:
+				register(FLOAT, FLOAT);
+				break;
+			case Opcodes.DADD_R: case Opcodes.DSUB_R: case Opcodes.DMUL_R:
+			case Opcodes.DDIV_R:
+				register(DOUBLE, DOUBLE);
+				break;
+			case Opcodes.MOVE_R:
+				types[local(code[pc+1])] = types[local(code[pc+2])];
+				break;
+			case Opcodes.IADDI_R:
+				check(types[local(code[pc+2])], INT);
+				types[local(code[pc+1])] = INT;
+				break;
+			case Opcodes.IF_ICMPLT_R: case Opcodes.IF_ICMPGE_R:
+			case Opcodes.IF_ICMPGT_R: case Opcodes.IF_ICMPLE_R:
+			case Opcodes.IF_ICMPLT_LI: case Opcodes.IF_ICMPGE_LI:
+			case Opcodes.IF_ICMPGT_LI: case Opcodes.IF_ICMPLE_LI:
+				check(types[local(code[pc+1])], INT);
+				if (instr < Opcodes.IF_ICMPLT_LI) check(types[local(code[pc+2])], INT);
+				merge(code[pc+3]);
+				break;
+
+			// globals
+			case Opcodes.GETGLOBAL:
+				popObject();
+				push(ANY);
+				break;
+			case Opcodes.GETGLOBALDEF:
+				pop(ANY);
+				popObject();
+				push(ANY);
+				break;
+			case Opcodes.SETGLOBAL:
+				pop(ANY);
+				popObject();
+				break;
+
+			// branching
+			case Opcodes.IFEQ: case Opcodes.IFNE: case Opcodes.IFLT:
+			case Opcodes.IFGE: case Opcodes.IFGT: case Opcodes.IFLE:
+				pop(INT);
+				merge(code[pc+1]);
+				break;
+			case Opcodes.IFNULL: case Opcodes.IFNNULL:
+				pop(ANY);
+				merge(code[pc+1]);
+				break;
+			case Opcodes.IF_ICMPLT: case Opcodes.IF_ICMPGE:
+			case Opcodes.IF_ICMPGT: case Opcodes.IF_ICMPLE:
+				pop(INT);
+				pop(INT);
+				merge(code[pc+1]);
+				break;
+			case Opcodes.IF_ACMPEQ: case Opcodes.IF_ACMPNE:
+				pop(ANY);
+				pop(ANY);
+				merge(code[pc+1]);
+				break;
+			case Opcodes.GOTO:
+				merge(code[pc+1]);
+				falls = false;
+				break;
+			case Opcodes.GOTO_IINC: {
+				int target = code[pc+1];
+				if (target < 0 || target >= code.length || code[target] != Opcodes.IINC)
+					throw new InstantiationException("Invalid jump target: "+target);
+				merge(target);
+				falls = false;
+				break;
+			}
+			case Opcodes.JSR:
+				push(INT);
+				merge(code[pc+1]);
+				falls = false;
+				break;
+			case Opcodes.RET:
+				pop(INT);
+				for (int i=0; i<rcount; i++) {
+					merge(returns[i]);
+				}
+				falls = false;
+				break;
+			case Opcodes.TABLESWITCH: {
+				pop(INT);
+				merge(code[pc+1]);
+				int count = code[pc+3] - code[pc+2] + 1;
+				for (int i=0; i<count; i++) {
+					merge(code[pc+4+i]);
+				}
+				falls = false;
+				break;
+			}
+			case Opcodes.LOOKUPSWITCH: {
+				pop(INT);
+				merge(code[pc+1]);
+				int count = code[pc+2];
+				for (int i=0; i<count; i++) {
+					merge(code[pc+4+i*2]);
+				}
+				falls = false;
+				break;
+			}
+			case Opcodes.RETURN:
+				pop(ANY);
+				falls = false;
+				break;
+			case Opcodes.RET_NULL:
+				falls = false;
+				break;
+			case Opcodes.THROW:
+				popObject();
+				pop(INT);
+				falls = false;
+				break;
+
+			// calls
+			case Opcodes.CALL_0: case Opcodes.CALL_1: case Opcodes.CALL_2: case Opcodes.CALL_3:
+			case Opcodes.CALL_4: case Opcodes.CALL_5: case Opcodes.CALL_6: case Opcodes.CALL_7:
+			case Opcodes.CALV_0: case Opcodes.CALV_1: case Opcodes.CALV_2: case Opcodes.CALV_3:
+			case Opcodes.CALV_4: case Opcodes.CALV_5: case Opcodes.CALV_6: case Opcodes.CALV_7:
+				call(instr & 7, true, (instr & 8) == 0);
+				break;
+			case Opcodes.CALL: case Opcodes.CALV:
+				call(code[pc+1], true, instr == Opcodes.CALL);
+				break;
+			case Opcodes.CALLC_0: case Opcodes.CALLC_1: case Opcodes.CALLC_2: case Opcodes.CALLC_3:
+			case Opcodes.CALLC_4: case Opcodes.CALLC_5: case Opcodes.CALLC_6: case Opcodes.CALLC_7:
+			case Opcodes.CALVC_0: case Opcodes.CALVC_1: case Opcodes.CALVC_2: case Opcodes.CALVC_3:
+			case Opcodes.CALVC_4: case Opcodes.CALVC_5: case Opcodes.CALVC_6: case Opcodes.CALVC_7:
+				constant(code[pc+1]);
+				call(instr & 7, false, (instr & 8) == 0);
+				break;
+			case Opcodes.CALLC: case Opcodes.CALVC:
+				constant(code[pc+2]);
+				call(code[pc+1], false, instr == Opcodes.CALLC);
+				break;
+
+			// arrays
+			case Opcodes.NEWAA: case Opcodes.NEWBA: case Opcodes.NEWCA:
+			case Opcodes.NEWZA: case Opcodes.NEWSA: case Opcodes.NEWIA:
+			case Opcodes.NEWLA: case Opcodes.NEWFA: case Opcodes.NEWDA:
+				pop(INT);
+				push(ANY);
+				break;
+			case Opcodes.NEWMULTIARRAY: {
+				int dimension = code[pc+1];
+				if (dimension < 2) throw new InstantiationException("Invalid array dimension at "+pc);
+				for (int i=0; i<dimension; i++) {
+					pop(INT);
+				}
+				push(ANY);
+				break;
+			}
+			case Opcodes.AALOAD: case Opcodes.ZALOAD:
+				arrayLoad(ANY);
+				break;
+			case Opcodes.BALOAD: case Opcodes.CALOAD:
+			case Opcodes.SALOAD: case Opcodes.IALOAD:
+				arrayLoad(INT);
+				break;
+			case Opcodes.LALOAD: arrayLoad(LONG); break;
+			case Opcodes.FALOAD: arrayLoad(FLOAT); break;
+			case Opcodes.DALOAD: arrayLoad(DOUBLE); break;
+			case Opcodes.AASTORE:
+				arrayStore(ANY);
+				break;
+			case Opcodes.BASTORE: case Opcodes.CASTORE: case Opcodes.ZASTORE:
+			case Opcodes.SASTORE: case Opcodes.IASTORE:
+				arrayStore(INT);
+				break;
+			case Opcodes.LASTORE: arrayStore(LONG); break;
+			case Opcodes.FASTORE: arrayStore(FLOAT); break;
+			case Opcodes.DASTORE: arrayStore(DOUBLE); break;
+			case Opcodes.AALEN: case Opcodes.BALEN: case Opcodes.CALEN:
+			case Opcodes.ZALEN: case Opcodes.SALEN: case Opcodes.IALEN:
+			case Opcodes.LALEN: case Opcodes.FALEN: case Opcodes.DALEN:
+				popObject();
+				push(INT);
+				break;
+			case Opcodes.AALOAD_LL: case Opcodes.BALOAD_LL:
+			case Opcodes.CALOAD_LL: case Opcodes.IALOAD_LL:
+				object(types[local(code[pc+1])]);
+				check(types[local(code[pc+2])], INT);
+				push(instr == Opcodes.AALOAD_LL ? ANY : INT);
+				break;
+
+			// stack
+			case Opcodes.POP:
+				pop(ANY);
+				break;
+			case Opcodes.DUP: {
+				byte t = pop(ANY);
+				push(t);
+				push(t);
+				break;
+			}
+			case Opcodes.DUP2: {
+				byte t2 = pop(ANY);
+				byte t1 = pop(ANY);
+				push(t1);
+				push(t2);
+				push(t1);
+				push(t2);
+				break;
+			}
+			case Opcodes.SWAP: {
+				byte t2 = pop(ANY);
+				byte t1 = pop(ANY);
+				push(t2);
+				push(t1);
+				break;
+			}
+			case Opcodes.CONCAT: {
+				int n = code[pc+1];
+				for (int i=0; i<n; i++) {
+					pop(ANY);
+				}
+				push(ANY);
+				break;
+			}
+			default:
+				throw new InstantiationException("Unknown instruction "+instr+" at "+pc);
+		}
+	}
+
+	/** Rewrites instructions with proven unboxed operands. */
+	private void specialize() {
+		int len;
+		for (int at=0; at < code.length; at += len) {
+			// the length is taken before the instruction is rewritten
+			len = length(code, at);
+			byte[] frame = frames[at];
+			if (frame == null) continue;
+			int top = localsize + depths[at] - 1;
+			int instr = code[at];
+			switch (instr) {
+				case Opcodes.LDC: {
+					Object cnst = cpool[code[at+1]];
+					if (cnst instanceof Int32) {
+						code[at] = Opcodes.SIPUSH;
+						code[at+1] = ((Int32)cnst).value;
+					}
+					break;
+				}
+				case Opcodes.IADD:
+					if (frame[top-1] == INT && frame[top] == INT) code[at] = Opcodes.IADD_T;
+					break;
+				case Opcodes.ISUB:
+					if (frame[top-1] == INT && frame[top] == INT) code[at] = Opcodes.ISUB_T;
+					break;
+				case Opcodes.IF_ICMPLT: case Opcodes.IF_ICMPGE:
+				case Opcodes.IF_ICMPGT: case Opcodes.IF_ICMPLE:
+					if (frame[top-1] == INT && frame[top] == INT)
+						code[at] = Opcodes.IF_ICMPLT_T + (instr - Opcodes.IF_ICMPLT);
+					break;
+				case Opcodes.IINC:
+					if (frame[code[at+1]] == INT) code[at] = Opcodes.IINC_T;
+					break;
+				case Opcodes.GOTO_IINC: {
+					int target = code[at+1];
+					if (frames[target][code[target+1]] == INT) code[at] = Opcodes.GOTO_IINC_T;
+					break;
+				}
+				case Opcodes.IADD_R:
+					if (frame[code[at+2]] == INT && frame[code[at+3]] == INT) code[at] = Opcodes.IADD_R_T;
+					break;
+				case Opcodes.ISUB_R:
+					if (frame[code[at+2]] == INT && frame[code[at+3]] == INT) code[at] = Opcodes.ISUB_R_T;
+					break;
+				case Opcodes.IADDI_R:
+					if (frame[code[at+2]] == INT) code[at] = Opcodes.IADDI_R_T;
+					break;
+				case Opcodes.IF_ICMPLT_R: case Opcodes.IF_ICMPGE_R:
+				case Opcodes.IF_ICMPGT_R: case Opcodes.IF_ICMPLE_R:
+					if (frame[code[at+1]] == INT && frame[code[at+2]] == INT)
+						code[at] = Opcodes.IF_ICMPLT_R_T + (instr - Opcodes.IF_ICMPLT_R);
+					break;
+				case Opcodes.IF_ICMPLT_LI: case Opcodes.IF_ICMPGE_LI:
+				case Opcodes.IF_ICMPGT_LI: case Opcodes.IF_ICMPLE_LI:
+					if (frame[code[at+1]] == INT)
+						code[at] = Opcodes.IF_ICMPLT_LI_T + (instr - Opcodes.IF_ICMPLT_LI);
+					break;
+				case Opcodes.CALLC_1: case Opcodes.CALLC_2: case Opcodes.CALVC_5:
+					code[at] = intrinsic(instr, cpool[code[at+1]]);
+					break;
+			}
+		}
+	}
+
+	/** Returns intrinsic for the call of given function or the call itself. */
+	private static int intrinsic(int instr, Object f) {
+		if (!(f instanceof NativeFunction)) return instr;
+		Function func = (Function)f;
+		if (!"libcore.4.so".equals(String.valueOf(func.library))) return instr;
+		for (int i=0; i<INTRINSICS.length; i++) {
+			if (INTRINSIC_CALLS[i] == instr && INTRINSICS[i].equals(func.name)) {
+				return Opcodes.ACOPY_I + i;
+			}
+		}
+		return instr;
+	}
+
+	/** Simulates call with <i>n</i> arguments. */
+	private void call(int n, boolean dynamic, boolean returns) throws InstantiationException {
+		for (int i=0; i<n; i++) {
+			pop(ANY);
+		}
+		if (dynamic) popObject();
+		if (returns) push(ANY);
+	}
+
+	/** Simulates register instruction &lt;dst&gt; &lt;src1&gt; &lt;src2&gt;. */
+	private void register(byte srctype, byte dsttype) throws InstantiationException {
+		check(types[local(code[pc+2])], srctype);
+		check(types[local(code[pc+3])], srctype);
+		types[local(code[pc+1])] = dsttype;
+	}
+
+	private void arrayLoad(byte type) throws InstantiationException {
+		pop(INT);
+		popObject();
+		push(type);
+	}
+
+	private void arrayStore(byte type) throws InstantiationException {
+		pop(type);
+		pop(INT);
+		popObject();
+	}
+
+	/** Pops value of given type, returns its known type. */
+	private byte pop(byte type) throws InstantiationException {
+		if (sp == 0) throw new InstantiationException("Stack underflow at "+pc);
+		sp--;
+		byte t = types[localsize+sp];
+		check(t, type);
+		return t;
+	}
+
+	/** Pops reference, the slot may not hold unboxed value. */
+	private void popObject() throws InstantiationException {
+		object(pop(ANY));
+	}
+
+	private void push(byte type) throws InstantiationException {
+		if (sp == stacksize) throw new InstantiationException("Stack overflow at "+pc);
+		types[localsize+sp] = type;
+		sp++;
+	}
+
+	/** Tests that value of known type <i>t</i> may be used as given type. */
+	private void check(byte t, byte type) throws InstantiationException {
+		if (type != ANY && t != ANY && t != type)
+			throw new InstantiationException("Type mismatch at "+pc);
+	}
+
+	/** Tests that value of known type <i>t</i> may be used as reference. */
+	private void object(byte t) throws InstantiationException {
+		if (t != ANY) throw new InstantiationException("Type mismatch at "+pc);
+	}
+
+	/** Checks index of local variable. */
+	private int local(int index) throws InstantiationException {
+		if (index < 0 || index >= localsize)
+			throw new InstantiationException("Invalid local variable "+index+" at "+pc);
+		return index;
+	}
+
+	/** Checks index in constant pool and decodes the constant if needed. */
+	private void constant(int index) throws InstantiationException {
+		if (index < 0 || index >= cpool.length)
+			throw new InstantiationException("Invalid constant "+index+" at "+pc);
+		if (pool != null) pool.resolve(index);
+	}
+
+	/** Returns length of the instruction in the decoded code. */
+	private static int length(int[] code, int at) {
+		int instr = code[at];
+		switch (instr) {
+			case Opcodes.LOAD: case Opcodes.STORE:
+			case Opcodes.BIPUSH: case Opcodes.SIPUSH: case Opcodes.LDC:
+			case Opcodes.CALL: case Opcodes.CALV: case Opcodes.CONCAT:
+			case Opcodes.IFEQ: case Opcodes.IFNE: case Opcodes.IFLT:
+			case Opcodes.IFGE: case Opcodes.IFGT: case Opcodes.IFLE:
+			case Opcodes.GOTO: case Opcodes.IFNULL: case Opcodes.IFNNULL:
+			case Opcodes.IF_ICMPLT: case Opcodes.IF_ICMPGE:
+			case Opcodes.IF_ICMPGT: case Opcodes.IF_ICMPLE:
+			case Opcodes.IF_ACMPEQ: case Opcodes.IF_ACMPNE:
+			case Opcodes.JSR: case Opcodes.GOTO_IINC:
+			case Opcodes.GETGLOBAL: case Opcodes.GETGLOBALDEF: case Opcodes.SETGLOBAL:
+			case Opcodes.CALL_0: case Opcodes.CALL_1: case Opcodes.CALL_2: case Opcodes.CALL_3:
+			case Opcodes.CALL_4: case Opcodes.CALL_5: case Opcodes.CALL_6: case Opcodes.CALL_7:
+			case Opcodes.CALV_0: case Opcodes.CALV_1: case Opcodes.CALV_2: case Opcodes.CALV_3:
+			case Opcodes.CALV_4: case Opcodes.CALV_5: case Opcodes.CALV_6: case Opcodes.CALV_7:
+			case Opcodes.GOTO_IINC_T:
+			case Opcodes.IF_ICMPLT_T: case Opcodes.IF_ICMPGE_T:
+			case Opcodes.IF_ICMPGT_T: case Opcodes.IF_ICMPLE_T:
+				return 2;
+			case Opcodes.IINC: case Opcodes.NEWMULTIARRAY:
+			case Opcodes.CALLC: case Opcodes.CALVC: case Opcodes.MOVE_R:
+			case Opcodes.AALOAD_LL: case Opcodes.BALOAD_LL:
+			case Opcodes.CALOAD_LL: case Opcodes.IALOAD_LL:
+			case Opcodes.IINC_T:
+				return 3;
+			case Opcodes.IADDI_R:
+			case Opcodes.IF_ICMPLT_R: case Opcodes.IF_ICMPGE_R:
+			case Opcodes.IF_ICMPGT_R: case Opcodes.IF_ICMPLE_R:
+			case Opcodes.IF_ICMPLT_LI: case Opcodes.IF_ICMPGE_LI:
+			case Opcodes.IF_ICMPGT_LI: case Opcodes.IF_ICMPLE_LI:
+			case Opcodes.IADD_R_T: case Opcodes.ISUB_R_T: case Opcodes.IADDI_R_T:
+			case Opcodes.IF_ICMPLT_R_T: case Opcodes.IF_ICMPGE_R_T:
+			case Opcodes.IF_ICMPGT_R_T: case Opcodes.IF_ICMPLE_R_T:
+			case Opcodes.IF_ICMPLT_LI_T: case Opcodes.IF_ICMPGE_LI_T:
+			case Opcodes.IF_ICMPGT_LI_T: case Opcodes.IF_ICMPLE_LI_T:
+				return 4;
+			case Opcodes.TABLESWITCH:
+				return 4 + code[at+3] - code[at+2] + 1;
+			case Opcodes.LOOKUPSWITCH:
+				return 3 + code[at+2]*2;
+		}
+		if (instr >= Opcodes.IADD_R && instr <= Opcodes.DDIV_R) return 4;
+		if (instr >= Opcodes.CALLC_0 && instr <= Opcodes.CALVC_7) return 2;
+		if (instr >= Opcodes.ACOPY_I && instr <= Opcodes.DICTGET_I) return 2;
+		return 1;
+	}
+}
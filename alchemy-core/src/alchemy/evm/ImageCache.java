@@ -0,0 +1,236 @@
+/*
+ * This file is a part of Alchemy OS project.
+ *  Copyright (C) 2011-2014, Sergey Basalaev <sbasalaev@gmail.com>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package alchemy.evm;
+
+import alchemy.fs.Filesystem;
+import alchemy.io.IO;
+import alchemy.system.Function;
+import alchemy.system.Library;
+import alchemy.system.Process;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * On-disk cache of pre-linked Ether libraries.
+ * <p>
+ * {@link alchemy.system.Cache} keeps loaded libraries only while
+ * the platform runs. This cache stores an image of each Ether
+ * library loaded from file. The image holds resolved paths of
+ * library dependencies and the constant pool in the already
+ * parsed form with the offset of every entry. Loading from image
+ * constructs only shared functions, other constants, including
+ * private functions, are decoded when a function using them is
+ * prepared. So libraries of which only a few functions are called
+ * are linked without parsing most of their contents.
+ * Dependencies are loaded from their own images in the same way.
+ * <p>
+ * An image is used only if the library file, <code>LIBPATH</code>
+ * and all dependency files are the same as when it was written,
+ * that is they have the same paths and modification times and
+ * the names of dependencies are still resolved to the same files.
+ * The latter detects new library in <code>LIBPATH</code> that
+ * shadows the old one. Otherwise the library is loaded from file
+ * and the image is written anew.
+ * <p>
+ * The cache is disabled until the directory for images is set.
+ *
+ * @author Sergey Basalaev
+ */
+public final class ImageCache {
+
+	/** Magic number of image files. */
+	private static final int MAGIC = ('E' << 8) | 'I';
+
+	/** Version of image format. */
+	private static final int VERSION = 2;
+
+	/** Directory with images, null if cache is disabled. */
+	private static String dir;
+
+	private ImageCache() { }
+
+	/**
+	 * Sets directory where images are stored.
+	 * If directory is <code>null</code> the cache is disabled.
+	 */
+	public static synchronized void setDirectory(String dir) {
+		ImageCache.dir = dir;
+	}
+
+	/** Returns image file for given library file. */
+	private static synchronized String imageFile(String file) {
+		if (dir == null) return null;
+		return dir + '/' + Integer.toHexString(file.hashCode()) + ".img";
+	}
+
+	/**
+	 * Loads library from its image.
+	 * Returns <code>null</code> if there is no image
+	 * for the library or if the image is stale.
+	 *
+	 * @param p       process that loads the library
+	 * @param file    library file
+	 * @param tstamp  modification time of the library file
+	 */
+	public static Library load(Process p, String file, long tstamp) throws IOException, InstantiationException {
+		String image = imageFile(file);
+		if (image == null || !Filesystem.exists(image)) return null;
+		byte[] bytes;
+		String soname;
+		String[] deppaths;
+		int[] offsets;
+		int[] shared;
+		InputStream imagein = Filesystem.read(image);
+		try {
+			bytes = IO.readFully(imagein);
+		} finally {
+			imagein.close();
+		}
+		try {
+			ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+			DataInputStream data = new DataInputStream(in);
+			if (data.readUnsignedShort() != MAGIC) return null;
+			if (data.readUnsignedShort() != VERSION) return null;
+			if (!data.readUTF().equals(file) || data.readLong() != tstamp) return null;
+			String libpath = p.getEnv("LIBPATH");
+			if (libpath == null) libpath = "";
+			if (!data.readUTF().equals(libpath)) return null;
+			deppaths = new String[data.readUnsignedShort()];
+			for (int i=0; i<deppaths.length; i++) {
+				String depname = data.readUTF();
+				deppaths[i] = data.readUTF();
+				long deptstamp = data.readLong();
+				if (!deppaths[i].equals(p.resolveFile(depname, libpath))) return null;
+				if (Filesystem.lastModified(deppaths[i]) != deptstamp) return null;
+			}
+			soname = data.readBoolean() ? data.readUTF() : null;
+			// tables of offsets are read from the array directly
+			int at = bytes.length - in.available();
+			offsets = new int[getInt(bytes, at)];
+			at += 4;
+			for (int i=0; i<offsets.length; i++, at += 4) {
+				offsets[i] = getInt(bytes, at);
+			}
+			shared = new int[getInt(bytes, at)];
+			at += 4;
+			for (int i=0; i<shared.length; i++, at += 4) {
+				shared[i] = getInt(bytes, at);
+			}
+			// entries are at the end of the image
+			int poolstart = at + 4;
+			if (poolstart + getInt(bytes, at) != bytes.length) return null;
+			for (int i=0; i<offsets.length; i++) {
+				offsets[i] += poolstart;
+			}
+		} catch (IOException ioe) {
+			// broken image is the same as no image
+			return null;
+		} catch (RuntimeException re) {
+			// the same
+			return null;
+		}
+		// linking library
+		Library lib = (soname != null) ? new Library(soname) : new Library();
+		Library[] libdeps = (deppaths.length > 0) ? p.loadLibraries(deppaths) : null;
+		Object[] cpool = new Object[offsets.length];
+		ImagePool pool = new ImagePool(lib, libdeps, cpool, bytes, offsets);
+		for (int i=0; i<shared.length; i++) {
+			pool.resolve(shared[i]);
+			lib.putFunction((Function) cpool[shared[i]]);
+		}
+		if (!EtherLoader.isLazy()) {
+			pool.resolveAll();
+			EtherLoader.prepare(lib, cpool);
+		}
+		return lib;
+	}
+
+	/** Reads big-endian int from the array. */
+	private static int getInt(byte[] buf, int at) {
+		return (buf[at] << 24) | ((buf[at+1] & 0xff) << 16) | ((buf[at+2] & 0xff) << 8) | (buf[at+3] & 0xff);
+	}
+
+	/**
+	 * Loads library from file and writes its image.
+	 * Library magic number must already be read from the stream.
+	 *
+	 * @param p       process that loads the library
+	 * @param in      stream to read library from
+	 * @param file    library file
+	 * @param tstamp  modification time of the library file
+	 */
+	public static Library loadAndStore(Process p, InputStream in, String file, long tstamp) throws IOException, InstantiationException {
+		String image = imageFile(file);
+		if (image == null) return EtherLoader.load(p, in);
+		ImageWriter writer = new ImageWriter();
+		Library lib = EtherLoader.load(p, in, writer);
+		try {
+			store(p, image, file, tstamp, writer);
+		} catch (IOException ioe) {
+			// library is loaded, image will be written next time
+		} catch (SecurityException se) {
+			// the same
+		}
+		return lib;
+	}
+
+	/** Writes library image, replacing the old one. */
+	private static void store(Process p, String image, String file, long tstamp, ImageWriter writer) throws IOException {
+		String tmpimage = image + ".tmp";
+		Filesystem.mkdirTree(Filesystem.fileParent(image));
+		DataOutputStream out = new DataOutputStream(Filesystem.write(tmpimage));
+		try {
+			out.writeShort(MAGIC);
+			out.writeShort(VERSION);
+			out.writeUTF(file);
+			out.writeLong(tstamp);
+			String libpath = p.getEnv("LIBPATH");
+			out.writeUTF((libpath != null) ? libpath : "");
+			out.writeShort(writer.deppaths.size());
+			for (int i=0; i<writer.deppaths.size(); i++) {
+				String deppath = (String) writer.deppaths.get(i);
+				out.writeUTF((String) writer.depnames.get(i));
+				out.writeUTF(deppath);
+				out.writeLong(Filesystem.lastModified(deppath));
+			}
+			out.writeBoolean(writer.soname != null);
+			if (writer.soname != null) out.writeUTF(writer.soname);
+			int[] offsets = writer.offsets;
+			if (offsets == null) offsets = new int[0];
+			out.writeInt(offsets.length);
+			for (int i=0; i<offsets.length; i++) {
+				out.writeInt(offsets[i]);
+			}
+			out.writeInt(writer.sharedcount);
+			for (int i=0; i<writer.sharedcount; i++) {
+				out.writeInt(writer.shared[i]);
+			}
+			byte[] entries = writer.toByteArray();
+			out.writeInt(entries.length);
+			out.write(entries);
+		} finally {
+			out.close();
+		}
+		if (Filesystem.exists(image)) Filesystem.remove(image);
+		Filesystem.move(tmpimage, image);
+	}
+}
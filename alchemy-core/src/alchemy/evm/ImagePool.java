@@ -0,0 +1,137 @@
+/*
+ * This file is a part of Alchemy OS project.
+ *  Copyright (C) 2011-2014, Sergey Basalaev <sbasalaev@gmail.com>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package alchemy.evm;
+
+import alchemy.system.Library;
+import alchemy.types.Float32;
+import alchemy.types.Float64;
+import alchemy.types.Int32;
+import alchemy.types.Int64;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * Constant pool of the library loaded from image.
+ * <p>
+ * Entries are decoded from the image when they are first
+ * needed, that is when a function referring to them is
+ * prepared. Until then the entry in the pool is null.
+ * Functions are decoded without code and tables, which
+ * are read from the image when the function is prepared.
+ * Entry formats are described in {@link ImageWriter}.
+ *
+ * @author Sergey Basalaev
+ */
+final class ImagePool {
+
+	private final Library lib;
+	private final Library[] libdeps;
+	private final Object[] cpool;
+	/** Image, dropped when all entries and function bodies are read. */
+	private byte[] image;
+	/** Offsets of entries in the image, -1 for decoded entries. */
+	private final int[] offsets;
+	/** Number of entries and function bodies that are not read yet. */
+	private int remaining;
+
+	ImagePool(Library lib, Library[] libdeps, Object[] cpool, byte[] image, int[] offsets) {
+		this.lib = lib;
+		this.libdeps = libdeps;
+		this.cpool = cpool;
+		this.image = image;
+		this.offsets = offsets;
+		this.remaining = offsets.length;
+	}
+
+	/** Decodes entry of the constant pool if it is not decoded yet. */
+	synchronized void resolve(int index) throws InstantiationException {
+		int offset = offsets[index];
+		if (offset < 0) return;
+		ByteArrayInputStream in = new ByteArrayInputStream(image, offset, image.length - offset);
+		try {
+			cpool[index] = readEntry(new DataInputStream(in), in);
+		} catch (IOException ioe) {
+			throw new InstantiationException("Broken image: " + ioe);
+		} catch (RuntimeException re) {
+			throw new InstantiationException("Broken image: " + re);
+		}
+		offsets[index] = -1;
+		remaining--;
+		if (remaining == 0) image = null;
+	}
+
+	/** Returns stream to read function body at given offset. */
+	synchronized DataInputStream body(int offset) {
+		DataInputStream data = new DataInputStream(new ByteArrayInputStream(image, offset, image.length - offset));
+		remaining--;
+		if (remaining == 0) image = null;
+		return data;
+	}
+
+	/** Decodes all entries of the constant pool. */
+	void resolveAll() throws InstantiationException {
+		for (int i=0; i<offsets.length; i++) {
+			resolve(i);
+		}
+	}
+
+	private Object readEntry(DataInputStream data, ByteArrayInputStream in) throws IOException, InstantiationException {
+		int ctype = data.readUnsignedByte();
+		switch (ctype) {
+			case '0':
+				return null;
+			case 'i':
+				return Int32.toInt32(data.readInt());
+			case 'l':
+				return new Int64(data.readLong());
+			case 'f':
+				return new Float32(data.readFloat());
+			case 'd':
+				return new Float64(data.readDouble());
+			case 'S':
+				return data.readUTF();
+			case 'E': {
+				int libref = data.readUnsignedShort();
+				return libdeps[libref].getFunction(data.readUTF());
+			}
+			case 'P': {
+				String fname = data.readUTF();
+				int stacksize = data.readUnsignedByte();
+				int localsize = data.readUnsignedByte();
+				// body is read when function is prepared
+				remaining++;
+				return new EtherFunction(lib, fname, cpool, this, image.length - in.available(), stacksize, localsize);
+			}
+			default:
+				throw new InstantiationException("Unknown data type: "+ctype);
+		}
+	}
+
+	/** Reads table of function body, null if it is absent. */
+	static char[] readTable(DataInputStream data) throws IOException {
+		int len = data.readInt();
+		if (len < 0) return null;
+		char[] table = new char[len];
+		for (int i=0; i<len; i++) {
+			table[i] = data.readChar();
+		}
+		return table;
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * This file is a part of Alchemy OS project.
+ *  Copyright (C) 2011-2014, Sergey Basalaev <sbasalaev@gmail.com>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package alchemy.evm;
+
+import alchemy.types.Float32;
+import alchemy.types.Float64;
+import alchemy.types.Int32;
+import alchemy.types.Int64;
+import alchemy.util.ArrayList;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Records library being loaded in the form stored in images.
+ * <p>
+ * {@link EtherLoader} passes here the resolved dependencies and
+ * every entry of the constant pool as it is read. Entries are
+ * written one after another in the format independent of the
+ * library version, and the offset of each entry is remembered,
+ * so {@link ImagePool} can decode entries separately.
+ * <p>
+ * Entry formats:
+ * <pre>
+ * '0'                                  null
+ * 'i' int, 'l' long, 'f' float, 'd' double
+ * 'S' utf                              string
+ * 'E' libref:short name:utf            external function
+ * 'P' name:utf stacksize:ubyte localsize:ubyte
+ *     codelen:int code
+ *     lnumlen:int lnumtable            -1 if no table
+ *     errlen:int errtable              -1 if no table
+ * </pre>
+ *
+ * @author Sergey Basalaev
+ */
+final class ImageWriter {
+
+	/** Names of dependencies as listed in the library. */
+	final ArrayList depnames = new ArrayList();
+	/** Files of dependencies resolved in LIBPATH. */
+	final ArrayList deppaths = new ArrayList();
+	/** Library soname, null if it has none. */
+	String soname;
+	/** Offsets of entries in the written pool. */
+	int[] offsets;
+	/** Indices of shared functions in the pool. */
+	int[] shared;
+	int sharedcount;
+
+	private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	private final DataOutputStream out = new DataOutputStream(bytes);
+
+	ImageWriter() { }
+
+	/** Adds dependency resolved to given file. */
+	void dependency(String name, String path) {
+		depnames.add(name);
+		deppaths.add(path);
+	}
+
+	/** Starts writing constant pool of given size. */
+	void pool(int count) {
+		offsets = new int[count];
+		shared = new int[count];
+		sharedcount = 0;
+	}
+
+	/** Writes null, number or string constant. */
+	void constant(int index, Object cnst) throws IOException {
+		offsets[index] = out.size();
+		if (cnst == null) {
+			out.writeByte('0');
+		} else if (cnst instanceof Int32) {
+			out.writeByte('i');
+			out.writeInt(((Int32)cnst).value);
+		} else if (cnst instanceof Int64) {
+			out.writeByte('l');
+			out.writeLong(((Int64)cnst).value);
+		} else if (cnst instanceof Float32) {
+			out.writeByte('f');
+			out.writeFloat(((Float32)cnst).value);
+		} else if (cnst instanceof Float64) {
+			out.writeByte('d');
+			out.writeDouble(((Float64)cnst).value);
+		} else {
+			out.writeByte('S');
+			out.writeUTF((String)cnst);
+		}
+	}
+
+	/** Writes function from dependency <i>libref</i>. */
+	void external(int index, int libref, String name) throws IOException {
+		offsets[index] = out.size();
+		out.writeByte('E');
+		out.writeShort(libref);
+		out.writeUTF(name);
+	}
+
+	/**
+	 * Writes function of the library.
+	 * Must be called before function is prepared,
+	 * because preparing remaps its tables.
+	 */
+	void function(int index, String name, boolean isShared, int stacksize, int localsize, byte[] code, char[] lnumtable, char[] errtable) throws IOException {
+		offsets[index] = out.size();
+		if (isShared) {
+			shared[sharedcount] = index;
+			sharedcount++;
+		}
+		out.writeByte('P');
+		out.writeUTF(name);
+		out.writeByte(stacksize);
+		out.writeByte(localsize);
+		out.writeInt(code.length);
+		out.write(code);
+		writeTable(lnumtable);
+		writeTable(errtable);
+	}
+
+	private void writeTable(char[] table) throws IOException {
+		if (table == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(table.length);
+			for (int i=0; i<table.length; i++) {
+				out.writeChar(table[i]);
+			}
+		}
+	}
+
+	/** Returns written entries. */
+	byte[] toByteArray() {
+		return bytes.toByteArray();
+	}
+}
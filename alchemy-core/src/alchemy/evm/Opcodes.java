@@ -19,7 +19,7 @@
 package alchemy.evm;
 
 /**
- * Assembler opcodes for Ether Virtual Machine v2.2
+ * Assembler opcodes for Ether Virtual Machine v3.0
  * @author Sergey Basalaev
  */
 public interface Opcodes {
@@ -165,6 +165,37 @@ public interface Opcodes {
 	byte CALV_5      = (byte)0x7D;
 	byte CALV_6      = (byte)0x7E;
 	byte CALV_7      = (byte)0x7F;
+	/* Register forms, operands are indices of local variables. */
+	byte IADD_R      = (byte)0x80;
+	byte ISUB_R      = (byte)0x81;
+	byte IMUL_R      = (byte)0x82;
+	byte IDIV_R      = (byte)0x83;
+	byte IMOD_R      = (byte)0x84;
+	byte ISHL_R      = (byte)0x85;
+	byte ISHR_R      = (byte)0x86;
+	byte IUSHR_R     = (byte)0x87;
+	byte IAND_R      = (byte)0x88;
+	byte IOR_R       = (byte)0x89;
+	byte IXOR_R      = (byte)0x8A;
+	byte LADD_R      = (byte)0x8B;
+	byte LSUB_R      = (byte)0x8C;
+	byte LMUL_R      = (byte)0x8D;
+	byte LDIV_R      = (byte)0x8E;
+	byte LMOD_R      = (byte)0x8F;
+	byte FADD_R      = (byte)0x90;
+	byte FSUB_R      = (byte)0x91;
+	byte FMUL_R      = (byte)0x92;
+	byte FDIV_R      = (byte)0x93;
+	byte DADD_R      = (byte)0x94;
+	byte DSUB_R      = (byte)0x95;
+	byte DMUL_R      = (byte)0x96;
+	byte DDIV_R      = (byte)0x97;
+	byte MOVE_R      = (byte)0x98;
+	byte IADDI_R     = (byte)0x99;
+	byte IF_ICMPLT_R = (byte)0x9A;
+	byte IF_ICMPGE_R = (byte)0x9B;
+	byte IF_ICMPGT_R = (byte)0x9C;
+	byte IF_ICMPLE_R = (byte)0x9D;
 
 	byte CALLC_0     = (byte)0xB0;
 	byte CALLC_1     = (byte)0xB1;
@@ -236,4 +267,93 @@ public interface Opcodes {
 	byte LOOKUPSWITCH= (byte)0xFD;
 	byte I2C         = (byte)0xFE;
 	byte I2S         = (byte)0xFF;
+
+	/*
+	 * Superinstructions. They never appear in files, EtherLoader
+	 * replaces common instruction sequences with them.
+	 */
+	/* load <ubyte>, ipush <int>, if_icmplt <ushort> */
+	int IF_ICMPLT_LI = 0x100;
+	/* load <ubyte>, ipush <int>, if_icmpge <ushort> */
+	int IF_ICMPGE_LI = 0x101;
+	/* load <ubyte>, ipush <int>, if_icmpgt <ushort> */
+	int IF_ICMPGT_LI = 0x102;
+	/* load <ubyte>, ipush <int>, if_icmple <ushort> */
+	int IF_ICMPLE_LI = 0x103;
+	/* load <ubyte>, load <ubyte>, aaload */
+	int AALOAD_LL    = 0x104;
+	/* load <ubyte>, load <ubyte>, baload */
+	int BALOAD_LL    = 0x105;
+	/* load <ubyte>, load <ubyte>, caload */
+	int CALOAD_LL    = 0x106;
+	/* load <ubyte>, load <ubyte>, iaload */
+	int IALOAD_LL    = 0x107;
+	/* goto to iinc, the iinc is executed without dispatch */
+	int GOTO_IINC    = 0x108;
+
+	/*
+	 * Intrinsics. EtherLoader rewrites calls of well-known functions
+	 * of libcore.4.so to them, the operand is that of the original
+	 * instruction. The interpreter calls the function itself with
+	 * arguments the intrinsic does not handle.
+	 */
+	/* calvc_5 of acopy */
+	int ACOPY_I      = 0x109;
+	/* callc_1 of String.len */
+	int STRLEN_I     = 0x10A;
+	/* callc_2 of String.get */
+	int STRGET_I     = 0x10B;
+	/* callc_1 of Any.hash */
+	int HASH_I       = 0x10C;
+	/* callc_1 of List.len */
+	int LISTLEN_I    = 0x10D;
+	/* callc_2 of List.get */
+	int LISTGET_I    = 0x10E;
+	/* callc_2 of Dict.get */
+	int DICTGET_I    = 0x10F;
+
+	/*
+	 * Quickened calls. The interpreter rewrites call_? and calv_?
+	 * to them after the first call through the site, four lower
+	 * bits are those of the original instruction.
+	 */
+	/* call_? to the Ether function cached by the site */
+	int CALL_QE      = 0x110;
+	/* call_? to the native function cached by the site */
+	int CALL_QN      = 0x120;
+
+	/*
+	 * Type-specialized instructions. EtherLoader rewrites
+	 * instructions to them when the verifier proves that
+	 * their int operands are unboxed.
+	 */
+	/* iadd on unboxed ints */
+	int IADD_T       = 0x130;
+	/* isub on unboxed ints */
+	int ISUB_T       = 0x131;
+	/* iinc of unboxed int */
+	int IINC_T       = 0x132;
+	/* goto_iinc of unboxed int */
+	int GOTO_IINC_T  = 0x133;
+	/* iadd_r on unboxed ints */
+	int IADD_R_T     = 0x134;
+	/* isub_r on unboxed ints */
+	int ISUB_R_T     = 0x135;
+	/* iaddi_r on unboxed int */
+	int IADDI_R_T    = 0x136;
+	/* if_icmp?? on unboxed ints */
+	int IF_ICMPLT_T  = 0x138;
+	int IF_ICMPGE_T  = 0x139;
+	int IF_ICMPGT_T  = 0x13A;
+	int IF_ICMPLE_T  = 0x13B;
+	/* if_icmp??_r on unboxed ints */
+	int IF_ICMPLT_R_T = 0x13C;
+	int IF_ICMPGE_R_T = 0x13D;
+	int IF_ICMPGT_R_T = 0x13E;
+	int IF_ICMPLE_R_T = 0x13F;
+	/* if_icmp??_li on unboxed int */
+	int IF_ICMPLT_LI_T = 0x140;
+	int IF_ICMPGE_LI_T = 0x141;
+	int IF_ICMPGT_LI_T = 0x142;
+	int IF_ICMPLE_LI_T = 0x143;
 }
@@ -0,0 +1,45 @@
+/*
+ * This file is a part of Alchemy OS project.
+ *  Copyright (C) 2011-2014, Sergey Basalaev <sbasalaev@gmail.com>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package alchemy.evm;
+
+import alchemy.system.AlchemyException;
+import alchemy.system.Function;
+import alchemy.system.Process;
+import alchemy.system.ProcessKilledException;
+
+/**
+ * Function of the translated library.
+ *
+ * @author Sergey Basalaev
+ */
+final class TranslatedFunction extends Function {
+
+	private final TranslatedLibrary lib;
+	private final int index;
+
+	TranslatedFunction(TranslatedLibrary lib, String name, int index) {
+		super(lib, name);
+		this.lib = lib;
+		this.index = index;
+	}
+
+	public Object invoke(Process p, Object[] args) throws AlchemyException, ProcessKilledException {
+		return lib.invokeFunction(index, p, args);
+	}
+}
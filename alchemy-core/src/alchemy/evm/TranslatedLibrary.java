@@ -0,0 +1,178 @@
+/*
+ * This file is a part of Alchemy OS project.
+ *  Copyright (C) 2011-2014, Sergey Basalaev <sbasalaev@gmail.com>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package alchemy.evm;
+
+import alchemy.system.AlchemyException;
+import alchemy.system.Function;
+import alchemy.system.Library;
+import alchemy.system.Process;
+import alchemy.system.ProcessKilledException;
+import alchemy.types.Float32;
+import alchemy.types.Float64;
+import alchemy.types.Int32;
+import alchemy.types.Int64;
+
+/**
+ * Ether library translated to Java source.
+ * Subclasses are generated by the ahead-of-time translator
+ * and are loaded as native libraries. Unlike functions of
+ * {@link alchemy.system.NativeLibrary NativeLibrary}, translated
+ * functions add to exceptions the same trace elements as the
+ * interpreted ones, so the library may replace its Ether version.
+ * <p>
+ * Functions of dependency libraries are resolved on the first
+ * call, using the calling process to load the dependency.
+ *
+ * @author Sergey Basalaev
+ */
+public abstract class TranslatedLibrary extends Library {
+
+	/** All functions of this library, shared and private. */
+	protected final Function[] functions;
+
+	private final String[] deps;
+	private final Library[] libs;
+	private final int[] extlibs;
+	private final String[] extnames;
+	private final Function[] externs;
+
+	/**
+	 * Constructor for generated subclasses.
+	 * @param soname    name of the library, may be null
+	 * @param deps      names of dependency libraries
+	 * @param fnames    names of functions
+	 * @param shared    which of functions are public
+	 * @param extlibs   dependency index of each external function
+	 * @param extnames  names of external functions
+	 */
+	protected TranslatedLibrary(String soname, String[] deps, String[] fnames, boolean[] shared, int[] extlibs, String[] extnames) {
+		this.name = soname;
+		this.deps = deps;
+		this.libs = new Library[deps.length];
+		this.extlibs = extlibs;
+		this.extnames = extnames;
+		this.externs = new Function[extnames.length];
+		this.functions = new Function[fnames.length];
+		for (int i=0; i<fnames.length; i++) {
+			Function f = new TranslatedFunction(this, fnames[i], i);
+			functions[i] = f;
+			if (shared[i]) putFunction(f);
+		}
+	}
+
+	/** Invokes function with given index. */
+	protected abstract Object invokeFunction(int index, Process p, Object[] args) throws AlchemyException, ProcessKilledException;
+
+	/**
+	 * Returns external function with given index.
+	 * Returns null if dependency does not define the function,
+	 * as the interpreter does.
+	 */
+	protected final Function extern(Process p, int index) throws AlchemyException {
+		Function f = externs[index];
+		if (f == null) {
+			int dep = extlibs[index];
+			Library lib = libs[dep];
+			if (lib == null) {
+				try {
+					lib = p.loadLibrary(deps[dep]);
+				} catch (Exception e) {
+					throw new AlchemyException(e);
+				}
+				libs[dep] = lib;
+			}
+			f = lib.getFunction(extnames[index]);
+			externs[index] = f;
+		}
+		return f;
+	}
+
+	/* Arguments, missing ones get default values. */
+
+	protected static Object arg(Object[] args, int index) {
+		return (index < args.length) ? args[index] : null;
+	}
+
+	protected static int iarg(Object[] args, int index) {
+		return (index < args.length) ? ((Int32)args[index]).value : 0;
+	}
+
+	protected static long larg(Object[] args, int index) {
+		return (index < args.length) ? ((Int64)args[index]).value : 0L;
+	}
+
+	protected static float farg(Object[] args, int index) {
+		return (index < args.length) ? ((Float32)args[index]).value : 0f;
+	}
+
+	protected static double darg(Object[] args, int index) {
+		return (index < args.length) ? ((Float64)args[index]).value : 0d;
+	}
+
+	/* Boxing. */
+
+	protected static Object box(int value) {
+		return Int32.toInt32(value);
+	}
+
+	protected static Object box(long value) {
+		return new Int64(value);
+	}
+
+	protected static Object box(float value) {
+		return new Float32(value);
+	}
+
+	protected static Object box(double value) {
+		return new Float64(value);
+	}
+
+	/* Comparisons, the same as of the interpreter. */
+
+	protected static int cmp(int diff) {
+		return (diff > 0) ? 1 : (diff == 0 ? 0 : -1);
+	}
+
+	protected static int cmp(long diff) {
+		return (diff > 0L) ? 1 : (diff == 0L ? 0 : -1);
+	}
+
+	protected static int cmp(float diff) {
+		return (diff > 0) ? 1 : (diff == 0 ? 0 : -1);
+	}
+
+	protected static int cmp(double diff) {
+		return (diff > 0) ? 1 : (diff == 0 ? 0 : -1);
+	}
+
+	protected static boolean equal(Object a, Object b) {
+		return (a == null) ? b == null : a.equals(b);
+	}
+
+	/**
+	 * Converts exception caught by translated code to AlchemyException
+	 * and adds trace element to it. Rethrows ProcessKilledException.
+	 */
+	protected static AlchemyException trace(Throwable t, Function f, String info) throws ProcessKilledException {
+		if (t instanceof ProcessKilledException) throw (ProcessKilledException)t;
+		AlchemyException ae = (t instanceof AlchemyException) ? (AlchemyException)t : new AlchemyException(t);
+		ae.addTraceElement(f, info);
+		return ae;
+	}
+}
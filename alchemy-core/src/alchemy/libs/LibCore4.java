@@ -558,7 +558,7 @@ public final class LibCore4 extends NativeLibrary {
 				Function f = (Function)args[1];
 				for (int i=0; i<len; i++) {
 					Object e = oldlist.get(i);
-					if (f.invoke(p, new Object[] {oldlist.get(i)}) == Int32.ONE) {
+					if (f.invoke1(p, oldlist.get(i)) == Int32.ONE) {
 						newlist.add(e);
 					}
 				}
@@ -570,7 +570,7 @@ public final class LibCore4 extends NativeLibrary {
 				int len = list.size();
 				int i=0;
 				while (i < len) {
-					if (f.invoke(p, new Object[] {list.get(i)}) == Int32.ONE) {
+					if (f.invoke1(p, list.get(i)) == Int32.ONE) {
 						i++;
 					} else {
 						list.remove(i);
@@ -585,7 +585,7 @@ public final class LibCore4 extends NativeLibrary {
 				ArrayList newlist = new ArrayList(len);
 				Function f = (Function)args[1];
 				for (int i=0; i<len; i++) {
-					newlist.add(f.invoke(p, new Object[] {oldlist.get(i)}));
+					newlist.add(f.invoke1(p, oldlist.get(i)));
 				}
 				return newlist;
 			}
@@ -594,7 +594,7 @@ public final class LibCore4 extends NativeLibrary {
 				Function f = (Function)args[1];
 				int len = list.size();
 				for (int i=0; i<len; i++) {
-					list.set(i, f.invoke(p, new Object[] {list.get(i)}));
+					list.set(i, f.invoke1(p, list.get(i)));
 				}
 				return null;
 			}
@@ -604,11 +604,8 @@ public final class LibCore4 extends NativeLibrary {
 				int len = list.size();
 				if (len == 0) return null;
 				Object ret = list.get(0);
-				Object[] fparams = new Object[2];
 				for (int i=1; i<len; i++) {
-					fparams[0] = ret;
-					fparams[1] = list.get(i);
-					ret = f.invoke(p, fparams);
+					ret = f.invoke2(p, ret, list.get(i));
 				}
 				return ret;
 			}
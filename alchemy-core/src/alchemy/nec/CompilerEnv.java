@@ -30,11 +30,20 @@ public final class CompilerEnv {
 	/** Identifiers for optional features. */
 	public static final String[] OPTION_STRINGS = {
 		"compat",
+		"compact",
 	};
 
 	/** Option for 2.1 compatibility mode. */
 	public static final int F_COMPAT21 = 0;
 
+	/**
+	 * Option to write object in the compact format 3.1.
+	 * Such objects have no relocation tables and cannot be linked,
+	 * libraries are converted to this format after linking by
+	 * <code>alchemy.pc.aot.EtherCompactor</code>.
+	 */
+	public static final int F_COMPACT = 1;
+
 	/** Identifiers for warning categories. */
 	public static final String[] WARNING_STRINGS = {
 		"deprecated",
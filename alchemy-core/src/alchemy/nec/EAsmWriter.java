@@ -86,6 +86,80 @@ public final class EAsmWriter implements ExprVisitor, StatementVisitor {
 		}
 	}
 
+	/** Returns index of local variable if expression is its value, -1 otherwise. */
+	private int localVarIndex(Expr expr) {
+		if (expr.kind != Expr.EXPR_VAR) return -1;
+		Var var = ((VarExpr)expr).var;
+		if (unit.getVar(var.name) == var) return -1;
+		return getVarIndex(var);
+	}
+
+	/** Returns register form of the stack instruction or NOP if there is none. */
+	private static int registerInsn(int insn) {
+		switch (insn) {
+			case Opcodes.IADD: return Opcodes.IADD_R;
+			case Opcodes.ISUB: return Opcodes.ISUB_R;
+			case Opcodes.IMUL: return Opcodes.IMUL_R;
+			case Opcodes.IDIV: return Opcodes.IDIV_R;
+			case Opcodes.IMOD: return Opcodes.IMOD_R;
+			case Opcodes.ISHL: return Opcodes.ISHL_R;
+			case Opcodes.ISHR: return Opcodes.ISHR_R;
+			case Opcodes.IUSHR: return Opcodes.IUSHR_R;
+			case Opcodes.IAND: return Opcodes.IAND_R;
+			case Opcodes.IOR: return Opcodes.IOR_R;
+			case Opcodes.IXOR: return Opcodes.IXOR_R;
+			case Opcodes.LADD: return Opcodes.LADD_R;
+			case Opcodes.LSUB: return Opcodes.LSUB_R;
+			case Opcodes.LMUL: return Opcodes.LMUL_R;
+			case Opcodes.LDIV: return Opcodes.LDIV_R;
+			case Opcodes.LMOD: return Opcodes.LMOD_R;
+			case Opcodes.FADD: return Opcodes.FADD_R;
+			case Opcodes.FSUB: return Opcodes.FSUB_R;
+			case Opcodes.FMUL: return Opcodes.FMUL_R;
+			case Opcodes.FDIV: return Opcodes.FDIV_R;
+			case Opcodes.DADD: return Opcodes.DADD_R;
+			case Opcodes.DSUB: return Opcodes.DSUB_R;
+			case Opcodes.DMUL: return Opcodes.DMUL_R;
+			case Opcodes.DDIV: return Opcodes.DDIV_R;
+			default: return Opcodes.NOP;
+		}
+	}
+
+	/**
+	 * Writes assignment of expression to the local variable
+	 * using register instructions if possible.
+	 * Returns false if expression needs to be computed on stack.
+	 */
+	private boolean visitRegAssign(int dst, Expr expr) {
+		int src = localVarIndex(expr);
+		if (src >= 0) {
+			if (src != dst) writer.visitMoveInsn(dst, src);
+			return true;
+		}
+		if (expr.kind != Expr.EXPR_BINARY) return false;
+		BinaryExpr binary = (BinaryExpr) expr;
+		int src1 = localVarIndex(binary.lhs);
+		if (src1 < 0) return false;
+		int insn = binaryOperatorInsn(binary.lhs.returnType(), binary.operator);
+		int src2 = localVarIndex(binary.rhs);
+		if (src2 >= 0) {
+			int reginsn = registerInsn(insn);
+			if (reginsn == Opcodes.NOP) return false;
+			if (env.debug) writer.visitLine(expr.lineNumber());
+			writer.visitRegInsn(reginsn, dst, src1, src2);
+			return true;
+		}
+		if ((insn == Opcodes.IADD || insn == Opcodes.ISUB) && binary.rhs.kind == Expr.EXPR_CONST) {
+			int incr = ((Int32)((ConstExpr)binary.rhs).value).value;
+			if (insn == Opcodes.ISUB) incr = -incr;
+			if (incr >= Byte.MIN_VALUE && incr <= Byte.MAX_VALUE) {
+				writer.visitIaddiInsn(dst, src1, incr);
+				return true;
+			}
+		}
+		return false;
+	}
+
 	private boolean flowContinues(Statement stat) {
 		return stat.accept(flow, (loopStart != null) ? Boolean.TRUE : Boolean.FALSE) == flow.NEXT;
 	}
@@ -93,7 +167,7 @@ public final class EAsmWriter implements ExprVisitor, StatementVisitor {
 	public void writeTo(Unit unit, OutputStream out) throws IOException {
 		this.unit = unit;
 		UnitWriter uw = new UnitWriter();
-		uw.visitVersion(EtherLoader.VERSION);
+		uw.visitVersion(env.hasOption(CompilerEnv.F_COMPACT) ? EtherLoader.VERSION : EtherLoader.RELOC_VERSION);
 		ArrayList funcs = unit.implementedFunctions;
 		for (int i=0; i<funcs.size(); i++) {
 			Function f = (Function) funcs.get(i);
@@ -105,7 +179,7 @@ public final class EAsmWriter implements ExprVisitor, StatementVisitor {
 				for (int vi=0; vi<f.args.length; vi++) removeVar(f.args[vi]);
 				writer.visitEnd();
 			} catch (Exception e) {
-				env.exceptionHappened("Assembler", "Format: EAsm 2.2\nFunction: " + f.signature, e);
+				env.exceptionHappened("Assembler", "Format: EAsm 3.0\nFunction: " + f.signature, e);
 			}
 		}
 		uw.writeTo(out);
@@ -205,6 +279,25 @@ public final class EAsmWriter implements ExprVisitor, StatementVisitor {
 				} else if ((cmp.lhs.returnType().kind == Type.TYPE_INT || cmp.rhs.returnType().kind == Type.TYPE_INT)
 						&& cmp.operator != Token.EQEQ && cmp.operator != Token.NOTEQ) {
 					// integer comparison
+					int lvar = localVarIndex(cmp.lhs);
+					int rvar = localVarIndex(cmp.rhs);
+					if (lvar >= 0 && rvar >= 0) {
+						switch (cmp.operator) {
+							case '<':
+								writer.visitRegJumpInsn(cond ? Opcodes.IF_ICMPLT_R : Opcodes.IF_ICMPGE_R, lvar, rvar, jumpto);
+								break;
+							case '>':
+								writer.visitRegJumpInsn(cond ? Opcodes.IF_ICMPGT_R : Opcodes.IF_ICMPLE_R, lvar, rvar, jumpto);
+								break;
+							case Token.LTEQ:
+								writer.visitRegJumpInsn(cond ? Opcodes.IF_ICMPLE_R : Opcodes.IF_ICMPGT_R, lvar, rvar, jumpto);
+								break;
+							case Token.GTEQ:
+								writer.visitRegJumpInsn(cond ? Opcodes.IF_ICMPGE_R : Opcodes.IF_ICMPLT_R, lvar, rvar, jumpto);
+								break;
+						}
+						break;
+					}
 					cmp.lhs.accept(this, null);
 					cmp.rhs.accept(this, null);
 					switch (cmp.operator) {
@@ -1001,8 +1094,10 @@ public final class EAsmWriter implements ExprVisitor, StatementVisitor {
 			writer.visitInsn(Opcodes.SETGLOBAL);
 		} else {
 			// local var
-			stat.assignExpr.accept(this, args);
-			writer.visitVarInsn(Opcodes.STORE, getVarIndex(var));
+			if (!visitRegAssign(getVarIndex(var), stat.assignExpr)) {
+				stat.assignExpr.accept(this, args);
+				writer.visitVarInsn(Opcodes.STORE, getVarIndex(var));
+			}
 		}
 		return null;
 	}
@@ -1051,9 +1146,18 @@ public final class EAsmWriter implements ExprVisitor, StatementVisitor {
 					return null;
 				}
 			}
+			int insn = binaryOperatorInsn(stat.var.type, Token.getBinaryOperator(stat.assignOperator));
+			int src = localVarIndex(stat.assignExpr);
+			int reginsn = registerInsn(insn);
+			if (src >= 0 && reginsn != Opcodes.NOP) {
+				int dst = getVarIndex(var);
+				if (env.debug) writer.visitLine(stat.lineNumber());
+				writer.visitRegInsn(reginsn, dst, dst, src);
+				return null;
+			}
 			writer.visitVarInsn(Opcodes.LOAD, getVarIndex(var));
 			stat.assignExpr.accept(this, args);
-			writer.visitInsn(binaryOperatorInsn(stat.var.type, Token.getBinaryOperator(stat.assignOperator)));
+			writer.visitInsn(insn);
 			writer.visitVarInsn(Opcodes.STORE, getVarIndex(var));
 		}
 		return null;
@@ -0,0 +1,535 @@
+/*
+ * This file is a part of Alchemy OS project.
+ *  Copyright (C) 2011-2014, Sergey Basalaev <sbasalaev@gmail.com>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package alchemy.nec;
+
+import alchemy.fs.Filesystem;
+import alchemy.io.IO;
+import alchemy.nec.syntax.Function;
+import alchemy.nec.syntax.Null;
+import alchemy.nec.syntax.Unit;
+import alchemy.nec.syntax.Var;
+import alchemy.nec.syntax.type.ArrayType;
+import alchemy.nec.syntax.type.BuiltinType;
+import alchemy.nec.syntax.type.FunctionType;
+import alchemy.nec.syntax.type.ObjectType;
+import alchemy.nec.syntax.type.Type;
+import alchemy.types.Float32;
+import alchemy.types.Float64;
+import alchemy.types.Int32;
+import alchemy.types.Int64;
+import alchemy.util.ArrayList;
+import alchemy.util.HashMap;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Cache of precompiled headers.
+ * <p>
+ * Sources usually start with the same <code>use</code> directives
+ * and headers they include are much larger than the sources.
+ * Parser stores the state of the unit after parsing these headers,
+ * that is types, variables and function signatures, and reuses it
+ * when compiling a source starting with the same headers.
+ * <p>
+ * Precompiled headers are used only if compiler options and
+ * <code>INCPATH</code> are the same and all parsed header files
+ * have the same modification times as when they were stored.
+ * Headers with function implementations and headers that produce
+ * warnings are not stored.
+ * <p>
+ * The cache is disabled until the directory for precompiled
+ * headers is set or they are {@link #addResident() kept in memory}.
+ *
+ * @author Sergey Basalaev
+ */
+public final class HeaderCache {
+
+	/** Magic number of precompiled header files. */
+	private static final int MAGIC = ('E' << 8) | 'H';
+	/** Version of precompiled header files. */
+	private static final int VERSION = 1;
+
+	/** Builtin types by their names. */
+	private static final HashMap builtins = new HashMap();
+
+	static {
+		BuiltinType[] types = {
+			BuiltinType.NONE, BuiltinType.BOOL, BuiltinType.BYTE, BuiltinType.CHAR,
+			BuiltinType.SHORT, BuiltinType.INT, BuiltinType.LONG, BuiltinType.FLOAT,
+			BuiltinType.DOUBLE, BuiltinType.INTRANGE, BuiltinType.LONGRANGE,
+			BuiltinType.NULL, BuiltinType.ANY, BuiltinType.FUNCTION,
+			BuiltinType.ARRAY, BuiltinType.ERROR, BuiltinType.STRING
+		};
+		for (int i=0; i<types.length; i++) {
+			builtins.set(types[i].name, types[i]);
+		}
+	}
+
+	/** Directory with precompiled headers, null if they are not stored on disk. */
+	private static String dir;
+	/** Number of users that keep precompiled headers in memory. */
+	private static int residents;
+	/**
+	 * Precompiled headers kept in memory.
+	 * <pre>String -&gt; byte[]</pre>
+	 */
+	private static final HashMap memory = new HashMap();
+
+	private HeaderCache() { }
+
+	/**
+	 * Sets directory where precompiled headers are stored.
+	 * If directory is <code>null</code> they are not stored on disk.
+	 */
+	public static synchronized void setDirectory(String dir) {
+		HeaderCache.dir = dir;
+	}
+
+	/**
+	 * Starts keeping precompiled headers in memory.
+	 * Long-lived compiler processes use this to avoid
+	 * reading headers even from the disk cache.
+	 * Each call must be paired with {@link #removeResident()}.
+	 */
+	public static synchronized void addResident() {
+		residents++;
+	}
+
+	/**
+	 * Ends keeping precompiled headers in memory.
+	 * Headers are dropped from memory when there
+	 * are no more users that keep them.
+	 */
+	public static synchronized void removeResident() {
+		if (residents > 0) residents--;
+		if (residents == 0) memory.clear();
+	}
+
+	/** Returns file of precompiled headers for given key. */
+	private static synchronized String cacheFile(String key) {
+		if (dir == null) return null;
+		return dir + '/' + Integer.toHexString(key.hashCode()) + ".pch";
+	}
+
+	private static synchronized byte[] getResident(String key) {
+		return (byte[]) memory.get(key);
+	}
+
+	private static synchronized void putResident(String key, byte[] data) {
+		if (residents > 0) memory.set(key, data);
+	}
+
+	/**
+	 * Reads precompiled headers into the unit.
+	 * Names of parsed header files are added to <code>files</code>.
+	 * Returns <code>false</code> and leaves the unit unchanged
+	 * if there are no precompiled headers for given key
+	 * or they are stale or broken.
+	 */
+	static boolean load(String key, Unit unit, ArrayList files) {
+		try {
+			byte[] data = getResident(key);
+			if (data == null) {
+				String pch = cacheFile(key);
+				if (pch == null || !Filesystem.exists(pch)) return false;
+				InputStream filein = Filesystem.read(pch);
+				try {
+					data = IO.readFully(filein);
+				} finally {
+					filein.close();
+				}
+				putResident(key, data);
+			}
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+			if (in.readUnsignedShort() != MAGIC || in.readUnsignedShort() != VERSION) return false;
+			if (!in.readUTF().equals(key)) return false;
+			String[] headers = new String[in.readUnsignedShort()];
+			for (int i=0; i<headers.length; i++) {
+				headers[i] = in.readUTF();
+				long tstamp = in.readLong();
+				if (!Filesystem.exists(headers[i]) || Filesystem.lastModified(headers[i]) != tstamp) return false;
+			}
+			// the unit is only changed when everything is read
+			Reader reader = new Reader(in, unit);
+			reader.read();
+			reader.addToUnit();
+			for (int i=0; i<headers.length; i++) {
+				files.add(headers[i]);
+			}
+			return true;
+		} catch (IOException ioe) {
+			// broken file is the same as no file
+			return false;
+		} catch (RuntimeException re) {
+			// the same, indices in the file are not checked
+			return false;
+		}
+	}
+
+	/**
+	 * Stores state of the unit after parsing given header files.
+	 * Errors are ignored, the state will be stored next time.
+	 */
+	static void store(String key, Unit unit, ArrayList files) {
+		String pch = cacheFile(key);
+		synchronized (HeaderCache.class) {
+			if (pch == null && residents == 0) return;
+		}
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeShort(MAGIC);
+			out.writeShort(VERSION);
+			out.writeUTF(key);
+			out.writeShort(files.size());
+			for (int i=0; i<files.size(); i++) {
+				String header = (String) files.get(i);
+				out.writeUTF(header);
+				out.writeLong(Filesystem.lastModified(header));
+			}
+			new Writer(out, unit).write();
+			byte[] data = bytes.toByteArray();
+			putResident(key, data);
+			if (pch == null) return;
+			// parallel compilations may store the same headers
+			synchronized (HeaderCache.class) {
+				String tmppch = pch + ".tmp";
+				Filesystem.mkdirTree(Filesystem.fileParent(pch));
+				OutputStream fileout = Filesystem.write(tmppch);
+				try {
+					fileout.write(data);
+				} finally {
+					fileout.close();
+				}
+				if (Filesystem.exists(pch)) Filesystem.remove(pch);
+				Filesystem.move(tmppch, pch);
+			}
+		} catch (IOException ioe) {
+			// state cannot be stored
+		} catch (SecurityException se) {
+			// the same
+		}
+	}
+
+	/**
+	 * Writes state of the unit.
+	 * Types, variables and functions are written in tables
+	 * and refer to each other by indices. Objects are created
+	 * before their references are resolved, so recursive types
+	 * and shared fields are restored as they were.
+	 */
+	private static final class Writer {
+		private final DataOutputStream out;
+		private final Unit unit;
+		private final ArrayList types = new ArrayList();
+		private final ArrayList vars = new ArrayList();
+		private final ArrayList funcs = new ArrayList();
+
+		Writer(DataOutputStream out, Unit unit) {
+			this.out = out;
+			this.unit = unit;
+		}
+
+		void write() throws IOException {
+			// collecting objects
+			Type[] unitTypes = unit.getTypes();
+			Var[] unitVars = unit.getVars();
+			for (int i=0; i<unitTypes.length; i++) {
+				addType(unitTypes[i]);
+			}
+			for (int i=0; i<unitVars.length; i++) {
+				addVar(unitVars[i]);
+			}
+			for (int i=0; i<funcs.size(); i++) {
+				Function f = (Function) funcs.get(i);
+				if (f.body != null) throw new IOException("Function " + f.signature + " is implemented");
+				addType(f.type);
+				if (f.args != null) {
+					for (int j=0; j<f.args.length; j++) addVar(f.args[j]);
+				}
+			}
+			for (int i=0; i<types.size(); i++) {
+				Object type = types.get(i);
+				if (type instanceof ObjectType) {
+					Var[] fields = ((ObjectType)type).fields;
+					if (fields != null) {
+						for (int j=0; j<fields.length; j++) addVar(fields[j]);
+					}
+				}
+			}
+			// types
+			out.writeShort(types.size());
+			for (int i=0; i<types.size(); i++) {
+				Type type = (Type) types.get(i);
+				if (type instanceof BuiltinType) {
+					out.writeByte('B');
+					out.writeUTF(type.name);
+				} else if (type instanceof ObjectType) {
+					ObjectType otype = (ObjectType) type;
+					out.writeByte('O');
+					out.writeUTF(otype.name);
+					out.writeShort((otype.parent != null) ? types.indexOf(otype.parent) : -1);
+				} else if (type instanceof ArrayType) {
+					out.writeByte('A');
+					out.writeShort(types.indexOf(((ArrayType)type).elementType));
+				} else if (type instanceof FunctionType) {
+					FunctionType ftype = (FunctionType) type;
+					out.writeByte('F');
+					out.writeShort(types.indexOf(ftype.returnType));
+					writeTypes(ftype.argtypes);
+				} else {
+					throw new IOException("Unknown type " + type);
+				}
+			}
+			// functions, only signatures as they are needed by variables
+			out.writeShort(funcs.size());
+			for (int i=0; i<funcs.size(); i++) {
+				out.writeUTF(((Function)funcs.get(i)).signature);
+			}
+			// variables
+			out.writeShort(vars.size());
+			for (int i=0; i<vars.size(); i++) {
+				Var v = (Var) vars.get(i);
+				out.writeUTF(v.name);
+				out.writeShort(types.indexOf(v.type));
+				out.writeBoolean(v.isConstant);
+				out.writeInt(v.hits);
+				writeValue(v.defaultValue);
+			}
+			// fields of object types
+			for (int i=0; i<types.size(); i++) {
+				Object type = types.get(i);
+				if (type instanceof ObjectType) writeVars(((ObjectType)type).fields);
+			}
+			// function details
+			for (int i=0; i<funcs.size(); i++) {
+				Function f = (Function) funcs.get(i);
+				out.writeShort(types.indexOf(f.type));
+				out.writeBoolean(f.isConstructor);
+				out.writeBoolean(f.isPublic);
+				out.writeInt(f.hits);
+				writeVars(f.args);
+			}
+			// contents of the unit
+			writeTypes(unitTypes);
+			writeVars(unitVars);
+		}
+
+		private void addType(Type type) {
+			if (types.contains(type)) return;
+			if (type instanceof ObjectType) {
+				ObjectType parent = ((ObjectType)type).parent;
+				if (parent != null) addType(parent);
+			} else if (type instanceof ArrayType) {
+				addType(((ArrayType)type).elementType);
+			} else if (type instanceof FunctionType) {
+				FunctionType ftype = (FunctionType) type;
+				addType(ftype.returnType);
+				for (int i=0; i<ftype.argtypes.length; i++) addType(ftype.argtypes[i]);
+			}
+			types.add(type);
+		}
+
+		private void addVar(Var v) {
+			if (vars.contains(v)) return;
+			vars.add(v);
+			addType(v.type);
+			if (v.defaultValue instanceof Function && !funcs.contains(v.defaultValue)) {
+				funcs.add(v.defaultValue);
+			}
+		}
+
+		private void writeTypes(Type[] array) throws IOException {
+			out.writeShort(array.length);
+			for (int i=0; i<array.length; i++) {
+				out.writeShort(types.indexOf(array[i]));
+			}
+		}
+
+		private void writeVars(Var[] array) throws IOException {
+			if (array == null) {
+				out.writeShort(-1);
+				return;
+			}
+			out.writeShort(array.length);
+			for (int i=0; i<array.length; i++) {
+				out.writeShort(vars.indexOf(array[i]));
+			}
+		}
+
+		private void writeValue(Object value) throws IOException {
+			if (value == null) {
+				out.writeByte('0');
+			} else if (value == Null.NULL) {
+				out.writeByte('n');
+			} else if (value instanceof Boolean) {
+				out.writeByte('z');
+				out.writeBoolean(((Boolean)value).booleanValue());
+			} else if (value instanceof Int32) {
+				out.writeByte('i');
+				out.writeInt(((Int32)value).value);
+			} else if (value instanceof Int64) {
+				out.writeByte('l');
+				out.writeLong(((Int64)value).value);
+			} else if (value instanceof Float32) {
+				out.writeByte('f');
+				out.writeFloat(((Float32)value).value);
+			} else if (value instanceof Float64) {
+				out.writeByte('d');
+				out.writeDouble(((Float64)value).value);
+			} else if (value instanceof String) {
+				out.writeByte('S');
+				out.writeUTF((String)value);
+			} else if (value instanceof Function) {
+				out.writeByte('P');
+				out.writeShort(funcs.indexOf(value));
+			} else {
+				throw new IOException("Unknown value " + value);
+			}
+		}
+	}
+
+	/** Reads state of the unit written by {@link Writer}. */
+	private static final class Reader {
+		private final DataInputStream in;
+		private final Unit unit;
+		private Type[] types;
+		private Var[] vars;
+		private Function[] funcs;
+		private Type[] unitTypes;
+		private Var[] unitVars;
+
+		Reader(DataInputStream in, Unit unit) {
+			this.in = in;
+			this.unit = unit;
+		}
+
+		void read() throws IOException {
+			// types
+			types = new Type[in.readUnsignedShort()];
+			for (int i=0; i<types.length; i++) {
+				int kind = in.readUnsignedByte();
+				switch (kind) {
+					case 'B': {
+						String name = in.readUTF();
+						types[i] = (Type) builtins.get(name);
+						if (types[i] == null) throw new IOException("Unknown type " + name);
+						break;
+					}
+					case 'O': {
+						String name = in.readUTF();
+						int parent = in.readShort();
+						types[i] = new ObjectType(name, (parent >= 0) ? (ObjectType) types[parent] : null);
+						break;
+					}
+					case 'A':
+						types[i] = new ArrayType(types[in.readUnsignedShort()]);
+						break;
+					case 'F': {
+						Type rettype = types[in.readUnsignedShort()];
+						types[i] = new FunctionType(rettype, readTypes());
+						break;
+					}
+					default:
+						throw new IOException("Unknown type kind " + kind);
+				}
+			}
+			// functions
+			funcs = new Function[in.readUnsignedShort()];
+			for (int i=0; i<funcs.length; i++) {
+				funcs[i] = new Function(unit, in.readUTF());
+			}
+			// variables
+			vars = new Var[in.readUnsignedShort()];
+			for (int i=0; i<vars.length; i++) {
+				Var v = new Var(in.readUTF(), types[in.readUnsignedShort()]);
+				v.isConstant = in.readBoolean();
+				v.hits = in.readInt();
+				v.defaultValue = readValue();
+				vars[i] = v;
+			}
+			// fields of object types
+			for (int i=0; i<types.length; i++) {
+				if (types[i] instanceof ObjectType) ((ObjectType)types[i]).fields = readVars();
+			}
+			// function details
+			for (int i=0; i<funcs.length; i++) {
+				Function f = funcs[i];
+				f.type = (FunctionType) types[in.readUnsignedShort()];
+				f.isConstructor = in.readBoolean();
+				f.isPublic = in.readBoolean();
+				f.hits = in.readInt();
+				f.args = readVars();
+			}
+			// contents of the unit
+			unitTypes = readTypes();
+			unitVars = readVars();
+			if (unitVars == null) throw new IOException("No variables of the unit");
+		}
+
+		/** Adds types and variables that were read to the unit. */
+		void addToUnit() {
+			for (int i=0; i<unitTypes.length; i++) {
+				unit.addType(unitTypes[i]);
+			}
+			for (int i=0; i<unitVars.length; i++) {
+				unit.addVar(unitVars[i]);
+			}
+		}
+
+		private Type[] readTypes() throws IOException {
+			Type[] array = new Type[in.readUnsignedShort()];
+			for (int i=0; i<array.length; i++) {
+				array[i] = types[in.readUnsignedShort()];
+			}
+			return array;
+		}
+
+		private Var[] readVars() throws IOException {
+			int count = in.readShort();
+			if (count < 0) return null;
+			Var[] array = new Var[count];
+			for (int i=0; i<count; i++) {
+				array[i] = vars[in.readUnsignedShort()];
+			}
+			return array;
+		}
+
+		private Object readValue() throws IOException {
+			int tag = in.readUnsignedByte();
+			switch (tag) {
+				case '0': return null;
+				case 'n': return Null.NULL;
+				case 'z': return in.readBoolean() ? Boolean.TRUE : Boolean.FALSE;
+				case 'i': return Int32.toInt32(in.readInt());
+				case 'l': return new Int64(in.readLong());
+				case 'f': return new Float32(in.readFloat());
+				case 'd': return new Float64(in.readDouble());
+				case 'S': return in.readUTF();
+				case 'P': return funcs[in.readUnsignedShort()];
+				default: throw new IOException("Unknown value tag " + tag);
+			}
+		}
+	}
+}
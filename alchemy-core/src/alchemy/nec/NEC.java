@@ -20,10 +20,14 @@ package alchemy.nec;
 
 import alchemy.fs.Filesystem;
 import alchemy.io.IO;
+import alchemy.io.UTFReader;
 import alchemy.nec.opt.ConstOptimizer;
+import alchemy.nec.opt.FlowOptimizer;
 import alchemy.nec.syntax.Unit;
 import alchemy.system.NativeApp;
 import alchemy.system.Process;
+import alchemy.util.ArrayList;
+import alchemy.util.Strings;
 import java.io.IOException;
 import java.io.OutputStream;
 
@@ -34,19 +38,21 @@ import java.io.OutputStream;
 public class NEC extends NativeApp {
 
 	static private final String VERSION =
-			"Native Ether Compiler version 2.2";
+			"Native Ether Compiler version 3.0";
 
 	static private final String HELP =
-			"Usage: ec [options] <input> \n" +
+			"Usage: ec [options] <input>...\n" +
 			"Options:\n" +
 			"-o <output>\n write to this file\n" +
 			"-O<level>\n choose optimization level\n" +
 			"-I<path>\n add path to includes\n" +
 			"-W<cat> -Wno-<cat>\n Turns on/off category of warnings\n" +
 			"-g\n turn on debugging info\n" +
+			"-j<threads>\n compile several files in parallel\n" +
 			"-f<opt> -fno-<opt>\n Turns on/off option\n" +
 			"-h\n print this help and exit\n" +
-			"-v\n print version and exit";
+			"-v\n print version and exit\n" +
+			"-server\n compile files listed on stdin";
 
 	/**
 	 * Constructor without arguments.
@@ -55,10 +61,60 @@ public class NEC extends NativeApp {
 	public NEC() { }
 
 	public int main(Process p, String[] args) {
+		if (args.length == 1 && args[0].equals("-server")) {
+			return serve(p);
+		}
+		return compile(p, args);
+	}
+
+	/**
+	 * Runs compiler as a service.
+	 * Each line read from stdin contains space separated arguments
+	 * of one compilation, or is <code>cd &lt;dir&gt;</code> to change
+	 * directory for the following compilations. After each line
+	 * <code>exit &lt;code&gt;</code> is written on stdout.
+	 * Compilations share headers parsed by previous ones.
+	 */
+	private int serve(Process p) {
+		HeaderCache.addResident();
+		try {
+			UTFReader r = new UTFReader(p.stdin);
+			String line;
+			while ((line = r.readLine()) != null) {
+				String[] args = Strings.split(line.trim(), ' ', true);
+				if (args.length == 0) continue;
+				int exitcode;
+				if (args[0].equals("cd")) {
+					try {
+						if (args.length != 2) throw new IOException("Usage: cd <dir>");
+						p.setCurrentDirectory(args[1]);
+						exitcode = 0;
+					} catch (IOException ioe) {
+						IO.println(p.stderr, ioe.getMessage());
+						exitcode = 1;
+					}
+				} else {
+					// arguments such as -I change environment of the request only
+					exitcode = compile(new Process(p, "ec", args), args);
+				}
+				IO.println(p.stdout, "exit " + exitcode);
+				p.stdout.flush();
+			}
+			return 0;
+		} catch (IOException ioe) {
+			IO.println(p.stderr, "I/O error: " + ioe.getMessage());
+			return 1;
+		} finally {
+			HeaderCache.removeResident();
+		}
+	}
+
+	private int compile(Process p, String[] args) {
 		//parsing arguments
 		String outname = null;
-		String fname = null;
+		ArrayList fnames = new ArrayList();
 		boolean wait_outname = false;
+		int threads = 1;
 		int optlevel = 1;
 		boolean dbginfo = false;
 		int warnmask = -1; // all warnings
@@ -107,6 +163,17 @@ public class NEC extends NativeApp {
 					if (warn.equals(CompilerEnv.WARNING_STRINGS[j]))
 						warnmask |= (1 << j);
 				}
+			} else if (arg.startsWith("-j")) {
+				try {
+					threads = Integer.parseInt(arg.substring(2));
+				} catch (Exception e) {
+					threads = 0;
+				}
+				if (threads < 1) {
+					IO.println(p.stderr, "Invalid number of threads: "+arg);
+					IO.println(p.stderr, HELP);
+					return 1;
+				}
 			} else if (arg.startsWith("-I") && arg.length() > 2) {
 				p.setEnv("INCPATH", arg.substring(2) + ':' + p.getEnv("INCPATH"));
 			} else if (arg.charAt(0) == '-') {
@@ -117,21 +184,45 @@ public class NEC extends NativeApp {
 				outname = arg;
 				wait_outname = false;
 			} else {
-				if (fname != null) {
-					IO.println(p.stderr, "Excess parameter: "+fname);
-					IO.println(p.stderr, HELP);
-					return 1;
-				}
-				fname = arg;
+				fnames.add(arg);
 			}
 		}
-		if (fname == null) {
+		if (fnames.size() == 0) {
 			IO.println(p.stderr, "No input files.");
 			return 1;
 		}
-		if (outname == null) {
-			outname = fname + ".o";
+		if (fnames.size() == 1) {
+			String fname = (String)fnames.get(0);
+			return compileFile(p, fname, (outname != null) ? outname : fname + ".o", optlevel, dbginfo, warnmask, optmask);
 		}
+		if (outname != null) {
+			IO.println(p.stderr, "Option -o cannot be used with several input files");
+			return 1;
+		}
+		// compiling several files, parsed headers are shared between them
+		HeaderCache.addResident();
+		try {
+			BatchJob job = new BatchJob(p, fnames, optlevel, dbginfo, warnmask, optmask);
+			if (threads > fnames.size()) threads = fnames.size();
+			Thread[] workers = new Thread[threads-1];
+			for (int i=0; i<workers.length; i++) {
+				workers[i] = new Thread(job);
+				workers[i].start();
+			}
+			job.run();
+			for (int i=0; i<workers.length; i++) {
+				workers[i].join();
+			}
+			return job.exitcode;
+		} catch (InterruptedException ie) {
+			return 1;
+		} finally {
+			HeaderCache.removeResident();
+		}
+	}
+
+	/** Compiles one source file. */
+	private static int compileFile(Process p, String fname, String outname, int optlevel, boolean dbginfo, int warnmask, int optmask) {
 		// parsing source
 		CompilerEnv env = new CompilerEnv(p, optmask, warnmask, dbginfo);
 		Parser parser = new Parser(env);
@@ -142,6 +233,9 @@ public class NEC extends NativeApp {
 		if (optlevel > 0) {
 			new ConstOptimizer(env).visitUnit(unit);
 		}
+		if (optlevel > 1) {
+			new FlowOptimizer(env).visitUnit(unit);
+		}
 		if (env.getErrorCount() > 0) return 1;
 		// writing binary code
 		try {
@@ -156,4 +250,50 @@ public class NEC extends NativeApp {
 		}
 		return 0;
 	}
+
+	/** Compilation of several files, run by one or more threads. */
+	private static final class BatchJob implements Runnable {
+		private final Process p;
+		private final ArrayList fnames;
+		private final int optlevel;
+		private final boolean dbginfo;
+		private final int warnmask;
+		private final int optmask;
+		/** Index of the next file to compile. */
+		private int next;
+		/** Nonzero if compilation of any file failed. */
+		int exitcode;
+
+		BatchJob(Process p, ArrayList fnames, int optlevel, boolean dbginfo, int warnmask, int optmask) {
+			this.p = p;
+			this.fnames = fnames;
+			this.optlevel = optlevel;
+			this.dbginfo = dbginfo;
+			this.warnmask = warnmask;
+			this.optmask = optmask;
+		}
+
+		private synchronized String nextFile() {
+			return (next < fnames.size()) ? (String)fnames.get(next++) : null;
+		}
+
+		private synchronized void fail() {
+			exitcode = 1;
+		}
+
+		public void run() {
+			String fname;
+			while ((fname = nextFile()) != null) {
+				// parser changes current directory, so each file has its own process
+				Process fp = new Process(p, "ec", new String[] {fname});
+				try {
+					if (compileFile(fp, fname, fname + ".o", optlevel, dbginfo, warnmask, optmask) != 0) fail();
+				} catch (RuntimeException e) {
+					// other files are still compiled
+					IO.println(p.stderr, "Error while compiling " + fname + '\n' + e);
+					fail();
+				}
+			}
+		}
+	}
 }
@@ -75,7 +75,6 @@ public class Parser {
 			u.addType(BuiltinType.LONG);
 			u.addType(BuiltinType.SHORT);
 			u.addType(BuiltinType.STRING);
-			parseFile("/inc/builtin.eh");
 			if (env.hasOption(CompilerEnv.F_COMPAT21)) {
 				if (Filesystem.exists("/inc/compat/")) {
 					env.io.setEnv("INCPATH", "/inc/compat:" + env.io.getEnv("INCPATH"));
@@ -84,6 +83,7 @@ public class Parser {
 					return null;
 				}
 			}
+			parseHeaders(file);
 			parseFile(file);
 		} catch (IOException ioe) {
 			IO.println(env.io.stderr, "I/O error while reading " + files.last() + ": " + ioe.getMessage());
@@ -98,6 +98,58 @@ public class Parser {
 		return unit;
 	}
 
+	/**
+	 * Parses builtin.eh and headers used at the start of the file.
+	 * Parsed headers are taken from {@link HeaderCache} if they are
+	 * there and are stored in it otherwise.
+	 */
+	private void parseHeaders(String file) throws ParseException, IOException {
+		ArrayList headers = new ArrayList();
+		headers.add("/inc/builtin.eh");
+		// read leading 'use' directives, the rest is left to parseFile()
+		String olddir = env.io.getCurrentDirectory();
+		ConnectionInputStream filein = null;
+		try {
+			env.io.setCurrentDirectory(Filesystem.fileParent(file));
+			filein = new ConnectionInputStream(Filesystem.read(file));
+			env.io.addConnection(filein);
+			Tokenizer scanner = new Tokenizer(env, file, new UTFReader(filein));
+			for (int ttype = scanner.nextToken(); ttype == ';' || ttype == Token.USE; ttype = scanner.nextToken()) {
+				if (ttype == Token.USE) {
+					if (scanner.nextToken() != Token.QUOTED) break;
+					headers.add(resolveFile(scanner.svalue));
+				}
+			}
+		} catch (IOException ioe) {
+			// errors are reported when the file is parsed
+		} catch (ParseException pe) {
+			// the same
+		} finally {
+			if (filein != null) {
+				filein.close();
+				env.io.removeConnection(filein);
+			}
+			env.io.setCurrentDirectory(olddir);
+		}
+
+		// the same headers give the same state with the same options
+		StringBuffer key = new StringBuffer(env.optionString());
+		key.append('\n').append(env.io.getEnv("INCPATH"));
+		for (int i=0; i<headers.size(); i++) {
+			key.append('\n').append(headers.get(i));
+		}
+		if (HeaderCache.load(key.toString(), unit, finishedFiles)) return;
+
+		int warncount = env.getWarningCount();
+		int errcount = env.getErrorCount();
+		for (int i=0; i<headers.size(); i++) {
+			parseFile((String)headers.get(i));
+		}
+		if (env.getWarningCount() == warncount && env.getErrorCount() == errcount && unit.implementedFunctions.size() == 0) {
+			HeaderCache.store(key.toString(), unit, finishedFiles);
+		}
+	}
+
 	/**
 	 * Finds file referenced in 'use' directive.
 	 * Checked files are (in that order):
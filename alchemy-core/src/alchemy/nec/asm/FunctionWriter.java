@@ -262,12 +262,78 @@ public class FunctionWriter implements Opcodes {
 		data.write(incr);
 	}
 
+	/** Visit register instruction <code>dst = src1 op src2</code>. */
+	public void visitRegInsn(int opcode, int dst, int src1, int src2) {
+		switch (opcode) {
+			case IADD_R: case ISUB_R: case IMUL_R: case IDIV_R:
+			case IMOD_R: case ISHL_R: case ISHR_R: case IUSHR_R:
+			case IAND_R: case IOR_R:  case IXOR_R:
+			case LADD_R: case LSUB_R: case LMUL_R: case LDIV_R: case LMOD_R:
+			case FADD_R: case FSUB_R: case FMUL_R: case FDIV_R:
+			case DADD_R: case DSUB_R: case DMUL_R: case DDIV_R:
+				break;
+			default:
+				throw new IllegalArgumentException();
+		}
+		visitRegister(dst);
+		visitRegister(src1);
+		visitRegister(src2);
+		data.write(opcode);
+		data.write(dst);
+		data.write(src1);
+		data.write(src2);
+	}
+
+	/** Visit MOVE_R instruction. */
+	public void visitMoveInsn(int dst, int src) {
+		visitRegister(dst);
+		visitRegister(src);
+		data.write(MOVE_R);
+		data.write(dst);
+		data.write(src);
+	}
+
+	/** Visit IADDI_R instruction. */
+	public void visitIaddiInsn(int dst, int src, int incr) {
+		visitRegister(dst);
+		visitRegister(src);
+		if (incr < Byte.MIN_VALUE || incr > Byte.MAX_VALUE) throw new IllegalArgumentException();
+		data.write(IADDI_R);
+		data.write(dst);
+		data.write(src);
+		data.write(incr);
+	}
+
+	/** Visit register jump instruction comparing two locals. */
+	public void visitRegJumpInsn(int opcode, int src1, int src2, Label label) {
+		switch (opcode) {
+			case IF_ICMPLT_R:
+			case IF_ICMPGE_R:
+			case IF_ICMPGT_R:
+			case IF_ICMPLE_R:
+				break;
+			default:
+				throw new IllegalArgumentException();
+		}
+		visitRegister(src1);
+		visitRegister(src2);
+		data.write(opcode);
+		data.write(src1);
+		data.write(src2);
+		visitLabelPtr(label);
+	}
+
+	private void visitRegister(int var) {
+		if (var < 0 || var > 255) throw new IllegalArgumentException();
+		if (var >= varcount) varcount = var+1;
+	}
+
 	public void visitNewMultiArray(int dimension, int type) {
 		if (dimension <= 0) throw new IllegalArgumentException();
 		data.write(NEWMULTIARRAY);
 		data.write(dimension);
 		data.write(type);
-		visitStack(dimension-1);
+		visitStack(1-dimension);
 	}
 
 	public void visitConcat(int n) {
@@ -18,24 +18,29 @@
 
 package alchemy.nec.asm;
 
+import alchemy.evm.EtherLoader;
 import alchemy.evm.Opcodes;
 import alchemy.types.Float32;
 import alchemy.types.Float64;
 import alchemy.types.Int32;
 import alchemy.types.Int64;
 import alchemy.util.ArrayList;
+import alchemy.util.HashMap;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
 /**
- * Code writer for version 2.2
+ * Code writer for versions 3.0 and 3.1.
+ * Version 3.1 is written in the compact encoding.
  * @author Sergey Basalaev
  */
 public class UnitWriter {
 	
 	private int vmversion;
 	private ArrayList objects = new ArrayList();
+	/** Indices of strings in the string table of compact format. */
+	private HashMap stringIndices;
 	
 	public UnitWriter() { }
 	
@@ -66,15 +71,19 @@ public class UnitWriter {
 	
 	public void writeTo(OutputStream stream) throws IOException {
 		DataOutputStream out = new DataOutputStream(stream);
+		boolean compact = vmversion >= EtherLoader.COMPACT_VERSION;
 		out.writeShort(0xC0DE);
 		out.writeShort(vmversion);
 		out.writeByte(0);
-		out.writeShort(objects.size());
+		if (compact) writeStrings(out);
+		writeCount(out, objects.size(), compact);
 		for (int i=0; i<objects.size(); i++) {
 			Object obj = objects.get(i);
 			if (obj.getClass() == Int32.class) {
 				out.writeByte('i');
-				out.writeInt(((Int32)obj).value);
+				int value = ((Int32)obj).value;
+				if (compact) writeVarint(out, (value << 1) ^ (value >> 31));
+				else out.writeInt(value);
 			} else if (obj.getClass() == Int64.class) {
 				out.writeByte('l');
 				out.writeLong(((Int64)obj).value);
@@ -86,27 +95,32 @@ public class UnitWriter {
 				out.writeDouble(((Float64)obj).value);
 			} else if (obj.getClass() == String.class) {
 				out.writeByte('S');
-				out.writeUTF((String)obj);
+				writeString(out, (String)obj, compact);
 			} else if (obj.getClass() == FuncObject.class) {
 				out.writeByte('U');
-				out.writeUTF(((FuncObject)obj).value);
+				writeString(out, ((FuncObject)obj).value, compact);
 			} else if (obj.getClass() == AsmFunc.class) {
 				AsmFunc f = (AsmFunc)obj;
 				out.writeByte('P');
-				out.writeUTF(f.value);
+				writeString(out, f.value, compact);
 				int fflags = 0;
 				if (f.shared) fflags |= Opcodes.FFLAG_SHARED;
-				if (f.relocs != null) fflags |= Opcodes.FFLAG_RELOCS;
+				if (f.relocs != null && !compact) fflags |= Opcodes.FFLAG_RELOCS;
 				if (f.dbgtable != null) fflags |= Opcodes.FFLAG_LNUM;
 				if (f.errtable != null) fflags |= Opcodes.FFLAG_ERRTBL;
 				out.writeByte(fflags);
 				out.writeByte(f.stacksize);
 				out.writeByte(f.varcount);
-				out.writeShort(f.code.length);
+				writeCount(out, f.code.length, compact);
 				out.write(f.code);
-				if (f.relocs != null) writeChars(out, f.relocs);
-				if (f.dbgtable != null) writeChars(out, f.dbgtable);
-				if (f.errtable != null) writeChars(out, f.errtable);
+				if (compact) {
+					if (f.dbgtable != null) writeLineTable(out, f.dbgtable);
+					if (f.errtable != null) writeErrorTable(out, f.errtable);
+				} else {
+					if (f.relocs != null) writeChars(out, f.relocs);
+					if (f.dbgtable != null) writeChars(out, f.dbgtable);
+					if (f.errtable != null) writeChars(out, f.errtable);
+				}
 			}
 		}
 	}
@@ -117,4 +131,77 @@ public class UnitWriter {
 			out.writeChar(chars[i]);
 		}
 	}
+
+	/** Writes table of all strings used by objects and remembers their indices. */
+	private void writeStrings(DataOutputStream out) throws IOException {
+		ArrayList strings = new ArrayList();
+		stringIndices = new HashMap();
+		for (int i=0; i<objects.size(); i++) {
+			Object obj = objects.get(i);
+			String str = (obj instanceof FuncObject) ? ((FuncObject)obj).value : (obj instanceof String) ? (String)obj : null;
+			if (str != null && stringIndices.get(str) == null) {
+				stringIndices.set(str, Int32.toInt32(strings.size()));
+				strings.add(str);
+			}
+		}
+		writeVarint(out, strings.size());
+		for (int i=0; i<strings.size(); i++) {
+			out.writeUTF((String)strings.get(i));
+		}
+	}
+
+	private void writeString(DataOutputStream out, String str, boolean compact) throws IOException {
+		if (compact) writeVarint(out, ((Int32)stringIndices.get(str)).value);
+		else out.writeUTF(str);
+	}
+
+	private static void writeCount(DataOutputStream out, int count, boolean compact) throws IOException {
+		if (compact) writeVarint(out, count);
+		else out.writeShort(count);
+	}
+
+	/**
+	 * Writes line number table with lines and offsets as deltas.
+	 * Also used by converters of libraries to the compact format.
+	 */
+	public static void writeLineTable(DataOutputStream out, char[] table) throws IOException {
+		writeVarint(out, (table.length-1) / 2);
+		writeVarint(out, table[0]);
+		int line = 0;
+		int offset = 0;
+		for (int i=1; i < table.length; i += 2) {
+			writeSignedVarint(out, table[i] - line);
+			writeSignedVarint(out, table[i+1] - offset);
+			line = table[i];
+			offset = table[i+1];
+		}
+	}
+
+	/**
+	 * Writes error table with lengths of protected regions instead of their ends.
+	 * Also used by converters of libraries to the compact format.
+	 */
+	public static void writeErrorTable(DataOutputStream out, char[] table) throws IOException {
+		writeVarint(out, table.length / 4);
+		for (int i=0; i < table.length; i += 4) {
+			writeVarint(out, table[i]);
+			writeVarint(out, table[i+1] - table[i]);
+			writeVarint(out, table[i+2]);
+			writeVarint(out, table[i+3]);
+		}
+	}
+
+	/** Writes unsigned varint, see {@link EtherLoader#readVarint(DataInputStream)}. */
+	public static void writeVarint(DataOutputStream out, int value) throws IOException {
+		while ((value & ~0x7f) != 0) {
+			out.writeByte((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	/** Writes signed varint, see {@link EtherLoader#readSignedVarint(DataInputStream)}. */
+	public static void writeSignedVarint(DataOutputStream out, int value) throws IOException {
+		writeVarint(out, (value << 1) ^ (value >> 31));
+	}
 }
\ No newline at end of file
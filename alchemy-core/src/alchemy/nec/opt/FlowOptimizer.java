@@ -0,0 +1,842 @@
+/*
+ * This file is a part of Alchemy OS project.
+ *  Copyright (C) 2014, Sergey Basalaev <sbasalaev@gmail.com>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package alchemy.nec.opt;
+
+import alchemy.nec.CompilerEnv;
+import alchemy.nec.FlowAnalyzer;
+import alchemy.nec.syntax.Function;
+import alchemy.nec.syntax.Unit;
+import alchemy.nec.syntax.Var;
+import alchemy.nec.syntax.expr.*;
+import alchemy.nec.syntax.statement.*;
+import alchemy.nec.syntax.type.Type;
+import alchemy.util.ArrayList;
+
+/**
+ * Optimizer used with {@code -O2}.
+ * Runs after {@link ConstOptimizer} and works on
+ * the flow of statements in blocks.
+ * Performs the following optimizations:
+ * <ul>
+ * <li>Dead code elimination (DCE)</li>
+ * <li>Dead store elimination (DSE)</li>
+ * <li>Copy propagation (CP)</li>
+ * <li>Common subexpression elimination (CSE)</li>
+ * </ul>
+ * <p>
+ * Visit* methods accept Scope as argument and
+ * return optimized tree.
+ * </p>
+ *
+ * @author Sergey Basalaev
+ */
+public class FlowOptimizer implements StatementVisitor {
+
+	private final CompilerEnv env;
+	private final ConstOptimizer constOptimizer;
+	private final FlowAnalyzer flow;
+
+	private Unit unit;
+	/** Number of try blocks enclosing visited statement. */
+	private int tryDepth;
+	/** Number of temporary variables created in visited function. */
+	private int tempCount;
+
+	public FlowOptimizer(CompilerEnv env) {
+		this.env = env;
+		this.constOptimizer = new ConstOptimizer(env);
+		this.flow = new FlowAnalyzer(env);
+	}
+
+	public void visitUnit(Unit u) {
+		this.unit = u;
+		ArrayList funcs = u.implementedFunctions;
+		for (int fi=0; fi<funcs.size(); fi++) {
+			Function f = (Function) funcs.get(fi);
+			try {
+				visitFunction(f);
+			} catch (Exception e) {
+				env.exceptionHappened("Optimizer", "Function: " + f.signature, e);
+			}
+		}
+		this.unit = null;
+	}
+
+	public void visitFunction(Function f) {
+		tryDepth = 0;
+		tempCount = 0;
+		f.body = (Statement) f.body.accept(this, f);
+	}
+
+	/** Tests whether variable is local to the function. */
+	private boolean isLocal(Var var) {
+		return unit.getVar(var.name) != var;
+	}
+
+	/**
+	 * Tests whether expression may read given variable.
+	 * Answers true for expressions it does not look into.
+	 */
+	private static boolean reads(Expr expr, Var var) {
+		switch (expr.kind) {
+			case Expr.EXPR_CONST:
+				return false;
+			case Expr.EXPR_VAR:
+				return ((VarExpr)expr).var == var;
+			case Expr.EXPR_APPLY: {
+				ApplyExpr apply = (ApplyExpr) expr;
+				return reads(apply.funcExpr, var) || reads(apply.args, var);
+			}
+			case Expr.EXPR_ARRAY_ELEMENT: {
+				ArrayElementExpr aget = (ArrayElementExpr) expr;
+				return reads(aget.arrayExpr, var) || reads(aget.indexExpr, var);
+			}
+			case Expr.EXPR_ARRAY_LEN:
+				return reads(((ArrayLenExpr)expr).arrayExpr, var);
+			case Expr.EXPR_BINARY: {
+				BinaryExpr binary = (BinaryExpr) expr;
+				return reads(binary.lhs, var) || reads(binary.rhs, var);
+			}
+			case Expr.EXPR_CALL: {
+				CallExpr call = (CallExpr) expr;
+				return reads(call.fload, var) || reads(call.args, var);
+			}
+			case Expr.EXPR_CAST:
+				return reads(((CastExpr)expr).expr, var);
+			case Expr.EXPR_COMPARISON: {
+				ComparisonExpr cmp = (ComparisonExpr) expr;
+				return reads(cmp.lhs, var) || reads(cmp.rhs, var);
+			}
+			case Expr.EXPR_CONCAT: {
+				ArrayList exprs = ((ConcatExpr)expr).exprs;
+				for (int i=0; i<exprs.size(); i++) {
+					if (reads((Expr)exprs.get(i), var)) return true;
+				}
+				return false;
+			}
+			case Expr.EXPR_IF: {
+				IfElseExpr ifexpr = (IfElseExpr) expr;
+				return reads(ifexpr.condition, var) || reads(ifexpr.ifexpr, var) || reads(ifexpr.elseexpr, var);
+			}
+			case Expr.EXPR_NEWARRAY:
+				return reads(((NewArrayExpr)expr).lengthExprs, var);
+			case Expr.EXPR_NEWARRAY_INIT:
+				return reads(((NewArrayInitExpr)expr).initializers, var);
+			case Expr.EXPR_RANGE: {
+				RangeExpr range = (RangeExpr) expr;
+				return reads(range.fromExpr, var) || reads(range.toExpr, var);
+			}
+			case Expr.EXPR_UNARY:
+				return reads(((UnaryExpr)expr).expr, var);
+			default:
+				return true;
+		}
+	}
+
+	private static boolean reads(Expr[] exprs, Var var) {
+		for (int i=0; i<exprs.length; i++) {
+			if (reads(exprs[i], var)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Tests whether value stored in the variable by statement
+	 * at given index is never read. Only looks at statements
+	 * following in the same block that do not jump anywhere.
+	 */
+	private boolean isDeadStore(ArrayList statements, int index, Var var) {
+		if (var.hits == 0) return true;
+		// in try block the value may be read by catch
+		if (tryDepth > 0) return false;
+		for (int i=index+1; i<statements.size(); i++) {
+			Statement stat = (Statement) statements.get(i);
+			switch (stat.kind) {
+				case Statement.STAT_EMPTY:
+					break;
+				case Statement.STAT_ASSIGN: {
+					AssignStatement assign = (AssignStatement) stat;
+					if (reads(assign.assignExpr, var)) return false;
+					if (assign.var == var) return true;
+					break;
+				}
+				case Statement.STAT_COMPOUND_ASSIGN: {
+					CompoundAssignStatement assign = (CompoundAssignStatement) stat;
+					if (assign.var == var || reads(assign.assignExpr, var)) return false;
+					break;
+				}
+				case Statement.STAT_ARRAYSET: {
+					ArraySetStatement aset = (ArraySetStatement) stat;
+					if (reads(aset.arrayExpr, var) || reads(aset.indexExpr, var) || reads(aset.assignExpr, var)) return false;
+					break;
+				}
+				case Statement.STAT_EXPR:
+					if (reads(((ExprStatement)stat).expr, var)) return false;
+					break;
+				case Statement.STAT_RETURN:
+					// locals die when function returns
+					return !reads(((ReturnStatement)stat).expr, var);
+				case Statement.STAT_THROW: {
+					ThrowStatement thr = (ThrowStatement) stat;
+					return !reads(thr.errCodeExpr, var) && !reads(thr.errMsgExpr, var);
+				}
+				default:
+					return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Replaces repeated pure expressions in the straight
+	 * line statements of the block with local variables.
+	 * Expression is available in variable <i>v</i> after
+	 * {@code v = expr} until <i>v</i> or variable read by
+	 * expression is assigned. Expression repeated in one
+	 * statement or in several statements without such
+	 * assignment is stored in a new variable before the
+	 * first statement, if it cannot throw.
+	 */
+	private void eliminateCommonSubexprs(BlockStatement block) {
+		ArrayList statements = block.statements;
+		ArrayList availExprs = new ArrayList();
+		ArrayList availVars = new ArrayList();
+		for (int sti=0; sti<statements.size(); sti++) {
+			Statement stat = (Statement) statements.get(sti);
+			Expr[] exprs = exprsOf(stat);
+			if (exprs == null) {
+				availExprs.clear();
+				availVars.clear();
+				continue;
+			}
+			for (int ai=0; ai<availExprs.size(); ai++) {
+				replaceIn(stat, (Expr)availExprs.get(ai), (Var)availVars.get(ai));
+			}
+			Expr common;
+			while ((common = findRepeated(statements, sti)) != null) {
+				Var temp = new Var("#cse" + tempCount, common.returnType());
+				tempCount++;
+				block.addVar(temp);
+				statements.insert(sti, new AssignStatement(temp, common));
+				sti++;
+				replaceIn(stat, common, temp);
+				// common is moved to the new statement, not removed
+				addHits(common, 1);
+				availExprs.add(common);
+				availVars.add(temp);
+			}
+			Var assigned = null;
+			switch (stat.kind) {
+				case Statement.STAT_ASSIGN:
+					assigned = ((AssignStatement)stat).var;
+					break;
+				case Statement.STAT_COMPOUND_ASSIGN:
+					assigned = ((CompoundAssignStatement)stat).var;
+					break;
+				case Statement.STAT_IF:
+					// the rest are not executed in the same block
+					availExprs.clear();
+					availVars.clear();
+					break;
+			}
+			if (assigned != null) {
+				int ai = 0;
+				while (ai < availExprs.size()) {
+					if (availVars.get(ai) == assigned || reads((Expr)availExprs.get(ai), assigned)) {
+						availExprs.remove(ai);
+						availVars.remove(ai);
+					} else {
+						ai++;
+					}
+				}
+			}
+			if (stat.kind == Statement.STAT_ASSIGN) {
+				Expr expr = ((AssignStatement)stat).assignExpr;
+				if (isLocal(assigned) && assigned.type.equals(expr.returnType())
+						&& isPure(expr, true) && cost(expr) > 1 && !reads(expr, assigned)) {
+					availExprs.add(expr);
+					availVars.add(assigned);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns expressions evaluated by the statement or null
+	 * if the statement is not a simple one. For the if statement
+	 * returns its condition.
+	 */
+	private static Expr[] exprsOf(Statement stat) {
+		switch (stat.kind) {
+			case Statement.STAT_ASSIGN:
+				return new Expr[] { ((AssignStatement)stat).assignExpr };
+			case Statement.STAT_COMPOUND_ASSIGN:
+				return new Expr[] { ((CompoundAssignStatement)stat).assignExpr };
+			case Statement.STAT_ARRAYSET: {
+				ArraySetStatement aset = (ArraySetStatement) stat;
+				return new Expr[] { aset.arrayExpr, aset.indexExpr, aset.assignExpr };
+			}
+			case Statement.STAT_EXPR:
+				return new Expr[] { ((ExprStatement)stat).expr };
+			case Statement.STAT_RETURN:
+				return new Expr[] { ((ReturnStatement)stat).expr };
+			case Statement.STAT_THROW: {
+				ThrowStatement thr = (ThrowStatement) stat;
+				return new Expr[] { thr.errCodeExpr, thr.errMsgExpr };
+			}
+			case Statement.STAT_IF:
+				return new Expr[] { ((IfStatement)stat).condition };
+			case Statement.STAT_EMPTY:
+				return new Expr[0];
+			default:
+				return null;
+		}
+	}
+
+	/** Replaces expressions equal to given one in the statement. */
+	private static void replaceIn(Statement stat, Expr expr, Var var) {
+		switch (stat.kind) {
+			case Statement.STAT_ASSIGN: {
+				AssignStatement assign = (AssignStatement) stat;
+				assign.assignExpr = replace(assign.assignExpr, expr, var);
+				break;
+			}
+			case Statement.STAT_COMPOUND_ASSIGN: {
+				CompoundAssignStatement assign = (CompoundAssignStatement) stat;
+				assign.assignExpr = replace(assign.assignExpr, expr, var);
+				break;
+			}
+			case Statement.STAT_ARRAYSET: {
+				ArraySetStatement aset = (ArraySetStatement) stat;
+				aset.arrayExpr = replace(aset.arrayExpr, expr, var);
+				aset.indexExpr = replace(aset.indexExpr, expr, var);
+				aset.assignExpr = replace(aset.assignExpr, expr, var);
+				break;
+			}
+			case Statement.STAT_EXPR: {
+				ExprStatement estat = (ExprStatement) stat;
+				estat.expr = replace(estat.expr, expr, var);
+				break;
+			}
+			case Statement.STAT_RETURN: {
+				ReturnStatement ret = (ReturnStatement) stat;
+				ret.expr = replace(ret.expr, expr, var);
+				break;
+			}
+			case Statement.STAT_THROW: {
+				ThrowStatement thr = (ThrowStatement) stat;
+				thr.errCodeExpr = replace(thr.errCodeExpr, expr, var);
+				thr.errMsgExpr = replace(thr.errMsgExpr, expr, var);
+				break;
+			}
+			case Statement.STAT_IF: {
+				IfStatement ifstat = (IfStatement) stat;
+				ifstat.condition = replace(ifstat.condition, expr, var);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Replaces expressions equal to <i>expr</i> with variable.
+	 * Only looks into subexpressions that are always evaluated.
+	 */
+	private static Expr replace(Expr where, Expr expr, Var var) {
+		if (where == null) return null;
+		if (same(where, expr)) {
+			addHits(where, -1);
+			var.hits++;
+			return new VarExpr(where.lineNumber(), var);
+		}
+		switch (where.kind) {
+			case Expr.EXPR_APPLY: {
+				ApplyExpr apply = (ApplyExpr) where;
+				apply.funcExpr = replace(apply.funcExpr, expr, var);
+				replace(apply.args, expr, var);
+				break;
+			}
+			case Expr.EXPR_ARRAY_ELEMENT: {
+				ArrayElementExpr aget = (ArrayElementExpr) where;
+				aget.arrayExpr = replace(aget.arrayExpr, expr, var);
+				aget.indexExpr = replace(aget.indexExpr, expr, var);
+				break;
+			}
+			case Expr.EXPR_ARRAY_LEN: {
+				ArrayLenExpr alen = (ArrayLenExpr) where;
+				alen.arrayExpr = replace(alen.arrayExpr, expr, var);
+				break;
+			}
+			case Expr.EXPR_BINARY: {
+				BinaryExpr binary = (BinaryExpr) where;
+				binary.lhs = replace(binary.lhs, expr, var);
+				binary.rhs = replace(binary.rhs, expr, var);
+				break;
+			}
+			case Expr.EXPR_CALL: {
+				CallExpr call = (CallExpr) where;
+				call.fload = replace(call.fload, expr, var);
+				replace(call.args, expr, var);
+				break;
+			}
+			case Expr.EXPR_CAST: {
+				CastExpr cast = (CastExpr) where;
+				cast.expr = replace(cast.expr, expr, var);
+				break;
+			}
+			case Expr.EXPR_COMPARISON: {
+				ComparisonExpr cmp = (ComparisonExpr) where;
+				cmp.lhs = replace(cmp.lhs, expr, var);
+				cmp.rhs = replace(cmp.rhs, expr, var);
+				break;
+			}
+			case Expr.EXPR_CONCAT: {
+				ArrayList exprs = ((ConcatExpr)where).exprs;
+				for (int i=0; i<exprs.size(); i++) {
+					exprs.set(i, replace((Expr)exprs.get(i), expr, var));
+				}
+				break;
+			}
+			case Expr.EXPR_IF: {
+				IfElseExpr ifexpr = (IfElseExpr) where;
+				ifexpr.condition = replace(ifexpr.condition, expr, var);
+				break;
+			}
+			case Expr.EXPR_NEWARRAY:
+				replace(((NewArrayExpr)where).lengthExprs, expr, var);
+				break;
+			case Expr.EXPR_NEWARRAY_INIT:
+				replace(((NewArrayInitExpr)where).initializers, expr, var);
+				break;
+			case Expr.EXPR_RANGE: {
+				RangeExpr range = (RangeExpr) where;
+				range.fromExpr = replace(range.fromExpr, expr, var);
+				range.toExpr = replace(range.toExpr, expr, var);
+				break;
+			}
+			case Expr.EXPR_UNARY: {
+				UnaryExpr unary = (UnaryExpr) where;
+				unary.expr = replace(unary.expr, expr, var);
+				break;
+			}
+		}
+		return where;
+	}
+
+	private static void replace(Expr[] where, Expr expr, Var var) {
+		for (int i=0; i<where.length; i++) {
+			where[i] = replace(where[i], expr, var);
+		}
+	}
+
+	/**
+	 * Adds subexpressions that are always evaluated
+	 * to the list, outer expressions first.
+	 */
+	private static void subexprs(Expr expr, ArrayList list) {
+		if (expr == null) return;
+		list.add(expr);
+		switch (expr.kind) {
+			case Expr.EXPR_APPLY: {
+				ApplyExpr apply = (ApplyExpr) expr;
+				subexprs(apply.funcExpr, list);
+				subexprs(apply.args, list);
+				break;
+			}
+			case Expr.EXPR_ARRAY_ELEMENT: {
+				ArrayElementExpr aget = (ArrayElementExpr) expr;
+				subexprs(aget.arrayExpr, list);
+				subexprs(aget.indexExpr, list);
+				break;
+			}
+			case Expr.EXPR_ARRAY_LEN:
+				subexprs(((ArrayLenExpr)expr).arrayExpr, list);
+				break;
+			case Expr.EXPR_BINARY: {
+				BinaryExpr binary = (BinaryExpr) expr;
+				subexprs(binary.lhs, list);
+				subexprs(binary.rhs, list);
+				break;
+			}
+			case Expr.EXPR_CALL: {
+				CallExpr call = (CallExpr) expr;
+				subexprs(call.fload, list);
+				subexprs(call.args, list);
+				break;
+			}
+			case Expr.EXPR_CAST:
+				subexprs(((CastExpr)expr).expr, list);
+				break;
+			case Expr.EXPR_COMPARISON: {
+				ComparisonExpr cmp = (ComparisonExpr) expr;
+				subexprs(cmp.lhs, list);
+				subexprs(cmp.rhs, list);
+				break;
+			}
+			case Expr.EXPR_CONCAT: {
+				ArrayList exprs = ((ConcatExpr)expr).exprs;
+				for (int i=0; i<exprs.size(); i++) {
+					subexprs((Expr)exprs.get(i), list);
+				}
+				break;
+			}
+			case Expr.EXPR_IF:
+				subexprs(((IfElseExpr)expr).condition, list);
+				break;
+			case Expr.EXPR_NEWARRAY:
+				subexprs(((NewArrayExpr)expr).lengthExprs, list);
+				break;
+			case Expr.EXPR_NEWARRAY_INIT:
+				subexprs(((NewArrayInitExpr)expr).initializers, list);
+				break;
+			case Expr.EXPR_RANGE: {
+				RangeExpr range = (RangeExpr) expr;
+				subexprs(range.fromExpr, list);
+				subexprs(range.toExpr, list);
+				break;
+			}
+			case Expr.EXPR_UNARY:
+				subexprs(((UnaryExpr)expr).expr, list);
+				break;
+		}
+	}
+
+	private static void subexprs(Expr[] exprs, ArrayList list) {
+		for (int i=0; i<exprs.length; i++) {
+			subexprs(exprs[i], list);
+		}
+	}
+
+	/**
+	 * Finds expression in the statement at given index that
+	 * is worth storing in a new variable. Counts its copies in
+	 * this statement and in the following simple statements
+	 * until variable read by expression is assigned.
+	 */
+	private Expr findRepeated(ArrayList statements, int index) {
+		Statement first = (Statement) statements.get(index);
+		ArrayList candidates = new ArrayList();
+		subexprs(exprsOf(first), candidates);
+		for (int ci=0; ci<candidates.size(); ci++) {
+			Expr expr = (Expr) candidates.get(ci);
+			int cost = cost(expr);
+			if (cost < 3 || !isPure(expr, false)) continue;
+			// value of v = expr is reused without new variable
+			if (first.kind == Statement.STAT_ASSIGN && ((AssignStatement)first).assignExpr == expr) {
+				Var var = ((AssignStatement)first).var;
+				if (isLocal(var) && var.type.equals(expr.returnType()) && !reads(expr, var)) continue;
+			}
+			int count = 0;
+			for (int sti=index; sti<statements.size(); sti++) {
+				Statement stat = (Statement) statements.get(sti);
+				Expr[] exprs = exprsOf(stat);
+				if (exprs == null) break;
+				ArrayList list = new ArrayList();
+				subexprs(exprs, list);
+				for (int i=0; i<list.size(); i++) {
+					if (same((Expr)list.get(i), expr)) count++;
+				}
+				if (stat.kind == Statement.STAT_IF) break;
+				if (stat.kind == Statement.STAT_ASSIGN && reads(expr, ((AssignStatement)stat).var)) break;
+				if (stat.kind == Statement.STAT_COMPOUND_ASSIGN && reads(expr, ((CompoundAssignStatement)stat).var)) break;
+			}
+			// the variable costs a store and a load for each copy
+			if ((count-1) * (cost-1) >= 2) return expr;
+		}
+		return null;
+	}
+
+	/**
+	 * Tests whether expression only computes value from local
+	 * variables and constants. Unless <i>mayThrow</i> is set
+	 * expressions that may throw are not accepted.
+	 */
+	private boolean isPure(Expr expr, boolean mayThrow) {
+		switch (expr.kind) {
+			case Expr.EXPR_CONST:
+				return true;
+			case Expr.EXPR_VAR:
+				return isLocal(((VarExpr)expr).var);
+			case Expr.EXPR_ARRAY_LEN:
+				return mayThrow && isPure(((ArrayLenExpr)expr).arrayExpr, mayThrow);
+			case Expr.EXPR_BINARY: {
+				BinaryExpr binary = (BinaryExpr) expr;
+				Type type = binary.returnType();
+				if (!type.isNumeric() && type.kind != Type.TYPE_BOOL) return false;
+				if (!mayThrow && (binary.operator == '/' || binary.operator == '%')
+						&& type.kind != Type.TYPE_FLOAT && type.kind != Type.TYPE_DOUBLE) return false;
+				return isPure(binary.lhs, mayThrow) && isPure(binary.rhs, mayThrow);
+			}
+			case Expr.EXPR_CAST: {
+				CastExpr cast = (CastExpr) expr;
+				return cast.toType.isNumeric() && cast.expr.returnType().isNumeric() && isPure(cast.expr, mayThrow);
+			}
+			case Expr.EXPR_COMPARISON: {
+				ComparisonExpr cmp = (ComparisonExpr) expr;
+				return cmp.lhs.returnType().isNumeric() && isPure(cmp.lhs, mayThrow) && isPure(cmp.rhs, mayThrow);
+			}
+			case Expr.EXPR_UNARY: {
+				UnaryExpr unary = (UnaryExpr) expr;
+				Type type = unary.returnType();
+				return (type.isNumeric() || type.kind == Type.TYPE_BOOL) && isPure(unary.expr, mayThrow);
+			}
+			default:
+				return false;
+		}
+	}
+
+	/** Returns number of nodes in pure expression. */
+	private static int cost(Expr expr) {
+		switch (expr.kind) {
+			case Expr.EXPR_ARRAY_LEN:
+				return 1 + cost(((ArrayLenExpr)expr).arrayExpr);
+			case Expr.EXPR_BINARY:
+				return 1 + cost(((BinaryExpr)expr).lhs) + cost(((BinaryExpr)expr).rhs);
+			case Expr.EXPR_CAST:
+				return 1 + cost(((CastExpr)expr).expr);
+			case Expr.EXPR_COMPARISON:
+				return 1 + cost(((ComparisonExpr)expr).lhs) + cost(((ComparisonExpr)expr).rhs);
+			case Expr.EXPR_UNARY:
+				return 1 + cost(((UnaryExpr)expr).expr);
+			default:
+				return 1;
+		}
+	}
+
+	/** Tests whether pure expressions compute the same value. */
+	private static boolean same(Expr e1, Expr e2) {
+		if (e1.kind != e2.kind) return false;
+		switch (e1.kind) {
+			case Expr.EXPR_CONST: {
+				ConstExpr c1 = (ConstExpr) e1;
+				ConstExpr c2 = (ConstExpr) e2;
+				if (!c1.returnType().equals(c2.returnType())) return false;
+				return (c1.value == null) ? c2.value == null : c1.value.equals(c2.value);
+			}
+			case Expr.EXPR_VAR:
+				return ((VarExpr)e1).var == ((VarExpr)e2).var;
+			case Expr.EXPR_ARRAY_LEN:
+				return same(((ArrayLenExpr)e1).arrayExpr, ((ArrayLenExpr)e2).arrayExpr);
+			case Expr.EXPR_BINARY: {
+				BinaryExpr b1 = (BinaryExpr) e1;
+				BinaryExpr b2 = (BinaryExpr) e2;
+				return b1.operator == b2.operator && same(b1.lhs, b2.lhs) && same(b1.rhs, b2.rhs);
+			}
+			case Expr.EXPR_CAST: {
+				CastExpr c1 = (CastExpr) e1;
+				CastExpr c2 = (CastExpr) e2;
+				return c1.toType.equals(c2.toType) && same(c1.expr, c2.expr);
+			}
+			case Expr.EXPR_COMPARISON: {
+				ComparisonExpr c1 = (ComparisonExpr) e1;
+				ComparisonExpr c2 = (ComparisonExpr) e2;
+				return c1.operator == c2.operator && same(c1.lhs, c2.lhs) && same(c1.rhs, c2.rhs);
+			}
+			case Expr.EXPR_UNARY: {
+				UnaryExpr u1 = (UnaryExpr) e1;
+				UnaryExpr u2 = (UnaryExpr) e2;
+				return u1.operator == u2.operator && same(u1.expr, u2.expr);
+			}
+			default:
+				return false;
+		}
+	}
+
+	/** Adds given number to hits of variables read by pure expression. */
+	private static void addHits(Expr expr, int delta) {
+		switch (expr.kind) {
+			case Expr.EXPR_VAR:
+				((VarExpr)expr).var.hits += delta;
+				break;
+			case Expr.EXPR_ARRAY_LEN:
+				addHits(((ArrayLenExpr)expr).arrayExpr, delta);
+				break;
+			case Expr.EXPR_BINARY:
+				addHits(((BinaryExpr)expr).lhs, delta);
+				addHits(((BinaryExpr)expr).rhs, delta);
+				break;
+			case Expr.EXPR_CAST:
+				addHits(((CastExpr)expr).expr, delta);
+				break;
+			case Expr.EXPR_COMPARISON:
+				addHits(((ComparisonExpr)expr).lhs, delta);
+				addHits(((ComparisonExpr)expr).rhs, delta);
+				break;
+			case Expr.EXPR_UNARY:
+				addHits(((UnaryExpr)expr).expr, delta);
+				break;
+		}
+	}
+
+	public Object visitArraySetStatement(ArraySetStatement stat, Object scope) {
+		return stat;
+	}
+
+	public Object visitAssignStatement(AssignStatement stat, Object scope) {
+		return stat;
+	}
+
+	/**
+	 * <pre>
+	 * DCE:
+	 *   { ..., return, stat, ... }  =&gt;  { ..., return }
+	 *   (the same for throw, break and continue)
+	 *
+	 * DSE:
+	 *   { ..., v = expr1, ..., v = expr2, ... }  =&gt;  { ..., expr1, ..., v = expr2, ... }
+	 *   { ..., v = expr, ..., return }            =&gt;  { ..., expr, ..., return }
+	 *   v = v  =&gt;  empty
+	 *
+	 * CP:
+	 *   { ..., v = expr, return v }  =&gt;  { ..., return expr }
+	 *   (if v is not used anywhere else)
+	 *
+	 * CSE:
+	 *   { ..., v = expr, ..., f(expr) }  =&gt;  { ..., v = expr, ..., f(v) }
+	 *   { ..., f(expr, expr) }            =&gt;  { ..., #cse = expr, f(#cse, #cse) }
+	 *   (if variables in expr are not assigned in between)
+	 * </pre>
+	 */
+	public Object visitBlockStatement(BlockStatement block, Object scope) {
+		ArrayList statements = block.statements;
+		for (int sti=0; sti<statements.size(); sti++) {
+			Statement stat = (Statement) statements.get(sti);
+			statements.set(sti, stat.accept(this, block));
+		}
+		// DCE
+		for (int sti=0; sti<statements.size()-1; sti++) {
+			Statement stat = (Statement) statements.get(sti);
+			if (stat.accept(flow, Boolean.TRUE) != flow.NEXT) {
+				while (statements.size() > sti+1) {
+					statements.remove(sti+1);
+				}
+			}
+		}
+		// CSE
+		eliminateCommonSubexprs(block);
+		// CP
+		int last = statements.size() - 1;
+		if (last > 0 && ((Statement)statements.get(last)).kind == Statement.STAT_RETURN
+				&& ((Statement)statements.get(last-1)).kind == Statement.STAT_ASSIGN) {
+			ReturnStatement ret = (ReturnStatement) statements.get(last);
+			AssignStatement assign = (AssignStatement) statements.get(last-1);
+			if (ret.expr.kind == Expr.EXPR_VAR && ((VarExpr)ret.expr).var == assign.var
+					&& assign.var.hits == 1 && isLocal(assign.var)) {
+				assign.var.hits = 0;
+				ret.expr = assign.assignExpr;
+				statements.remove(last-1);
+			}
+		}
+		// DSE
+		int sti = 0;
+		while (sti < statements.size()) {
+			Statement stat = (Statement) statements.get(sti);
+			if (stat.kind == Statement.STAT_ASSIGN) {
+				AssignStatement assign = (AssignStatement) stat;
+				Var var = assign.var;
+				if (isLocal(var)) {
+					if (assign.assignExpr.kind == Expr.EXPR_VAR && ((VarExpr)assign.assignExpr).var == var) {
+						var.hits--;
+						stat = new EmptyStatement();
+					} else if (isDeadStore(statements, sti, var)) {
+						stat = (Statement) new ExprStatement(assign.assignExpr).accept(constOptimizer, block);
+					}
+				}
+			}
+			if (stat.kind == Statement.STAT_EMPTY) {
+				statements.remove(sti);
+			} else {
+				statements.set(sti, stat);
+				sti++;
+			}
+		}
+		switch (statements.size()) {
+			case 0:
+				return new EmptyStatement();
+			case 1:
+				if (block.vars.size() == 0)
+					return statements.get(0);
+				else
+					return block;
+			default:
+				return block;
+		}
+	}
+
+	public Object visitBreakStatement(BreakStatement stat, Object scope) {
+		return stat;
+	}
+
+	public Object visitCompoundAssignStatement(CompoundAssignStatement stat, Object scope) {
+		return stat;
+	}
+
+	public Object visitContinueStatement(ContinueStatement stat, Object scope) {
+		return stat;
+	}
+
+	public Object visitEmptyStatement(EmptyStatement stat, Object scope) {
+		return stat;
+	}
+
+	public Object visitExprStatement(ExprStatement stat, Object scope) {
+		return stat;
+	}
+
+	public Object visitForLoopStatement(ForLoopStatement forloop, Object scope) {
+		forloop.increment = (Statement) forloop.increment.accept(this, scope);
+		forloop.body = (Statement) forloop.body.accept(this, scope);
+		return forloop;
+	}
+
+	public Object visitIfStatement(IfStatement ifelse, Object scope) {
+		ifelse.ifstat = (Statement) ifelse.ifstat.accept(this, scope);
+		ifelse.elsestat = (Statement) ifelse.elsestat.accept(this, scope);
+		return ifelse;
+	}
+
+	public Object visitLoopStatement(LoopStatement stat, Object scope) {
+		stat.preBody = (Statement) stat.preBody.accept(this, scope);
+		stat.postBody = (Statement) stat.postBody.accept(this, scope);
+		return stat;
+	}
+
+	public Object visitReturnStatement(ReturnStatement stat, Object scope) {
+		return stat;
+	}
+
+	public Object visitSwitchStatement(SwitchStatement stat, Object scope) {
+		for (int i=0; i<stat.statements.length; i++) {
+			stat.statements[i] = (Statement) stat.statements[i].accept(this, scope);
+		}
+		stat.elseStat = (Statement) stat.elseStat.accept(this, scope);
+		return stat;
+	}
+
+	public Object visitThrowStatement(ThrowStatement stat, Object scope) {
+		return stat;
+	}
+
+	public Object visitTryCatchStatement(TryCatchStatement stat, Object scope) {
+		tryDepth++;
+		stat.tryStat = (Statement) stat.tryStat.accept(this, scope);
+		tryDepth--;
+		stat.catchStat = (Statement) stat.catchStat.accept(this, scope);
+		return stat;
+	}
+}
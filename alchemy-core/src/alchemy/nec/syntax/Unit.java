@@ -60,6 +60,26 @@ public final class Unit implements Scope {
 		types.set(type.name, type);
 	}
 
+	/** Returns all variables defined in this unit. */
+	public Var[] getVars() {
+		Object[] names = vars.keys();
+		Var[] array = new Var[names.length];
+		for (int i=0; i<names.length; i++) {
+			array[i] = (Var)vars.get(names[i]);
+		}
+		return array;
+	}
+
+	/** Returns all types defined in this unit. */
+	public Type[] getTypes() {
+		Object[] names = types.keys();
+		Type[] array = new Type[names.length];
+		for (int i=0; i<names.length; i++) {
+			array[i] = (Type)types.get(names[i]);
+		}
+		return array;
+	}
+
 	public Function enclosingFunction() {
 		return null;
 	}
@@ -30,7 +30,10 @@ import javax.microedition.media.MediaException;
  */
 public final class AlchemyException extends Exception {
 	
-	private ArrayList names = new ArrayList();
+	/* Functions and debugging infos of the stack trace. Strings
+	 * are built on demand, so passing exception through many
+	 * frames or catching it costs nothing. */
+	private ArrayList funcs = new ArrayList();
 	private ArrayList infos = new ArrayList();
 
 	public final int errcode;
@@ -106,36 +109,56 @@ public final class AlchemyException extends Exception {
 	 * @param info  debugging info
 	 */
 	public void addTraceElement(Function func, String info) {
-		names.add(func.toString());
+		funcs.add(func);
 		infos.add(info);
 	}
+
+	/**
+	 * Adds element to the stack trace.
+	 * Debugging info is <i>source:line</i> or
+	 * <i>+line</i> if source is null, the string
+	 * is built only when the trace is read.
+	 *
+	 * @param func    function
+	 * @param source  source file name, may be null
+	 * @param line    source line or code offset
+	 */
+	public void addTraceElement(Function func, String source, int line) {
+		funcs.add(func);
+		infos.add(new LineInfo(source, line));
+	}
 	
 	/** Returns length of the stack trace. */
 	public int getTraceLength() {
-		return names.size();
+		return funcs.size();
 	}
 
 	/** Returns function name at the given index of the stack trace. */
 	public String getTraceElementName(int index) {
-		return (String) names.get(index);
+		return funcs.get(index).toString();
 	}
 
 	/** Returns debugging info at the given index of the stack trace. */
 	public String getTraceElementInfo(int index) {
-		return (String) infos.get(index);
+		Object info = infos.get(index);
+		if (info instanceof LineInfo) {
+			info = info.toString();
+			infos.set(index, info);
+		}
+		return (String) info;
 	}
 
 	/** Returns stack trace as string. */
 	public String trace() {
 		// print stack trace
 		StringBuffer sb = new StringBuffer();
-		int size = names.size();
+		int size = funcs.size();
 		for (int i=0; i < size; i++) {
 			sb.append('\n')
 			.append('@')
-			.append(names.get(i))
+			.append(funcs.get(i))
 			.append('(')
-			.append(infos.get(i))
+			.append(getTraceElementInfo(i))
 			.append(')');
 		}
 		return sb.toString();
@@ -167,4 +190,19 @@ public final class AlchemyException extends Exception {
 		}
 		return sb.append(trace()).toString();
 	}
+
+	/** Source line of the trace element that is not yet turned into string. */
+	private static final class LineInfo {
+		private final String source;
+		private final int line;
+
+		LineInfo(String source, int line) {
+			this.source = source;
+			this.line = line;
+		}
+
+		public String toString() {
+			return (source != null) ? source + ':' + line : "+" + line;
+		}
+	}
 }
@@ -18,6 +18,7 @@
 
 package alchemy.system;
 
+import alchemy.util.ArrayList;
 import alchemy.util.HashMap;
 import java.lang.ref.WeakReference;
 
@@ -26,6 +27,13 @@ import java.lang.ref.WeakReference;
  * This cache holds immutable objects such as libraries
  * and images that were loaded from the file system and
  * can be shared.
+ * <p>
+ * Objects are referenced weakly, so they are kept only
+ * while used. Objects put with their size, such as libraries,
+ * are also held strongly while they are among the most recently
+ * used ones, so they survive garbage collection between
+ * processes. The number and total size of such objects are
+ * bounded by {@link #setLimits(int, long) limits}.
  *
  * @author Sergey Basalaev
  */
@@ -34,6 +42,21 @@ public final class Cache {
 	/** Maps file names to CacheEntries. */
 	private static final HashMap cache = new HashMap();
 
+	/** Strongly held entries, the most recently used is the last. */
+	private static final ArrayList recent = new ArrayList();
+
+	/** Maximum number of strongly held entries. */
+	private static int maxCount = 16;
+	/** Maximum total size of strongly held entries. */
+	private static long maxSize = 512*1024;
+	/** Total size of strongly held entries. */
+	private static long heldSize;
+
+	/* Statistics. */
+	private static int hits;
+	private static int misses;
+	private static int evictions;
+
 	private Cache() { }
 
 	/**
@@ -43,27 +66,124 @@ public final class Cache {
 	 */
 	public static synchronized Object get(String file, long tstamp) {
 		CacheEntry entry = (CacheEntry)cache.get(file);
-		if (entry == null || entry.tstamp < tstamp) return null;
-		return entry.ref.get();
+		Object obj = (entry == null || entry.tstamp < tstamp) ? null : entry.ref.get();
 		/* We don't remove entry if ref contains null.
 		 * This is because in typical situation the next thing
 		 * to happen is loading and caching new version of object.
 		 */
+		if (obj == null) {
+			misses++;
+		} else {
+			hits++;
+			if (entry.size >= 0) hold(entry, obj);
+		}
+		return obj;
 	}
 
 	/** Puts object in the cache. */
 	public static synchronized void put(String file, long tstamp, Object obj) {
-		cache.set(file, new CacheEntry(obj, tstamp));
+		replace(file, new CacheEntry(obj, tstamp, -1));
+	}
+
+	/**
+	 * Puts object in the cache and holds it while it is
+	 * among the most recently used objects.
+	 * The size is an estimate of the memory used by object,
+	 * such as the size of the file it was loaded from.
+	 */
+	public static synchronized void put(String file, long tstamp, Object obj, int size) {
+		CacheEntry entry = new CacheEntry(obj, tstamp, size);
+		replace(file, entry);
+		hold(entry, obj);
+	}
+
+	private static void replace(String file, CacheEntry entry) {
+		CacheEntry old = (CacheEntry)cache.get(file);
+		if (old != null && recent.remove(old)) {
+			old.held = null;
+			heldSize -= old.size;
+		}
+		cache.set(file, entry);
+	}
+
+	/** Makes entry the most recently used one. */
+	private static void hold(CacheEntry entry, Object obj) {
+		// objects larger than the whole budget would only flush others
+		if (entry.size > maxSize) return;
+		if (entry.held != null) {
+			recent.remove(entry);
+		} else {
+			entry.held = obj;
+			heldSize += entry.size;
+		}
+		recent.add(entry);
+		trim();
+	}
+
+	/**
+	 * Sets limits for strongly held objects.
+	 * Least recently used objects are released when the limits
+	 * are exceeded. Objects remain cached while they are weakly
+	 * reachable. Zero count disables holding.
+	 *
+	 * @param count  maximum number of held objects
+	 * @param size   maximum total size of held objects
+	 */
+	public static synchronized void setLimits(int count, long size) {
+		maxCount = count;
+		maxSize = size;
+		trim();
+	}
+
+	/** Releases least recently used objects until limits are satisfied. */
+	private static void trim() {
+		while (!recent.isEmpty() && (recent.size() > maxCount || heldSize > maxSize)) {
+			CacheEntry evicted = (CacheEntry)recent.first();
+			recent.remove(0);
+			evicted.held = null;
+			heldSize -= evicted.size;
+			evictions++;
+		}
+	}
+
+	/** Returns number of lookups that found the object. */
+	public static synchronized int getHits() {
+		return hits;
+	}
+
+	/** Returns number of lookups that did not find the object. */
+	public static synchronized int getMisses() {
+		return misses;
+	}
+
+	/** Returns number of objects released because limits were exceeded. */
+	public static synchronized int getEvictions() {
+		return evictions;
+	}
+
+	/** Returns number of strongly held objects. */
+	public static synchronized int getHeldCount() {
+		return recent.size();
+	}
+
+	/** Returns total size of strongly held objects. */
+	public static synchronized long getHeldSize() {
+		return heldSize;
 	}
 
 	/** Holds cached object and a timestamp. */
 	private static class CacheEntry {
 		public final WeakReference ref;
 		public final long tstamp;
+		/** Size of the object, negative if object is never held. */
+		public final int size;
+		/** Strong reference to the object while it is recently used. */
+		public Object held;
 
-		public CacheEntry(Object obj, long tstamp) {
+		public CacheEntry(Object obj, long tstamp, int size) {
 			this.ref = new WeakReference(obj);
 			this.tstamp = tstamp;
+			this.size = size;
 		}
 	}
 }
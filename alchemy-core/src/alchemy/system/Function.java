@@ -103,6 +103,31 @@ public abstract class Function {
 	 */
 	public abstract Object invoke(Process p, Object[] args) throws AlchemyException, ProcessKilledException;
 
+	/**
+	 * Invokes this function without arguments.
+	 * Subclasses may override this and the following
+	 * methods to avoid allocation of arguments array.
+	 * Default implementation calls {@link #invoke(Process, Object[]) invoke()}.
+	 */
+	public Object invoke0(Process p) throws AlchemyException, ProcessKilledException {
+		return invoke(p, new Object[0]);
+	}
+
+	/** Invokes this function with one argument. */
+	public Object invoke1(Process p, Object a0) throws AlchemyException, ProcessKilledException {
+		return invoke(p, new Object[] {a0});
+	}
+
+	/** Invokes this function with two arguments. */
+	public Object invoke2(Process p, Object a0, Object a1) throws AlchemyException, ProcessKilledException {
+		return invoke(p, new Object[] {a0, a1});
+	}
+
+	/** Invokes this function with three arguments. */
+	public Object invoke3(Process p, Object a0, Object a1, Object a2) throws AlchemyException, ProcessKilledException {
+		return invoke(p, new Object[] {a0, a1, a2});
+	}
+
 	/**
 	 * Returns string representation of this object.
 	 * This method returns string in form
@@ -0,0 +1,45 @@
+/*
+ * This file is a part of Alchemy OS project.
+ *  Copyright (C) 2011-2013, Sergey Basalaev <sbasalaev@gmail.com>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package alchemy.system;
+
+/**
+ * Global variable of the process.
+ * Variable objects are created by {@link Process#getGlobalVar(Library, String)}
+ * and stay the same for the life of the process, so callers may cache them
+ * instead of looking up variable by name on every access.
+ *
+ * @author Sergey Basalaev
+ */
+public final class GlobalVar {
+
+	/** Name of this variable. */
+	public final String name;
+	/**
+	 * Process that owns this variable, null after the process ended.
+	 * Read-only, please.
+	 */
+	public Process owner;
+	/** Value of this variable, null if not set. */
+	public Object value;
+
+	GlobalVar(Process owner, String name) {
+		this.owner = owner;
+		this.name = name;
+	}
+}
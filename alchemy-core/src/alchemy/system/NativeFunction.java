@@ -20,17 +20,19 @@ package alchemy.system;
 
 /**
  * Function loaded by native library.
+ * The interpreter calls this class directly at call
+ * sites which always call the same native function.
  *
  * @author Sergey Basalaev
  */
-final class NativeFunction extends Function {
+public final class NativeFunction extends Function {
 
 	private final NativeLibrary lib;
 
 	/** Index of this function in invokeNative. */
 	private final int index;
 
-	public NativeFunction(NativeLibrary lib, String name, int index) {
+	NativeFunction(NativeLibrary lib, String name, int index) {
 		super(lib, name);
 		this.index = index;
 		this.lib = lib;
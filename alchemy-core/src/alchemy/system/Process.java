@@ -18,7 +18,7 @@
 
 package alchemy.system;
 
-import alchemy.evm.EtherLoader;
+import alchemy.evm.ImageCache;
 import alchemy.fs.Filesystem;
 import alchemy.io.NullInputStream;
 import alchemy.io.NullOutputStream;
@@ -91,10 +91,14 @@ import javax.microedition.io.Connection;
  * <li>
  * If library is already stored in {@link Cache} then it is returned.
  * Caching is based on file name and timestamp. So the cached version is
- * used if file was not changed since the last caching.
+ * used if file was not changed since the last caching. The most
+ * recently used libraries stay in cache when no process uses them.
  * <li>
- * If cache has no library or has older version of library then file is
- * used to construct new library instance.
+ * If library has an up to date image in {@link ImageCache} then
+ * it is constructed from the image using dependencies resolved
+ * when the image was written.
+ * <li>
+ * Otherwise file is used to construct new library instance.
  * </ol>
  *
  * @author Sergey Basalaev
@@ -110,6 +114,20 @@ public final class Process {
 	/** Magic number for symbolic links. */
 	private static final int MAGIC_LINK = ('#' << 8) | '=';
 
+	/** Whether dependencies are loaded concurrently. */
+	private static boolean parallelLoading;
+	/**
+	 * Files that are being loaded.
+	 * <pre>String -&gt; Thread</pre>
+	 */
+	private static final HashMap loading = new HashMap();
+	/**
+	 * Threads waiting for files that are being loaded.
+	 * Thread waiting for its library loaders is mapped to itself.
+	 * <pre>Thread -&gt; String | Thread</pre>
+	 */
+	private static final HashMap waiting = new HashMap();
+
 	/** Returned by getState() for new process. */
 	public static final int NEW = 0;
 	/** Returned by getState() for alive running process. */
@@ -142,7 +160,7 @@ public final class Process {
 	private HashMap env;
 	/**
 	 * Global variables.
-	 * <pre>Library -&gt; String -&gt; Object</pre>
+	 * <pre>Library -&gt; String -&gt; GlobalVar</pre>
 	 */
 	private HashMap globals;
 	/** Listeners of this process. */
@@ -264,19 +282,36 @@ public final class Process {
 		if (!Filesystem.canExec(libfile))
 			throw new SecurityException("Permission denied: " + libfile);
 
-		// search library in cache
+		// only one thread loads the file, others wait for it
 		long tstamp = Filesystem.lastModified(libfile);
-		Object cachedlib = Cache.get(libfile, tstamp);
-		if (cachedlib != null) {
-			if (cachedlib instanceof Library)
-				return (Library) cachedlib;
-			else
-				throw new ClassCastException("Unknown library format: " + libfile);
+		beginLoad(libfile);
+		try {
+			// search library in cache
+			Object cachedlib = Cache.get(libfile, tstamp);
+			if (cachedlib != null) {
+				if (cachedlib instanceof Library)
+					return (Library) cachedlib;
+				else
+					throw new ClassCastException("Unknown library format: " + libfile);
+			}
+			return readBinary(libfile, tstamp, pathlist);
+		} finally {
+			endLoad(libfile);
+		}
+	}
+
+	/** Loads library from given file and puts it in the cache. */
+	private Library readBinary(String libfile, long tstamp, String pathlist) throws IOException, InstantiationException {
+		// search library in the image cache
+		Library lib = ImageCache.load(this, libfile, tstamp);
+		if (lib != null) {
+			if (lib.name == null) lib.name = Filesystem.fileName(libfile);
+			Cache.put(libfile, tstamp, lib, (int)Filesystem.size(libfile));
+			return lib;
 		}
 
 		// read library from file
 		InputStream libin = Filesystem.read(libfile);
-		Library lib;
 		try {
 			int magic = (libin.read() << 8) | libin.read();
 			switch (magic) {
@@ -313,7 +348,7 @@ public final class Process {
 					break;
 				}
 				case MAGIC_ETHER:
-					lib = EtherLoader.load(this, libin);
+					lib = ImageCache.loadAndStore(this, libin, libfile, tstamp);
 					break;
 				default:
 					throw new InstantiationException("Unknown library format: " + libfile);
@@ -325,7 +360,7 @@ public final class Process {
 		// assign name to the library and put it into the cache
 		if (lib != null) {
 			if (lib.name == null) lib.name = Filesystem.fileName(libfile);
-			Cache.put(libfile, tstamp, lib);
+			Cache.put(libfile, tstamp, lib, (int)Filesystem.size(libfile));
 		}
 		return lib;
 	}
@@ -340,6 +375,117 @@ public final class Process {
 		return loadBinary(name, getEnv("LIBPATH"));
 	}
 
+	/**
+	 * Loads libraries with given names.
+	 * Libraries are searched in the same way as by
+	 * {@link #loadLibrary(String)}. If parallel loading is
+	 * enabled, libraries are loaded concurrently.
+	 */
+	public Library[] loadLibraries(String[] names) throws IOException, InstantiationException {
+		Library[] libs = new Library[names.length];
+		String pathlist = getEnv("LIBPATH");
+		if (!parallelLoading || names.length < 2) {
+			for (int i=0; i<names.length; i++) {
+				libs[i] = loadBinary(names[i], pathlist);
+			}
+			return libs;
+		}
+		// the first library is loaded by this thread
+		LibraryLoader[] loaders = new LibraryLoader[names.length];
+		for (int i=1; i<names.length; i++) {
+			loaders[i] = new LibraryLoader(this, names[i], pathlist);
+			loaders[i].start();
+		}
+		Throwable error = null;
+		try {
+			libs[0] = loadBinary(names[0], pathlist);
+		} catch (Throwable t) {
+			error = t;
+		}
+		// thread waiting for its loaders is marked as waiting for itself
+		Thread self = Thread.currentThread();
+		synchronized (loading) {
+			waiting.set(self, self);
+			loading.notifyAll();
+		}
+		try {
+			for (int i=1; i<names.length; i++) {
+				try {
+					loaders[i].join();
+				} catch (InterruptedException ie) {
+					if (error == null) error = new InstantiationException("Interrupted");
+				}
+				if (error == null) error = loaders[i].error;
+				libs[i] = loaders[i].lib;
+			}
+		} finally {
+			synchronized (loading) {
+				waiting.remove(self);
+			}
+		}
+		if (error instanceof IOException) throw (IOException) error;
+		if (error instanceof InstantiationException) throw (InstantiationException) error;
+		if (error instanceof RuntimeException) throw (RuntimeException) error;
+		if (error instanceof Error) throw (Error) error;
+		return libs;
+	}
+
+	/**
+	 * Sets whether {@link #loadLibraries(String[])} loads
+	 * libraries concurrently. This speeds up start of programs
+	 * with many dependencies on multi-core devices.
+	 * Parallel loading is off by default.
+	 */
+	public static void setParallelLoading(boolean parallel) {
+		parallelLoading = parallel;
+	}
+
+	/**
+	 * Marks file as being loaded by the current thread.
+	 * If file is being loaded by another thread, waits
+	 * until that thread finishes.
+	 */
+	private static void beginLoad(String file) throws InstantiationException {
+		Thread self = Thread.currentThread();
+		synchronized (loading) {
+			for (Thread owner = (Thread) loading.get(file); owner != null; owner = (Thread) loading.get(file)) {
+				// waiting for the thread that waits for us would never end
+				for (Thread t = owner; t != null; ) {
+					Object w = waiting.get(t);
+					if (t == self || (w == t && isLoadingParent(t, self)))
+						throw new InstantiationException("Cyclic dependency: " + file);
+					t = (w instanceof String) ? (Thread) loading.get(w) : null;
+				}
+				waiting.set(self, file);
+				try {
+					loading.wait();
+				} catch (InterruptedException ie) {
+					throw new InstantiationException("Interrupted");
+				} finally {
+					waiting.remove(self);
+				}
+			}
+			loading.set(file, self);
+		}
+	}
+
+	/** Marks file as loaded and wakes up waiting threads. */
+	private static void endLoad(String file) {
+		synchronized (loading) {
+			loading.remove(file);
+			loading.notifyAll();
+		}
+	}
+
+	/** Tests whether <code>t</code> is the given thread or one of the threads that started it to load libraries. */
+	private static boolean isLoadingParent(Thread t, Thread thread) {
+		while (thread != null) {
+			if (thread == t) return true;
+			thread = (thread instanceof LibraryLoader) ? ((LibraryLoader)thread).parent : null;
+		}
+		return false;
+	}
+
 	/**
 	 * Searches file in given list of paths.
 	 * If file does not exist then null is returned.
@@ -422,23 +568,37 @@ public final class Process {
 	 */
 	public Object getGlobal(Library lib, String name, Object dflt) {
 		if (globals == null) return dflt;
-		HashMap libKeys = (HashMap)globals.get(lib == null ? Process.class : (Object)lib);
-		if (libKeys == null) return dflt;
-		Object ret = libKeys.get(name);
-		return (ret != null) ? ret : dflt;
+		HashMap vars = (HashMap)globals.get(lib == null ? Process.class : (Object)lib);
+		if (vars == null) return dflt;
+		GlobalVar var = (GlobalVar)vars.get(name);
+		return (var != null && var.value != null) ? var.value : dflt;
 	}
 
 	/**
 	 * Sets value to the global variable.
 	 */
 	public void setGlobal(Library lib, String name, Object value) {
+		getGlobalVar(lib, name).value = value;
+	}
+
+	/**
+	 * Returns object of the global variable, creating it if needed.
+	 * Returned object may be cached by the caller while its
+	 * <code>owner</code> is this process.
+	 */
+	public GlobalVar getGlobalVar(Library lib, String name) {
 		if (globals == null) globals = new HashMap();
 		HashMap vars = (HashMap)globals.get(lib == null ? Process.class : (Object)lib);
 		if (vars == null) {
 			vars = new HashMap();
 			globals.set(lib == null ? Process.class : (Object)lib, vars);
 		}
-		vars.set(name, value);
+		GlobalVar var = (GlobalVar)vars.get(name);
+		if (var == null) {
+			var = new GlobalVar(this, name);
+			vars.set(name, var);
+		}
+		return var;
 	}
 
 	/** Returns current priority of the process. */
@@ -537,7 +697,8 @@ public final class Process {
 	}
 
 	/**
-	 * Flushes output streams and closes all connections.
+	 * Flushes output streams, closes all connections and
+	 * releases global variables that may be cached elsewhere.
 	 */
 	private void finalizeProcess() {
 		try { stdout.flush(); } catch (IOException ioe) { }
@@ -550,6 +711,44 @@ public final class Process {
 		for (int i=listeners.size()-1; i >= 0; i--) {
 			((ProcessListener)listeners.get(i)).processEnded(this);
 		}
+		if (globals != null) {
+			Object[] libs = globals.keys();
+			for (int i=0; i<libs.length; i++) {
+				HashMap vars = (HashMap)globals.get(libs[i]);
+				Object[] names = vars.keys();
+				for (int j=0; j<names.length; j++) {
+					GlobalVar var = (GlobalVar)vars.get(names[j]);
+					var.owner = null;
+					var.value = null;
+				}
+			}
+			globals = null;
+		}
+	}
+
+	/** Thread that loads one of the libraries in {@link #loadLibraries(String[])}. */
+	private static class LibraryLoader extends Thread {
+		public final Thread parent;
+		private final Process process;
+		private final String name;
+		private final String pathlist;
+		public Library lib;
+		public Throwable error;
+
+		public LibraryLoader(Process process, String name, String pathlist) {
+			this.parent = Thread.currentThread();
+			this.process = process;
+			this.name = name;
+			this.pathlist = pathlist;
+		}
+
+		public void run() {
+			try {
+				lib = process.loadBinary(name, pathlist);
+			} catch (Throwable t) {
+				error = t;
+			}
+		}
 	}
 
 	/** Main function of the interpreter script. */
@@ -18,6 +18,7 @@
 
 package alchemy.system;
 
+import alchemy.evm.EtherStack;
 import alchemy.types.Int32;
 
 /**
@@ -39,6 +40,8 @@ public final class ProcessThread extends Thread {
 	private AlchemyException error;
 	/** Interrupted status. */
 	private boolean interrupted;
+	/** Value stack of Ether functions, created on demand. */
+	private EtherStack etherStack;
 
 	ProcessThread(Process process, Function func, Object[] args) {
 		super(process.getName() + ':' + func.name);
@@ -93,4 +96,10 @@ public final class ProcessThread extends Thread {
 	public Process getProcess() {
 		return process;
 	}
+
+	/** Returns value stack of Ether functions executed in this thread. */
+	public EtherStack getEtherStack() {
+		if (etherStack == null) etherStack = new EtherStack();
+		return etherStack;
+	}
 }
@@ -321,8 +321,8 @@ public final class Arrays {
 		int j = high;
 		Object x = array[(low+high)/2];
 		while(i <= j) {
-			while(((Int32)f.invoke(p, new Object[] {array[i],x})).value < 0) i++;
-			while(((Int32)f.invoke(p, new Object[] {array[j],x})).value > 0) j--;
+			while(((Int32)f.invoke2(p, array[i], x)).value < 0) i++;
+			while(((Int32)f.invoke2(p, array[j], x)).value > 0) j--;
 			if (i <= j) {
 				Object tmp = array[i];
 				array[i] = array[j];
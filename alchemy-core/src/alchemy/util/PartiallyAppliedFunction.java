@@ -57,4 +57,56 @@ public class PartiallyAppliedFunction extends Function {
 			throw ae;
 		}
 	}
+
+	public Object invoke0(Process p) throws AlchemyException, ProcessKilledException {
+		switch (fixedArgs.length) {
+			case 1: return invokeFixed(p, null, null, 1);
+			case 2: return invokeFixed(p, null, null, 2);
+			case 3: return invokeFixed(p, null, null, 3);
+			default: return invoke(p, new Object[0]);
+		}
+	}
+
+	public Object invoke1(Process p, Object a0) throws AlchemyException, ProcessKilledException {
+		switch (fixedArgs.length) {
+			case 1: return invokeFixed(p, a0, null, 2);
+			case 2: return invokeFixed(p, a0, null, 3);
+			default: return invoke(p, new Object[] {a0});
+		}
+	}
+
+	public Object invoke2(Process p, Object a0, Object a1) throws AlchemyException, ProcessKilledException {
+		if (fixedArgs.length == 1) return invokeFixed(p, a0, a1, 3);
+		return invoke(p, new Object[] {a0, a1});
+	}
+
+	/**
+	 * Invokes function with fixed arguments followed by
+	 * given ones without allocating arguments array.
+	 */
+	private Object invokeFixed(Process p, Object a0, Object a1, int arity) throws AlchemyException, ProcessKilledException {
+		Object[] fixed = fixedArgs;
+		try {
+			switch (arity) {
+				case 1:
+					return f.invoke1(p, fixed[0]);
+				case 2:
+					if (fixed.length == 2) return f.invoke2(p, fixed[0], fixed[1]);
+					return f.invoke2(p, fixed[0], a0);
+				default:
+					if (fixed.length == 3) return f.invoke3(p, fixed[0], fixed[1], fixed[2]);
+					if (fixed.length == 2) return f.invoke3(p, fixed[0], fixed[1], a0);
+					return f.invoke3(p, fixed[0], a0, a1);
+			}
+		} catch (AlchemyException ae) {
+			ae.addTraceElement(this, "native");
+			throw ae;
+		} catch (ProcessKilledException pke) {
+			throw pke;
+		} catch (Throwable e) {
+			AlchemyException ae = new AlchemyException(e);
+			ae.addTraceElement(this, "native");
+			throw ae;
+		}
+	}
 }
@@ -18,8 +18,12 @@
 
 package alchemy.pc;
 
+import alchemy.evm.ImageCache;
 import alchemy.fs.Filesystem;
+import alchemy.nec.HeaderCache;
+import alchemy.pc.jit.JitCompiler;
 import alchemy.platform.Installer;
+import alchemy.system.Cache;
 import alchemy.system.Process;
 import java.io.File;
 import java.io.IOException;
@@ -35,6 +39,8 @@ import static javax.swing.JOptionPane.ERROR_MESSAGE;
 public class Main {
 
 	private static final String ROOT_DIR = "root";
+	private static final String IMAGE_DIR = "/cache/images";
+	private static final String HEADER_DIR = "/cache/headers";
 
 	private Main() { }
 
@@ -72,6 +78,13 @@ public class Main {
 	public static void run() throws IOException, InstantiationException, InterruptedException {
 		Filesystem.mount("", "pc", ROOT_DIR);
 		Filesystem.mount("/dev", "devfs", "");
+		JitCompiler.installIfEnabled();
+		String imagedir = System.getProperty("alchemy.images", IMAGE_DIR);
+		if (imagedir.length() > 0) ImageCache.setDirectory(imagedir);
+		String headerdir = System.getProperty("alchemy.headers", HEADER_DIR);
+		if (headerdir.length() > 0) HeaderCache.setDirectory(headerdir);
+		Process.setParallelLoading(Runtime.getRuntime().availableProcessors() > 1);
+		Cache.setLimits(Integer.getInteger("alchemy.cache.count", 64), Long.getLong("alchemy.cache.size", 4*1024*1024));
 		Process ps = new Process("terminal", new String[0]);
 		ps.setEnv("PATH", "/bin");
 		ps.setEnv("LIBPATH", "/lib");
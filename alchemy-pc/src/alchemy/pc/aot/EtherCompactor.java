@@ -0,0 +1,277 @@
+/*
+ * This file is a part of Alchemy OS project.
+ *  Copyright (C) 2011-2014, Sergey Basalaev <sbasalaev@gmail.com>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package alchemy.pc.aot;
+
+import alchemy.evm.EtherLoader;
+import alchemy.evm.Opcodes;
+import alchemy.nec.asm.UnitWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Converter of linked Ether libraries to the compact format 3.1.
+ * <p>
+ * Usage:
+ * <pre>
+ * java -cp alchemy.jar alchemy.pc.aot.EtherCompactor &lt;library&gt; &lt;output&gt;
+ * </pre>
+ * The linker works with relocation tables, so objects are
+ * linked in format 3.0 and libraries are converted afterwards.
+ * The code is copied as is, names and strings are moved to the
+ * string table, tables and counts are written as varints and
+ * relocation tables are dropped. Libraries of format 2.x are
+ * converted too, object files with unresolved symbols are not.
+ *
+ * @author Sergey Basalaev
+ */
+public final class EtherCompactor {
+
+	private static final String USAGE = "Usage: EtherCompactor <library> <output>";
+
+	/** Entry of the constant pool. */
+	private static final class Entry {
+		int type;
+		/** Value of constant, name of function or external function. */
+		Object value;
+		int libref;
+		int fflags;
+		int stacksize;
+		int localsize;
+		byte[] code;
+		char[] dbgtable;
+		char[] errtable;
+	}
+
+	private int lflags;
+	private String soname;
+	private String[] deps = new String[0];
+	private Entry[] cpool;
+	private final ArrayList<String> strings = new ArrayList<String>();
+	private final HashMap<String,Integer> stringIndices = new HashMap<String,Integer>();
+
+	private EtherCompactor() { }
+
+	public static void main(String[] args) {
+		if (args.length != 2) {
+			System.err.println(USAGE);
+			System.exit(1);
+		}
+		try {
+			EtherCompactor compactor = new EtherCompactor();
+			DataInputStream in = new DataInputStream(new FileInputStream(args[0]));
+			try {
+				compactor.read(in);
+			} finally {
+				in.close();
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			compactor.write(new DataOutputStream(bytes));
+			FileOutputStream out = new FileOutputStream(args[1]);
+			try {
+				bytes.writeTo(out);
+			} finally {
+				out.close();
+			}
+		} catch (Exception e) {
+			System.err.println("EtherCompactor: " + args[0] + ": " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/** Reads Ether library in the same way as the loader does. */
+	private void read(DataInputStream data) throws IOException {
+		if (data.readUnsignedShort() != 0xC0DE) throw new IOException("Not an Ether library");
+		int ver = data.readUnsignedShort();
+		if (!isCompatible(ver, EtherLoader.VERSION) && !isCompatible(ver, EtherLoader.COMPAT_VERSION)) {
+			throw new IOException("Incompatible executable format: " + ver);
+		}
+		boolean compact = ver >= EtherLoader.COMPACT_VERSION;
+		lflags = data.readUnsignedByte();
+		String[] table = null;
+		if (compact) {
+			table = new String[EtherLoader.readVarint(data)];
+			for (int i=0; i<table.length; i++) {
+				table[i] = data.readUTF();
+			}
+		}
+		if ((lflags & Opcodes.LFLAG_SONAME) != 0) {
+			soname = readString(data, table);
+		}
+		if ((lflags & Opcodes.LFLAG_DEPS) != 0) {
+			deps = new String[readCount(data, compact)];
+			for (int i=0; i<deps.length; i++) {
+				deps[i] = readString(data, table);
+			}
+		}
+		cpool = new Entry[readCount(data, compact)];
+		for (int cindex=0; cindex<cpool.length; cindex++) {
+			Entry e = new Entry();
+			e.type = data.readUnsignedByte();
+			switch (e.type) {
+				case '0':
+					break;
+				case 'i':
+					e.value = compact ? EtherLoader.readSignedVarint(data) : data.readInt();
+					break;
+				case 'l':
+					e.value = data.readLong();
+					break;
+				case 'f':
+					e.value = data.readFloat();
+					break;
+				case 'd':
+					e.value = data.readDouble();
+					break;
+				case 'S':
+					e.value = readString(data, table);
+					break;
+				case 'E':
+					e.libref = readCount(data, compact);
+					if (e.libref >= deps.length) throw new IOException("Invalid library reference");
+					e.value = readString(data, table);
+					break;
+				case 'P':
+					e.value = readString(data, table);
+					e.fflags = data.readUnsignedByte();
+					e.stacksize = data.readUnsignedByte();
+					e.localsize = data.readUnsignedByte();
+					e.code = new byte[readCount(data, compact)];
+					data.readFully(e.code);
+					if ((e.fflags & Opcodes.FFLAG_RELOCS) != 0) {
+						data.skipBytes(data.readUnsignedShort()*2);
+					}
+					if ((e.fflags & Opcodes.FFLAG_LNUM) != 0) {
+						e.dbgtable = compact ? EtherLoader.readLineTable(data) : readTable(data);
+					}
+					if ((e.fflags & Opcodes.FFLAG_ERRTBL) != 0) {
+						e.errtable = compact ? EtherLoader.readErrorTable(data) : readTable(data);
+					}
+					e.fflags &= ~Opcodes.FFLAG_RELOCS;
+					break;
+				case 'U':
+					throw new IOException("Unresolved symbol " + readString(data, table) + ", library is not linked");
+				default:
+					throw new IOException("Unknown data type: " + e.type);
+			}
+			cpool[cindex] = e;
+		}
+	}
+
+	/** Writes library in the compact format. */
+	private void write(DataOutputStream out) throws IOException {
+		if (soname != null) addString(soname);
+		for (int i=0; i<deps.length; i++) {
+			addString(deps[i]);
+		}
+		for (int cindex=0; cindex<cpool.length; cindex++) {
+			Entry e = cpool[cindex];
+			if (e.value instanceof String) addString((String)e.value);
+		}
+		out.writeShort(0xC0DE);
+		out.writeShort(EtherLoader.COMPACT_VERSION);
+		out.writeByte(lflags);
+		UnitWriter.writeVarint(out, strings.size());
+		for (int i=0; i<strings.size(); i++) {
+			out.writeUTF(strings.get(i));
+		}
+		if (soname != null) writeString(out, soname);
+		if ((lflags & Opcodes.LFLAG_DEPS) != 0) {
+			UnitWriter.writeVarint(out, deps.length);
+			for (int i=0; i<deps.length; i++) {
+				writeString(out, deps[i]);
+			}
+		}
+		UnitWriter.writeVarint(out, cpool.length);
+		for (int cindex=0; cindex<cpool.length; cindex++) {
+			Entry e = cpool[cindex];
+			out.writeByte(e.type);
+			switch (e.type) {
+				case 'i':
+					UnitWriter.writeSignedVarint(out, (Integer)e.value);
+					break;
+				case 'l':
+					out.writeLong((Long)e.value);
+					break;
+				case 'f':
+					out.writeFloat((Float)e.value);
+					break;
+				case 'd':
+					out.writeDouble((Double)e.value);
+					break;
+				case 'S':
+					writeString(out, (String)e.value);
+					break;
+				case 'E':
+					UnitWriter.writeVarint(out, e.libref);
+					writeString(out, (String)e.value);
+					break;
+				case 'P':
+					writeString(out, (String)e.value);
+					out.writeByte(e.fflags);
+					out.writeByte(e.stacksize);
+					out.writeByte(e.localsize);
+					UnitWriter.writeVarint(out, e.code.length);
+					out.write(e.code);
+					if (e.dbgtable != null) UnitWriter.writeLineTable(out, e.dbgtable);
+					if (e.errtable != null) UnitWriter.writeErrorTable(out, e.errtable);
+					break;
+			}
+		}
+	}
+
+	private void addString(String str) {
+		if (!stringIndices.containsKey(str)) {
+			stringIndices.put(str, strings.size());
+			strings.add(str);
+		}
+	}
+
+	private void writeString(DataOutputStream out, String str) throws IOException {
+		UnitWriter.writeVarint(out, stringIndices.get(str));
+	}
+
+	private static char[] readTable(DataInputStream data) throws IOException {
+		char[] table = new char[data.readUnsignedShort()];
+		for (int i=0; i<table.length; i++) {
+			table[i] = data.readChar();
+		}
+		return table;
+	}
+
+	private static String readString(DataInputStream data, String[] strings) throws IOException {
+		if (strings == null) return data.readUTF();
+		int index = EtherLoader.readVarint(data);
+		if (index >= strings.length) throw new IOException("Invalid string index " + index);
+		return strings[index];
+	}
+
+	private static int readCount(DataInputStream data, boolean compact) throws IOException {
+		return compact ? EtherLoader.readVarint(data) : data.readUnsignedShort();
+	}
+
+	private static boolean isCompatible(int ver, int supported) {
+		return (ver | 0xff) == (supported | 0xff)  &&  (ver & 0xff) <= (supported & 0xff);
+	}
+}
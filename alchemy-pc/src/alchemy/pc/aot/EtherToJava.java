@@ -0,0 +1,303 @@
+/*
+ * This file is a part of Alchemy OS project.
+ *  Copyright (C) 2011-2014, Sergey Basalaev <sbasalaev@gmail.com>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package alchemy.pc.aot;
+
+import alchemy.evm.EtherLoader;
+import alchemy.evm.Opcodes;
+import alchemy.types.Float32;
+import alchemy.types.Float64;
+import alchemy.types.Int32;
+import alchemy.types.Int64;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+
+/**
+ * Ahead-of-time translator of Ether libraries to Java.
+ * <p>
+ * Usage:
+ * <pre>
+ * java -cp alchemy.jar alchemy.pc.aot.EtherToJava &lt;library&gt; &lt;class&gt; [&lt;output&gt;]
+ * </pre>
+ * The result is the source of the subclass of
+ * {@link alchemy.evm.TranslatedLibrary} which defines the same
+ * functions as the library. Compiled into the build of Alchemy OS
+ * it replaces the Ether library when the latter is substituted by
+ * the native library file containing <code>#@classname</code>.
+ *
+ * @author Sergey Basalaev
+ */
+public final class EtherToJava {
+
+	private static final String USAGE = "Usage: EtherToJava <library> <class> [<output>]";
+
+	/** Reference to the function in the constant pool of the library. */
+	static final class Ref {
+		/** True for function of dependency library. */
+		final boolean external;
+		/** Index of the function or external function. */
+		final int index;
+
+		Ref(boolean external, int index) {
+			this.external = external;
+			this.index = index;
+		}
+	}
+
+	/** Function read from the library. */
+	private static final class Func {
+		String name;
+		boolean shared;
+		int stacksize;
+		int localsize;
+		int[] code;
+		char[] dbgtable;
+		char[] errtable;
+		/** Offsets in the library code, set if there is no debug info. */
+		char[] offsets;
+	}
+
+	private String soname;
+	private String[] deps = new String[0];
+	private Object[] cpool;
+	private final ArrayList<Func> funcs = new ArrayList<Func>();
+	private final ArrayList<Integer> extlibs = new ArrayList<Integer>();
+	private final ArrayList<String> extnames = new ArrayList<String>();
+
+	private EtherToJava() { }
+
+	public static void main(String[] args) {
+		if (args.length < 2 || args.length > 3) {
+			System.err.println(USAGE);
+			System.exit(1);
+		}
+		try {
+			EtherToJava translator = new EtherToJava();
+			DataInputStream in = new DataInputStream(new FileInputStream(args[0]));
+			try {
+				translator.read(in);
+			} finally {
+				in.close();
+			}
+			String source = translator.write(args[1]);
+			Writer out = new OutputStreamWriter((args.length == 3) ? new FileOutputStream(args[2]) : System.out, "UTF-8");
+			out.write(source);
+			out.close();
+		} catch (Exception e) {
+			System.err.println("EtherToJava: " + args[0] + ": " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/** Reads Ether library in the same way as the loader does. */
+	private void read(DataInputStream data) throws IOException {
+		if (data.readUnsignedShort() != 0xC0DE) throw new IOException("Not an Ether library");
+		int ver = data.readUnsignedShort();
+		if (!isCompatible(ver, EtherLoader.VERSION) && !isCompatible(ver, EtherLoader.COMPAT_VERSION)) {
+			throw new IOException("Incompatible executable format: " + ver);
+		}
+		boolean compact = ver >= EtherLoader.COMPACT_VERSION;
+		int lflags = data.readUnsignedByte();
+		String[] strings = null;
+		if (compact) {
+			strings = new String[EtherLoader.readVarint(data)];
+			for (int i=0; i<strings.length; i++) {
+				strings[i] = data.readUTF();
+			}
+		}
+		if ((lflags & Opcodes.LFLAG_SONAME) != 0) {
+			soname = readString(data, strings);
+		}
+		if ((lflags & Opcodes.LFLAG_DEPS) != 0) {
+			deps = new String[readCount(data, compact)];
+			for (int i=0; i<deps.length; i++) {
+				deps[i] = readString(data, strings);
+			}
+		}
+		cpool = new Object[readCount(data, compact)];
+		for (int cindex=0; cindex<cpool.length; cindex++) {
+			int ctype = data.readUnsignedByte();
+			switch (ctype) {
+				case '0':
+					break;
+				case 'i':
+					cpool[cindex] = Int32.toInt32(compact ? EtherLoader.readSignedVarint(data) : data.readInt());
+					break;
+				case 'l':
+					cpool[cindex] = new Int64(data.readLong());
+					break;
+				case 'f':
+					cpool[cindex] = new Float32(data.readFloat());
+					break;
+				case 'd':
+					cpool[cindex] = new Float64(data.readDouble());
+					break;
+				case 'S':
+					cpool[cindex] = readString(data, strings);
+					break;
+				case 'E': {
+					int libref = readCount(data, compact);
+					if (libref >= deps.length) throw new IOException("Invalid library reference");
+					cpool[cindex] = new Ref(true, extnames.size());
+					extlibs.add(libref);
+					extnames.add(readString(data, strings));
+					break;
+				}
+				case 'P': {
+					Func f = new Func();
+					f.name = readString(data, strings);
+					int fflags = data.readUnsignedByte();
+					f.shared = (fflags & Opcodes.FFLAG_SHARED) != 0;
+					f.stacksize = data.readUnsignedByte();
+					f.localsize = data.readUnsignedByte();
+					byte[] code = new byte[readCount(data, compact)];
+					data.readFully(code);
+					if ((fflags & Opcodes.FFLAG_RELOCS) != 0) {
+						data.skipBytes(data.readUnsignedShort()*2);
+					}
+					if ((fflags & Opcodes.FFLAG_LNUM) != 0) {
+						f.dbgtable = compact ? EtherLoader.readLineTable(data) : readTable(data);
+					}
+					if ((fflags & Opcodes.FFLAG_ERRTBL) != 0) {
+						f.errtable = compact ? EtherLoader.readErrorTable(data) : readTable(data);
+					}
+					try {
+						int[] map = new int[code.length+1];
+						f.code = EtherLoader.decode(code, f.dbgtable, f.errtable, map);
+						if (f.dbgtable == null) f.offsets = EtherLoader.codeOffsets(map, f.code.length);
+					} catch (InstantiationException ie) {
+						throw new IOException(f.name + ": " + ie.getMessage());
+					}
+					cpool[cindex] = new Ref(false, funcs.size());
+					funcs.add(f);
+					break;
+				}
+				default:
+					throw new IOException("Unknown data type: " + ctype);
+			}
+		}
+	}
+
+	private static char[] readTable(DataInputStream data) throws IOException {
+		char[] table = new char[data.readUnsignedShort()];
+		for (int i=0; i<table.length; i++) {
+			table[i] = data.readChar();
+		}
+		return table;
+	}
+
+	private static String readString(DataInputStream data, String[] strings) throws IOException {
+		if (strings == null) return data.readUTF();
+		int index = EtherLoader.readVarint(data);
+		if (index >= strings.length) throw new IOException("Invalid string index " + index);
+		return strings[index];
+	}
+
+	private static int readCount(DataInputStream data, boolean compact) throws IOException {
+		return compact ? EtherLoader.readVarint(data) : data.readUnsignedShort();
+	}
+
+	private static boolean isCompatible(int ver, int supported) {
+		return (ver | 0xff) == (supported | 0xff)  &&  (ver & 0xff) <= (supported & 0xff);
+	}
+
+	/** Returns name of the method implementing function with given index. */
+	static String method(int index) {
+		return "f" + index;
+	}
+
+	/** Returns Java source of the library class. */
+	private String write(String classname) throws IOException {
+		int dot = classname.lastIndexOf('.');
+		String pkg = (dot > 0) ? classname.substring(0, dot) : null;
+		String simplename = classname.substring(dot+1);
+		StringBuilder src = new StringBuilder();
+		src.append("/* Generated by EtherToJava from ").append((soname != null) ? soname : "Ether library").append(", do not edit. */\n\n");
+		if (pkg != null) src.append("package ").append(pkg).append(";\n\n");
+		src.append("import alchemy.evm.TranslatedLibrary;\n");
+		src.append("import alchemy.system.AlchemyException;\n");
+		src.append("import alchemy.system.Function;\n");
+		src.append("import alchemy.system.Process;\n");
+		src.append("import alchemy.system.ProcessKilledException;\n");
+		src.append("import alchemy.types.Float32;\n");
+		src.append("import alchemy.types.Float64;\n");
+		src.append("import alchemy.types.Int32;\n");
+		src.append("import alchemy.types.Int64;\n");
+		src.append("import alchemy.util.Arrays;\n");
+		src.append("import alchemy.util.Strings;\n\n");
+		src.append("public final class ").append(simplename).append(" extends TranslatedLibrary {\n\n");
+		// constructor
+		src.append("\tpublic ").append(simplename).append("() {\n");
+		src.append("\t\tsuper(").append((soname != null) ? SourceTranslator.quote(soname) : "null").append(",\n");
+		src.append("\t\t\tnew String[] {");
+		for (int i=0; i<deps.length; i++) {
+			if (i > 0) src.append(", ");
+			src.append(SourceTranslator.quote(deps[i]));
+		}
+		src.append("},\n\t\t\tnew String[] {");
+		for (int i=0; i<funcs.size(); i++) {
+			if (i > 0) src.append(", ");
+			src.append(SourceTranslator.quote(funcs.get(i).name));
+		}
+		src.append("},\n\t\t\tnew boolean[] {");
+		for (int i=0; i<funcs.size(); i++) {
+			if (i > 0) src.append(", ");
+			src.append(funcs.get(i).shared);
+		}
+		src.append("},\n\t\t\tnew int[] {");
+		for (int i=0; i<extlibs.size(); i++) {
+			if (i > 0) src.append(", ");
+			src.append(extlibs.get(i));
+		}
+		src.append("},\n\t\t\tnew String[] {");
+		for (int i=0; i<extnames.size(); i++) {
+			if (i > 0) src.append(", ");
+			src.append(SourceTranslator.quote(extnames.get(i)));
+		}
+		src.append("});\n");
+		src.append("\t}\n\n");
+		// dispatcher
+		src.append("\tprotected Object invokeFunction(int index, Process p, Object[] args) throws AlchemyException, ProcessKilledException {\n");
+		src.append("\t\tswitch (index) {\n");
+		for (int i=0; i<funcs.size(); i++) {
+			src.append("\t\t\tcase ").append(i).append(": return ").append(method(i)).append("(p, args);\n");
+		}
+		src.append("\t\t\tdefault: return null;\n");
+		src.append("\t\t}\n");
+		src.append("\t}\n");
+		// functions
+		for (int i=0; i<funcs.size(); i++) {
+			Func f = funcs.get(i);
+			String body;
+			try {
+				body = new SourceTranslator(i, cpool, f.code, f.stacksize, f.localsize, f.dbgtable, f.errtable, f.offsets).translate(method(i));
+			} catch (RuntimeException e) {
+				throw new IOException(f.name + ": " + e.getMessage());
+			}
+			src.append("\n\t/* ").append(f.name.replace("*/", "* /")).append(" */\n");
+			src.append(body);
+		}
+		src.append("}\n");
+		return src.toString();
+	}
+}
@@ -0,0 +1,1162 @@
+/*
+ * This file is a part of Alchemy OS project.
+ *  Copyright (C) 2011-2014, Sergey Basalaev <sbasalaev@gmail.com>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package alchemy.pc.aot;
+
+import alchemy.evm.Opcodes;
+import alchemy.types.Float32;
+import alchemy.types.Float64;
+import alchemy.types.Int32;
+import alchemy.types.Int64;
+import java.util.Arrays;
+
+/**
+ * Translates code of Ether function to the Java method.
+ * <p>
+ * Like the JIT, translation is done in two passes over the
+ * same code. The first pass infers types of stack slots and
+ * local variables, the second one writes Java statements.
+ * Every stack slot becomes a Java variable per type of values
+ * it holds, so int, long, float and double values stay unboxed.
+ * Functions with jumps are translated to the switch on the
+ * current position inside an infinite loop, a jump assigns
+ * the position and continues the loop.
+ * <p>
+ * Generated code is compatible with Java 1.3 so it can be
+ * compiled for both PC and J2ME builds.
+ *
+ * @author Sergey Basalaev
+ */
+final class SourceTranslator {
+
+	/* Types of values. */
+	private static final byte NONE = 0;
+	private static final byte I = 1;
+	private static final byte J = 2;
+	private static final byte F = 3;
+	private static final byte D = 4;
+	private static final byte A = 5;
+
+	private static final String[] JAVA_TYPES = {null, "int", "long", "float", "double", "Object"};
+	private static final String[] PREFIXES = {null, "i", "l", "f", "d", "a"};
+	private static final String[] DEFAULTS = {null, "0", "0L", "0f", "0d", "null"};
+	private static final String[] ARGS = {null, "iarg", "larg", "farg", "darg", "arg"};
+
+	private final int findex;
+	private final Object[] cpool;
+	private final int[] code;
+	private final int localsize;
+	private final char[] dbgtable;
+	private final char[] errtable;
+	private final char[] offsets;
+
+	/** True for indices at which instructions start. */
+	private final boolean[] starts;
+	/** True for instructions that are reached by jumps. */
+	private final boolean[] targets;
+	/** Types of stack slots at the start of instructions, null if not reached. */
+	private byte[][] entries;
+	/** Types of local variables. */
+	private final byte[] ltypes;
+	private boolean localsChanged;
+
+	private int[] worklist;
+	private int workcount;
+
+	/** True on the writing pass. */
+	private boolean emitting;
+	/** True if function is translated as a loop over switch. */
+	private boolean looping;
+	private StringBuilder out;
+	private String indent;
+	/** Java variables used for stack slots and temporaries. */
+	private boolean[][] used;
+	private boolean[] temps;
+
+	/* Current state of translation. */
+	private byte[] stack;
+	private int sp;
+	private int pc;
+	private boolean falls;
+
+	/** Maximal depth of the stack, register instructions need some more. */
+	private final int depth;
+
+	/**
+	 * Creates translator of the function.
+	 * Function constants in the pool are represented by
+	 * {@link EtherToJava.Ref} objects.
+	 */
+	SourceTranslator(int findex, Object[] cpool, int[] code, int stacksize, int localsize, char[] dbgtable, char[] errtable, char[] offsets) {
+		this.findex = findex;
+		this.cpool = cpool;
+		this.code = code;
+		this.localsize = localsize;
+		this.dbgtable = dbgtable;
+		this.errtable = errtable;
+		this.offsets = offsets;
+		this.starts = new boolean[code.length+1];
+		this.targets = new boolean[code.length+1];
+		this.ltypes = new byte[localsize];
+		this.depth = stacksize + 4;
+	}
+
+	/**
+	 * Returns the source of the Java method implementing the function.
+	 * @throws UnsupportedOperationException if function cannot be translated
+	 */
+	String translate(String method) {
+		for (int ct=0; ct < code.length; ct += insnLength(ct)) {
+			starts[ct] = true;
+		}
+		if (errtable != null) {
+			for (int i=0; i < errtable.length; i += 4) {
+				checkTarget(errtable[i+2]);
+				targets[errtable[i+2]] = true;
+			}
+		}
+		// inferring types
+		do {
+			localsChanged = false;
+			startPass();
+			entries = new byte[code.length][];
+			worklist = new int[16];
+			workcount = 0;
+			stack = new byte[0];
+			sp = 0;
+			merge(0);
+			if (errtable != null) {
+				for (int i=0; i < errtable.length; i += 4) {
+					stack = new byte[] {A};
+					sp = 1;
+					merge(errtable[i+2]);
+				}
+			}
+			while (workcount > 0) {
+				workcount--;
+				pc = worklist[workcount];
+				stack = Arrays.copyOf(entries[pc], depth);
+				sp = entries[pc].length;
+				translateInsn();
+				if (falls) merge(pc + insnLength(pc));
+			}
+		} while (localsChanged);
+		// writing
+		emitting = true;
+		for (int i=0; i<code.length; i++) {
+			if (targets[i]) looping = true;
+		}
+		startPass();
+		String body = emitBody();
+		StringBuilder sb = new StringBuilder();
+		sb.append("\tprivate Object ").append(method).append("(Process p, Object[] args) throws AlchemyException, ProcessKilledException {\n");
+		sb.append("\t\tif (p.killed) throw new ProcessKilledException();\n");
+		for (int i=0; i<localsize; i++) {
+			byte type = localType(i);
+			sb.append("\t\t").append(JAVA_TYPES[type]).append(' ').append(local(i)).append(" = ").append(ARGS[type]).append("(args, ").append(i).append(");\n");
+		}
+		for (byte type=I; type<=A; type++) {
+			StringBuilder decl = new StringBuilder();
+			for (int i=0; i<depth; i++) {
+				if (used[type][i]) {
+					decl.append((decl.length() == 0) ? "\t\t" + JAVA_TYPES[type] + ' ' : ", ");
+					decl.append(PREFIXES[type]).append(i).append(" = ").append(DEFAULTS[type]);
+				}
+			}
+			if (temps[type]) {
+				decl.append((decl.length() == 0) ? "\t\t" + JAVA_TYPES[type] + ' ' : ", ");
+				decl.append('t').append(PREFIXES[type]).append(" = ").append(DEFAULTS[type]);
+			}
+			if (decl.length() > 0) sb.append(decl).append(";\n");
+		}
+		sb.append("\t\tint ln = 0;\n");
+		if (looping) sb.append("\t\tint pc = 0;\n");
+		if (errtable != null) sb.append("\t\tint eh = -1;\n");
+		sb.append(body);
+		sb.append("\t}\n");
+		return sb.toString();
+	}
+
+	private void startPass() {
+		out = new StringBuilder();
+		indent = "";
+		used = new boolean[A+1][depth];
+		temps = new boolean[A+1];
+	}
+
+	/** Writes the body of the method and the handling of errors. */
+	private String emitBody() {
+		String info = (dbgtable != null)
+				? quote(String.valueOf(cpool[dbgtable[0]]) + ':') + " + ln"
+				: "\"+\" + ln";
+		String trace = "trace(t, functions[" + findex + "], " + info + ")";
+		StringBuilder body = new StringBuilder();
+		if (!looping) {
+			indent = "\t\t\t";
+			emitCode();
+			body.append("\t\ttry {\n");
+			body.append(out);
+			body.append("\t\t} catch (Throwable t) {\n");
+			body.append("\t\t\tthrow ").append(trace).append(";\n");
+			body.append("\t\t}\n");
+		} else if (errtable == null) {
+			indent = "\t\t\t\t\t\t";
+			emitCode();
+			body.append("\t\ttry {\n");
+			body.append("\t\t\tfor (;;) {\n");
+			body.append("\t\t\t\tswitch (pc) {\n");
+			body.append(out);
+			body.append("\t\t\t\t}\n");
+			body.append("\t\t\t}\n");
+			body.append("\t\t} catch (Throwable t) {\n");
+			body.append("\t\t\tthrow ").append(trace).append(";\n");
+			body.append("\t\t}\n");
+		} else {
+			indent = "\t\t\t\t\t\t";
+			emitCode();
+			body.append("\t\tfor (;;) {\n");
+			body.append("\t\t\ttry {\n");
+			body.append("\t\t\t\tswitch (pc) {\n");
+			body.append(out);
+			body.append("\t\t\t\t}\n");
+			body.append("\t\t\t} catch (Throwable t) {\n");
+			body.append("\t\t\t\tAlchemyException e = ").append(trace).append(";\n");
+			body.append("\t\t\t\tif (eh < 0) throw e;\n");
+			body.append("\t\t\t\ta0 = e;\n");
+			body.append("\t\t\t\tpc = eh;\n");
+			body.append("\t\t\t}\n");
+			body.append("\t\t}\n");
+			used[A][0] = true;
+		}
+		return body.toString();
+	}
+
+	/** Writes statements for all reachable instructions. */
+	private void emitCode() {
+		int line = -1;
+		int handler = -2;
+		boolean prevFalls = true;
+		stack = new byte[depth];
+		sp = 0;
+		for (pc=0; pc < code.length; pc += insnLength(pc)) {
+			byte[] entry = entries[pc];
+			if (entry == null) {
+				prevFalls = false;
+				continue;
+			}
+			if (looping && (targets[pc] || pc == 0)) {
+				if (prevFalls) convertTo(entry);
+				out.append(indent, 1, indent.length()).append("case ").append(pc).append(":\n");
+				line = -1;
+				handler = -2;
+			}
+			System.arraycopy(entry, 0, stack, 0, entry.length);
+			sp = entry.length;
+			int ct = pc + insnLength(pc) - 1;
+			int newline = lineOf(ct);
+			if (newline != line) {
+				stmt("ln = " + newline + ';');
+				line = newline;
+			}
+			if (errtable != null) {
+				int newhandler = handlerOf(ct);
+				if (newhandler != handler) {
+					stmt("eh = " + newhandler + ';');
+					handler = newhandler;
+				}
+			}
+			translateInsn();
+			prevFalls = falls;
+		}
+		if (prevFalls) throw new UnsupportedOperationException("Falling off the code");
+	}
+
+	/**
+	 * Returns source line for the instruction ending at given index.
+	 * If there is no debug info, returns its offset in the library code
+	 * as the interpreter does.
+	 */
+	private int lineOf(int ct) {
+		if (dbgtable == null) return offsets[ct];
+		int line = 0;
+		for (int i=1; i<dbgtable.length; i += 2) {
+			if (dbgtable[i+1] <= ct) line = dbgtable[i];
+		}
+		return line;
+	}
+
+	/** Returns handler covering the instruction ending at given index or -1. */
+	private int handlerOf(int ct) {
+		for (int i=0; i < errtable.length; i += 4) {
+			if (ct >= errtable[i] && ct <= errtable[i+1]) return errtable[i+2];
+		}
+		return -1;
+	}
+
+	private void checkTarget(int target) {
+		if (target < 0 || target >= code.length || !starts[target]) {
+			throw new UnsupportedOperationException("Invalid jump target");
+		}
+	}
+
+	/** Merges current stack types into the entry of given instruction. */
+	private void merge(int target) {
+		checkTarget(target);
+		byte[] entry = entries[target];
+		boolean changed = false;
+		if (entry == null) {
+			entries[target] = Arrays.copyOf(stack, sp);
+			changed = true;
+		} else {
+			if (entry.length != sp) throw new UnsupportedOperationException("Stack depth mismatch");
+			for (int i=0; i<sp; i++) {
+				if (entry[i] != stack[i] && entry[i] != A) {
+					entry[i] = A;
+					changed = true;
+				}
+			}
+		}
+		if (changed) {
+			if (workcount == worklist.length) worklist = Arrays.copyOf(worklist, workcount*2);
+			worklist[workcount] = target;
+			workcount++;
+		}
+	}
+
+	/** Writes jump to the instruction, polling process state on backward jumps. */
+	private void jump(int target) {
+		checkTarget(target);
+		if (!emitting) {
+			targets[target] = true;
+			merge(target);
+			return;
+		}
+		convertTo(entries[target]);
+		if (target <= pc) stmt("if (p.killed) throw new ProcessKilledException();");
+		stmt("pc = " + target + ';');
+		stmt("continue;");
+	}
+
+	/** Writes conditional jump to the instruction. */
+	private void jumpIf(String cond, int target) {
+		stmt("if (" + cond + ") {");
+		String oldindent = indent;
+		indent += '\t';
+		byte[] saved = Arrays.copyOf(stack, sp);
+		jump(target);
+		System.arraycopy(saved, 0, stack, 0, saved.length);
+		indent = oldindent;
+		stmt("}");
+	}
+
+	private void stmt(String s) {
+		out.append(indent).append(s).append('\n');
+	}
+
+	/* TYPES AND VARIABLES */
+
+	private byte localType(int index) {
+		byte type = ltypes[index];
+		return (type == NONE) ? A : type;
+	}
+
+	private static String local(int index) {
+		return "v" + index;
+	}
+
+	/** Returns name of the Java variable for the stack slot with given type. */
+	private String slot(byte type, int index) {
+		used[type][index] = true;
+		return PREFIXES[type] + index;
+	}
+
+	private String temp(byte type) {
+		temps[type] = true;
+		return "t" + PREFIXES[type];
+	}
+
+	/** Converts Java expression between types. */
+	private static String convert(String expr, byte from, byte to) {
+		if (from == to) return expr;
+		if (to == A) {
+			if (from == I) return "Int32.toInt32(" + expr + ')';
+			return "box(" + expr + ')';
+		}
+		if (from == A) {
+			switch (to) {
+				case I: return "((Int32)" + expr + ").value";
+				case J: return "((Int64)" + expr + ").value";
+				case F: return "((Float32)" + expr + ").value";
+				case D: return "((Float64)" + expr + ").value";
+			}
+		}
+		throw new UnsupportedOperationException("Type mismatch");
+	}
+
+	/** Returns value of the stack slot converted to given type. */
+	private String value(int index, byte want) {
+		if (index < 0) throw new UnsupportedOperationException("Stack underflow");
+		return convert(slot(stack[index], index), stack[index], want);
+	}
+
+	/** Pops value of the given type. */
+	private String pop(byte want) {
+		String v = value(sp-1, want);
+		sp--;
+		return v;
+	}
+
+	/** Pushes value of the expression. */
+	private void push(byte type, String expr) {
+		if (sp >= depth) throw new UnsupportedOperationException("Stack overflow");
+		stack[sp] = type;
+		stmt(slot(type, sp) + " = " + expr + ';');
+		sp++;
+	}
+
+	/** Converts the whole stack to given types. */
+	private void convertTo(byte[] entry) {
+		if (entry.length != sp) throw new UnsupportedOperationException("Stack depth mismatch");
+		for (int i=0; i<sp; i++) {
+			if (stack[i] != entry[i]) {
+				stmt(slot(entry[i], i) + " = " + value(i, entry[i]) + ';');
+			}
+		}
+	}
+
+	/* LOCALS */
+
+	private String load(int index, byte want) {
+		checkLocal(index);
+		return convert(local(index), localType(index), want);
+	}
+
+	private void load(int index) {
+		checkLocal(index);
+		push(localType(index), local(index));
+	}
+
+	/** Stores value of the expression with given type in the local. */
+	private void store(int index, byte type, String expr) {
+		checkLocal(index);
+		if (!emitting) {
+			byte old = ltypes[index];
+			if (old != type && old != A) {
+				ltypes[index] = (old == NONE) ? type : A;
+				localsChanged = true;
+			}
+		}
+		stmt(local(index) + " = " + convert(expr, type, localType(index)) + ';');
+	}
+
+	private void store(int index) {
+		byte type = stack[sp-1];
+		store(index, type, pop(type));
+	}
+
+	private void iinc(int index, int inc) {
+		checkLocal(index);
+		if (localType(index) == I) {
+			stmt(local(index) + " += " + inc + ';');
+		} else {
+			store(index, I, load(index, I) + " + " + inc);
+		}
+		if (!emitting && ltypes[index] != I && ltypes[index] != A) {
+			ltypes[index] = (ltypes[index] == NONE) ? I : A;
+			localsChanged = true;
+		}
+	}
+
+	private void checkLocal(int index) {
+		if (index < 0 || index >= localsize) throw new UnsupportedOperationException("Invalid local");
+	}
+
+	/* OPERATIONS */
+
+	private void binary(byte type, String op) {
+		String b = pop(type);
+		String a = pop(type);
+		push(type, a + ' ' + op + ' ' + b);
+	}
+
+	private void shift(byte type, String op) {
+		String b = pop(I);
+		String a = pop(type);
+		push(type, a + ' ' + op + ' ' + b);
+	}
+
+	private void unary(byte type, String op) {
+		push(type, op + pop(type));
+	}
+
+	private void conversion(byte from, byte to, String cast) {
+		push(to, cast + pop(from));
+	}
+
+	/** Ether comparison, sign of the difference. */
+	private void compare(byte type) {
+		String b = pop(type);
+		String a = pop(type);
+		push(I, "cmp(" + a + " - " + b + ')');
+	}
+
+	private void register(byte type, String op) {
+		String a = load(code[pc+2], type);
+		String b = load(code[pc+3], type);
+		store(code[pc+1], type, a + ' ' + op + ' ' + b);
+	}
+
+	private void branch(byte type, String cond, int target) {
+		jumpIf(pop(type) + cond, target);
+	}
+
+	private void icmpBranch(String op, int target) {
+		String b = pop(I);
+		String a = pop(I);
+		jumpIf(a + ' ' + op + ' ' + b, target);
+	}
+
+	private void acmpBranch(boolean eq, int target) {
+		byte t1 = stack[sp-2];
+		byte t2 = stack[sp-1];
+		if (t1 == t2 && (t1 == I || t1 == J)) {
+			String b = pop(t2);
+			String a = pop(t1);
+			jumpIf(a + (eq ? " == " : " != ") + b, target);
+		} else {
+			String b = pop(A);
+			String a = pop(A);
+			jumpIf((eq ? "equal(" : "!equal(") + a + ", " + b + ')', target);
+		}
+	}
+
+	private void ldc(int index) {
+		if (index < 0 || index >= cpool.length) throw new UnsupportedOperationException("Invalid constant");
+		Object cnst = cpool[index];
+		if (cnst instanceof Int32) {
+			push(I, String.valueOf(((Int32)cnst).value));
+		} else if (cnst instanceof Int64) {
+			push(J, ((Int64)cnst).value + "L");
+		} else if (cnst instanceof Float32) {
+			push(F, floatLiteral(((Float32)cnst).value));
+		} else if (cnst instanceof Float64) {
+			push(D, doubleLiteral(((Float64)cnst).value));
+		} else if (cnst instanceof String) {
+			push(A, quote((String)cnst));
+		} else if (cnst instanceof EtherToJava.Ref) {
+			push(A, function((EtherToJava.Ref)cnst));
+		} else {
+			push(A, "null");
+		}
+	}
+
+	/** Returns expression yielding function object. */
+	private static String function(EtherToJava.Ref ref) {
+		if (ref.external) return "extern(p, " + ref.index + ')';
+		return "functions[" + ref.index + ']';
+	}
+
+	/**
+	 * Calls function with arguments on top of the stack.
+	 * Function is either below arguments or in the constant pool.
+	 * Functions of this library are called directly.
+	 */
+	private void call(int nargs, int cindex, boolean discard) {
+		int argbase = sp - nargs;
+		String[] args = new String[nargs];
+		for (int i=0; i<nargs; i++) {
+			args[i] = value(argbase+i, A);
+		}
+		sp = argbase;
+		String expr;
+		if (cindex >= 0) {
+			if (cindex >= cpool.length || !(cpool[cindex] instanceof EtherToJava.Ref)) {
+				throw new UnsupportedOperationException("Invalid constant");
+			}
+			EtherToJava.Ref ref = (EtherToJava.Ref)cpool[cindex];
+			if (!ref.external) {
+				expr = EtherToJava.method(ref.index) + "(p, " + argArray(args) + ')';
+			} else {
+				expr = invoke(function(ref), args);
+			}
+		} else {
+			expr = invoke("((Function)" + pop(A) + ')', args);
+		}
+		if (discard) {
+			stmt(expr + ';');
+		} else {
+			push(A, expr);
+		}
+	}
+
+	private static String invoke(String func, String[] args) {
+		if (args.length > 3) return func + ".invoke(p, " + argArray(args) + ')';
+		StringBuilder expr = new StringBuilder(func);
+		expr.append(".invoke").append(args.length).append("(p");
+		for (int i=0; i<args.length; i++) {
+			expr.append(", ").append(args[i]);
+		}
+		return expr.append(')').toString();
+	}
+
+	private static String argArray(String[] args) {
+		if (args.length == 0) return "new Object[0]";
+		StringBuilder expr = new StringBuilder("new Object[] {");
+		for (int i=0; i<args.length; i++) {
+			if (i > 0) expr.append(", ");
+			expr.append(args[i]);
+		}
+		return expr.append('}').toString();
+	}
+
+	private void newArray(String type) {
+		push(A, "new " + type + '[' + pop(I) + ']');
+	}
+
+	private void arrayLoad(String type, byte elem) {
+		String index = pop(I);
+		String array = pop(A);
+		if (type.equals("boolean")) {
+			push(I, "((boolean[])" + array + ")[" + index + "] ? 1 : 0");
+		} else {
+			push(elem, "((" + type + "[])" + array + ")[" + index + ']');
+		}
+	}
+
+	private void arrayStore(String type, byte elem) {
+		String value = pop(elem);
+		String index = pop(I);
+		String array = pop(A);
+		if (type.equals("boolean")) {
+			value = value + " != 0";
+		} else if (type.equals("byte") || type.equals("char") || type.equals("short")) {
+			value = '(' + type + ')' + value;
+		}
+		stmt("((" + type + "[])" + array + ")[" + index + "] = " + value + ';');
+	}
+
+	private void arrayLength(String type) {
+		push(I, "((" + type + "[])" + pop(A) + ").length");
+	}
+
+	private void newMultiArray(int dim, int type) {
+		if (dim < 2) throw new UnsupportedOperationException("Invalid dimension");
+		String[] sizes = new String[dim];
+		for (int i=dim-1; i>=0; i--) {
+			sizes[i] = pop(I);
+		}
+		StringBuilder expr = new StringBuilder("Arrays.newMultiArray(new int[] {");
+		for (int i=0; i<dim; i++) {
+			if (i > 0) expr.append(", ");
+			expr.append(sizes[i]);
+		}
+		push(A, expr.append("}, ").append(type).append(')').toString());
+	}
+
+	private void concat(int n) {
+		int base = sp - n;
+		if (n < 1 || base < 0) throw new UnsupportedOperationException("Stack underflow");
+		StringBuilder expr = new StringBuilder("new StringBuffer()");
+		for (int i=0; i<n; i++) {
+			expr.append(".append(Strings.toString(").append(value(base+i, A)).append("))");
+		}
+		sp = base;
+		push(A, expr.append(".toString()").toString());
+	}
+
+	private void global(int nargs, boolean set) {
+		String dflt = (nargs == 2) ? pop(A) : "null";
+		String name = pop(A);
+		if (set) {
+			stmt("p.setGlobal(this, (String)" + name + ", " + dflt + ");");
+		} else {
+			push(A, "p.getGlobal(this, (String)" + name + ", " + dflt + ')');
+		}
+	}
+
+	private void dup() {
+		byte t = stack[sp-1];
+		push(t, slot(t, sp-1));
+	}
+
+	private void dup2() {
+		byte t1 = stack[sp-2];
+		byte t2 = stack[sp-1];
+		push(t1, slot(t1, sp-2));
+		push(t2, slot(t2, sp-2));
+	}
+
+	private void swap() {
+		byte t1 = stack[sp-2];
+		byte t2 = stack[sp-1];
+		stmt(temp(t1) + " = " + slot(t1, sp-2) + ';');
+		stmt(slot(t2, sp-2) + " = " + slot(t2, sp-1) + ';');
+		stmt(slot(t1, sp-1) + " = " + temp(t1) + ';');
+		stack[sp-2] = t2;
+		stack[sp-1] = t1;
+	}
+
+	private void tableswitch() {
+		int dflt = code[pc+1];
+		int min = code[pc+2];
+		int max = code[pc+3];
+		String key = pop(I);
+		int[] keys = new int[max-min+1];
+		int[] jumps = new int[max-min+1];
+		for (int i=0; i<keys.length; i++) {
+			keys[i] = min + i;
+			jumps[i] = code[pc+4+i];
+		}
+		switchJump(key, keys, jumps, keys.length, dflt);
+	}
+
+	private void lookupswitch() {
+		int dflt = code[pc+1];
+		int count = code[pc+2];
+		String key = pop(I);
+		// the first occurence of a key wins
+		int[] keys = new int[count];
+		int[] jumps = new int[count];
+		int npairs = 0;
+		for (int i=0; i<count; i++) {
+			int k = code[pc+3+i*2];
+			boolean dup = false;
+			for (int j=0; j<npairs; j++) {
+				if (keys[j] == k) dup = true;
+			}
+			if (!dup) {
+				keys[npairs] = k;
+				jumps[npairs] = code[pc+4+i*2];
+				npairs++;
+			}
+		}
+		switchJump(key, keys, jumps, npairs, dflt);
+	}
+
+	private void switchJump(String key, int[] keys, int[] jumps, int count, int dflt) {
+		boolean backward = dflt <= pc;
+		for (int i=0; i<count; i++) {
+			if (jumps[i] <= pc) backward = true;
+		}
+		if (backward && emitting) stmt("if (p.killed) throw new ProcessKilledException();");
+		stmt("switch (" + key + ") {");
+		String oldindent = indent;
+		byte[] saved = Arrays.copyOf(stack, sp);
+		for (int i=0; i<=count; i++) {
+			if (i < count) {
+				stmt("\tcase " + keys[i] + ':');
+			} else {
+				stmt("\tdefault:");
+			}
+			indent = oldindent + "\t\t";
+			int target = (i < count) ? jumps[i] : dflt;
+			if (backward && emitting) {
+				// already polled
+				checkTarget(target);
+				convertTo(entries[target]);
+				stmt("pc = " + target + ';');
+				stmt("continue;");
+			} else {
+				jump(target);
+			}
+			System.arraycopy(saved, 0, stack, 0, saved.length);
+			indent = oldindent;
+		}
+		stmt("}");
+	}
+
+	/** Returns length of the instruction in the decoded code. */
+	private int insnLength(int at) {
+		int instr = code[at];
+		switch (instr) {
+			case Opcodes.LOAD: case Opcodes.STORE:
+			case Opcodes.BIPUSH: case Opcodes.SIPUSH: case Opcodes.LDC:
+			case Opcodes.CALL: case Opcodes.CALV: case Opcodes.CONCAT:
+			case Opcodes.IFEQ: case Opcodes.IFNE: case Opcodes.IFLT:
+			case Opcodes.IFGE: case Opcodes.IFGT: case Opcodes.IFLE:
+			case Opcodes.GOTO: case Opcodes.IFNULL: case Opcodes.IFNNULL:
+			case Opcodes.IF_ICMPLT: case Opcodes.IF_ICMPGE:
+			case Opcodes.IF_ICMPGT: case Opcodes.IF_ICMPLE:
+			case Opcodes.IF_ACMPEQ: case Opcodes.IF_ACMPNE:
+			case Opcodes.JSR: case Opcodes.GOTO_IINC:
+			case Opcodes.GETGLOBAL: case Opcodes.GETGLOBALDEF: case Opcodes.SETGLOBAL:
+			case Opcodes.CALL_0: case Opcodes.CALL_1: case Opcodes.CALL_2: case Opcodes.CALL_3:
+			case Opcodes.CALL_4: case Opcodes.CALL_5: case Opcodes.CALL_6: case Opcodes.CALL_7:
+			case Opcodes.CALV_0: case Opcodes.CALV_1: case Opcodes.CALV_2: case Opcodes.CALV_3:
+			case Opcodes.CALV_4: case Opcodes.CALV_5: case Opcodes.CALV_6: case Opcodes.CALV_7:
+				return 2;
+			case Opcodes.IINC: case Opcodes.NEWMULTIARRAY:
+			case Opcodes.CALLC: case Opcodes.CALVC: case Opcodes.MOVE_R:
+			case Opcodes.AALOAD_LL: case Opcodes.BALOAD_LL:
+			case Opcodes.CALOAD_LL: case Opcodes.IALOAD_LL:
+				return 3;
+			case Opcodes.IADDI_R:
+			case Opcodes.IF_ICMPLT_R: case Opcodes.IF_ICMPGE_R:
+			case Opcodes.IF_ICMPGT_R: case Opcodes.IF_ICMPLE_R:
+			case Opcodes.IF_ICMPLT_LI: case Opcodes.IF_ICMPGE_LI:
+			case Opcodes.IF_ICMPGT_LI: case Opcodes.IF_ICMPLE_LI:
+				return 4;
+			case Opcodes.TABLESWITCH:
+				return 4 + code[at+3] - code[at+2] + 1;
+			case Opcodes.LOOKUPSWITCH:
+				return 3 + code[at+2]*2;
+		}
+		if (instr >= Opcodes.IADD_R && instr <= Opcodes.DDIV_R) return 4;
+		if (instr >= Opcodes.CALLC_0 && instr <= Opcodes.CALVC_7) return 2;
+		return 1;
+	}
+
+	/** Translates instruction at <i>pc</i>. */
+	private void translateInsn() {
+		int instr = code[pc];
+		falls = true;
+		switch (instr) {
+			// constants
+			case Opcodes.ACONST_NULL: push(A, "null"); break;
+			case Opcodes.ICONST_M1: case Opcodes.ICONST_0: case Opcodes.ICONST_1:
+			case Opcodes.ICONST_2: case Opcodes.ICONST_3: case Opcodes.ICONST_4:
+			case Opcodes.ICONST_5:
+				push(I, String.valueOf(instr - Opcodes.ICONST_0));
+				break;
+			case Opcodes.LCONST_0: case Opcodes.LCONST_1:
+				push(J, (instr - Opcodes.LCONST_0) + "L");
+				break;
+			case Opcodes.FCONST_0: case Opcodes.FCONST_1: case Opcodes.FCONST_2:
+				push(F, (instr - Opcodes.FCONST_0) + "f");
+				break;
+			case Opcodes.DCONST_0: case Opcodes.DCONST_1:
+				push(D, (instr - Opcodes.DCONST_0) + "d");
+				break;
+			case Opcodes.BIPUSH: case Opcodes.SIPUSH:
+				push(I, String.valueOf(code[pc+1]));
+				break;
+			case Opcodes.LDC: ldc(code[pc+1]); break;
+
+			// conversions
+			case Opcodes.I2L: conversion(I, J, "(long)"); break;
+			case Opcodes.I2F: conversion(I, F, "(float)"); break;
+			case Opcodes.I2D: conversion(I, D, "(double)"); break;
+			case Opcodes.L2F: conversion(J, F, "(float)"); break;
+			case Opcodes.L2D: conversion(J, D, "(double)"); break;
+			case Opcodes.L2I: conversion(J, I, "(int)"); break;
+			case Opcodes.F2D: conversion(F, D, "(double)"); break;
+			case Opcodes.F2I: conversion(F, I, "(int)"); break;
+			case Opcodes.F2L: conversion(F, J, "(long)"); break;
+			case Opcodes.D2I: conversion(D, I, "(int)"); break;
+			case Opcodes.D2L: conversion(D, J, "(long)"); break;
+			case Opcodes.D2F: conversion(D, F, "(float)"); break;
+			case Opcodes.I2C: conversion(I, I, "(char)"); break;
+			case Opcodes.I2B: conversion(I, I, "(byte)"); break;
+			case Opcodes.I2S: conversion(I, I, "(short)"); break;
+
+			// arithmetics
+			case Opcodes.IADD: binary(I, "+"); break;
+			case Opcodes.ISUB: binary(I, "-"); break;
+			case Opcodes.IMUL: binary(I, "*"); break;
+			case Opcodes.IDIV: binary(I, "/"); break;
+			case Opcodes.IMOD: binary(I, "%"); break;
+			case Opcodes.INEG: unary(I, "-"); break;
+			case Opcodes.ICMP: compare(I); break;
+			case Opcodes.ISHL: shift(I, "<<"); break;
+			case Opcodes.ISHR: shift(I, ">>"); break;
+			case Opcodes.IUSHR: shift(I, ">>>"); break;
+			case Opcodes.IAND: binary(I, "&"); break;
+			case Opcodes.IOR: binary(I, "|"); break;
+			case Opcodes.IXOR: binary(I, "^"); break;
+			case Opcodes.LADD: binary(J, "+"); break;
+			case Opcodes.LSUB: binary(J, "-"); break;
+			case Opcodes.LMUL: binary(J, "*"); break;
+			case Opcodes.LDIV: binary(J, "/"); break;
+			case Opcodes.LMOD: binary(J, "%"); break;
+			case Opcodes.LNEG: unary(J, "-"); break;
+			case Opcodes.LCMP: compare(J); break;
+			case Opcodes.LSHL: shift(J, "<<"); break;
+			case Opcodes.LSHR: shift(J, ">>"); break;
+			case Opcodes.LUSHR: shift(J, ">>>"); break;
+			case Opcodes.LAND: binary(J, "&"); break;
+			case Opcodes.LOR: binary(J, "|"); break;
+			case Opcodes.LXOR: binary(J, "^"); break;
+			case Opcodes.FADD: binary(F, "+"); break;
+			case Opcodes.FSUB: binary(F, "-"); break;
+			case Opcodes.FMUL: binary(F, "*"); break;
+			case Opcodes.FDIV: binary(F, "/"); break;
+			case Opcodes.FMOD: binary(F, "%"); break;
+			case Opcodes.FNEG: unary(F, "-"); break;
+			case Opcodes.FCMP: compare(F); break;
+			case Opcodes.DADD: binary(D, "+"); break;
+			case Opcodes.DSUB: binary(D, "-"); break;
+			case Opcodes.DMUL: binary(D, "*"); break;
+			case Opcodes.DDIV: binary(D, "/"); break;
+			case Opcodes.DMOD: binary(D, "%"); break;
+			case Opcodes.DNEG: unary(D, "-"); break;
+			case Opcodes.DCMP: compare(D); break;
+
+			// locals
+			case Opcodes.LOAD_0: case Opcodes.LOAD_1: case Opcodes.LOAD_2: case Opcodes.LOAD_3:
+			case Opcodes.LOAD_4: case Opcodes.LOAD_5: case Opcodes.LOAD_6: case Opcodes.LOAD_7:
+				load(instr & 7);
+				break;
+			case Opcodes.LOAD: load(code[pc+1]); break;
+			case Opcodes.STORE_0: case Opcodes.STORE_1: case Opcodes.STORE_2: case Opcodes.STORE_3:
+			case Opcodes.STORE_4: case Opcodes.STORE_5: case Opcodes.STORE_6: case Opcodes.STORE_7:
+				store(instr & 7);
+				break;
+			case Opcodes.STORE: store(code[pc+1]); break;
+			case Opcodes.IINC: iinc(code[pc+1], code[pc+2]); break;
+
+			// register instructions
+			case Opcodes.IADD_R: register(I, "+"); break;
+			case Opcodes.ISUB_R: register(I, "-"); break;
+			case Opcodes.IMUL_R: register(I, "*"); break;
+			case Opcodes.IDIV_R: register(I, "/"); break;
+			case Opcodes.IMOD_R: register(I, "%"); break;
+			case Opcodes.ISHL_R: register(I, "<<"); break;
+			case Opcodes.ISHR_R: register(I, ">>"); break;
+			case Opcodes.IUSHR_R: register(I, ">>>"); break;
+			case Opcodes.IAND_R: register(I, "&"); break;
+			case Opcodes.IOR_R: register(I, "|"); break;
+			case Opcodes.IXOR_R: register(I, "^"); break;
+			case Opcodes.LADD_R: register(J, "+"); break;
+			case Opcodes.LSUB_R: register(J, "-"); break;
+			case Opcodes.LMUL_R: register(J, "*"); break;
+			case Opcodes.LDIV_R: register(J, "/"); break;
+			case Opcodes.LMOD_R: register(J, "%"); break;
+			case Opcodes.FADD_R: register(F, "+"); break;
+			case Opcodes.FSUB_R: register(F, "-"); break;
+			case Opcodes.FMUL_R: register(F, "*"); break;
+			case Opcodes.FDIV_R: register(F, "/"); break;
+			case Opcodes.DADD_R: register(D, "+"); break;
+			case Opcodes.DSUB_R: register(D, "-"); break;
+			case Opcodes.DMUL_R: register(D, "*"); break;
+			case Opcodes.DDIV_R: register(D, "/"); break;
+			case Opcodes.MOVE_R: {
+				checkLocal(code[pc+2]);
+				byte type = localType(code[pc+2]);
+				store(code[pc+1], type, local(code[pc+2]));
+				break;
+			}
+			case Opcodes.IADDI_R:
+				store(code[pc+1], I, load(code[pc+2], I) + " + " + code[pc+3]);
+				break;
+			case Opcodes.IF_ICMPLT_R: registerBranch("<"); break;
+			case Opcodes.IF_ICMPGE_R: registerBranch(">="); break;
+			case Opcodes.IF_ICMPGT_R: registerBranch(">"); break;
+			case Opcodes.IF_ICMPLE_R: registerBranch("<="); break;
+
+			// globals
+			case Opcodes.GETGLOBAL: global(1, false); break;
+			case Opcodes.GETGLOBALDEF: global(2, false); break;
+			case Opcodes.SETGLOBAL: global(2, true); break;
+
+			// branching
+			case Opcodes.IFEQ: branch(I, " == 0", code[pc+1]); break;
+			case Opcodes.IFNE: branch(I, " != 0", code[pc+1]); break;
+			case Opcodes.IFLT: branch(I, " < 0", code[pc+1]); break;
+			case Opcodes.IFGE: branch(I, " >= 0", code[pc+1]); break;
+			case Opcodes.IFGT: branch(I, " > 0", code[pc+1]); break;
+			case Opcodes.IFLE: branch(I, " <= 0", code[pc+1]); break;
+			case Opcodes.IFNULL: branch(A, " == null", code[pc+1]); break;
+			case Opcodes.IFNNULL: branch(A, " != null", code[pc+1]); break;
+			case Opcodes.IF_ICMPLT: icmpBranch("<", code[pc+1]); break;
+			case Opcodes.IF_ICMPGE: icmpBranch(">=", code[pc+1]); break;
+			case Opcodes.IF_ICMPGT: icmpBranch(">", code[pc+1]); break;
+			case Opcodes.IF_ICMPLE: icmpBranch("<=", code[pc+1]); break;
+			case Opcodes.IF_ACMPEQ: acmpBranch(true, code[pc+1]); break;
+			case Opcodes.IF_ACMPNE: acmpBranch(false, code[pc+1]); break;
+			case Opcodes.GOTO:
+				jump(code[pc+1]);
+				falls = false;
+				break;
+			case Opcodes.TABLESWITCH: tableswitch(); falls = false; break;
+			case Opcodes.LOOKUPSWITCH: lookupswitch(); falls = false; break;
+
+			// calls
+			case Opcodes.CALL_0: case Opcodes.CALL_1: case Opcodes.CALL_2: case Opcodes.CALL_3:
+			case Opcodes.CALL_4: case Opcodes.CALL_5: case Opcodes.CALL_6: case Opcodes.CALL_7:
+				call(instr & 7, -1, false);
+				break;
+			case Opcodes.CALV_0: case Opcodes.CALV_1: case Opcodes.CALV_2: case Opcodes.CALV_3:
+			case Opcodes.CALV_4: case Opcodes.CALV_5: case Opcodes.CALV_6: case Opcodes.CALV_7:
+				call(instr & 7, -1, true);
+				break;
+			case Opcodes.CALLC_0: case Opcodes.CALLC_1: case Opcodes.CALLC_2: case Opcodes.CALLC_3:
+			case Opcodes.CALLC_4: case Opcodes.CALLC_5: case Opcodes.CALLC_6: case Opcodes.CALLC_7:
+				call(instr & 7, code[pc+1], false);
+				break;
+			case Opcodes.CALVC_0: case Opcodes.CALVC_1: case Opcodes.CALVC_2: case Opcodes.CALVC_3:
+			case Opcodes.CALVC_4: case Opcodes.CALVC_5: case Opcodes.CALVC_6: case Opcodes.CALVC_7:
+				call(instr & 7, code[pc+1], true);
+				break;
+			case Opcodes.CALL: call(code[pc+1], -1, false); break;
+			case Opcodes.CALV: call(code[pc+1], -1, true); break;
+			case Opcodes.CALLC: call(code[pc+1], code[pc+2], false); break;
+			case Opcodes.CALVC: call(code[pc+1], code[pc+2], true); break;
+
+			// arrays
+			case Opcodes.NEWAA: newArray("Object"); break;
+			case Opcodes.NEWBA: newArray("byte"); break;
+			case Opcodes.NEWCA: newArray("char"); break;
+			case Opcodes.NEWZA: newArray("boolean"); break;
+			case Opcodes.NEWSA: newArray("short"); break;
+			case Opcodes.NEWIA: newArray("int"); break;
+			case Opcodes.NEWLA: newArray("long"); break;
+			case Opcodes.NEWFA: newArray("float"); break;
+			case Opcodes.NEWDA: newArray("double"); break;
+			case Opcodes.AALOAD: arrayLoad("Object", A); break;
+			case Opcodes.BALOAD: arrayLoad("byte", I); break;
+			case Opcodes.CALOAD: arrayLoad("char", I); break;
+			case Opcodes.ZALOAD: arrayLoad("boolean", I); break;
+			case Opcodes.SALOAD: arrayLoad("short", I); break;
+			case Opcodes.IALOAD: arrayLoad("int", I); break;
+			case Opcodes.LALOAD: arrayLoad("long", J); break;
+			case Opcodes.FALOAD: arrayLoad("float", F); break;
+			case Opcodes.DALOAD: arrayLoad("double", D); break;
+			case Opcodes.AASTORE: arrayStore("Object", A); break;
+			case Opcodes.BASTORE: arrayStore("byte", I); break;
+			case Opcodes.CASTORE: arrayStore("char", I); break;
+			case Opcodes.ZASTORE: arrayStore("boolean", I); break;
+			case Opcodes.SASTORE: arrayStore("short", I); break;
+			case Opcodes.IASTORE: arrayStore("int", I); break;
+			case Opcodes.LASTORE: arrayStore("long", J); break;
+			case Opcodes.FASTORE: arrayStore("float", F); break;
+			case Opcodes.DASTORE: arrayStore("double", D); break;
+			case Opcodes.AALEN: arrayLength("Object"); break;
+			case Opcodes.BALEN: arrayLength("byte"); break;
+			case Opcodes.CALEN: arrayLength("char"); break;
+			case Opcodes.ZALEN: arrayLength("boolean"); break;
+			case Opcodes.SALEN: arrayLength("short"); break;
+			case Opcodes.IALEN: arrayLength("int"); break;
+			case Opcodes.LALEN: arrayLength("long"); break;
+			case Opcodes.FALEN: arrayLength("float"); break;
+			case Opcodes.DALEN: arrayLength("double"); break;
+			case Opcodes.NEWMULTIARRAY: newMultiArray(code[pc+1], code[pc+2]); break;
+
+			// others
+			case Opcodes.CONCAT: concat(code[pc+1]); break;
+			case Opcodes.ACMP: {
+				byte t1 = stack[sp-2];
+				byte t2 = stack[sp-1];
+				if (t1 == t2 && (t1 == I || t1 == J)) {
+					String b = pop(t2);
+					String a = pop(t1);
+					push(I, "(" + a + " == " + b + ") ? 0 : 1");
+				} else {
+					String b = pop(A);
+					String a = pop(A);
+					push(I, "equal(" + a + ", " + b + ") ? 0 : 1");
+				}
+				break;
+			}
+			case Opcodes.RET_NULL:
+				stmt("return null;");
+				falls = false;
+				break;
+			case Opcodes.RETURN:
+				stmt("return " + pop(A) + ';');
+				falls = false;
+				break;
+			case Opcodes.THROW: {
+				String msg = pop(A);
+				String errcode = pop(I);
+				stmt("throw new AlchemyException(" + errcode + ", (String)" + msg + ");");
+				falls = false;
+				break;
+			}
+			case Opcodes.DUP: dup(); break;
+			case Opcodes.DUP2: dup2(); break;
+			case Opcodes.SWAP: swap(); break;
+			case Opcodes.POP:
+				if (sp <= 0) throw new UnsupportedOperationException("Stack underflow");
+				sp--;
+				break;
+
+			// superinstructions
+			case Opcodes.IF_ICMPLT_LI: immBranch("<"); break;
+			case Opcodes.IF_ICMPGE_LI: immBranch(">="); break;
+			case Opcodes.IF_ICMPGT_LI: immBranch(">"); break;
+			case Opcodes.IF_ICMPLE_LI: immBranch("<="); break;
+			case Opcodes.AALOAD_LL: load(code[pc+1]); load(code[pc+2]); arrayLoad("Object", A); break;
+			case Opcodes.BALOAD_LL: load(code[pc+1]); load(code[pc+2]); arrayLoad("byte", I); break;
+			case Opcodes.CALOAD_LL: load(code[pc+1]); load(code[pc+2]); arrayLoad("char", I); break;
+			case Opcodes.IALOAD_LL: load(code[pc+1]); load(code[pc+2]); arrayLoad("int", I); break;
+			case Opcodes.GOTO_IINC: {
+				int target = code[pc+1];
+				checkTarget(target);
+				if (code[target] != Opcodes.IINC) throw new UnsupportedOperationException("Invalid goto_iinc");
+				iinc(code[target+1], code[target+2]);
+				jump(target + 3);
+				falls = false;
+				break;
+			}
+
+			default:
+				throw new UnsupportedOperationException("Unsupported instruction " + instr);
+		}
+	}
+
+	private void registerBranch(String op) {
+		String a = load(code[pc+1], I);
+		String b = load(code[pc+2], I);
+		jumpIf(a + ' ' + op + ' ' + b, code[pc+3]);
+	}
+
+	private void immBranch(String op) {
+		jumpIf(load(code[pc+1], I) + ' ' + op + ' ' + code[pc+2], code[pc+3]);
+	}
+
+	/* LITERALS */
+
+	private static String floatLiteral(float value) {
+		if (Float.isNaN(value)) return "Float.NaN";
+		if (value == Float.POSITIVE_INFINITY) return "Float.POSITIVE_INFINITY";
+		if (value == Float.NEGATIVE_INFINITY) return "Float.NEGATIVE_INFINITY";
+		return value + "f";
+	}
+
+	private static String doubleLiteral(double value) {
+		if (Double.isNaN(value)) return "Double.NaN";
+		if (value == Double.POSITIVE_INFINITY) return "Double.POSITIVE_INFINITY";
+		if (value == Double.NEGATIVE_INFINITY) return "Double.NEGATIVE_INFINITY";
+		return value + "d";
+	}
+
+	/** Returns Java literal of the string. */
+	static String quote(String str) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (int i=0; i<str.length(); i++) {
+			char ch = str.charAt(i);
+			switch (ch) {
+				case '"': sb.append("\\\""); break;
+				case '\\': sb.append("\\\\"); break;
+				case '\n': sb.append("\\n"); break;
+				case '\r': sb.append("\\r"); break;
+				case '\t': sb.append("\\t"); break;
+				default:
+					if (ch < ' ' || ch > '~') {
+						String hex = Integer.toHexString(ch);
+						sb.append("\\u");
+						for (int k=hex.length(); k<4; k++) sb.append('0');
+						sb.append(hex);
+					} else {
+						sb.append(ch);
+					}
+			}
+		}
+		return sb.append('"').toString();
+	}
+}
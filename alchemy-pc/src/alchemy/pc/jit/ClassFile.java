@@ -0,0 +1,171 @@
+/*
+ * This file is a part of Alchemy OS project.
+ *  Copyright (C) 2011-2014, Sergey Basalaev <sbasalaev@gmail.com>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package alchemy.pc.jit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Minimal writer of JVM class files.
+ * Writes classes of version 49 which do not need stack maps.
+ *
+ * @author Sergey Basalaev
+ */
+final class ClassFile {
+
+	static final int ACC_PUBLIC = 0x0001;
+	static final int ACC_FINAL = 0x0010;
+	static final int ACC_SUPER = 0x0020;
+
+	private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+	private final DataOutputStream pool = new DataOutputStream(poolBytes);
+	private final HashMap<String,Integer> poolIndex = new HashMap<String,Integer>();
+	private int poolSize = 1;
+
+	private final ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+	private final DataOutputStream methods = new DataOutputStream(methodBytes);
+	private int methodCount = 0;
+
+	private final String name;
+	private final String superName;
+
+	ClassFile(String name, String superName) {
+		this.name = name;
+		this.superName = superName;
+	}
+
+	/** Returns index of the constant, adding it to the pool if needed. */
+	private int constant(String key, int tag, Object value) {
+		Integer index = poolIndex.get(key);
+		if (index != null) return index;
+		try {
+			pool.writeByte(tag);
+			switch (tag) {
+				case 1: pool.writeUTF((String)value); break;
+				case 3: pool.writeInt((Integer)value); break;
+				case 4: pool.writeFloat((Float)value); break;
+				case 5: pool.writeLong((Long)value); break;
+				case 6: pool.writeDouble((Double)value); break;
+				default: {
+					int[] refs = (int[])value;
+					for (int ref : refs) pool.writeShort(ref);
+				}
+			}
+		} catch (IOException ioe) {
+			throw new RuntimeException(ioe);
+		}
+		int result = poolSize;
+		poolSize += (tag == 5 || tag == 6) ? 2 : 1;
+		if (poolSize > 0xffff) throw new IllegalStateException("Constant pool overflow");
+		poolIndex.put(key, result);
+		return result;
+	}
+
+	int utf8(String str) {
+		return constant("U" + str, 1, str);
+	}
+
+	int classRef(String cls) {
+		return constant("C" + cls, 7, new int[] {utf8(cls)});
+	}
+
+	int string(String str) {
+		return constant("S" + str, 8, new int[] {utf8(str)});
+	}
+
+	int integer(int value) {
+		return constant("I" + value, 3, value);
+	}
+
+	int floatConst(float value) {
+		return constant("F" + Float.floatToIntBits(value), 4, value);
+	}
+
+	int longConst(long value) {
+		return constant("J" + value, 5, value);
+	}
+
+	int doubleConst(double value) {
+		return constant("D" + Double.doubleToLongBits(value), 6, value);
+	}
+
+	private int nameAndType(String name, String type) {
+		return constant("N" + name + ' ' + type, 12, new int[] {utf8(name), utf8(type)});
+	}
+
+	int fieldRef(String cls, String name, String type) {
+		return constant("f" + cls + '.' + name + ' ' + type, 9, new int[] {classRef(cls), nameAndType(name, type)});
+	}
+
+	int methodRef(String cls, String name, String type) {
+		return constant("m" + cls + '.' + name + type, 10, new int[] {classRef(cls), nameAndType(name, type)});
+	}
+
+	/** Adds method with given code to the class. */
+	void addMethod(int flags, String name, String type, Code code) {
+		try {
+			methods.writeShort(flags);
+			methods.writeShort(utf8(name));
+			methods.writeShort(utf8(type));
+			methods.writeShort(1);
+			methods.writeShort(utf8("Code"));
+			byte[] bytes = code.toByteArray();
+			int[] handlers = code.handlers();
+			methods.writeInt(12 + bytes.length + handlers.length * 2);
+			methods.writeShort(code.maxStack);
+			methods.writeShort(code.maxLocals);
+			methods.writeInt(bytes.length);
+			methods.write(bytes);
+			methods.writeShort(handlers.length / 4);
+			for (int h : handlers) methods.writeShort(h);
+			methods.writeShort(0);
+			methodCount++;
+		} catch (IOException ioe) {
+			throw new RuntimeException(ioe);
+		}
+	}
+
+	/** Returns bytes of the class file. */
+	byte[] toByteArray() {
+		int thisIndex = classRef(name);
+		int superIndex = classRef(superName);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(49);
+			out.writeShort(poolSize);
+			poolBytes.writeTo(out);
+			out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+			out.writeShort(thisIndex);
+			out.writeShort(superIndex);
+			out.writeShort(0);
+			out.writeShort(0);
+			out.writeShort(methodCount);
+			methodBytes.writeTo(out);
+			out.writeShort(0);
+		} catch (IOException ioe) {
+			throw new RuntimeException(ioe);
+		}
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,417 @@
+/*
+ * This file is a part of Alchemy OS project.
+ *  Copyright (C) 2011-2014, Sergey Basalaev <sbasalaev@gmail.com>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package alchemy.pc.jit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Buffer for JVM bytecode of a method.
+ * Branches refer to labels that are resolved
+ * when the code is written in the class file.
+ *
+ * @author Sergey Basalaev
+ */
+final class Code {
+
+	// JVM opcodes used by the compiler
+	static final int ACONST_NULL = 0x01;
+	static final int ICONST_0 = 0x03;
+	static final int LCONST_0 = 0x09;
+	static final int FCONST_0 = 0x0b;
+	static final int DCONST_0 = 0x0e;
+	static final int BIPUSH = 0x10;
+	static final int SIPUSH = 0x11;
+	static final int LDC = 0x12;
+	static final int LDC_W = 0x13;
+	static final int LDC2_W = 0x14;
+	static final int ILOAD = 0x15;
+	static final int LLOAD = 0x16;
+	static final int FLOAD = 0x17;
+	static final int DLOAD = 0x18;
+	static final int ALOAD = 0x19;
+	static final int IALOAD = 0x2e;
+	static final int LALOAD = 0x2f;
+	static final int FALOAD = 0x30;
+	static final int DALOAD = 0x31;
+	static final int AALOAD = 0x32;
+	static final int BALOAD = 0x33;
+	static final int CALOAD = 0x34;
+	static final int SALOAD = 0x35;
+	static final int ISTORE = 0x36;
+	static final int LSTORE = 0x37;
+	static final int FSTORE = 0x38;
+	static final int DSTORE = 0x39;
+	static final int ASTORE = 0x3a;
+	static final int IASTORE = 0x4f;
+	static final int LASTORE = 0x50;
+	static final int FASTORE = 0x51;
+	static final int DASTORE = 0x52;
+	static final int AASTORE = 0x53;
+	static final int BASTORE = 0x54;
+	static final int CASTORE = 0x55;
+	static final int SASTORE = 0x56;
+	static final int POP = 0x57;
+	static final int POP2 = 0x58;
+	static final int DUP = 0x59;
+	static final int DUP2 = 0x5c;
+	static final int SWAP = 0x5f;
+	static final int IADD = 0x60;
+	static final int LADD = 0x61;
+	static final int FADD = 0x62;
+	static final int DADD = 0x63;
+	static final int ISUB = 0x64;
+	static final int LSUB = 0x65;
+	static final int FSUB = 0x66;
+	static final int DSUB = 0x67;
+	static final int IMUL = 0x68;
+	static final int LMUL = 0x69;
+	static final int FMUL = 0x6a;
+	static final int DMUL = 0x6b;
+	static final int IDIV = 0x6c;
+	static final int LDIV = 0x6d;
+	static final int FDIV = 0x6e;
+	static final int DDIV = 0x6f;
+	static final int IREM = 0x70;
+	static final int LREM = 0x71;
+	static final int FREM = 0x72;
+	static final int DREM = 0x73;
+	static final int INEG = 0x74;
+	static final int LNEG = 0x75;
+	static final int FNEG = 0x76;
+	static final int DNEG = 0x77;
+	static final int ISHL = 0x78;
+	static final int LSHL = 0x79;
+	static final int ISHR = 0x7a;
+	static final int LSHR = 0x7b;
+	static final int IUSHR = 0x7c;
+	static final int LUSHR = 0x7d;
+	static final int IAND = 0x7e;
+	static final int LAND = 0x7f;
+	static final int IOR = 0x80;
+	static final int LOR = 0x81;
+	static final int IXOR = 0x82;
+	static final int LXOR = 0x83;
+	static final int IINC = 0x84;
+	static final int I2L = 0x85;
+	static final int I2F = 0x86;
+	static final int I2D = 0x87;
+	static final int L2I = 0x88;
+	static final int L2F = 0x89;
+	static final int L2D = 0x8a;
+	static final int F2I = 0x8b;
+	static final int F2L = 0x8c;
+	static final int F2D = 0x8d;
+	static final int D2I = 0x8e;
+	static final int D2L = 0x8f;
+	static final int D2F = 0x90;
+	static final int I2B = 0x91;
+	static final int I2C = 0x92;
+	static final int I2S = 0x93;
+	static final int LCMP = 0x94;
+	static final int IFEQ = 0x99;
+	static final int IFNE = 0x9a;
+	static final int IFLT = 0x9b;
+	static final int IFGE = 0x9c;
+	static final int IFGT = 0x9d;
+	static final int IFLE = 0x9e;
+	static final int IF_ICMPEQ = 0x9f;
+	static final int IF_ICMPNE = 0xa0;
+	static final int IF_ICMPLT = 0xa1;
+	static final int IF_ICMPGE = 0xa2;
+	static final int IF_ICMPGT = 0xa3;
+	static final int IF_ICMPLE = 0xa4;
+	static final int GOTO = 0xa7;
+	static final int TABLESWITCH = 0xaa;
+	static final int LOOKUPSWITCH = 0xab;
+	static final int ARETURN = 0xb0;
+	static final int RETURN = 0xb1;
+	static final int GETFIELD = 0xb4;
+	static final int INVOKEVIRTUAL = 0xb6;
+	static final int INVOKESPECIAL = 0xb7;
+	static final int INVOKESTATIC = 0xb8;
+	static final int NEW = 0xbb;
+	static final int NEWARRAY = 0xbc;
+	static final int ANEWARRAY = 0xbd;
+	static final int ARRAYLENGTH = 0xbe;
+	static final int ATHROW = 0xbf;
+	static final int CHECKCAST = 0xc0;
+	static final int WIDE = 0xc4;
+	static final int IFNULL = 0xc6;
+	static final int IFNONNULL = 0xc7;
+
+	// array types for NEWARRAY
+	static final int T_BOOLEAN = 4;
+	static final int T_CHAR = 5;
+	static final int T_FLOAT = 6;
+	static final int T_DOUBLE = 7;
+	static final int T_BYTE = 8;
+	static final int T_SHORT = 9;
+	static final int T_INT = 10;
+	static final int T_LONG = 11;
+
+	int maxStack;
+	int maxLocals;
+
+	private final ClassFile cls;
+	private byte[] buf = new byte[256];
+	private int len = 0;
+
+	private int[] labels = new int[16];
+	private int labelCount = 0;
+
+	/** Branches to resolve, triples of instruction offset, field offset and label. */
+	private int[] fixups = new int[48];
+	private int fixupCount = 0;
+
+	/** Exception handlers, quadruples of labels and catch type. */
+	private final ArrayList<int[]> handlers = new ArrayList<int[]>();
+
+	Code(ClassFile cls) {
+		this.cls = cls;
+	}
+
+	/** Returns current offset in the code. */
+	int position() {
+		return len;
+	}
+
+	private void put(int b) {
+		if (len == buf.length) buf = Arrays.copyOf(buf, len * 2);
+		buf[len] = (byte)b;
+		len++;
+	}
+
+	private void put2(int s) {
+		put(s >> 8);
+		put(s);
+	}
+
+	private void put4(int i) {
+		put2(i >> 16);
+		put2(i);
+	}
+
+	/** Creates new unbound label. */
+	int newLabel() {
+		if (labelCount == labels.length) labels = Arrays.copyOf(labels, labelCount * 2);
+		labels[labelCount] = -1;
+		labelCount++;
+		return labelCount-1;
+	}
+
+	/** Binds label to the current position. */
+	void mark(int label) {
+		labels[label] = len;
+	}
+
+	boolean isMarked(int label) {
+		return labels[label] >= 0;
+	}
+
+	void op(int opcode) {
+		put(opcode);
+	}
+
+	void op1(int opcode, int operand) {
+		put(opcode);
+		put(operand);
+	}
+
+	void op2(int opcode, int operand) {
+		put(opcode);
+		put2(operand);
+	}
+
+	/** Writes instruction with reference to the constant pool. */
+	void field(int opcode, String owner, String name, String type) {
+		op2(opcode, cls.fieldRef(owner, name, type));
+	}
+
+	void invoke(int opcode, String owner, String name, String type) {
+		op2(opcode, cls.methodRef(owner, name, type));
+	}
+
+	void type(int opcode, String cls) {
+		op2(opcode, this.cls.classRef(cls));
+	}
+
+	private void fixup(int at, int label) {
+		if (fixupCount + 3 > fixups.length) fixups = Arrays.copyOf(fixups, fixups.length * 2);
+		fixups[fixupCount] = at;
+		fixups[fixupCount+1] = len;
+		fixups[fixupCount+2] = label;
+		fixupCount += 3;
+	}
+
+	/** Writes branch instruction. */
+	void jump(int opcode, int label) {
+		int at = len;
+		put(opcode);
+		fixup(at, label);
+		put2(0);
+	}
+
+	void iconst(int value) {
+		if (value >= -1 && value <= 5) {
+			put(ICONST_0 + value);
+		} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			op1(BIPUSH, value);
+		} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			op2(SIPUSH, value);
+		} else {
+			op2(LDC_W, cls.integer(value));
+		}
+	}
+
+	void lconst(long value) {
+		if (value == 0L || value == 1L) {
+			put(LCONST_0 + (int)value);
+		} else {
+			op2(LDC2_W, cls.longConst(value));
+		}
+	}
+
+	void fconst(float value) {
+		if (Float.floatToIntBits(value) == 0 || value == 1f || value == 2f) {
+			put(FCONST_0 + (int)value);
+		} else {
+			op2(LDC_W, cls.floatConst(value));
+		}
+	}
+
+	void dconst(double value) {
+		if (Double.doubleToLongBits(value) == 0L || value == 1d) {
+			put(DCONST_0 + (int)value);
+		} else {
+			op2(LDC2_W, cls.doubleConst(value));
+		}
+	}
+
+	void sconst(String value) {
+		op2(LDC_W, cls.string(value));
+	}
+
+	/** Writes load or store instruction for local variable. */
+	void local(int opcode, int index) {
+		if (index > 255) {
+			put(WIDE);
+			put(opcode);
+			put2(index);
+		} else {
+			put(opcode);
+			put(index);
+		}
+	}
+
+	void iinc(int index, int inc) {
+		if (index > 255 || inc < Byte.MIN_VALUE || inc > Byte.MAX_VALUE) {
+			put(WIDE);
+			put(IINC);
+			put2(index);
+			put2(inc);
+		} else {
+			put(IINC);
+			put(index);
+			put(inc);
+		}
+	}
+
+	private void align() {
+		while ((len & 3) != 0) put(0);
+	}
+
+	void tableswitch(int dflt, int min, int max, int[] targets) {
+		int at = len;
+		put(TABLESWITCH);
+		align();
+		fixup4(at, dflt);
+		put4(min);
+		put4(max);
+		for (int target : targets) fixup4(at, target);
+	}
+
+	/** Writes lookupswitch, keys must be sorted. */
+	void lookupswitch(int dflt, int[] keys, int[] targets) {
+		int at = len;
+		put(LOOKUPSWITCH);
+		align();
+		fixup4(at, dflt);
+		put4(keys.length);
+		for (int i=0; i<keys.length; i++) {
+			put4(keys[i]);
+			fixup4(at, targets[i]);
+		}
+	}
+
+	private void fixup4(int at, int label) {
+		// four byte offsets are marked by negative instruction offset
+		fixup(-at-1, label);
+		put4(0);
+	}
+
+	/** Adds exception handler for the range of labels. */
+	void handler(int start, int end, int handler) {
+		handlers.add(new int[] {start, end, handler});
+	}
+
+	/** Returns exception table as array of quadruples. */
+	int[] handlers() {
+		ArrayList<Integer> table = new ArrayList<Integer>();
+		for (int[] h : handlers) {
+			int start = labels[h[0]];
+			int end = labels[h[1]];
+			if (start < end) {
+				table.add(start);
+				table.add(end);
+				table.add(labels[h[2]]);
+				table.add(0);
+			}
+		}
+		int[] result = new int[table.size()];
+		for (int i=0; i<result.length; i++) result[i] = table.get(i);
+		return result;
+	}
+
+	/** Resolves branches and returns the code. */
+	byte[] toByteArray() {
+		if (len > 0xffff) throw new IllegalStateException("Code too large");
+		for (int i=0; i<fixupCount; i += 3) {
+			int at = fixups[i];
+			int field = fixups[i+1];
+			int target = labels[fixups[i+2]];
+			if (target < 0) throw new IllegalStateException("Unbound label");
+			if (at >= 0) {
+				int offset = target - at;
+				if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+					throw new IllegalStateException("Branch too far");
+				}
+				buf[field] = (byte)(offset >> 8);
+				buf[field+1] = (byte)offset;
+			} else {
+				int offset = target - (-at-1);
+				buf[field] = (byte)(offset >> 24);
+				buf[field+1] = (byte)(offset >> 16);
+				buf[field+2] = (byte)(offset >> 8);
+				buf[field+3] = (byte)offset;
+			}
+		}
+		return Arrays.copyOf(buf, len);
+	}
+}
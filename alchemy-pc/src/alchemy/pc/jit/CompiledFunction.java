@@ -0,0 +1,45 @@
+/*
+ * This file is a part of Alchemy OS project.
+ *  Copyright (C) 2011-2014, Sergey Basalaev <sbasalaev@gmail.com>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package alchemy.pc.jit;
+
+import alchemy.system.Function;
+
+/**
+ * Superclass of Ether functions compiled to JVM classes.
+ * Fields are public since generated classes are defined
+ * by their own class loaders.
+ *
+ * @author Sergey Basalaev
+ */
+public abstract class CompiledFunction extends Function {
+
+	/** Ether function this code is compiled from. */
+	public final Function source;
+	/** Constant pool of the source function. */
+	public final Object[] cpool;
+	/** Source file name for stack traces or null if no debug info. */
+	public final String srcname;
+
+	protected CompiledFunction(Function source, Object[] cpool, String srcname) {
+		super(source.library, source.name);
+		this.source = source;
+		this.cpool = cpool;
+		this.srcname = srcname;
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * This file is a part of Alchemy OS project.
+ *  Copyright (C) 2011-2014, Sergey Basalaev <sbasalaev@gmail.com>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package alchemy.pc.jit;
+
+import alchemy.evm.EtherCompiler;
+import alchemy.system.Function;
+
+/**
+ * Compiler of Ether functions to JVM classes.
+ * Every function is defined by its own class loader
+ * so the code is unloaded together with the function.
+ * <p>
+ * Compiler is enabled by the system property
+ * <code>alchemy.jit</code>, the number of calls and
+ * loop iterations after which function is compiled
+ * is set by <code>alchemy.jit.threshold</code>.
+ *
+ * @author Sergey Basalaev
+ */
+public final class JitCompiler extends EtherCompiler {
+
+	/** Default number of calls and backward jumps before compilation. */
+	public static final int DEFAULT_THRESHOLD = 1000;
+
+	private static final Class<?>[] CONSTRUCTOR_ARGS = {Function.class, Object[].class, String.class};
+
+	private int counter = 0;
+
+	private JitCompiler() { }
+
+	/** Installs compiler if it is enabled by system properties. */
+	public static void installIfEnabled() {
+		if (Boolean.getBoolean("alchemy.jit")) {
+			EtherCompiler.install(new JitCompiler(), Integer.getInteger("alchemy.jit.threshold", DEFAULT_THRESHOLD));
+		}
+	}
+
+	@Override
+	protected Function compile(Function source, Object[] cpool, int[] code,
+			int stacksize, int localsize, char[] dbgtable, char[] errtable) {
+		String clsname;
+		synchronized (this) {
+			counter++;
+			clsname = "alchemy/pc/jit/Compiled" + counter;
+		}
+		try {
+			byte[] bytes = new Translator(cpool, code, stacksize, localsize, dbgtable, errtable).translate(clsname);
+			Class<?> cls = new Loader().define(clsname.replace('/', '.'), bytes);
+			String srcname = (dbgtable != null) ? String.valueOf(cpool[dbgtable[0]]) : null;
+			return (Function) cls.getConstructor(CONSTRUCTOR_ARGS).newInstance(source, cpool, srcname);
+		} catch (Exception e) {
+			// function stays interpreted
+			return null;
+		} catch (LinkageError le) {
+			return null;
+		}
+	}
+
+	/** Class loader of the compiled function. */
+	private static final class Loader extends ClassLoader {
+
+		Loader() {
+			super(JitCompiler.class.getClassLoader());
+		}
+
+		Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * This file is a part of Alchemy OS project.
+ *  Copyright (C) 2011-2014, Sergey Basalaev <sbasalaev@gmail.com>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package alchemy.pc.jit;
+
+import alchemy.evm.EtherCompiler;
+import alchemy.system.AlchemyException;
+import alchemy.system.Process;
+import alchemy.system.ProcessKilledException;
+import alchemy.types.Float32;
+import alchemy.types.Float64;
+import alchemy.types.Int32;
+import alchemy.types.Int64;
+
+/**
+ * Helper methods called from the compiled code.
+ *
+ * @author Sergey Basalaev
+ */
+public final class JitRuntime {
+
+	private JitRuntime() { }
+
+	/** Throws ProcessKilledException if the process was killed. */
+	public static void poll(Process p) throws ProcessKilledException {
+		if (p.killed) throw new ProcessKilledException();
+	}
+
+	/*
+	 * Arguments. Locals that are not given in the
+	 * argument array get default value.
+	 */
+
+	public static Object arg(Object[] args, int index) {
+		return (index < args.length) ? args[index] : null;
+	}
+
+	public static int iarg(Object[] args, int index) {
+		return (index < args.length) ? ((Int32)args[index]).value : 0;
+	}
+
+	public static long larg(Object[] args, int index) {
+		return (index < args.length) ? ((Int64)args[index]).value : 0L;
+	}
+
+	public static float farg(Object[] args, int index) {
+		return (index < args.length) ? ((Float32)args[index]).value : 0f;
+	}
+
+	public static double darg(Object[] args, int index) {
+		return (index < args.length) ? ((Float64)args[index]).value : 0d;
+	}
+
+	/* Boxing. */
+
+	public static Object box(long value) {
+		return new Int64(value);
+	}
+
+	public static Object box(float value) {
+		return new Float32(value);
+	}
+
+	public static Object box(double value) {
+		return new Float64(value);
+	}
+
+	/* Comparisons, the same as of the interpreter. */
+
+	public static int cmp(int diff) {
+		return (diff > 0) ? 1 : (diff == 0 ? 0 : -1);
+	}
+
+	public static int cmp(long diff) {
+		return (diff > 0L) ? 1 : (diff == 0L ? 0 : -1);
+	}
+
+	public static int cmp(float diff) {
+		return (diff > 0) ? 1 : (diff == 0 ? 0 : -1);
+	}
+
+	public static int cmp(double diff) {
+		return (diff > 0) ? 1 : (diff == 0 ? 0 : -1);
+	}
+
+	public static int acmp(int a, int b) {
+		return (a == b) ? 0 : 1;
+	}
+
+	public static int acmp(long a, long b) {
+		return (a == b) ? 0 : 1;
+	}
+
+	public static int acmp(Object a, Object b) {
+		return equal(a, b) ? 0 : 1;
+	}
+
+	public static boolean equal(Object a, Object b) {
+		return (a == null) ? b == null : a.equals(b);
+	}
+
+	/** Converts value to be stored in boolean array. */
+	public static int bool(int value) {
+		return (value != 0) ? 1 : 0;
+	}
+
+	/** Creates exception thrown by the Ether <code>throw</code> instruction. */
+	public static AlchemyException error(int code, Object msg) {
+		return new AlchemyException(code, (String)msg);
+	}
+
+	/**
+	 * Converts exception caught by compiled code to AlchemyException
+	 * and adds trace element to it. Rethrows ProcessKilledException.
+	 */
+	public static AlchemyException trace(Throwable t, int line, CompiledFunction f) throws ProcessKilledException {
+		if (t instanceof ProcessKilledException) throw (ProcessKilledException)t;
+		AlchemyException ae = (t instanceof AlchemyException) ? (AlchemyException)t : new AlchemyException(t);
+		if (f.srcname == null) line = EtherCompiler.codeOffset(f.source, line);
+		ae.addTraceElement(f.source, f.srcname, line);
+		return ae;
+	}
+}
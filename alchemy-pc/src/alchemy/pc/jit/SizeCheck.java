@@ -0,0 +1,160 @@
+/*
+ * This file is a part of Alchemy OS project.
+ *  Copyright (C) 2011-2014, Sergey Basalaev <sbasalaev@gmail.com>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package alchemy.pc.jit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+
+/**
+ * Build check of the interpreter bytecode size.
+ * HotSpot never compiles methods longer than
+ * <code>HugeMethodLimit</code> (8000 bytes) and always
+ * inlines only methods not longer than <code>MaxInlineSize</code>
+ * (35 bytes). The check fails if the interpreter loop or
+ * its slot accessors outgrow these limits. The interpreter loop
+ * is held 400 bytes below the HotSpot limit to leave room for
+ * new instructions.
+ * <p>
+ * Runs after compilation of alchemy-pc.
+ *
+ * @author Sergey Basalaev
+ */
+public final class SizeCheck {
+
+	private static final String CLASS = "alchemy/evm/EtherFunction.class";
+
+	/** Checked methods and their size limits. */
+	private static final Object[][] LIMITS = {
+		{"exec", 7600},
+		{"ival", 35},
+		{"lval", 35},
+		{"fval", 35},
+		{"dval", 35},
+		{"callee", 35},
+		{"branch", 35},
+	};
+
+	private SizeCheck() { }
+
+	public static void main(String[] args) throws IOException {
+		InputStream in = SizeCheck.class.getClassLoader().getResourceAsStream(CLASS);
+		if (in == null) {
+			System.err.println("SizeCheck: " + CLASS + " not found");
+			System.exit(1);
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			byte[] buf = new byte[4096];
+			int len;
+			while ((len = in.read(buf)) > 0) bytes.write(buf, 0, len);
+		} finally {
+			in.close();
+		}
+		HashMap<String,Integer> sizes = readCodeSizes(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+		boolean failed = false;
+		for (Object[] limit : LIMITS) {
+			String name = (String) limit[0];
+			int max = (Integer) limit[1];
+			Integer size = sizes.get(name);
+			if (size == null) {
+				System.err.println("SizeCheck: EtherFunction." + name + "() not found");
+				failed = true;
+			} else if (size > max) {
+				System.err.println("SizeCheck: EtherFunction." + name + "() is " + size + " bytes, limit is " + max);
+				failed = true;
+			} else {
+				System.out.println("SizeCheck: EtherFunction." + name + "() is " + size + " bytes");
+			}
+		}
+		if (failed) System.exit(1);
+	}
+
+	/** Returns code lengths of methods in the class file. */
+	private static HashMap<String,Integer> readCodeSizes(DataInputStream data) throws IOException {
+		if (data.readInt() != 0xCAFEBABE) throw new IOException("Not a class file");
+		data.skipBytes(4);
+		// constant pool, only strings are needed
+		int count = data.readUnsignedShort();
+		String[] utf = new String[count];
+		for (int i=1; i<count; i++) {
+			int tag = data.readUnsignedByte();
+			switch (tag) {
+				case 1: // Utf8
+					utf[i] = data.readUTF();
+					break;
+				case 7: case 8: case 16: case 19: case 20: // Class, String, MethodType, Module, Package
+					data.skipBytes(2);
+					break;
+				case 15: // MethodHandle
+					data.skipBytes(3);
+					break;
+				case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18:
+					data.skipBytes(4);
+					break;
+				case 5: case 6: // Long, Double take two entries
+					data.skipBytes(8);
+					i++;
+					break;
+				default:
+					throw new IOException("Unknown constant tag " + tag);
+			}
+		}
+		data.skipBytes(6);
+		data.skipBytes(data.readUnsignedShort() * 2);
+		// fields
+		int fcount = data.readUnsignedShort();
+		for (int i=0; i<fcount; i++) {
+			data.skipBytes(6);
+			skipAttributes(data);
+		}
+		// methods
+		HashMap<String,Integer> sizes = new HashMap<String,Integer>();
+		int mcount = data.readUnsignedShort();
+		for (int i=0; i<mcount; i++) {
+			data.skipBytes(2);
+			String name = utf[data.readUnsignedShort()];
+			data.skipBytes(2);
+			int acount = data.readUnsignedShort();
+			for (int j=0; j<acount; j++) {
+				String attr = utf[data.readUnsignedShort()];
+				int len = data.readInt();
+				if (attr.equals("Code")) {
+					data.skipBytes(4);
+					sizes.put(name, data.readInt());
+					data.skipBytes(len - 8);
+				} else {
+					data.skipBytes(len);
+				}
+			}
+		}
+		return sizes;
+	}
+
+	private static void skipAttributes(DataInputStream data) throws IOException {
+		int acount = data.readUnsignedShort();
+		for (int i=0; i<acount; i++) {
+			data.skipBytes(2);
+			data.skipBytes(data.readInt());
+		}
+	}
+}
@@ -0,0 +1,1266 @@
+/*
+ * This file is a part of Alchemy OS project.
+ *  Copyright (C) 2011-2014, Sergey Basalaev <sbasalaev@gmail.com>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package alchemy.pc.jit;
+
+import alchemy.evm.Opcodes;
+import alchemy.types.Float32;
+import alchemy.types.Float64;
+import alchemy.types.Int32;
+import alchemy.types.Int64;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static alchemy.pc.jit.Code.*;
+
+/**
+ * Translates code of Ether function to JVM bytecode.
+ * <p>
+ * Translation is done in two passes over the same code.
+ * The first pass infers types of stack slots and local
+ * variables, the second one emits bytecode. Values of
+ * types int, long, float and double are kept unboxed in
+ * JVM locals and on the JVM stack. A local which is assigned
+ * values of different types (NEC reuses slots of variables
+ * in different scopes) is kept boxed, as are stack slots
+ * with different types on merging paths.
+ * <p>
+ * Handlers of exceptions get the stack containing only
+ * the exception, the stack depth recorded in the error
+ * table is ignored. If the handler used deeper stack
+ * slots, the analysis would fail on stack underflow.
+ * Functions using subroutines are not compiled.
+ *
+ * @author Sergey Basalaev
+ */
+final class Translator {
+
+	/* Types of values. */
+	private static final byte NONE = 0;
+	private static final byte I = 1;
+	private static final byte J = 2;
+	private static final byte F = 3;
+	private static final byte D = 4;
+	private static final byte A = 5;
+
+	/* Fixed JVM locals. */
+	private static final int THIS = 0;
+	private static final int PROC = 1;
+	private static final int ARGS = 2;
+	private static final int LINE = 3;
+	/* First JVM local used for Ether locals. */
+	private static final int LOCALS = 4;
+
+	private static final String OBJECT = "java/lang/Object";
+	private static final String STRING = "java/lang/String";
+	private static final String STRBUF = "java/lang/StringBuffer";
+	private static final String FUNCTION = "alchemy/system/Function";
+	private static final String PROCESS = "alchemy/system/Process";
+	private static final String RUNTIME = "alchemy/pc/jit/JitRuntime";
+	private static final String COMPILED = "alchemy/pc/jit/CompiledFunction";
+	private static final String INT32 = "alchemy/types/Int32";
+	private static final String INT64 = "alchemy/types/Int64";
+	private static final String FLOAT32 = "alchemy/types/Float32";
+	private static final String FLOAT64 = "alchemy/types/Float64";
+
+	private static final String INVOKE_DESC = "(Lalchemy/system/Process;[Ljava/lang/Object;)Ljava/lang/Object;";
+	private static final String INIT_DESC = "(Lalchemy/system/Function;[Ljava/lang/Object;Ljava/lang/String;)V";
+
+	private final Object[] cpool;
+	private final int[] code;
+	private final int stacksize;
+	private final int localsize;
+	private final char[] dbgtable;
+	private final char[] errtable;
+
+	/** True for indices at which instructions start. */
+	private final boolean[] starts;
+	/** True for instructions that are reached by jumps. */
+	private final boolean[] targets;
+	/** Types of stack slots at the start of instructions, null if not reached. */
+	private byte[][] entries;
+	/** Types of local variables. */
+	private final byte[] ltypes;
+	private boolean localsChanged;
+
+	private int[] worklist;
+	private int workcount;
+
+	/** True on the emitting pass. */
+	private boolean emitting;
+	private ClassFile cls;
+	private Code out;
+	/** JVM labels of instructions. */
+	private int[] labels;
+	/** Conversions on the jumps, triples of label, stack types and target. */
+	private ArrayList<Object[]> stubs;
+
+	/* Current state of translation. */
+	private byte[] stack;
+	private int sp;
+	private int pc;
+	private boolean falls;
+
+	/** First JVM local used to spill stack slots. */
+	private final int tmp;
+	/**
+	 * Maximal depth of the stack. Register instructions
+	 * are translated using stack so we need some more.
+	 */
+	private final int depth;
+
+	Translator(Object[] cpool, int[] code, int stacksize, int localsize, char[] dbgtable, char[] errtable) {
+		this.cpool = cpool;
+		this.code = code;
+		this.stacksize = stacksize;
+		this.localsize = localsize;
+		this.dbgtable = dbgtable;
+		this.errtable = errtable;
+		this.starts = new boolean[code.length+1];
+		this.targets = new boolean[code.length+1];
+		this.ltypes = new byte[localsize];
+		this.tmp = LOCALS + localsize*2;
+		this.depth = stacksize + 4;
+	}
+
+	/**
+	 * Translates function to the class with given name.
+	 * @throws UnsupportedOperationException if function cannot be compiled
+	 */
+	byte[] translate(String clsname) {
+		for (int ct=0; ct < code.length; ct += insnLength(ct)) {
+			starts[ct] = true;
+		}
+		if (errtable != null) {
+			for (int i=0; i < errtable.length; i += 4) {
+				checkTarget(errtable[i+2]);
+				targets[errtable[i+2]] = true;
+			}
+		}
+		cls = new ClassFile(clsname, COMPILED);
+		// inferring types
+		do {
+			localsChanged = false;
+			startPass();
+			entries = new byte[code.length][];
+			worklist = new int[16];
+			workcount = 0;
+			stack = new byte[0];
+			sp = 0;
+			merge(0);
+			if (errtable != null) {
+				for (int i=0; i < errtable.length; i += 4) {
+					stack = new byte[] {A};
+					sp = 1;
+					merge(errtable[i+2]);
+				}
+			}
+			while (workcount > 0) {
+				workcount--;
+				pc = worklist[workcount];
+				stack = Arrays.copyOf(entries[pc], depth);
+				sp = entries[pc].length;
+				translateInsn();
+				if (falls) merge(pc + insnLength(pc));
+			}
+		} while (localsChanged);
+		// emitting
+		emitting = true;
+		startPass();
+		emitConstructor();
+		emitInvoke();
+		return cls.toByteArray();
+	}
+
+	private void startPass() {
+		out = new Code(cls);
+		labels = new int[code.length];
+		for (int i=0; i<code.length; i++) {
+			if (starts[i]) labels[i] = out.newLabel();
+		}
+		stubs = new ArrayList<Object[]>();
+	}
+
+	private void emitConstructor() {
+		Code init = new Code(cls);
+		init.local(ALOAD, 0);
+		init.local(ALOAD, 1);
+		init.local(ALOAD, 2);
+		init.local(ALOAD, 3);
+		init.invoke(INVOKESPECIAL, COMPILED, "<init>", INIT_DESC);
+		init.op(RETURN);
+		init.maxStack = 4;
+		init.maxLocals = 4;
+		cls.addMethod(ClassFile.ACC_PUBLIC, "<init>", INIT_DESC, init);
+	}
+
+	private void emitInvoke() {
+		// prologue
+		out.local(ALOAD, PROC);
+		out.invoke(INVOKESTATIC, RUNTIME, "poll", "(Lalchemy/system/Process;)V");
+		out.iconst(0);
+		out.local(ISTORE, LINE);
+		int start = out.newLabel();
+		int end = out.newLabel();
+		out.mark(start);
+		for (int i=0; i<localsize; i++) {
+			out.local(ALOAD, ARGS);
+			out.iconst(i);
+			switch (ltypes[i]) {
+				case I:
+					out.invoke(INVOKESTATIC, RUNTIME, "iarg", "([Ljava/lang/Object;I)I");
+					break;
+				case J:
+					out.invoke(INVOKESTATIC, RUNTIME, "larg", "([Ljava/lang/Object;I)J");
+					break;
+				case F:
+					out.invoke(INVOKESTATIC, RUNTIME, "farg", "([Ljava/lang/Object;I)F");
+					break;
+				case D:
+					out.invoke(INVOKESTATIC, RUNTIME, "darg", "([Ljava/lang/Object;I)D");
+					break;
+				default:
+					out.invoke(INVOKESTATIC, RUNTIME, "arg", "([Ljava/lang/Object;I)Ljava/lang/Object;");
+			}
+			out.local(storeOp(localType(i)), LOCALS + i*2);
+		}
+		// body
+		int line = -1;
+		boolean prevFalls = true;
+		stack = new byte[depth];
+		sp = 0;
+		for (pc=0; pc < code.length; pc += insnLength(pc)) {
+			byte[] entry = entries[pc];
+			if (entry == null) {
+				out.mark(labels[pc]);
+				prevFalls = false;
+				continue;
+			}
+			if (prevFalls) convertTo(entry);
+			out.mark(labels[pc]);
+			System.arraycopy(entry, 0, stack, 0, entry.length);
+			sp = entry.length;
+			int newline = lineOf(pc);
+			if (newline != line || targets[pc]) {
+				out.iconst(newline);
+				out.local(ISTORE, LINE);
+				line = newline;
+			}
+			translateInsn();
+			prevFalls = falls;
+		}
+		if (prevFalls) throw new UnsupportedOperationException("Falling off the code");
+		out.mark(end);
+		// conversions on jumps
+		for (int i=0; i<stubs.size(); i++) {
+			Object[] stub = stubs.get(i);
+			out.mark((Integer)stub[0]);
+			byte[] types = (byte[])stub[1];
+			int target = (Integer)stub[2];
+			System.arraycopy(types, 0, stack, 0, types.length);
+			sp = types.length;
+			convertTo(entries[target]);
+			out.jump(GOTO, labels[target]);
+		}
+		// exception handlers
+		if (errtable != null) {
+			for (int i=0; i < errtable.length; i += 4) {
+				int from = insnStart(errtable[i]);
+				int to = insnStart(errtable[i+1]);
+				to += insnLength(to);
+				int handler = out.newLabel();
+				out.handler(labels[from], (to < code.length) ? labels[to] : end, handler);
+				out.mark(handler);
+				emitTrace();
+				out.jump(GOTO, labels[errtable[i+2]]);
+			}
+		}
+		int handler = out.newLabel();
+		out.handler(start, end, handler);
+		out.mark(handler);
+		emitTrace();
+		out.op(ATHROW);
+		out.maxStack = depth*2 + 8;
+		out.maxLocals = tmp + depth*2;
+		cls.addMethod(ClassFile.ACC_PUBLIC, "invoke", INVOKE_DESC, out);
+	}
+
+	/** Returns start of the instruction containing given index. */
+	private int insnStart(int at) {
+		if (at >= code.length) at = code.length-1;
+		while (!starts[at]) at--;
+		return at;
+	}
+
+	/** Converts throwable on the stack to AlchemyException with trace info. */
+	private void emitTrace() {
+		out.local(ILOAD, LINE);
+		out.local(ALOAD, THIS);
+		out.invoke(INVOKESTATIC, RUNTIME, "trace", "(Ljava/lang/Throwable;ILalchemy/pc/jit/CompiledFunction;)Lalchemy/system/AlchemyException;");
+	}
+
+	/**
+	 * Returns source line for the instruction. If there is no debug
+	 * info, returns offset of its last operand as the interpreter does.
+	 */
+	private int lineOf(int at) {
+		if (dbgtable == null) return at + insnLength(at) - 1;
+		int line = 0;
+		for (int i=1; i<dbgtable.length; i += 2) {
+			if (dbgtable[i+1] <= at) line = dbgtable[i];
+		}
+		return line;
+	}
+
+	private void checkTarget(int target) {
+		if (target < 0 || target >= code.length || !starts[target]) {
+			throw new UnsupportedOperationException("Invalid jump target");
+		}
+	}
+
+	/** Merges current stack types into the entry of given instruction. */
+	private void merge(int target) {
+		checkTarget(target);
+		byte[] entry = entries[target];
+		boolean changed = false;
+		if (entry == null) {
+			entries[target] = Arrays.copyOf(stack, sp);
+			changed = true;
+		} else {
+			if (entry.length != sp) throw new UnsupportedOperationException("Stack depth mismatch");
+			for (int i=0; i<sp; i++) {
+				if (entry[i] != stack[i] && entry[i] != A) {
+					entry[i] = A;
+					changed = true;
+				}
+			}
+		}
+		if (changed) {
+			if (workcount == worklist.length) worklist = Arrays.copyOf(worklist, workcount*2);
+			worklist[workcount] = target;
+			workcount++;
+		}
+	}
+
+	/** Returns label to jump to given instruction with the current stack. */
+	private int edge(int target) {
+		if (!emitting) {
+			targets[target] = true;
+			merge(target);
+			return labels[target];
+		}
+		byte[] entry = entries[target];
+		for (int i=0; i<sp; i++) {
+			if (stack[i] != entry[i]) {
+				int label = out.newLabel();
+				stubs.add(new Object[] {label, Arrays.copyOf(stack, sp), target});
+				return label;
+			}
+		}
+		return labels[target];
+	}
+
+	/** Writes branch to the instruction, polling process state on backward jumps. */
+	private void jump(int opcode, int target) {
+		if (target <= pc) poll();
+		out.jump(opcode, edge(target));
+	}
+
+	private void poll() {
+		out.local(ALOAD, PROC);
+		out.invoke(INVOKESTATIC, RUNTIME, "poll", "(Lalchemy/system/Process;)V");
+	}
+
+	/* TYPES AND CONVERSIONS */
+
+	private byte localType(int index) {
+		byte type = ltypes[index];
+		return (type == NONE) ? A : type;
+	}
+
+	private static int loadOp(byte type) {
+		switch (type) {
+			case I: return ILOAD;
+			case J: return LLOAD;
+			case F: return FLOAD;
+			case D: return DLOAD;
+			default: return ALOAD;
+		}
+	}
+
+	private static int storeOp(byte type) {
+		switch (type) {
+			case I: return ISTORE;
+			case J: return LSTORE;
+			case F: return FSTORE;
+			case D: return DSTORE;
+			default: return ASTORE;
+		}
+	}
+
+	private static boolean isWide(byte type) {
+		return type == J || type == D;
+	}
+
+	private void push(byte type) {
+		stack[sp] = type;
+		sp++;
+	}
+
+	/** Converts value on top of the JVM stack. */
+	private void convert(byte from, byte to) {
+		if (from == to) return;
+		if (to == A) {
+			switch (from) {
+				case I: out.invoke(INVOKESTATIC, INT32, "toInt32", "(I)Lalchemy/types/Int32;"); break;
+				case J: out.invoke(INVOKESTATIC, RUNTIME, "box", "(J)Ljava/lang/Object;"); break;
+				case F: out.invoke(INVOKESTATIC, RUNTIME, "box", "(F)Ljava/lang/Object;"); break;
+				case D: out.invoke(INVOKESTATIC, RUNTIME, "box", "(D)Ljava/lang/Object;"); break;
+			}
+		} else if (from == A) {
+			switch (to) {
+				case I:
+					out.type(CHECKCAST, INT32);
+					out.field(GETFIELD, INT32, "value", "I");
+					break;
+				case J:
+					out.type(CHECKCAST, INT64);
+					out.field(GETFIELD, INT64, "value", "J");
+					break;
+				case F:
+					out.type(CHECKCAST, FLOAT32);
+					out.field(GETFIELD, FLOAT32, "value", "F");
+					break;
+				case D:
+					out.type(CHECKCAST, FLOAT64);
+					out.field(GETFIELD, FLOAT64, "value", "D");
+					break;
+			}
+		} else {
+			throw new UnsupportedOperationException("Type mismatch");
+		}
+	}
+
+	/** Converts top slots of the stack to given types. */
+	private void coerce(byte[] want) {
+		int count = want.length;
+		int base = sp - count;
+		if (base < 0) throw new UnsupportedOperationException("Stack underflow");
+		int first = -1;
+		for (int i=count-1; i>=0; i--) {
+			if (stack[base+i] != want[i]) first = i;
+		}
+		if (first < 0) return;
+		if (first == count-1) {
+			convert(stack[sp-1], want[first]);
+			stack[sp-1] = want[first];
+			return;
+		}
+		spill(base+first);
+		for (int i=base+first; i<sp; i++) {
+			out.local(loadOp(stack[i]), tmp + i*2);
+			convert(stack[i], want[i-base]);
+			stack[i] = want[i-base];
+		}
+	}
+
+	private void coerce(byte t) {
+		coerce(new byte[] {t});
+	}
+
+	private void coerce(byte t1, byte t2) {
+		coerce(new byte[] {t1, t2});
+	}
+
+	/** Converts the whole stack to given types. */
+	private void convertTo(byte[] entry) {
+		if (entry.length != sp) throw new UnsupportedOperationException("Stack depth mismatch");
+		coerce(entry);
+	}
+
+	/** Moves stack slots starting from given one to temporary locals. */
+	private void spill(int from) {
+		for (int i=sp-1; i>=from; i--) {
+			out.local(storeOp(stack[i]), tmp + i*2);
+		}
+	}
+
+	/** Loads spilled slot as an object. */
+	private void reloadBoxed(int slot) {
+		out.local(loadOp(stack[slot]), tmp + slot*2);
+		convert(stack[slot], A);
+	}
+
+	/* LOCALS */
+
+	private void load(int index) {
+		checkLocal(index);
+		byte type = localType(index);
+		out.local(loadOp(type), LOCALS + index*2);
+		push(type);
+	}
+
+	private void store(int index) {
+		checkLocal(index);
+		byte type = stack[sp-1];
+		if (!emitting) {
+			byte old = ltypes[index];
+			if (old != type && old != A) {
+				ltypes[index] = (old == NONE) ? type : A;
+				localsChanged = true;
+			}
+		}
+		convert(type, localType(index));
+		out.local(storeOp(localType(index)), LOCALS + index*2);
+		sp--;
+	}
+
+	private void iinc(int index, int inc) {
+		checkLocal(index);
+		if (localType(index) == I) {
+			out.iinc(LOCALS + index*2, inc);
+		} else {
+			load(index);
+			coerce(I);
+			out.iconst(inc);
+			out.op(IADD);
+			store(index);
+		}
+		if (!emitting && ltypes[index] != I && ltypes[index] != A) {
+			ltypes[index] = (ltypes[index] == NONE) ? I : A;
+			localsChanged = true;
+		}
+	}
+
+	private void checkLocal(int index) {
+		if (index < 0 || index >= localsize) throw new UnsupportedOperationException("Invalid local");
+	}
+
+	/* OPERATIONS */
+
+	private void binary(byte type, int opcode) {
+		coerce(type, type);
+		out.op(opcode);
+		sp--;
+	}
+
+	private void shift(byte type, int opcode) {
+		coerce(type, I);
+		out.op(opcode);
+		sp--;
+	}
+
+	private void unary(byte type, int opcode) {
+		coerce(type);
+		out.op(opcode);
+	}
+
+	private void conversion(byte from, byte to, int opcode) {
+		coerce(from);
+		out.op(opcode);
+		stack[sp-1] = to;
+	}
+
+	/** Ether comparison, sign of the difference. */
+	private void compare(byte type, int subop, String desc) {
+		binary(type, subop);
+		out.invoke(INVOKESTATIC, RUNTIME, "cmp", desc);
+		stack[sp-1] = I;
+	}
+
+	private void branch(byte type, int opcode, int target) {
+		coerce(type);
+		sp--;
+		jump(opcode, target);
+	}
+
+	private void icmpBranch(int opcode, int target) {
+		coerce(I, I);
+		sp -= 2;
+		jump(opcode, target);
+	}
+
+	private void acmpBranch(boolean eq, int target) {
+		byte t1 = stack[sp-2];
+		byte t2 = stack[sp-1];
+		if (t1 == I && t2 == I) {
+			sp -= 2;
+			jump(eq ? IF_ICMPEQ : IF_ICMPNE, target);
+		} else if (t1 == J && t2 == J) {
+			out.op(LCMP);
+			sp -= 2;
+			jump(eq ? IFEQ : IFNE, target);
+		} else {
+			coerce(A, A);
+			out.invoke(INVOKESTATIC, RUNTIME, "equal", "(Ljava/lang/Object;Ljava/lang/Object;)Z");
+			sp -= 2;
+			jump(eq ? IFNE : IFEQ, target);
+		}
+	}
+
+	private void ldc(int index) {
+		if (index < 0 || index >= cpool.length) throw new UnsupportedOperationException("Invalid constant");
+		Object cnst = cpool[index];
+		if (cnst instanceof Int32) {
+			out.iconst(((Int32)cnst).value);
+			push(I);
+		} else if (cnst instanceof Int64) {
+			out.lconst(((Int64)cnst).value);
+			push(J);
+		} else if (cnst instanceof Float32) {
+			out.fconst(((Float32)cnst).value);
+			push(F);
+		} else if (cnst instanceof Float64) {
+			out.dconst(((Float64)cnst).value);
+			push(D);
+		} else {
+			loadConstant(index);
+			push(A);
+		}
+	}
+
+	private void loadConstant(int index) {
+		out.local(ALOAD, THIS);
+		out.field(GETFIELD, COMPILED, "cpool", "[Ljava/lang/Object;");
+		out.iconst(index);
+		out.op(AALOAD);
+	}
+
+	/**
+	 * Calls function with arguments on top of the stack.
+	 * Function is either below arguments or in the constant pool.
+	 */
+	private void call(int nargs, int cindex, boolean discard) {
+		int argbase = sp - nargs;
+		if (argbase < 0) throw new UnsupportedOperationException("Stack underflow");
+		spill(argbase);
+		if (cindex < 0) {
+			sp = argbase;
+			coerce(A);
+			sp = argbase + nargs;
+		} else {
+			if (cindex >= cpool.length) throw new UnsupportedOperationException("Invalid constant");
+			loadConstant(cindex);
+		}
+		out.type(CHECKCAST, FUNCTION);
+		out.local(ALOAD, PROC);
+		if (nargs <= 3) {
+			StringBuilder desc = new StringBuilder("(Lalchemy/system/Process;");
+			for (int i=0; i<nargs; i++) {
+				reloadBoxed(argbase+i);
+				desc.append("Ljava/lang/Object;");
+			}
+			desc.append(")Ljava/lang/Object;");
+			out.invoke(INVOKEVIRTUAL, FUNCTION, "invoke" + nargs, desc.toString());
+		} else {
+			out.iconst(nargs);
+			out.type(ANEWARRAY, OBJECT);
+			for (int i=0; i<nargs; i++) {
+				out.op(DUP);
+				out.iconst(i);
+				reloadBoxed(argbase+i);
+				out.op(AASTORE);
+			}
+			out.invoke(INVOKEVIRTUAL, FUNCTION, "invoke", INVOKE_DESC);
+		}
+		sp = (cindex < 0) ? argbase-1 : argbase;
+		if (discard) {
+			out.op(POP);
+		} else {
+			push(A);
+		}
+	}
+
+	private void newArray(int atype) {
+		coerce(I);
+		if (atype < 0) {
+			out.type(ANEWARRAY, OBJECT);
+		} else {
+			out.op1(NEWARRAY, atype);
+		}
+		stack[sp-1] = A;
+	}
+
+	private void arrayLoad(String desc, int opcode, byte type) {
+		coerce(A, I);
+		out.op(SWAP);
+		out.type(CHECKCAST, desc);
+		out.op(SWAP);
+		out.op(opcode);
+		sp -= 2;
+		push(type);
+	}
+
+	private void arrayStore(String desc, int opcode, byte type) {
+		coerce(new byte[] {A, I, type});
+		spill(sp-2);
+		out.type(CHECKCAST, desc);
+		out.local(ILOAD, tmp + (sp-2)*2);
+		out.local(loadOp(type), tmp + (sp-1)*2);
+		if (desc.equals("[Z")) {
+			out.invoke(INVOKESTATIC, RUNTIME, "bool", "(I)I");
+		}
+		out.op(opcode);
+		sp -= 3;
+	}
+
+	private void arrayLength(String desc) {
+		coerce(A);
+		out.type(CHECKCAST, desc);
+		out.op(ARRAYLENGTH);
+		stack[sp-1] = I;
+	}
+
+	private void newMultiArray(int dim, int type) {
+		if (dim < 2) throw new UnsupportedOperationException("Invalid dimension");
+		byte[] want = new byte[dim];
+		Arrays.fill(want, I);
+		coerce(want);
+		int base = sp - dim;
+		spill(base);
+		out.iconst(dim);
+		out.op1(NEWARRAY, T_INT);
+		for (int i=0; i<dim; i++) {
+			out.op(DUP);
+			out.iconst(i);
+			out.local(ILOAD, tmp + (base+i)*2);
+			out.op(IASTORE);
+		}
+		out.iconst(type);
+		out.invoke(INVOKESTATIC, "alchemy/util/Arrays", "newMultiArray", "([II)Ljava/lang/Object;");
+		sp = base;
+		push(A);
+	}
+
+	private void concat(int n) {
+		int base = sp - n;
+		if (n < 1 || base < 0) throw new UnsupportedOperationException("Stack underflow");
+		spill(base);
+		out.type(NEW, STRBUF);
+		out.op(DUP);
+		out.invoke(INVOKESPECIAL, STRBUF, "<init>", "()V");
+		for (int i=0; i<n; i++) {
+			reloadBoxed(base+i);
+			out.invoke(INVOKESTATIC, "alchemy/util/Strings", "toString", "(Ljava/lang/Object;)Ljava/lang/String;");
+			out.invoke(INVOKEVIRTUAL, STRBUF, "append", "(Ljava/lang/String;)Ljava/lang/StringBuffer;");
+		}
+		out.invoke(INVOKEVIRTUAL, STRBUF, "toString", "()Ljava/lang/String;");
+		sp = base;
+		push(A);
+	}
+
+	private void global(int nargs, boolean set) {
+		byte[] want = new byte[nargs];
+		Arrays.fill(want, A);
+		coerce(want);
+		int base = sp - nargs;
+		spill(base);
+		out.local(ALOAD, PROC);
+		out.local(ALOAD, THIS);
+		out.field(GETFIELD, FUNCTION, "library", "Lalchemy/system/Library;");
+		out.local(ALOAD, tmp + base*2);
+		out.type(CHECKCAST, STRING);
+		if (nargs == 2) {
+			out.local(ALOAD, tmp + base*2 + 2);
+		} else {
+			out.op(ACONST_NULL);
+		}
+		String desc = "(Lalchemy/system/Library;Ljava/lang/String;Ljava/lang/Object;)";
+		sp = base;
+		if (set) {
+			out.invoke(INVOKEVIRTUAL, PROCESS, "setGlobal", desc + "V");
+		} else {
+			out.invoke(INVOKEVIRTUAL, PROCESS, "getGlobal", desc + "Ljava/lang/Object;");
+			push(A);
+		}
+	}
+
+	private void dup2() {
+		byte t1 = stack[sp-2];
+		byte t2 = stack[sp-1];
+		if (!isWide(t1) && !isWide(t2)) {
+			out.op(DUP2);
+		} else {
+			spill(sp-2);
+			for (int k=0; k<2; k++) {
+				out.local(loadOp(t1), tmp + (sp-2)*2);
+				out.local(loadOp(t2), tmp + (sp-1)*2);
+			}
+		}
+		push(t1);
+		push(t2);
+	}
+
+	private void swap() {
+		byte t1 = stack[sp-2];
+		byte t2 = stack[sp-1];
+		if (!isWide(t1) && !isWide(t2)) {
+			out.op(SWAP);
+		} else {
+			spill(sp-2);
+			out.local(loadOp(t2), tmp + (sp-1)*2);
+			out.local(loadOp(t1), tmp + (sp-2)*2);
+		}
+		stack[sp-2] = t2;
+		stack[sp-1] = t1;
+	}
+
+	private void tableswitch() {
+		int dflt = code[pc+1];
+		int min = code[pc+2];
+		int max = code[pc+3];
+		coerce(I);
+		sp--;
+		int[] jumps = new int[max-min+1];
+		boolean backward = dflt <= pc;
+		for (int i=0; i<jumps.length; i++) {
+			if (code[pc+4+i] <= pc) backward = true;
+		}
+		if (backward) poll();
+		for (int i=0; i<jumps.length; i++) {
+			jumps[i] = edge(code[pc+4+i]);
+		}
+		out.tableswitch(edge(dflt), min, max, jumps);
+	}
+
+	private void lookupswitch() {
+		int dflt = code[pc+1];
+		int count = code[pc+2];
+		coerce(I);
+		sp--;
+		// sorting keys, the first occurence of a key wins
+		long[] pairs = new long[count];
+		int npairs = 0;
+		boolean backward = dflt <= pc;
+		for (int i=0; i<count; i++) {
+			int key = code[pc+3+i*2];
+			boolean dup = false;
+			for (int j=0; j<npairs; j++) {
+				if ((int)(pairs[j] >> 32) == key) dup = true;
+			}
+			if (!dup) {
+				pairs[npairs] = ((long)key << 32) | i;
+				npairs++;
+				if (code[pc+4+i*2] <= pc) backward = true;
+			}
+		}
+		pairs = Arrays.copyOf(pairs, npairs);
+		Arrays.sort(pairs);
+		if (backward) poll();
+		int[] keys = new int[npairs];
+		int[] jumps = new int[npairs];
+		for (int i=0; i<npairs; i++) {
+			keys[i] = (int)(pairs[i] >> 32);
+			jumps[i] = edge(code[pc+4+((int)pairs[i])*2]);
+		}
+		out.lookupswitch(edge(dflt), keys, jumps);
+	}
+
+	/** Returns length of the instruction in the decoded code. */
+	private int insnLength(int at) {
+		int instr = insnAt(at);
+		switch (instr) {
+			case Opcodes.LOAD: case Opcodes.STORE:
+			case Opcodes.BIPUSH: case Opcodes.SIPUSH: case Opcodes.LDC:
+			case Opcodes.CALL: case Opcodes.CALV: case Opcodes.CONCAT:
+			case Opcodes.IFEQ: case Opcodes.IFNE: case Opcodes.IFLT:
+			case Opcodes.IFGE: case Opcodes.IFGT: case Opcodes.IFLE:
+			case Opcodes.GOTO: case Opcodes.IFNULL: case Opcodes.IFNNULL:
+			case Opcodes.IF_ICMPLT: case Opcodes.IF_ICMPGE:
+			case Opcodes.IF_ICMPGT: case Opcodes.IF_ICMPLE:
+			case Opcodes.IF_ACMPEQ: case Opcodes.IF_ACMPNE:
+			case Opcodes.JSR: case Opcodes.GOTO_IINC:
+			case Opcodes.GETGLOBAL: case Opcodes.GETGLOBALDEF: case Opcodes.SETGLOBAL:
+			case Opcodes.CALL_0: case Opcodes.CALL_1: case Opcodes.CALL_2: case Opcodes.CALL_3:
+			case Opcodes.CALL_4: case Opcodes.CALL_5: case Opcodes.CALL_6: case Opcodes.CALL_7:
+			case Opcodes.CALV_0: case Opcodes.CALV_1: case Opcodes.CALV_2: case Opcodes.CALV_3:
+			case Opcodes.CALV_4: case Opcodes.CALV_5: case Opcodes.CALV_6: case Opcodes.CALV_7:
+				return 2;
+			case Opcodes.IINC: case Opcodes.NEWMULTIARRAY:
+			case Opcodes.CALLC: case Opcodes.CALVC: case Opcodes.MOVE_R:
+			case Opcodes.AALOAD_LL: case Opcodes.BALOAD_LL:
+			case Opcodes.CALOAD_LL: case Opcodes.IALOAD_LL:
+				return 3;
+			case Opcodes.IADDI_R:
+			case Opcodes.IF_ICMPLT_R: case Opcodes.IF_ICMPGE_R:
+			case Opcodes.IF_ICMPGT_R: case Opcodes.IF_ICMPLE_R:
+			case Opcodes.IF_ICMPLT_LI: case Opcodes.IF_ICMPGE_LI:
+			case Opcodes.IF_ICMPGT_LI: case Opcodes.IF_ICMPLE_LI:
+				return 4;
+			case Opcodes.TABLESWITCH:
+				return 4 + code[at+3] - code[at+2] + 1;
+			case Opcodes.LOOKUPSWITCH:
+				return 3 + code[at+2]*2;
+		}
+		if (instr >= Opcodes.IADD_R && instr <= Opcodes.DDIV_R) return 4;
+		if (instr >= Opcodes.CALLC_0 && instr <= Opcodes.CALVC_7) return 2;
+		return 1;
+	}
+
+	/**
+	 * Returns opcode of the instruction at given offset.
+	 * Calls quickened by the interpreter, type-specialized
+	 * instructions and intrinsics are read as generic ones.
+	 */
+	private int insnAt(int at) {
+		int instr = code[at];
+		if (instr >= Opcodes.IADD_T) return untyped(instr);
+		if (instr >= Opcodes.CALL_QE) instr = Opcodes.CALL_0 | (instr & 15);
+		else if (instr >= Opcodes.ACOPY_I) instr = untyped(instr);
+		return instr;
+	}
+
+	/** Returns generic version of type-specialized instruction or intrinsic. */
+	private static int untyped(int instr) {
+		switch (instr) {
+			case Opcodes.ACOPY_I: return Opcodes.CALVC_5;
+			case Opcodes.STRLEN_I: case Opcodes.HASH_I: case Opcodes.LISTLEN_I: return Opcodes.CALLC_1;
+			case Opcodes.STRGET_I: case Opcodes.LISTGET_I: case Opcodes.DICTGET_I: return Opcodes.CALLC_2;
+			case Opcodes.IADD_T: return Opcodes.IADD;
+			case Opcodes.ISUB_T: return Opcodes.ISUB;
+			case Opcodes.IINC_T: return Opcodes.IINC;
+			case Opcodes.GOTO_IINC_T: return Opcodes.GOTO_IINC;
+			case Opcodes.IADD_R_T: return Opcodes.IADD_R;
+			case Opcodes.ISUB_R_T: return Opcodes.ISUB_R;
+			case Opcodes.IADDI_R_T: return Opcodes.IADDI_R;
+		}
+		if (instr >= Opcodes.IF_ICMPLT_LI_T) return Opcodes.IF_ICMPLT_LI + (instr - Opcodes.IF_ICMPLT_LI_T);
+		if (instr >= Opcodes.IF_ICMPLT_R_T) return Opcodes.IF_ICMPLT_R + (instr - Opcodes.IF_ICMPLT_R_T);
+		return Opcodes.IF_ICMPLT + (instr - Opcodes.IF_ICMPLT_T);
+	}
+
+	/** Translates instruction at <i>pc</i>. */
+	private void translateInsn() {
+		int instr = insnAt(pc);
+		falls = true;
+		switch (instr) {
+			// constants
+			case Opcodes.ACONST_NULL: out.op(ACONST_NULL); push(A); break;
+			case Opcodes.ICONST_M1: case Opcodes.ICONST_0: case Opcodes.ICONST_1:
+			case Opcodes.ICONST_2: case Opcodes.ICONST_3: case Opcodes.ICONST_4:
+			case Opcodes.ICONST_5:
+				out.iconst(instr - Opcodes.ICONST_0);
+				push(I);
+				break;
+			case Opcodes.LCONST_0: case Opcodes.LCONST_1:
+				out.lconst(instr - Opcodes.LCONST_0);
+				push(J);
+				break;
+			case Opcodes.FCONST_0: case Opcodes.FCONST_1: case Opcodes.FCONST_2:
+				out.fconst(instr - Opcodes.FCONST_0);
+				push(F);
+				break;
+			case Opcodes.DCONST_0: case Opcodes.DCONST_1:
+				out.dconst(instr - Opcodes.DCONST_0);
+				push(D);
+				break;
+			case Opcodes.BIPUSH: case Opcodes.SIPUSH:
+				out.iconst(code[pc+1]);
+				push(I);
+				break;
+			case Opcodes.LDC: ldc(code[pc+1]); break;
+
+			// conversions
+			case Opcodes.I2L: conversion(I, J, I2L); break;
+			case Opcodes.I2F: conversion(I, F, I2F); break;
+			case Opcodes.I2D: conversion(I, D, I2D); break;
+			case Opcodes.L2F: conversion(J, F, L2F); break;
+			case Opcodes.L2D: conversion(J, D, L2D); break;
+			case Opcodes.L2I: conversion(J, I, L2I); break;
+			case Opcodes.F2D: conversion(F, D, F2D); break;
+			case Opcodes.F2I: conversion(F, I, F2I); break;
+			case Opcodes.F2L: conversion(F, J, F2L); break;
+			case Opcodes.D2I: conversion(D, I, D2I); break;
+			case Opcodes.D2L: conversion(D, J, D2L); break;
+			case Opcodes.D2F: conversion(D, F, D2F); break;
+			case Opcodes.I2C: conversion(I, I, I2C); break;
+			case Opcodes.I2B: conversion(I, I, I2B); break;
+			case Opcodes.I2S: conversion(I, I, I2S); break;
+
+			// arithmetics
+			case Opcodes.IADD: binary(I, IADD); break;
+			case Opcodes.ISUB: binary(I, ISUB); break;
+			case Opcodes.IMUL: binary(I, IMUL); break;
+			case Opcodes.IDIV: binary(I, IDIV); break;
+			case Opcodes.IMOD: binary(I, IREM); break;
+			case Opcodes.INEG: unary(I, INEG); break;
+			case Opcodes.ICMP: compare(I, ISUB, "(I)I"); break;
+			case Opcodes.ISHL: shift(I, ISHL); break;
+			case Opcodes.ISHR: shift(I, ISHR); break;
+			case Opcodes.IUSHR: shift(I, IUSHR); break;
+			case Opcodes.IAND: binary(I, IAND); break;
+			case Opcodes.IOR: binary(I, IOR); break;
+			case Opcodes.IXOR: binary(I, IXOR); break;
+			case Opcodes.LADD: binary(J, LADD); break;
+			case Opcodes.LSUB: binary(J, LSUB); break;
+			case Opcodes.LMUL: binary(J, LMUL); break;
+			case Opcodes.LDIV: binary(J, LDIV); break;
+			case Opcodes.LMOD: binary(J, LREM); break;
+			case Opcodes.LNEG: unary(J, LNEG); break;
+			case Opcodes.LCMP: compare(J, LSUB, "(J)I"); break;
+			case Opcodes.LSHL: shift(J, LSHL); break;
+			case Opcodes.LSHR: shift(J, LSHR); break;
+			case Opcodes.LUSHR: shift(J, LUSHR); break;
+			case Opcodes.LAND: binary(J, LAND); break;
+			case Opcodes.LOR: binary(J, LOR); break;
+			case Opcodes.LXOR: binary(J, LXOR); break;
+			case Opcodes.FADD: binary(F, FADD); break;
+			case Opcodes.FSUB: binary(F, FSUB); break;
+			case Opcodes.FMUL: binary(F, FMUL); break;
+			case Opcodes.FDIV: binary(F, FDIV); break;
+			case Opcodes.FMOD: binary(F, FREM); break;
+			case Opcodes.FNEG: unary(F, FNEG); break;
+			case Opcodes.FCMP: compare(F, FSUB, "(F)I"); break;
+			case Opcodes.DADD: binary(D, DADD); break;
+			case Opcodes.DSUB: binary(D, DSUB); break;
+			case Opcodes.DMUL: binary(D, DMUL); break;
+			case Opcodes.DDIV: binary(D, DDIV); break;
+			case Opcodes.DMOD: binary(D, DREM); break;
+			case Opcodes.DNEG: unary(D, DNEG); break;
+			case Opcodes.DCMP: compare(D, DSUB, "(D)I"); break;
+
+			// locals
+			case Opcodes.LOAD_0: case Opcodes.LOAD_1: case Opcodes.LOAD_2: case Opcodes.LOAD_3:
+			case Opcodes.LOAD_4: case Opcodes.LOAD_5: case Opcodes.LOAD_6: case Opcodes.LOAD_7:
+				load(instr & 7);
+				break;
+			case Opcodes.LOAD: load(code[pc+1]); break;
+			case Opcodes.STORE_0: case Opcodes.STORE_1: case Opcodes.STORE_2: case Opcodes.STORE_3:
+			case Opcodes.STORE_4: case Opcodes.STORE_5: case Opcodes.STORE_6: case Opcodes.STORE_7:
+				store(instr & 7);
+				break;
+			case Opcodes.STORE: store(code[pc+1]); break;
+			case Opcodes.IINC: iinc(code[pc+1], code[pc+2]); break;
+
+			// register instructions
+			case Opcodes.IADD_R: register(I, IADD); break;
+			case Opcodes.ISUB_R: register(I, ISUB); break;
+			case Opcodes.IMUL_R: register(I, IMUL); break;
+			case Opcodes.IDIV_R: register(I, IDIV); break;
+			case Opcodes.IMOD_R: register(I, IREM); break;
+			case Opcodes.ISHL_R: register(I, ISHL); break;
+			case Opcodes.ISHR_R: register(I, ISHR); break;
+			case Opcodes.IUSHR_R: register(I, IUSHR); break;
+			case Opcodes.IAND_R: register(I, IAND); break;
+			case Opcodes.IOR_R: register(I, IOR); break;
+			case Opcodes.IXOR_R: register(I, IXOR); break;
+			case Opcodes.LADD_R: register(J, LADD); break;
+			case Opcodes.LSUB_R: register(J, LSUB); break;
+			case Opcodes.LMUL_R: register(J, LMUL); break;
+			case Opcodes.LDIV_R: register(J, LDIV); break;
+			case Opcodes.LMOD_R: register(J, LREM); break;
+			case Opcodes.FADD_R: register(F, FADD); break;
+			case Opcodes.FSUB_R: register(F, FSUB); break;
+			case Opcodes.FMUL_R: register(F, FMUL); break;
+			case Opcodes.FDIV_R: register(F, FDIV); break;
+			case Opcodes.DADD_R: register(D, DADD); break;
+			case Opcodes.DSUB_R: register(D, DSUB); break;
+			case Opcodes.DMUL_R: register(D, DMUL); break;
+			case Opcodes.DDIV_R: register(D, DDIV); break;
+			case Opcodes.MOVE_R:
+				load(code[pc+2]);
+				store(code[pc+1]);
+				break;
+			case Opcodes.IADDI_R:
+				load(code[pc+2]);
+				out.iconst(code[pc+3]);
+				push(I);
+				binary(I, IADD);
+				store(code[pc+1]);
+				break;
+			case Opcodes.IF_ICMPLT_R: load(code[pc+1]); load(code[pc+2]); icmpBranch(IF_ICMPLT, code[pc+3]); break;
+			case Opcodes.IF_ICMPGE_R: load(code[pc+1]); load(code[pc+2]); icmpBranch(IF_ICMPGE, code[pc+3]); break;
+			case Opcodes.IF_ICMPGT_R: load(code[pc+1]); load(code[pc+2]); icmpBranch(IF_ICMPGT, code[pc+3]); break;
+			case Opcodes.IF_ICMPLE_R: load(code[pc+1]); load(code[pc+2]); icmpBranch(IF_ICMPLE, code[pc+3]); break;
+
+			// globals
+			case Opcodes.GETGLOBAL: global(1, false); break;
+			case Opcodes.GETGLOBALDEF: global(2, false); break;
+			case Opcodes.SETGLOBAL: global(2, true); break;
+
+			// branching
+			case Opcodes.IFEQ: branch(I, IFEQ, code[pc+1]); break;
+			case Opcodes.IFNE: branch(I, IFNE, code[pc+1]); break;
+			case Opcodes.IFLT: branch(I, IFLT, code[pc+1]); break;
+			case Opcodes.IFGE: branch(I, IFGE, code[pc+1]); break;
+			case Opcodes.IFGT: branch(I, IFGT, code[pc+1]); break;
+			case Opcodes.IFLE: branch(I, IFLE, code[pc+1]); break;
+			case Opcodes.IFNULL: branch(A, IFNULL, code[pc+1]); break;
+			case Opcodes.IFNNULL: branch(A, IFNONNULL, code[pc+1]); break;
+			case Opcodes.IF_ICMPLT: icmpBranch(IF_ICMPLT, code[pc+1]); break;
+			case Opcodes.IF_ICMPGE: icmpBranch(IF_ICMPGE, code[pc+1]); break;
+			case Opcodes.IF_ICMPGT: icmpBranch(IF_ICMPGT, code[pc+1]); break;
+			case Opcodes.IF_ICMPLE: icmpBranch(IF_ICMPLE, code[pc+1]); break;
+			case Opcodes.IF_ACMPEQ: acmpBranch(true, code[pc+1]); break;
+			case Opcodes.IF_ACMPNE: acmpBranch(false, code[pc+1]); break;
+			case Opcodes.GOTO: {
+				int target = code[pc+1];
+				checkTarget(target);
+				if (emitting) convertTo(entries[target]);
+				jump(GOTO, target);
+				falls = false;
+				break;
+			}
+			case Opcodes.TABLESWITCH: tableswitch(); falls = false; break;
+			case Opcodes.LOOKUPSWITCH: lookupswitch(); falls = false; break;
+
+			// calls
+			case Opcodes.CALL_0: case Opcodes.CALL_1: case Opcodes.CALL_2: case Opcodes.CALL_3:
+			case Opcodes.CALL_4: case Opcodes.CALL_5: case Opcodes.CALL_6: case Opcodes.CALL_7:
+				call(instr & 7, -1, false);
+				break;
+			case Opcodes.CALV_0: case Opcodes.CALV_1: case Opcodes.CALV_2: case Opcodes.CALV_3:
+			case Opcodes.CALV_4: case Opcodes.CALV_5: case Opcodes.CALV_6: case Opcodes.CALV_7:
+				call(instr & 7, -1, true);
+				break;
+			case Opcodes.CALLC_0: case Opcodes.CALLC_1: case Opcodes.CALLC_2: case Opcodes.CALLC_3:
+			case Opcodes.CALLC_4: case Opcodes.CALLC_5: case Opcodes.CALLC_6: case Opcodes.CALLC_7:
+				call(instr & 7, code[pc+1], false);
+				break;
+			case Opcodes.CALVC_0: case Opcodes.CALVC_1: case Opcodes.CALVC_2: case Opcodes.CALVC_3:
+			case Opcodes.CALVC_4: case Opcodes.CALVC_5: case Opcodes.CALVC_6: case Opcodes.CALVC_7:
+				call(instr & 7, code[pc+1], true);
+				break;
+			case Opcodes.CALL: call(code[pc+1], -1, false); break;
+			case Opcodes.CALV: call(code[pc+1], -1, true); break;
+			case Opcodes.CALLC: call(code[pc+1], code[pc+2], false); break;
+			case Opcodes.CALVC: call(code[pc+1], code[pc+2], true); break;
+
+			// arrays
+			case Opcodes.NEWAA: newArray(-1); break;
+			case Opcodes.NEWBA: newArray(T_BYTE); break;
+			case Opcodes.NEWCA: newArray(T_CHAR); break;
+			case Opcodes.NEWZA: newArray(T_BOOLEAN); break;
+			case Opcodes.NEWSA: newArray(T_SHORT); break;
+			case Opcodes.NEWIA: newArray(T_INT); break;
+			case Opcodes.NEWLA: newArray(T_LONG); break;
+			case Opcodes.NEWFA: newArray(T_FLOAT); break;
+			case Opcodes.NEWDA: newArray(T_DOUBLE); break;
+			case Opcodes.AALOAD: arrayLoad("[Ljava/lang/Object;", AALOAD, A); break;
+			case Opcodes.BALOAD: arrayLoad("[B", BALOAD, I); break;
+			case Opcodes.CALOAD: arrayLoad("[C", CALOAD, I); break;
+			case Opcodes.ZALOAD: arrayLoad("[Z", BALOAD, I); break;
+			case Opcodes.SALOAD: arrayLoad("[S", SALOAD, I); break;
+			case Opcodes.IALOAD: arrayLoad("[I", IALOAD, I); break;
+			case Opcodes.LALOAD: arrayLoad("[J", LALOAD, J); break;
+			case Opcodes.FALOAD: arrayLoad("[F", FALOAD, F); break;
+			case Opcodes.DALOAD: arrayLoad("[D", DALOAD, D); break;
+			case Opcodes.AASTORE: arrayStore("[Ljava/lang/Object;", AASTORE, A); break;
+			case Opcodes.BASTORE: arrayStore("[B", BASTORE, I); break;
+			case Opcodes.CASTORE: arrayStore("[C", CASTORE, I); break;
+			case Opcodes.ZASTORE: arrayStore("[Z", BASTORE, I); break;
+			case Opcodes.SASTORE: arrayStore("[S", SASTORE, I); break;
+			case Opcodes.IASTORE: arrayStore("[I", IASTORE, I); break;
+			case Opcodes.LASTORE: arrayStore("[J", LASTORE, J); break;
+			case Opcodes.FASTORE: arrayStore("[F", FASTORE, F); break;
+			case Opcodes.DASTORE: arrayStore("[D", DASTORE, D); break;
+			case Opcodes.AALEN: arrayLength("[Ljava/lang/Object;"); break;
+			case Opcodes.BALEN: arrayLength("[B"); break;
+			case Opcodes.CALEN: arrayLength("[C"); break;
+			case Opcodes.ZALEN: arrayLength("[Z"); break;
+			case Opcodes.SALEN: arrayLength("[S"); break;
+			case Opcodes.IALEN: arrayLength("[I"); break;
+			case Opcodes.LALEN: arrayLength("[J"); break;
+			case Opcodes.FALEN: arrayLength("[F"); break;
+			case Opcodes.DALEN: arrayLength("[D"); break;
+			case Opcodes.NEWMULTIARRAY: newMultiArray(code[pc+1], code[pc+2]); break;
+
+			// others
+			case Opcodes.CONCAT: concat(code[pc+1]); break;
+			case Opcodes.ACMP: {
+				byte t1 = stack[sp-2];
+				byte t2 = stack[sp-1];
+				if (t1 == t2 && (t1 == I || t1 == J)) {
+					out.invoke(INVOKESTATIC, RUNTIME, "acmp", (t1 == I) ? "(II)I" : "(JJ)I");
+				} else {
+					coerce(A, A);
+					out.invoke(INVOKESTATIC, RUNTIME, "acmp", "(Ljava/lang/Object;Ljava/lang/Object;)I");
+				}
+				sp -= 2;
+				push(I);
+				break;
+			}
+			case Opcodes.RET_NULL:
+				out.op(ACONST_NULL);
+				out.op(ARETURN);
+				falls = false;
+				break;
+			case Opcodes.RETURN:
+				coerce(A);
+				out.op(ARETURN);
+				falls = false;
+				break;
+			case Opcodes.THROW:
+				coerce(I, A);
+				out.invoke(INVOKESTATIC, RUNTIME, "error", "(ILjava/lang/Object;)Lalchemy/system/AlchemyException;");
+				out.op(ATHROW);
+				falls = false;
+				break;
+			case Opcodes.DUP: {
+				byte t = stack[sp-1];
+				out.op(isWide(t) ? DUP2 : DUP);
+				push(t);
+				break;
+			}
+			case Opcodes.DUP2: dup2(); break;
+			case Opcodes.SWAP: swap(); break;
+			case Opcodes.POP:
+				sp--;
+				out.op(isWide(stack[sp]) ? POP2 : POP);
+				break;
+
+			// superinstructions
+			case Opcodes.IF_ICMPLT_LI: loadImm(); icmpBranch(IF_ICMPLT, code[pc+3]); break;
+			case Opcodes.IF_ICMPGE_LI: loadImm(); icmpBranch(IF_ICMPGE, code[pc+3]); break;
+			case Opcodes.IF_ICMPGT_LI: loadImm(); icmpBranch(IF_ICMPGT, code[pc+3]); break;
+			case Opcodes.IF_ICMPLE_LI: loadImm(); icmpBranch(IF_ICMPLE, code[pc+3]); break;
+			case Opcodes.AALOAD_LL: load(code[pc+1]); load(code[pc+2]); arrayLoad("[Ljava/lang/Object;", AALOAD, A); break;
+			case Opcodes.BALOAD_LL: load(code[pc+1]); load(code[pc+2]); arrayLoad("[B", BALOAD, I); break;
+			case Opcodes.CALOAD_LL: load(code[pc+1]); load(code[pc+2]); arrayLoad("[C", CALOAD, I); break;
+			case Opcodes.IALOAD_LL: load(code[pc+1]); load(code[pc+2]); arrayLoad("[I", IALOAD, I); break;
+			case Opcodes.GOTO_IINC: {
+				int target = code[pc+1];
+				checkTarget(target);
+				if (insnAt(target) != Opcodes.IINC) throw new UnsupportedOperationException("Invalid goto_iinc");
+				iinc(code[target+1], code[target+2]);
+				target += 3;
+				checkTarget(target);
+				if (emitting) convertTo(entries[target]);
+				jump(GOTO, target);
+				falls = false;
+				break;
+			}
+
+			default:
+				throw new UnsupportedOperationException("Unsupported instruction " + instr);
+		}
+	}
+
+	private void register(byte type, int opcode) {
+		load(code[pc+2]);
+		load(code[pc+3]);
+		binary(type, opcode);
+		store(code[pc+1]);
+	}
+
+	private void loadImm() {
+		load(code[pc+1]);
+		out.iconst(code[pc+2]);
+		push(I);
+	}
+}